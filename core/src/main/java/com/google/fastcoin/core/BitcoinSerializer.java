@@ -67,6 +67,7 @@ public class BitcoinSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
@@ -168,10 +169,19 @@ public class BitcoinSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes, doubleDigest(payloadBytes));
+    }
+
+    /**
+     * Deserializes a payload that has already been read into an array of its own, given the double SHA-256 hash of
+     * the payload, which the caller may have calculated piece by piece as the bytes arrived. The array is handed to
+     * the message as is rather than copied, so the caller must not touch it afterwards.
+     */
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
+        if (payloadBytes.length != header.size)
+            throw new IllegalArgumentException("Payload is " + payloadBytes.length + " bytes, header says " + header.size);
 
         // Verify the checksum.
-        byte[] hash;
-        hash = doubleDigest(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -227,6 +237,8 @@ public class BitcoinSerializer {
             return new AlertMessage(params, payloadBytes);
         } else if (command.equals("filterload")) {
             return new BloomFilter(params, payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes);
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
@@ -16,6 +16,7 @@
 
 package com.google.fastcoin.core;
 
+import com.google.fastcoin.crypto.HeaderScrypt;
 import com.google.fastcoin.script.Script;
 import com.google.fastcoin.script.ScriptBuilder;
 import com.google.common.annotations.VisibleForTesting;
@@ -35,10 +36,6 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 
-import static com.google.fastcoin.core.Utils.doubleDigest;
-import static com.google.fastcoin.core.Utils.doubleDigestTwoBuffers;
-import static com.google.fastcoin.core.Utils.scryptDigest;
-
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Bitcoin system.
  * It records a set of {@link Transaction}s together with some data that links it into a place in the global block
@@ -191,7 +188,7 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
 
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor)));
+        hash = Sha256Hash.createDoubleReversed(bytes, offset, cursor);
 
         headerParsed = true;
         headerBytesValid = parseRetain;
@@ -505,7 +502,8 @@ public class Block extends Message {
         try {
             ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
             writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(doubleDigest(bos.toByteArray())));
+            byte[] header = bos.toByteArray();
+            return Sha256Hash.createDoubleReversed(header, 0, header.length);
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -513,12 +511,14 @@ public class Block extends Message {
 
     private Sha256Hash calculateScryptHash() {
         try {
-                ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
-                writeHeader(bos);
-                return new Sha256Hash(Utils.reverseBytes(scryptDigest(bos.toByteArray())));
-            } catch (IOException e) {
-                throw new RuntimeException(e); // Cannot happen.
-            }
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
+            writeHeader(bos);
+            byte[] scrypt = new byte[32];
+            HeaderScrypt.hash(bos.toByteArray(), 0, scrypt, 0);
+            return new Sha256Hash(Utils.reverseBytesInPlace(scrypt));
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
     }
 
     /**
@@ -743,6 +743,8 @@ public class Block extends Message {
         // t1 t2 t3 t4 t5 t5
         maybeParseTransactions();
         ArrayList<byte[]> tree = new ArrayList<byte[]>();
+        // Scratch space holding the byte reversed concatenation of the two child hashes.
+        byte[] pair = new byte[64];
         // Start by adding all the hashes of the transactions as leaves of the tree.
         for (Transaction t : transactions) {
             tree.add(t.getHash().getBytes());
@@ -755,9 +757,15 @@ public class Block extends Message {
                 // The right hand node can be the same as the left hand, in the case where we don't have enough
                 // transactions.
                 int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+                byte[] leftBytes = tree.get(levelOffset + left);
+                byte[] rightBytes = tree.get(levelOffset + right);
+                for (int i = 0; i < 32; i++) {
+                    pair[31 - i] = leftBytes[i];
+                    pair[63 - i] = rightBytes[i];
+                }
+                byte[] node = new byte[32];
+                Utils.doubleDigest(pair, 0, 64, node, 0);
+                tree.add(Utils.reverseBytesInPlace(node));
             }
             // Move to the next level.
             levelOffset += levelSize;
@@ -0,0 +1,586 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.core;
+
+import com.google.fastcoin.store.BlockStore;
+import com.google.fastcoin.store.BlockStoreException;
+import com.google.fastcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain headers first and then fetches the block bodies from all connected peers at once.</p>
+ *
+ * <p>Headers are requested from a single peer, the download peer chosen by {@link PeerGroup}, using getheaders.
+ * Their hashes are queued in chain order and the bodies, either full blocks or filtered blocks, are requested with
+ * getdata from every capable peer. Only blocks within a sliding window ahead of the chain head are requested, no
+ * new blocks are requested while those that arrived ahead of their turn take up too much memory, and each peer has a
+ * limit on how many blocks it may have in flight. The limit grows while a peer delivers and is halved when it stalls.
+ * A request that isn't answered within the stall timeout, or whose peer disconnects, is handed to another peer.</p>
+ *
+ * <p>Blocks can arrive in any order but are passed to {@link AbstractBlockChain#add(Block)} strictly in chain order.
+ * The chain is fed by whichever network thread delivered the next block in line, while the others just drop off
+ * what they received and go back to reading.</p>
+ */
+public class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** How many blocks beyond the chain head may be requested or buffered at once. */
+    public static final int DEFAULT_WINDOW_SIZE = 1024;
+    /** The most blocks any single peer may have in flight. */
+    public static final int MAX_IN_FLIGHT_PER_PEER = 16;
+    /** How many bytes of blocks that arrived ahead of their turn may be held before no new blocks are requested. */
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 16 * 1024 * 1024;
+    /** How long a peer has to deliver a requested block before the request is given to another peer. */
+    public static final long DEFAULT_STALL_TIMEOUT_MSEC = 10 * 1000;
+    // Header download pauses once this many headers are waiting for their bodies, so memory use stays bounded.
+    private static final int MAX_PENDING_HEADERS = 8 * HeadersMessage.MAX_HEADERS;
+    // How many connected hashes to remember so late duplicates from reassigned requests can be dropped.
+    private static final int RECENTLY_CONNECTED_SIZE = 1024;
+
+    private final AbstractBlockChain chain;
+    private final ReentrantLock lock = Threading.lock("blockdownload");
+    // Held by the thread feeding blocks to the chain, so they are added one at a time and in order.
+    private final ReentrantLock connectLock = Threading.lock("blockdownload-connect");
+
+    // Hashes of the headers whose bodies are wanted, in chain order. The first connectCursor of them were already
+    // added to the chain and the first requestCursor were requested at least once.
+    @GuardedBy("lock") private final ArrayList<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+    @GuardedBy("lock") private int firstHeight, connectCursor, requestCursor;
+    // Heights of the hashes that are not connected yet.
+    @GuardedBy("lock") private final HashMap<Sha256Hash, Integer> heights = new HashMap<Sha256Hash, Integer>();
+    @GuardedBy("lock") private final HashMap<Sha256Hash, Request> inFlight = new HashMap<Sha256Hash, Request>();
+    // Requests that have to be made again, lowest first.
+    @GuardedBy("lock") private final TreeMap<Integer, Sha256Hash> retry = new TreeMap<Integer, Sha256Hash>();
+    // Blocks and filtered blocks that arrived ahead of their turn.
+    @GuardedBy("lock") private final HashMap<Sha256Hash, Message> received = new HashMap<Sha256Hash, Message>();
+    // The total message size of the blocks in received.
+    @GuardedBy("lock") private long receivedBytes;
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Boolean> recentlyConnected =
+            new LinkedHashMap<Sha256Hash, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+            return size() > RECENTLY_CONNECTED_SIZE;
+        }
+    };
+    @GuardedBy("lock") private final LinkedHashMap<Peer, PeerState> peerStates = new LinkedHashMap<Peer, PeerState>();
+    @GuardedBy("lock") private Peer headerPeer;
+    // Set when a full headers message arrived but we had too many pending headers to ask for more.
+    @GuardedBy("lock") private boolean headersPaused;
+    @GuardedBy("lock") private boolean useFilteredBlocks;
+    @GuardedBy("lock") private int windowSize = DEFAULT_WINDOW_SIZE;
+    @GuardedBy("lock") private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+    @GuardedBy("lock") private long stallTimeoutMsec = DEFAULT_STALL_TIMEOUT_MSEC;
+    @GuardedBy("lock") private long blocksDownloaded, stalls;
+
+    private static class Request {
+        final PeerState peer;
+        final long timeMsec;
+
+        Request(PeerState peer, long timeMsec) {
+            this.peer = peer;
+            this.timeMsec = timeMsec;
+        }
+    }
+
+    private static class PeerState {
+        final Peer peer;
+        final HashSet<Sha256Hash> inFlight = new HashSet<Sha256Hash>();
+        // Blocks this peer failed to deliver in time, which it won't be asked for again if another peer can serve them.
+        final HashSet<Sha256Hash> stalled = new HashSet<Sha256Hash>();
+        int maxInFlight = 2;
+
+        PeerState(Peer peer) {
+            this.peer = peer;
+        }
+    }
+
+    public BlockDownloadScheduler(AbstractBlockChain chain) {
+        this.chain = checkNotNull(chain);
+        this.firstHeight = chain.getBestChainHeight() + 1;
+    }
+
+    /** Sets how many blocks beyond the chain head may be requested or held in memory at once. */
+    public void setWindowSize(int windowSize) {
+        checkArgument(windowSize > 0);
+        lock.lock();
+        try {
+            this.windowSize = windowSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how many bytes of blocks that arrived ahead of their turn may be held in memory before no new blocks are
+     * requested. Blocks already in flight still arrive and blocks that have to be requested again still are, so the
+     * blocks next in line always get through and the limit can be overshot by the blocks in flight.
+     */
+    public void setMaxBufferedBytes(long maxBufferedBytes) {
+        checkArgument(maxBufferedBytes > 0);
+        lock.lock();
+        try {
+            this.maxBufferedBytes = maxBufferedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets how long a peer has to deliver a block before the request is given to another peer. */
+    public void setStallTimeoutMsec(long stallTimeoutMsec) {
+        checkArgument(stallTimeoutMsec > 0);
+        lock.lock();
+        try {
+            this.stallTimeoutMsec = stallTimeoutMsec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Whether to ask peers that support Bloom filtering for filtered blocks rather than full blocks. */
+    public void setUseFilteredBlocks(boolean useFilteredBlocks) {
+        lock.lock();
+        try {
+            this.useFilteredBlocks = useFilteredBlocks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many blocks have been downloaded and added to the chain so far. */
+    public long getBlocksDownloaded() {
+        lock.lock();
+        try {
+            return blocksDownloaded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times a request had to be given to another peer because the first one didn't deliver. */
+    public long getStallCount() {
+        lock.lock();
+        try {
+            return stalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many headers are waiting for their block to be downloaded and added to the chain. */
+    public int getPendingBlockCount() {
+        lock.lock();
+        try {
+            return hashes.size() - connectCursor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Makes the given peer available for block requests. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!peerStates.containsKey(peer))
+                peerStates.put(peer, new PeerState(peer));
+        } finally {
+            lock.unlock();
+        }
+        sendRequests();
+    }
+
+    /** Stops using the given peer and gives whatever it had in flight to the others. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peerStates.remove(peer);
+            if (state == null)
+                return;
+            for (Sha256Hash hash : state.inFlight) {
+                inFlight.remove(hash);
+                retry.put(heights.get(hash), hash);
+            }
+            if (headerPeer == peer)
+                headerPeer = null;
+        } finally {
+            lock.unlock();
+        }
+        sendRequests();
+    }
+
+    /** Sets the peer headers are accepted from. Headers sent by any other peer are ignored. */
+    void setHeaderPeer(@Nullable Peer peer) {
+        lock.lock();
+        try {
+            headerPeer = peer;
+            headersPaused = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the hash of the last header waiting for its block, or null if there is none and header download should
+     * continue from the chain head.
+     */
+    @Nullable
+    Sha256Hash getHeaderTip() {
+        lock.lock();
+        try {
+            return connectCursor < hashes.size() ? hashes.get(hashes.size() - 1) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if there is room for more headers, so the next batch can be requested before this one arrives. */
+    boolean isAcceptingHeaders() {
+        lock.lock();
+        try {
+            return hashes.size() - connectCursor < MAX_PENDING_HEADERS;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the blocks of the given headers for download. If moreAvailable is set, returns true if the peer should be
+     * asked for more headers straight away, or false if too many headers are already waiting for their blocks, in
+     * which case {@link Peer#requestMoreHeaders()} is called once enough of them have been downloaded. Headers that
+     * don't come from the header peer are ignored.
+     */
+    boolean receiveHeaders(Peer peer, List<Block> headers, boolean moreAvailable)
+            throws ProtocolException, VerificationException {
+        lock.lock();
+        try {
+            if (peer != headerPeer) {
+                log.info("{}: Ignoring {} headers from peer that isn't the header peer", peer, headers.size());
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Do the expensive part of the proof of work check without holding the lock.
+        HeaderBatchVerifier.get().precomputeHashes(headers);
+        for (Block header : headers)
+            header.verifyHeader();
+        boolean more;
+        lock.lock();
+        try {
+            BlockStore store = chain.getBlockStore();
+            int added = 0;
+            for (Block header : headers) {
+                Sha256Hash hash = header.getHash();
+                if (heights.containsKey(hash))
+                    continue;  // Already waiting for it.
+                Sha256Hash prev = header.getPrevBlockHash();
+                if (prev.equals(getTipLocked())) {
+                    if (hashes.isEmpty())
+                        firstHeight = chain.getBestChainHeight() + 1;  // The chain may have moved on without us.
+                } else {
+                    Integer prevHeight = heights.get(prev);
+                    if (prevHeight != null) {
+                        // Forks off somewhere in the headers we already had, forget everything after that point.
+                        truncateLocked(prevHeight + 1);
+                    } else {
+                        if (store.get(hash) != null)
+                            continue;  // Already in the chain.
+                        StoredBlock storedPrev = store.get(prev);
+                        if (storedPrev == null)
+                            throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
+                        resetLocked(storedPrev.getHeight() + 1);
+                    }
+                }
+                heights.put(hash, firstHeight + hashes.size());
+                hashes.add(hash);
+                added++;
+            }
+            int pending = hashes.size() - connectCursor;
+            log.info("{}: Got {} headers, {} new, {} blocks pending", peer, headers.size(), added, pending);
+            more = moreAvailable && pending < MAX_PENDING_HEADERS;
+            headersPaused = moreAvailable && !more;
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        sendRequests();
+        return more;
+    }
+
+    /**
+     * Hands over a block or filtered block that a peer sent. Returns false if it wasn't requested by this scheduler,
+     * in which case the peer should deal with it the usual way.
+     */
+    boolean receiveBlock(Peer peer, Message block) {
+        Sha256Hash hash = block instanceof FilteredBlock ? ((FilteredBlock) block).getBlockHeader().getHash() : block.getHash();
+        lock.lock();
+        try {
+            if (recentlyConnected.containsKey(hash) || received.containsKey(hash))
+                return true;  // A duplicate from a request that was given to another peer as well.
+            if (!heights.containsKey(hash))
+                return false;
+            Request request = inFlight.remove(hash);
+            if (request != null)
+                request.peer.inFlight.remove(hash);
+            retry.values().remove(hash);
+            PeerState state = peerStates.get(peer);
+            if (state != null) {
+                state.stalled.remove(hash);
+                if (request != null && request.peer == state)
+                    state.maxInFlight = Math.min(MAX_IN_FLIGHT_PER_PEER, state.maxInFlight + 1);
+            }
+            received.put(hash, block);
+            receivedBytes += block.getMessageSize();
+        } finally {
+            lock.unlock();
+        }
+        connectReadyBlocks();
+        sendRequests();
+        return true;
+    }
+
+    /** Gives requests that have been in flight for longer than the stall timeout to other peers. */
+    void checkForStalls() {
+        long now = Utils.currentTimeMillis();
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Sha256Hash, Request>> it = inFlight.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Sha256Hash, Request> entry = it.next();
+                Request request = entry.getValue();
+                if (now - request.timeMsec < stallTimeoutMsec)
+                    continue;
+                Sha256Hash hash = entry.getKey();
+                log.info("{}: Stalled on block {}, asking another peer", request.peer.peer, hash);
+                it.remove();
+                request.peer.inFlight.remove(hash);
+                request.peer.stalled.add(hash);
+                request.peer.maxInFlight = Math.max(1, request.peer.maxInFlight / 2);
+                retry.put(heights.get(hash), hash);
+                stalls++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendRequests();
+    }
+
+    @GuardedBy("lock")
+    private Sha256Hash getTipLocked() {
+        if (!hashes.isEmpty())
+            return hashes.get(hashes.size() - 1);
+        return chain.getChainHead().getHeader().getHash();
+    }
+
+    // Forgets the wanted blocks from the given height onwards.
+    @GuardedBy("lock")
+    private void truncateLocked(int height) {
+        int from = height - firstHeight;
+        for (Sha256Hash hash : hashes.subList(from, hashes.size())) {
+            heights.remove(hash);
+            Message block = received.remove(hash);
+            if (block != null)
+                receivedBytes -= block.getMessageSize();
+            Request request = inFlight.remove(hash);
+            if (request != null)
+                request.peer.inFlight.remove(hash);
+            for (PeerState state : peerStates.values())
+                state.stalled.remove(hash);
+        }
+        retry.tailMap(height).clear();
+        hashes.subList(from, hashes.size()).clear();
+        requestCursor = Math.min(requestCursor, from);
+    }
+
+    // Forgets all the wanted blocks and starts again at the given height.
+    @GuardedBy("lock")
+    private void resetLocked(int height) {
+        truncateLocked(firstHeight + connectCursor);
+        hashes.clear();
+        firstHeight = height;
+        connectCursor = 0;
+        requestCursor = 0;
+    }
+
+    /** Fills up the in flight requests of every peer and sends them. */
+    private void sendRequests() {
+        Map<Peer, GetDataMessage> requests = new LinkedHashMap<Peer, GetDataMessage>();
+        Set<Peer> filtered = new HashSet<Peer>();
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            boolean progress = true;
+            // Hand out one block per peer per round so the work is spread evenly.
+            while (progress) {
+                progress = false;
+                for (PeerState state : peerStates.values()) {
+                    if (state.inFlight.size() >= state.maxInFlight)
+                        continue;
+                    Sha256Hash hash = nextRequestLocked(state);
+                    if (hash == null)
+                        continue;
+                    GetDataMessage getdata = requests.get(state.peer);
+                    if (getdata == null) {
+                        getdata = new GetDataMessage(chain.params);
+                        requests.put(state.peer, getdata);
+                    }
+                    VersionMessage ver = state.peer.getPeerVersionMessage();
+                    if (useFilteredBlocks && ver != null && ver.isBloomFilteringSupported()) {
+                        getdata.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, hash));
+                        filtered.add(state.peer);
+                    } else {
+                        getdata.addBlock(hash);
+                    }
+                    state.inFlight.add(hash);
+                    inFlight.put(hash, new Request(state, now));
+                    progress = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, GetDataMessage> entry : requests.entrySet()) {
+            Peer peer = entry.getKey();
+            peer.sendMessage(entry.getValue());
+            // The pong marks the end of the transactions that belong to the last filtered block.
+            if (filtered.contains(peer))
+                peer.sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        }
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private Sha256Hash nextRequestLocked(PeerState state) {
+        long peerHeight = state.peer.getBestHeight();
+        Iterator<Map.Entry<Integer, Sha256Hash>> it = retry.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Sha256Hash> entry = it.next();
+            if (entry.getKey() > peerHeight)
+                break;
+            if (state.stalled.contains(entry.getValue()) && peerStates.size() > 1)
+                continue;
+            it.remove();
+            return entry.getValue();
+        }
+        if (requestCursor < hashes.size() && requestCursor < connectCursor + windowSize &&
+                firstHeight + requestCursor <= peerHeight && receivedBytes < maxBufferedBytes)
+            return hashes.get(requestCursor++);
+        return null;
+    }
+
+    /**
+     * Adds the blocks that are next in line to the chain. Only one thread does this at a time, any other just leaves
+     * its block for that thread to pick up.
+     */
+    private void connectReadyBlocks() {
+        while (connectLock.tryLock()) {
+            try {
+                Message block;
+                while ((block = takeNextBlock()) != null)
+                    connect(block);
+            } finally {
+                connectLock.unlock();
+            }
+            // Another thread may have dropped off the next block after we last looked but before we unlocked.
+            lock.lock();
+            try {
+                if (connectCursor >= hashes.size() || !received.containsKey(hashes.get(connectCursor)))
+                    return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Nullable
+    private Message takeNextBlock() {
+        lock.lock();
+        try {
+            if (connectCursor >= hashes.size())
+                return null;
+            Sha256Hash hash = hashes.get(connectCursor);
+            Message block = received.remove(hash);
+            if (block == null)
+                return null;
+            receivedBytes -= block.getMessageSize();
+            heights.remove(hash);
+            for (PeerState state : peerStates.values())
+                state.stalled.remove(hash);
+            recentlyConnected.put(hash, Boolean.TRUE);
+            connectCursor++;
+            if (connectCursor >= windowSize) {
+                // Drop the hashes that are done with so the list doesn't grow without bound.
+                hashes.subList(0, connectCursor).clear();
+                firstHeight += connectCursor;
+                requestCursor -= connectCursor;
+                connectCursor = 0;
+            }
+            blocksDownloaded++;
+            return block;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void connect(Message block) {
+        Block header = block instanceof FilteredBlock ? ((FilteredBlock) block).getBlockHeader() : (Block) block;
+        boolean connected;
+        try {
+            if (block instanceof FilteredBlock)
+                connected = chain.add((FilteredBlock) block);
+            else
+                connected = chain.add((Block) block);
+        } catch (VerificationException e) {
+            log.warn("Block verification failed, downloading the headers again", e);
+            connected = false;
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+        Peer peer;
+        boolean resumeHeaders = false;
+        lock.lock();
+        try {
+            peer = headerPeer;
+            if (!connected) {
+                // The chain head isn't where the headers said it would be, so start over from wherever it is now.
+                resetLocked(chain.getBestChainHeight() + 1);
+                resumeHeaders = true;
+            } else if (headersPaused && hashes.size() - connectCursor < MAX_PENDING_HEADERS / 2) {
+                headersPaused = false;
+                resumeHeaders = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (peer == null)
+            return;
+        if (connected)
+            peer.invokeOnBlocksDownloaded(header);
+        if (resumeHeaders)
+            peer.requestMoreHeaders();
+    }
+}
@@ -62,6 +62,16 @@ public class BloomFilter extends Message {
         super(params, payloadBytes, 0);
     }
     
+    /**
+     * Constructs a copy of the given filter, which can then be inserted into without affecting the original.
+     */
+    public BloomFilter(BloomFilter filter) {
+        data = Arrays.copyOf(filter.data, filter.data.length);
+        hashFuncs = filter.hashFuncs;
+        nTweak = filter.nTweak;
+        nFlags = filter.nFlags;
+    }
+
     /**
      * Constructs a filter with the given parameters which is updated on pay2pubkey outputs only.
      */
@@ -157,49 +167,72 @@ public class BloomFilter extends Message {
         return (x << r) | (x >>> (32 - r));
     }
     
-    private int hash(int hashNum, byte[] object) {
-        // The following is MurmurHash3 (x86_32), see http://code.google.com/p/smhasher/source/browse/trunk/MurmurHash3.cpp
-        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+    /**
+     * Runs the part of MurmurHash3 (x86_32) that doesn't depend on the seed: each 32 bit block of the object is mixed
+     * into the value that gets combined with the hash state. Doing this once per object rather than once per hash
+     * function leaves only the short seed dependent loop in {@link #hash(int, int[], int)}. The last entry holds the
+     * mixed tail if the object length isn't a multiple of four. The given array is reused if it is large enough.
+     */
+    private static int[] mixBlocks(byte[] object, int[] blocks) {
+        // See http://code.google.com/p/smhasher/source/browse/trunk/MurmurHash3.cpp
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
+        int numBlocks = (object.length + 3) / 4;
+        if (blocks == null || blocks.length < numBlocks)
+            blocks = new int[numBlocks];
 
-        int numBlocks = (object.length / 4) * 4;
-        // body
-        for(int i = 0; i < numBlocks; i += 4) {
-            int k1 = (object[i] & 0xFF) |
-                  ((object[i+1] & 0xFF) << 8) |
-                  ((object[i+2] & 0xFF) << 16) |
-                  ((object[i+3] & 0xFF) << 24);
-            
+        int fullBlocks = object.length / 4;
+        for (int i = 0; i < fullBlocks; i++) {
+            int j = i * 4;
+            int k1 = (object[j] & 0xFF) |
+                  ((object[j+1] & 0xFF) << 8) |
+                  ((object[j+2] & 0xFF) << 16) |
+                  ((object[j+3] & 0xFF) << 24);
             k1 *= c1;
             k1 = rotateLeft32(k1, 15);
             k1 *= c2;
-
-            h1 ^= k1;
-            h1 = rotateLeft32(h1, 13);
-            h1 = h1*5+0xe6546b64;
+            blocks[i] = k1;
         }
-        
+
+        int tail = fullBlocks * 4;
         int k1 = 0;
         switch(object.length & 3)
         {
             case 3:
-                k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                k1 ^= (object[tail + 2] & 0xff) << 16;
                 // Fall through.
             case 2:
-                k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                k1 ^= (object[tail + 1] & 0xff) << 8;
                 // Fall through.
             case 1:
-                k1 ^= (object[numBlocks] & 0xff);
-                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2; h1 ^= k1;
+                k1 ^= (object[tail] & 0xff);
+                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2;
+                blocks[fullBlocks] = k1;
                 // Fall through.
             default:
                 // Do nothing.
                 break;
         }
+        return blocks;
+    }
+
+    /** Finishes MurmurHash3 for the given hash function on an object whose blocks were mixed by mixBlocks. */
+    private int hash(int hashNum, int[] blocks, int length) {
+        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+
+        int fullBlocks = length / 4;
+        // body
+        for (int i = 0; i < fullBlocks; i++) {
+            h1 ^= blocks[i];
+            h1 = rotateLeft32(h1, 13);
+            h1 = h1*5+0xe6546b64;
+        }
+        // tail
+        if ((length & 3) != 0)
+            h1 ^= blocks[fullBlocks];
 
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
@@ -214,19 +247,51 @@ public class BloomFilter extends Message {
      * (either because it was inserted, or because we have a false-positive)
      */
     public boolean contains(byte[] object) {
+        int[] blocks = mixBlocks(object, null);
         for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, hash(i, object)))
+            if (!Utils.checkBitLE(data, hash(i, blocks, object.length)))
                 return false;
         }
         return true;
     }
+
+    /**
+     * Returns true if any of the given objects matches the filter. This is cheaper than calling
+     * {@link #contains(byte[])} for each of them.
+     */
+    public boolean containsAny(Iterable<byte[]> objects) {
+        int[] blocks = null;
+        for (byte[] object : objects) {
+            blocks = mixBlocks(object, blocks);
+            boolean match = true;
+            for (int i = 0; i < hashFuncs && match; i++)
+                match = Utils.checkBitLE(data, hash(i, blocks, object.length));
+            if (match)
+                return true;
+        }
+        return false;
+    }
     
     /**
      * Insert the given arbitrary data into the filter
      */
     public void insert(byte[] object) {
+        int[] blocks = mixBlocks(object, null);
         for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, hash(i, object));
+            Utils.setBitLE(data, hash(i, blocks, object.length));
+    }
+
+    /**
+     * Inserts all the given objects into the filter. This is cheaper than calling {@link #insert(byte[])} for each
+     * of them, which matters when building filters for wallets with many keys.
+     */
+    public void insertAll(Iterable<byte[]> objects) {
+        int[] blocks = null;
+        for (byte[] object : objects) {
+            blocks = mixBlocks(object, blocks);
+            for (int i = 0; i < hashFuncs; i++)
+                Utils.setBitLE(data, hash(i, blocks, object.length));
+        }
     }
 
     /**
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.core;
+
+import com.google.fastcoin.utils.Threading;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Tracks the height of the best chain and the work done on it, so that {@link TransactionConfidence} objects
+ * attached to it can work out their depth and work done when asked, rather than having to be told about every
+ * block. Moving the tracker to a new block costs the same no matter how many confidences are attached.</p>
+ *
+ * <p>Because attached confidences aren't told about each block, their listeners aren't run for every block either.
+ * Instead a confidence registers the depths somebody is waiting for, for instance using
+ * {@link TransactionConfidence#getDepthFuture(int)}, and its listeners are run with
+ * {@link TransactionConfidence.Listener.ChangeReason#DEPTH} when one of those depths is reached.</p>
+ *
+ * <p>The work done is counted from when the tracker was created, so only differences in it are meaningful.</p>
+ */
+public class ChainDepthTracker {
+    private final ReentrantLock lock = Threading.lock("chaindepthtracker");
+
+    private int height;
+    private BigInteger work = BigInteger.ZERO;
+    // Confidences waiting for a depth, by the chain height at which they reach it.
+    private final TreeMap<Integer, List<Watch>> watches = new TreeMap<Integer, List<Watch>>();
+
+    private static class Watch {
+        final TransactionConfidence confidence;
+        final int depth;
+
+        Watch(TransactionConfidence confidence, int depth) {
+            this.confidence = confidence;
+            this.depth = depth;
+        }
+    }
+
+    /** Creates a tracker whose best chain is at the given height. */
+    public ChainDepthTracker(int height) {
+        this.height = height;
+    }
+
+    /** Returns the height of the best chain. */
+    public int getHeight() {
+        lock.lock();
+        try {
+            return height;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the work done on the best chain since this tracker was created. */
+    public BigInteger getWork() {
+        lock.lock();
+        try {
+            return work;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the tracker to the given new best block, which must build on the current one, and informs the
+     * confidences that reached a depth they were waiting for.
+     */
+    public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+        List<Watch> reached = new ArrayList<Watch>();
+        lock.lock();
+        try {
+            height = block.getHeight();
+            work = work.add(block.getHeader().getWork());
+            SortedMap<Integer, List<Watch>> due = watches.headMap(height + 1);
+            for (List<Watch> list : due.values())
+                reached.addAll(list);
+            due.clear();
+        } finally {
+            lock.unlock();
+        }
+        // Don't hold the lock while running listeners, confidences call back into us.
+        for (Watch watch : reached)
+            watch.confidence.depthReached(watch.depth);
+    }
+
+    /**
+     * Moves the tracker back to the given height after a re-organize, taking off the work done by the blocks that
+     * left the best chain.
+     */
+    public void rewind(int height, BigInteger workToSubtract) {
+        lock.lock();
+        try {
+            checkArgument(height <= this.height);
+            this.height = height;
+            work = work.subtract(workToSubtract);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registers the confidence to be told when the best chain reaches the given height, at which it has the given
+     * depth. Returns false without registering if the chain is already that high.
+     */
+    boolean watch(TransactionConfidence confidence, int atHeight, int depth) {
+        lock.lock();
+        try {
+            if (atHeight <= height)
+                return false;
+            List<Watch> list = watches.get(atHeight);
+            if (list == null) {
+                list = new ArrayList<Watch>(1);
+                watches.put(atHeight, list);
+            }
+            list.add(new Watch(confidence, depth));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many depths are being waited for. */
+    public int getWatchCount() {
+        lock.lock();
+        try {
+            int count = 0;
+            for (Map.Entry<Integer, List<Watch>> entry : watches.entrySet())
+                count += entry.getValue().size();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The "filteradd" message asks a remote peer to insert one more element into the {@link BloomFilter} already set on
+ * the connection, so that a new key can be watched for without sending the whole filter again.
+ */
+public class FilterAddMessage extends Message {
+    /** The largest element a remote peer accepts, the same as the largest script push. */
+    public static final int MAX_DATA_SIZE = 520;
+
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public FilterAddMessage(byte[] data) {
+        checkArgument(data.length <= MAX_DATA_SIZE);
+        this.data = data;
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > MAX_DATA_SIZE)
+            throw new ProtocolException("filteradd element too large.");
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {
+    }
+
+    @Override
+    void fastcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+
+    /** Returns the element to be inserted into the filter. */
+    public byte[] getData() {
+        return data;
+    }
+}
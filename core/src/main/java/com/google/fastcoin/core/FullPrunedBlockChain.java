@@ -19,15 +19,23 @@ package com.google.fastcoin.core;
 import com.google.fastcoin.script.Script;
 import com.google.fastcoin.store.BlockStoreException;
 import com.google.fastcoin.store.FullPrunedBlockStore;
+import com.google.fastcoin.store.StoredTransactionOutPoint;
+import com.google.fastcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -110,10 +118,23 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
     
-    //TODO: Remove lots of duplicated code in the two connectTransactions
-    
     // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    // The pool lives as long as the chain. Its threads are daemons and time out when idle, so it never needs shutting
+    // down, and a failed block just cancels whatever of its own work is still queued.
+    final ExecutorService scriptVerificationExecutor = createScriptVerificationExecutor();
+
+    private static ExecutorService createScriptVerificationExecutor() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Script verifier %d");
+        if (Threading.uncaughtExceptionHandler != null)
+            builder.setUncaughtExceptionHandler(Threading.uncaughtExceptionHandler);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), builder.build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     /** A job submitted to the executor which verifies signatures. */
     private static class Verifier implements Callable<VerificationException> {
@@ -130,8 +151,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         public VerificationException call() throws Exception {
             try{
                 ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
+                SigHashCache sigHashes = new SigHashCache(tx);
                 for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
+                    tx.getInputs().get(index).getScriptSig().correctlySpends(sigHashes, index, prevOutIt.next(), enforcePayToScriptHash);
                 }
             } catch (VerificationException e) {
                 return e;
@@ -150,45 +172,155 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new VerificationException("Block failed checkpoint lockin at " + height);
 
         blockStore.beginDatabaseBatchWrite();
+        try {
+            return connectTransactions(height, block, block.transactions, true, runScripts);
+        } catch (VerificationException e) {
+            blockStore.abortDatabaseBatchWrite();
+            throw e;
+        } catch (BlockStoreException e) {
+            blockStore.abortDatabaseBatchWrite();
+            throw e;
+        }
+    }
 
-        LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
-        LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();  
-        long sigOps = 0;
-        final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
-        
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    @Override
+    /**
+     * Used during reorgs to connect a block previously on a fork
+     */
+    protected synchronized TransactionOutputChanges connectTransactions(StoredBlock newBlock)
+            throws VerificationException, BlockStoreException, PrunedException {
+        checkState(lock.isHeldByCurrentThread());
+        if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHeader().getHash()))
+            throw new VerificationException("Block failed checkpoint lockin at " + newBlock.getHeight());
         
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        blockStore.beginDatabaseBatchWrite();
+        StoredUndoableBlock block = blockStore.getUndoBlock(newBlock.getHeader().getHash());
+        if (block == null) {
+            // We're trying to re-org too deep and the data needed has been deleted.
+            blockStore.abortDatabaseBatchWrite();
+            throw new PrunedException(newBlock.getHeader().getHash());
+        }
+        TransactionOutputChanges txOutChanges;
         try {
-            if (!params.isCheckpoint(height)) {
-                // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
-                // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
-                // BIP30 document for more details on this: https://en.fastcoin.it/wiki/BIP_0030
-                for (Transaction tx : block.transactions) {
-                    Sha256Hash hash = tx.getHash();
-                    // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
-                    // being added twice (bug) or the block is a BIP30 violator.
-                    if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-                        throw new VerificationException("Block failed BIP30 test!");
-                    if (enforcePayToScriptHash) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
-                        sigOps += tx.getSigOpCount();
-                }
+            List<Transaction> transactions = block.getTransactions();
+            if (transactions != null) {
+                txOutChanges = connectTransactions(newBlock.getHeight(), newBlock.getHeader(), transactions, false, true);
+            } else {
+                txOutChanges = block.getTxOutChanges();
+                if (!params.isCheckpoint(newBlock.getHeight()))
+                    for(StoredTransactionOutput out : txOutChanges.txOutsCreated) {
+                        Sha256Hash hash = out.getHash();
+                        if (blockStore.getTransactionOutput(hash, out.getIndex()) != null)
+                            throw new VerificationException("Block failed BIP30 test!");
+                    }
+                for (StoredTransactionOutput out : txOutChanges.txOutsCreated)
+                    blockStore.addUnspentTransactionOutput(out);
+                for (StoredTransactionOutput out : txOutChanges.txOutsSpent)
+                    blockStore.removeUnspentTransactionOutput(out);
+            }
+        } catch (VerificationException e) {
+            blockStore.abortDatabaseBatchWrite();
+            throw e;
+        } catch (BlockStoreException e) {
+            blockStore.abortDatabaseBatchWrite();
+            throw e;
+        }
+        return txOutChanges;
+    }
+
+    /**
+     * <p>Verifies and connects the transactions of a block in three stages, so that the store is only read in one
+     * pass at the start and only written to once everything has checked out:</p>
+     *
+     * <ol>
+     *     <li>Every output the block spends that isn't created by the block itself is looked up in the store.</li>
+     *     <li>The transactions are walked in order. Spends of outputs created earlier in the same block are resolved
+     *     from an in-memory overlay, values and P2SH sigops are checked, and each transaction's scripts are handed to
+     *     the verification pool as soon as its inputs are known, so they run while the rest of the block is
+     *     checked.</li>
+     *     <li>Once all scripts passed, the changes are applied to the store. Outputs that are both created and spent
+     *     within the block never touch it.</li>
+     * </ol>
+     *
+     * <p>The returned changes, including the order of spent and created outputs, are the same as if every input had
+     * been removed from and every output added to the store as it was encountered.</p>
+     *
+     * @param countTxSigOps whether to add each transaction's own sigops to the P2SH sigop count
+     */
+    private TransactionOutputChanges connectTransactions(int height, Block header, List<Transaction> transactions,
+                                                         boolean countTxSigOps, boolean verifyScripts)
+            throws VerificationException, BlockStoreException {
+        long sigOps = 0;
+        final boolean enforcePayToScriptHash = header.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
+
+        Set<Sha256Hash> hashesInBlock = new HashSet<Sha256Hash>(transactions.size());
+        if (!params.isCheckpoint(height)) {
+            // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
+            // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
+            // BIP30 document for more details on this: https://en.fastcoin.it/wiki/BIP_0030
+            for (Transaction tx : transactions) {
+                Sha256Hash hash = tx.getHash();
+                // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
+                // being added twice (bug) or the block is a BIP30 violator.
+                if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
+                    throw new VerificationException("Block failed BIP30 test!");
+                if (countTxSigOps && enforcePayToScriptHash) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
+                    sigOps += tx.getSigOpCount();
+                hashesInBlock.add(hash);
             }
+        } else {
+            for (Transaction tx : transactions)
+                hashesInBlock.add(tx.getHash());
+        }
+
+        // Stage one: fetch everything the block spends from outside itself. Nothing has been written yet, so the
+        // store sees a plain run of reads. A missing output is remembered as a null.
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> fromStore = new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        for (Transaction tx : transactions) {
+            if (tx.isCoinBase())
+                continue;
+            for (TransactionInput in : tx.getInputs()) {
+                StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(in.getOutpoint().getHash(), in.getOutpoint().getIndex());
+                if (hashesInBlock.contains(outpoint.getHash()) || fromStore.containsKey(outpoint))
+                    continue;
+                fromStore.put(outpoint, blockStore.getTransactionOutput(outpoint.getHash(), outpoint.getIndex()));
+            }
+        }
+
+        // Stage two: walk the block, resolving spends from the overlay of outputs it created so far.
+        LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
+        LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();
+        // Outputs created by the block that are still unspent, in the order they were created. Keyed by
+        // StoredTransactionOutPoint rather than TransactionOutPoint, whose hash code leaves out the index.
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> createdInBlock = new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        Set<StoredTransactionOutput> spentInBlock = new HashSet<StoredTransactionOutput>();
+        List<StoredTransactionOutput> spentFromStore = new ArrayList<StoredTransactionOutput>();
+        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+        boolean verified = false;
+        try {
             BigInteger totalFees = BigInteger.ZERO;
             BigInteger coinbaseValue = null;
-            for (final Transaction tx : block.transactions) {
+            for (final Transaction tx : transactions) {
                 boolean isCoinBase = tx.isCoinBase();
                 BigInteger valueIn = BigInteger.ZERO;
                 BigInteger valueOut = BigInteger.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<Script>();
+                final List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
                 if (!isCoinBase) {
-                    // For each input of the transaction remove the corresponding output from the set of unspent
-                    // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
+                        StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(in.getOutpoint().getHash(), in.getOutpoint().getIndex());
+                        StoredTransactionOutput prevOut = createdInBlock.remove(outpoint);
+                        if (prevOut == null) {
+                            if (hashesInBlock.contains(outpoint.getHash()))
+                                // Only reachable by checkpointed blocks that duplicate an earlier transaction.
+                                prevOut = blockStore.getTransactionOutput(outpoint.getHash(), outpoint.getIndex());
+                            else
+                                prevOut = fromStore.get(outpoint);
+                            if (prevOut != null && spentInBlock.add(prevOut))
+                                spentFromStore.add(prevOut);
+                            else
+                                prevOut = null;
+                        }
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -198,18 +330,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
                         // TODO: Check we're not spending the genesis transaction here. Satoshis code won't allow it.
                         valueIn = valueIn.add(prevOut.getValue());
+                        Script script = new Script(prevOut.getScriptBytes());
                         if (enforcePayToScriptHash) {
-                            if (new Script(prevOut.getScriptBytes()).isPayToScriptHash())
+                            if (script.isPayToScriptHash())
                                 sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
                             if (sigOps > Block.MAX_BLOCK_SIGOPS)
                                 throw new VerificationException("Too many P2SH SigOps in block");
                         }
-                        
-                        prevOutScripts.add(new Script(prevOut.getScriptBytes()));
-                        
-                        //in.getScriptSig().correctlySpends(tx, index, new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length));
-                        
-                        blockStore.removeUnspentTransactionOutput(prevOut);
+                        prevOutScripts.add(script);
                         txOutsSpent.add(prevOut);
                     }
                 }
@@ -219,7 +347,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // For each output, add it to the set of unspent outputs so it can be consumed in future.
                     StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
                             height, isCoinBase, out.getScriptBytes());
-                    blockStore.addUnspentTransactionOutput(newOut);
+                    createdInBlock.put(new StoredTransactionOutPoint(newOut), newOut);
                     txOutsCreated.add(newOut);
                 }
                 // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -234,14 +362,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     totalFees = totalFees.add(valueIn.subtract(valueOut));
                 }
                 
-                if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                if (!isCoinBase && verifyScripts) {
+                    // Because the verifier snapshots the transaction, this must come after we are done with tx
+                    listScriptVerificationResults.add(scriptVerificationExecutor.submit(
+                            new Verifier(tx, prevOutScripts, enforcePayToScriptHash)));
                 }
             }
-            if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
+            if (totalFees.compareTo(params.MAX_MONEY) > 0 || header.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
             for (Future<VerificationException> future : listScriptVerificationResults) {
                 VerificationException e;
@@ -256,153 +383,20 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 if (e != null)
                     throw e;
             }
-        } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
-            throw e;
-        } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
-            throw e;
+            verified = true;
+        } finally {
+            // Don't leave the rest of a bad block's scripts clogging up the pool.
+            if (!verified)
+                for (Future<VerificationException> future : listScriptVerificationResults)
+                    future.cancel(true);
         }
-        return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-    }
 
-    @Override
-    /**
-     * Used during reorgs to connect a block previously on a fork
-     */
-    protected synchronized TransactionOutputChanges connectTransactions(StoredBlock newBlock)
-            throws VerificationException, BlockStoreException, PrunedException {
-        checkState(lock.isHeldByCurrentThread());
-        if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHeader().getHash()))
-            throw new VerificationException("Block failed checkpoint lockin at " + newBlock.getHeight());
-        
-        blockStore.beginDatabaseBatchWrite();
-        StoredUndoableBlock block = blockStore.getUndoBlock(newBlock.getHeader().getHash());
-        if (block == null) {
-            // We're trying to re-org too deep and the data needed has been deleted.
-            blockStore.abortDatabaseBatchWrite();
-            throw new PrunedException(newBlock.getHeader().getHash());
-        }
-        TransactionOutputChanges txOutChanges;
-        try {
-            List<Transaction> transactions = block.getTransactions();
-            if (transactions != null) {
-                LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
-                LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();
-                long sigOps = 0;
-                final boolean enforcePayToScriptHash = newBlock.getHeader().getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
-                if (!params.isCheckpoint(newBlock.getHeight())) {
-                    for(Transaction tx : transactions) {
-                        Sha256Hash hash = tx.getHash();
-                        if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-                            throw new VerificationException("Block failed BIP30 test!");
-                    }
-                }
-                BigInteger totalFees = BigInteger.ZERO;
-                BigInteger coinbaseValue = null;
-                
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
-                for(final Transaction tx : transactions) {
-                    boolean isCoinBase = tx.isCoinBase();
-                    BigInteger valueIn = BigInteger.ZERO;
-                    BigInteger valueOut = BigInteger.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<Script>();
-                    if (!isCoinBase) {
-                        for (int index = 0; index < tx.getInputs().size(); index++) {
-                            final TransactionInput in = tx.getInputs().get(index);
-                            final StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                                    in.getOutpoint().getIndex());
-                            if (prevOut == null)
-                                throw new VerificationException("Attempted spend of a non-existent or already spent output!");
-                            if (newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
-                                throw new VerificationException("Tried to spend coinbase at depth " + (newBlock.getHeight() - prevOut.getHeight()));
-                            valueIn = valueIn.add(prevOut.getValue());
-                            if (enforcePayToScriptHash) {
-                                Script script = new Script(prevOut.getScriptBytes());
-                                if (script.isPayToScriptHash())
-                                    sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
-                                if (sigOps > Block.MAX_BLOCK_SIGOPS)
-                                    throw new VerificationException("Too many P2SH SigOps in block");
-                            }
-                            
-                            prevOutScripts.add(new Script(prevOut.getScriptBytes()));
-                            
-                            blockStore.removeUnspentTransactionOutput(prevOut);
-                            txOutsSpent.add(prevOut);
-                        }
-                    }
-                    Sha256Hash hash = tx.getHash();
-                    for (TransactionOutput out : tx.getOutputs()) {
-                        valueOut = valueOut.add(out.getValue());
-                        StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
-                                                                                     newBlock.getHeight(), isCoinBase,
-                                                                                     out.getScriptBytes());
-                        blockStore.addUnspentTransactionOutput(newOut);
-                        txOutsCreated.add(newOut);
-                    }
-                    // All values were already checked for being non-negative (as it is verified in Transaction.verify())
-                    // but we check again here just for defence in depth. Transactions with zero output value are OK.
-                    if (valueOut.compareTo(BigInteger.ZERO) < 0 || valueOut.compareTo(params.MAX_MONEY) > 0)
-                        throw new VerificationException("Transaction output value out of rage");
-                    if (isCoinBase) {
-                        coinbaseValue = valueOut;
-                    } else {
-                        if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(params.MAX_MONEY) > 0)
-                            throw new VerificationException("Transaction input value out of range");
-                        totalFees = totalFees.add(valueIn.subtract(valueOut));
-                    }
-                    
-                    if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
-                    }
-                }
-                if (totalFees.compareTo(params.MAX_MONEY) > 0 ||
-                        newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
-                    throw new VerificationException("Transaction fees out of range");
-                txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
-            } else {
-                txOutChanges = block.getTxOutChanges();
-                if (!params.isCheckpoint(newBlock.getHeight()))
-                    for(StoredTransactionOutput out : txOutChanges.txOutsCreated) {
-                        Sha256Hash hash = out.getHash();
-                        if (blockStore.getTransactionOutput(hash, out.getIndex()) != null)
-                            throw new VerificationException("Block failed BIP30 test!");
-                    }
-                for (StoredTransactionOutput out : txOutChanges.txOutsCreated)
-                    blockStore.addUnspentTransactionOutput(out);
-                for (StoredTransactionOutput out : txOutChanges.txOutsSpent)
-                    blockStore.removeUnspentTransactionOutput(out);
-            }
-        } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
-            throw e;
-        } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
-            throw e;
-        }
-        return txOutChanges;
+        // Stage three: the block is valid, so apply it to the store.
+        for (StoredTransactionOutput out : spentFromStore)
+            blockStore.removeUnspentTransactionOutput(out);
+        for (StoredTransactionOutput out : createdInBlock.values())
+            blockStore.addUnspentTransactionOutput(out);
+        return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
     }
     
     /**
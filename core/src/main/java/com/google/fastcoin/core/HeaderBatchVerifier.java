@@ -0,0 +1,150 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.core;
+
+import com.google.fastcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Calculates the scrypt proof of work hashes of a run of block headers in parallel. Scrypt is by far the most
+ * expensive part of accepting a header, and without this header download and SPV catch up is bound to the single
+ * thread that holds the block chain lock.</p>
+ *
+ * <p>Hashes are cached inside each {@link Block}, so once {@link #precomputeHashes(List)} returns the blocks can be
+ * handed to {@link AbstractBlockChain#add(Block)} in their original order and the proof of work check done there only
+ * compares the cached hash against the target. The result is identical to adding the blocks without pre-computation,
+ * including which block a {@link VerificationException} is reported for.</p>
+ *
+ * <p>The work is spread over a fixed size pool of daemon threads, one batch of consecutive headers per thread.
+ * Runs that are too short to be worth the hand-off are left for the chain to hash as it goes.</p>
+ */
+public class HeaderBatchVerifier {
+    private static final Logger log = LoggerFactory.getLogger(HeaderBatchVerifier.class);
+
+    /** Runs of headers shorter than this aren't worth handing off to the pool. */
+    private static final int MIN_PARALLEL_RUN = 16;
+
+    private static HeaderBatchVerifier instance;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    /**
+     * Returns a verifier shared by the whole process, using one thread per available processor. It's created on first
+     * use and its threads are daemons, so there's no need to shut it down.
+     */
+    public static synchronized HeaderBatchVerifier get() {
+        if (instance == null)
+            instance = new HeaderBatchVerifier(Runtime.getRuntime().availableProcessors());
+        return instance;
+    }
+
+    /**
+     * Creates a verifier that uses up to the given number of threads. Threads are started on demand and stop again
+     * after being idle for a while.
+     */
+    public HeaderBatchVerifier(int parallelism) {
+        checkArgument(parallelism > 0);
+        this.parallelism = parallelism;
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Header verifier %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), builder.build());
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    /**
+     * Calculates the scrypt hash of every block in the list, in parallel, and blocks until all are done. Blocks whose
+     * hash is already known are skipped. A block that can't be hashed, for instance because its header fails to parse,
+     * is left alone so the error surfaces at the usual place when it's added to the chain. If the calling thread is
+     * interrupted, the remaining work is cancelled and this returns early with the interrupt flag still set, leaving
+     * the chain to hash whatever wasn't done.
+     */
+    public void precomputeHashes(List<? extends Block> blocks) {
+        int size = blocks.size();
+        if (size < MIN_PARALLEL_RUN || parallelism == 1)
+            return;  // Not worth it, the chain will hash them as it goes.
+        int batchSize = (size + parallelism - 1) / parallelism;
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(parallelism);
+        for (int start = 0; start < size; start += batchSize)
+            futures.add(executor.submit(new Hasher(blocks.subList(start, Math.min(start + batchSize, size)))));
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                // The hashes are only an optimisation, so don't leave the others running or fail the caller for it.
+                cancelAll(futures);
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());  // Hasher doesn't throw.
+            }
+        }
+    }
+
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures)
+            future.cancel(true);
+    }
+
+    /** Stops the worker threads. Pending batches are abandoned. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static class Hasher implements Callable<Void> {
+        private final List<? extends Block> blocks;
+
+        Hasher(List<? extends Block> blocks) {
+            this.blocks = blocks;
+        }
+
+        @Override
+        public Void call() {
+            for (Block block : blocks) {
+                // Hashing a block can't be interrupted part way through, so a cancelled batch stops between blocks.
+                if (Thread.currentThread().isInterrupted())
+                    break;
+                try {
+                    block.getScryptHash();
+                } catch (RuntimeException e) {
+                    log.debug("Could not pre-compute scrypt hash, leaving it to the chain", e);
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -25,11 +25,13 @@ import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -43,10 +45,18 @@ import static com.google.common.base.Preconditions.checkState;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Satoshi clients memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>The pool is split into a number of stripes by transaction hash, each with its own lock, so that peers announcing
+ * different transactions don't wait on each other. Each stripe gets an equal share of the entry and byte budgets given
+ * to the constructor. When a stripe goes over either budget it evicts entries in a fixed order: first downloaded
+ * transactions the garbage collector has already thrown away; then transactions we only saw announced, oldest first,
+ * as a peer will announce them again if they matter; and only then downloaded transactions that are still in use,
+ * oldest first. Once one of those is evicted the pool no longer knows it, so {@link #intern(Transaction)} stops
+ * handing back that instance, and announcements of it start a new count from zero rather than updating its
+ * confidence.</p>
  */
 public class MemoryPool {
     private static final Logger log = LoggerFactory.getLogger(MemoryPool.class);
-    protected ReentrantLock lock = Threading.lock("mempool");
 
     // For each transaction we may have seen:
     //   - only its hash in an inv packet
@@ -72,35 +82,88 @@ public class MemoryPool {
         // allowing us to delete the associated entry (the tx itself has already gone away).
         WeakTransactionReference tx;
     }
-    private LinkedHashMap<Sha256Hash, Entry> memoryPool;
+
+    // Rough number of bytes the pool itself uses for an entry (hash, map entry and Entry object) and for each address
+    // remembered for a transaction only seen announced. The transactions themselves are only weakly referenced, so
+    // they aren't counted against the byte budget.
+    private static final int ENTRY_BYTES = 160;
+    private static final int ADDRESS_BYTES = 48;
+
+    private static class Stripe {
+        final ReentrantLock lock = Threading.lock("mempool");
+        // Entries of transactions we only saw announced, and entries of downloaded transactions, each oldest first.
+        final LinkedHashMap<Sha256Hash, Entry> announced = new LinkedHashMap<Sha256Hash, Entry>();
+        final LinkedHashMap<Sha256Hash, Entry> downloaded = new LinkedHashMap<Sha256Hash, Entry>();
+        long bytes;
+        // Kept per stripe rather than for the whole pool, so lookups in different stripes don't contend on them.
+        long hits, misses, evictions;
+
+        Entry get(Sha256Hash hash) {
+            Entry entry = downloaded.get(hash);
+            return entry != null ? entry : announced.get(hash);
+        }
+
+        void remove(Sha256Hash hash) {
+            Entry entry = downloaded.remove(hash);
+            if (entry == null)
+                entry = announced.remove(hash);
+            if (entry != null)
+                bytes -= sizeOf(entry);
+        }
+
+        int size() {
+            return announced.size() + downloaded.size();
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final int maxStripeSize;
+    private final long maxStripeBytes;
 
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the MemoryPool is the
     // only thing that is tracking the transaction anymore. We check it from time to time and delete memoryPool entries
     // corresponding to expired transactions. In this way memory usage of the system is in line with however many
     // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<Transaction> referenceQueue;
+    // if our peers flood us with invs but the size and byte budgets cap this.
+    private final ReferenceQueue<Transaction> referenceQueue = new ReferenceQueue<Transaction>();
 
     /** The max size of a memory pool created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
+    /** The max number of bytes a memory pool uses for bookkeeping, unless another budget is given. */
+    public static final long MAX_BYTES = 1024 * 1024;
+
+    // Stripes are kept big enough that an uneven spread of hashes doesn't make them evict much earlier than a single
+    // map of the full size would.
+    private static final int MIN_STRIPE_SIZE = 64;
+    private static final int MAX_STRIPES = 16;
+
     /**
      * Creates a memory pool that will track at most the given number of transactions (allowing you to bound memory
      * usage).
-     * @param size Max number of transactions to track. The pool will fill up to this size then stop growing.
+     * @param size Max number of transactions to track. Once full, older entries are evicted to make room.
      */
     public MemoryPool(final int size) {
-        memoryPool = new LinkedHashMap<Sha256Hash, Entry>() {
-            /*
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-            */
-        };
-        referenceQueue = new ReferenceQueue<Transaction>();
+        this(size, MAX_BYTES);
+    }
+
+    /**
+     * Creates a memory pool that will track at most the given number of transactions and use roughly at most the given
+     * number of bytes for doing so, not counting the transactions themselves.
+     * @param size Max number of transactions to track. Once full, older entries are evicted to make room.
+     * @param maxBytes Max number of bytes to use for tracking.
+     */
+    public MemoryPool(final int size, final long maxBytes) {
+        checkArgument(size > 0);
+        checkArgument(maxBytes > 0);
+        int numStripes = 1;
+        while (numStripes < MAX_STRIPES && numStripes * 2 * MIN_STRIPE_SIZE <= size)
+            numStripes *= 2;
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++)
+            stripes[i] = new Stripe();
+        maxStripeSize = (size + numStripes - 1) / numStripes;
+        maxStripeBytes = (maxBytes + numStripes - 1) / numStripes;
     }
 
     /**
@@ -111,35 +174,100 @@ public class MemoryPool {
         this(MAX_SIZE);
     }
 
+    private Stripe stripeFor(Sha256Hash hash) {
+        // The hash is already uniformly distributed, so its low bits are as good a choice as any.
+        return stripes[hash.hashCode() & (stripes.length - 1)];
+    }
+
+    private static long sizeOf(Entry entry) {
+        return entry.addresses == null ? ENTRY_BYTES : ENTRY_BYTES + entry.addresses.size() * ADDRESS_BYTES;
+    }
+
+    // Evicts entries from the stripe until it is within its budgets again. The given entry, which was just added or
+    // grown, is kept even if that means going over the byte budget.
+    private void evictIfNeeded(Stripe stripe, Sha256Hash keep) {
+        checkState(stripe.lock.isHeldByCurrentThread());
+        if (!isOverBudget(stripe))
+            return;
+        // Entries of downloaded transactions that are already gone cost nothing to lose, and cleanPool would drop them
+        // later anyway, so get rid of all of them before touching anything still in use.
+        Iterator<Map.Entry<Sha256Hash, Entry>> it = stripe.downloaded.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Sha256Hash, Entry> entry = it.next();
+            if (entry.getValue().tx.get() != null || entry.getKey().equals(keep))
+                continue;
+            stripe.bytes -= sizeOf(entry.getValue());
+            it.remove();
+            stripe.evictions++;
+        }
+        while (isOverBudget(stripe)) {
+            if (!evictEldest(stripe.announced, stripe, keep) && !evictEldest(stripe.downloaded, stripe, keep))
+                return;
+        }
+    }
+
+    private boolean isOverBudget(Stripe stripe) {
+        return stripe.size() > maxStripeSize || stripe.bytes > maxStripeBytes;
+    }
+
+    private boolean evictEldest(LinkedHashMap<Sha256Hash, Entry> map, Stripe stripe, Sha256Hash keep) {
+        Iterator<Sha256Hash> it = map.keySet().iterator();
+        while (it.hasNext()) {
+            Sha256Hash hash = it.next();
+            if (hash.equals(keep))
+                continue;
+            stripe.bytes -= sizeOf(map.get(hash));
+            it.remove();
+            stripe.evictions++;
+            log.debug("Evicted {} from the memory pool", hash);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * memoryPool entries - it means we downloaded the transaction and sent it to various event listeners, none of
      * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
-     * are relevant to any of our wallets.
+     * are relevant to any of our wallets. Must not be called with a stripe lock held.
      */
     private void cleanPool() {
-        lock.lock();
-        try {
-            Reference<? extends Transaction> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakTransactionReference txRef = (WeakTransactionReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                memoryPool.remove(txRef.hash);
+        Reference<? extends Transaction> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            // Find which transaction got deleted by the GC.
+            WeakTransactionReference txRef = (WeakTransactionReference) ref;
+            // And remove the associated map entry so the other bits of memory can also be reclaimed, unless it has
+            // been evicted and re-added since.
+            Stripe stripe = stripeFor(txRef.hash);
+            stripe.lock.lock();
+            try {
+                Entry entry = stripe.downloaded.get(txRef.hash);
+                if (entry != null && entry.tx == txRef)
+                    stripe.remove(txRef.hash);
+            } finally {
+                stripe.lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
+    private Entry lookup(Stripe stripe, Sha256Hash hash) {
+        Entry entry = stripe.get(hash);
+        if (entry != null)
+            stripe.hits++;
+        else
+            stripe.misses++;
+        return entry;
+    }
+
     /**
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
+        cleanPool();
+        Stripe stripe = stripeFor(txHash);
+        stripe.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(txHash);
+            Entry entry = lookup(stripe, txHash);
             if (entry == null) {
                 // No such TX known.
                 return 0;
@@ -153,7 +281,7 @@ public class MemoryPool {
                     // We previously downloaded this transaction, but nothing cared about it so the garbage collector threw
                     // it away. We also deleted the set that tracked which peers had seen it. Treat this case as a zero and
                     // just delete it from the map.
-                    memoryPool.remove(txHash);
+                    stripe.remove(txHash);
                     return 0;
                 } else {
                     checkState(entry.addresses == null);
@@ -161,7 +289,7 @@ public class MemoryPool {
                 }
             }
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -171,48 +299,60 @@ public class MemoryPool {
      * not mark it as such.
      */
     public Transaction intern(Transaction tx) {
-        lock.lock();
+        cleanPool();
+        Stripe stripe = stripeFor(tx.getHash());
+        stripe.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(tx.getHash());
-            if (entry != null) {
-                // This TX or its hash have been previously interned.
-                if (entry.tx != null) {
-                    // We already interned it (but may have thrown it away).
-                    checkState(entry.addresses == null);
-                    // We only want one canonical object instance for a transaction no matter how many times it is
-                    // deserialized.
-                    Transaction transaction = entry.tx.get();
-                    if (transaction != null) {
-                        // We saw it before and kept it around. Hand back the canonical copy.
-                        tx = transaction;
-                    }
-                    return tx;
-                } else {
-                    // We received a transaction that we have previously seen announced but not downloaded until now.
-                    checkNotNull(entry.addresses);
-                    entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                    Set<PeerAddress> addrs = entry.addresses;
-                    entry.addresses = null;
-                    TransactionConfidence confidence = tx.getConfidence();
-                    log.debug("Adding tx [{}] {} to the memory pool",
-                            confidence.numBroadcastPeers(), tx.getHashAsString());
-                    for (PeerAddress a : addrs) {
-                        markBroadcast(a, tx);
-                    }
-                    return tx;
+            return intern(stripe, tx);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private Transaction intern(Stripe stripe, Transaction tx) {
+        checkState(stripe.lock.isHeldByCurrentThread());
+        Sha256Hash hash = tx.getHash();
+        Entry entry = lookup(stripe, hash);
+        if (entry != null) {
+            // This TX or its hash have been previously interned.
+            if (entry.tx != null) {
+                // We already interned it (but may have thrown it away).
+                checkState(entry.addresses == null);
+                // We only want one canonical object instance for a transaction no matter how many times it is
+                // deserialized.
+                Transaction transaction = entry.tx.get();
+                if (transaction != null) {
+                    // We saw it before and kept it around. Hand back the canonical copy.
+                    tx = transaction;
                 }
+                return tx;
             } else {
-                // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
-                // dependencies of a relevant transaction (see Peer.downloadDependencies).
-                log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
-                entry = new Entry();
+                // We received a transaction that we have previously seen announced but not downloaded until now.
+                checkNotNull(entry.addresses);
+                stripe.remove(hash);
                 entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                memoryPool.put(tx.getHash(), entry);
+                Set<PeerAddress> addrs = entry.addresses;
+                entry.addresses = null;
+                stripe.downloaded.put(hash, entry);
+                stripe.bytes += sizeOf(entry);
+                TransactionConfidence confidence = tx.getConfidence();
+                log.debug("Adding tx [{}] {} to the memory pool",
+                        confidence.numBroadcastPeers(), tx.getHashAsString());
+                for (PeerAddress a : addrs) {
+                    markBroadcast(stripe, a, tx);
+                }
                 return tx;
             }
-        } finally {
-            lock.unlock();
+        } else {
+            // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
+            // dependencies of a relevant transaction (see Peer.downloadDependencies).
+            log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
+            entry = new Entry();
+            entry.tx = new WeakTransactionReference(tx, referenceQueue);
+            stripe.downloaded.put(hash, entry);
+            stripe.bytes += sizeOf(entry);
+            evictIfNeeded(stripe, hash);
+            return tx;
         }
     }
 
@@ -223,13 +363,15 @@ public class MemoryPool {
      * @return An object that is semantically the same TX but may be a different object instance.
      */
     public Transaction seen(Transaction tx, PeerAddress byPeer) {
-        lock.lock();
+        cleanPool();
+        Stripe stripe = stripeFor(tx.getHash());
+        stripe.lock.lock();
         try {
-            final Transaction interned = intern(tx);
-            markBroadcast(byPeer, interned);
+            final Transaction interned = intern(stripe, tx);
+            markBroadcast(stripe, byPeer, interned);
             return interned;
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -238,17 +380,18 @@ public class MemoryPool {
      * confidence of the pre-existing transaction or will just keep a record of the address for future usage.
      */
     public void seen(Sha256Hash hash, PeerAddress byPeer) {
-        lock.lock();
+        cleanPool();
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(hash);
+            Entry entry = lookup(stripe, hash);
             if (entry != null) {
                 // This TX or its hash have been previously announced.
                 if (entry.tx != null) {
                     checkState(entry.addresses == null);
                     Transaction tx = entry.tx.get();
                     if (tx != null) {
-                        markBroadcast(byPeer, tx);
+                        markBroadcast(stripe, byPeer, tx);
                         log.debug("{}: Peer announced transaction we have seen before [{}] {}",
                                 byPeer, tx.getConfidence().numBroadcastPeers(), tx.getHashAsString());
                     } else {
@@ -257,7 +400,10 @@ public class MemoryPool {
                     }
                 } else {
                     checkNotNull(entry.addresses);
-                    entry.addresses.add(byPeer);
+                    if (entry.addresses.add(byPeer)) {
+                        stripe.bytes += ADDRESS_BYTES;
+                        evictIfNeeded(stripe, hash);
+                    }
                     log.debug("{}: Peer announced transaction we have seen announced before [{}] {}",
                             byPeer, entry.addresses.size(), hash);
                 }
@@ -267,16 +413,18 @@ public class MemoryPool {
                 // TODO: Using hashsets here is inefficient compared to just having an array.
                 entry.addresses = new HashSet<PeerAddress>();
                 entry.addresses.add(byPeer);
-                memoryPool.put(hash, entry);
+                stripe.announced.put(hash, entry);
+                stripe.bytes += sizeOf(entry);
+                evictIfNeeded(stripe, hash);
                 log.info("{}: Peer announced new transaction [1] {}", byPeer, hash);
             }
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
-    private void markBroadcast(PeerAddress byPeer, Transaction tx) {
-        checkState(lock.isHeldByCurrentThread());
+    private void markBroadcast(Stripe stripe, PeerAddress byPeer, Transaction tx) {
+        checkState(stripe.lock.isHeldByCurrentThread());
         final TransactionConfidence confidence = tx.getConfidence();
         if (confidence.markBroadcastBy(byPeer))
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
@@ -289,17 +437,15 @@ public class MemoryPool {
      */
     @Nullable
     public Transaction get(Sha256Hash hash) {
-        lock.lock();
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
         try {
-            Entry entry = memoryPool.get(hash);
+            Entry entry = lookup(stripe, hash);
             if (entry == null) return null;  // Unknown.
             if (entry.tx == null) return null;  // Seen but only in advertisements.
-            if (entry.tx.get() == null) return null;  // Was downloaded but garbage collected.
-            Transaction tx = entry.tx.get();
-            checkNotNull(tx);
-            return tx;
+            return entry.tx.get();  // Null if it was downloaded but garbage collected.
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
@@ -307,14 +453,85 @@ public class MemoryPool {
      * Returns true if the TX identified by hash has been seen before (ie, in an inv). Note that a transaction that
      * was broadcast, downloaded and nothing kept a reference to it will eventually be cleared out by the garbage
      * collector and wasSeen() will return false - it does not keep a permanent record of every hash ever broadcast.
+     * Neither does it once the entry has been evicted to keep the pool within its size limits.
      */
     public boolean maybeWasSeen(Sha256Hash hash) {
-        lock.lock();
+        Stripe stripe = stripeFor(hash);
+        stripe.lock.lock();
         try {
-            Entry entry = memoryPool.get(hash);
-            return entry != null;
+            return lookup(stripe, hash) != null;
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
+        }
+    }
+
+    /** Returns the number of transactions currently tracked, whether downloaded or only seen announced. */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /** Returns roughly how many bytes the pool uses for tracking, not counting the transactions themselves. */
+    public long getBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                bytes += stripe.bytes;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /** Returns how many lookups of a hash found it in the pool. */
+    public long getHitCount() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                hits += stripe.hits;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return hits;
+    }
+
+    /** Returns how many lookups of a hash didn't find it in the pool. */
+    public long getMissCount() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                misses += stripe.misses;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return misses;
+    }
+
+    /** Returns how many entries were evicted to keep the pool within its limits. */
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                evictions += stripe.evictions;
+            } finally {
+                stripe.lock.unlock();
+            }
         }
+        return evictions;
     }
 }
@@ -410,11 +410,10 @@ public abstract class Message implements Serializable {
 
     Sha256Hash readHash() throws ProtocolException {
         try {
-            byte[] hash = new byte[32];
-            System.arraycopy(bytes, cursor, hash, 0, 32);
             // We have to flip it around, as it's been read off the wire in little endian.
-            // Not the most efficient way to do this but the clearest.
-            hash = Utils.reverseBytes(hash);
+            byte[] hash = new byte[32];
+            for (int i = 0; i < 32; i++)
+                hash[i] = bytes[cursor + 31 - i];
             cursor += 32;
             return new Sha256Hash(hash);
         } catch (IndexOutOfBoundsException e) {
@@ -116,6 +116,9 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    // When set, the chain is downloaded headers first with the block bodies fetched by the scheduler from all peers
+    // of the group, rather than through getblocks/inv on this connection alone.
+    @Nullable private volatile BlockDownloadScheduler vDownloadScheduler;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -474,8 +477,35 @@ public class Peer extends PeerSocketHandler {
             lock.unlock();
         }
 
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        List<Block> headers = m.getBlockHeaders();
+        // When downloading headers first, ask for the next batch before checking this one, so the round trip overlaps
+        // with the hashing here. Without a scheduler the next request may have to be a getblocks instead.
+        boolean pipelined = false;
+        if (scheduler != null && headers.size() >= HeadersMessage.MAX_HEADERS &&
+                (!downloadBlockBodies || scheduler.isAcceptingHeaders())) {
+            lock.lock();
+            try {
+                requestHeadersLocked(headers.get(headers.size() - 1).getHash(), Sha256Hash.ZERO_HASH);
+            } finally {
+                lock.unlock();
+            }
+            pipelined = true;
+        }
+        if (downloadBlockBodies && scheduler != null) {
+            processHeadersForScheduler(scheduler, headers, pipelined);
+            return;
+        }
+
         try {
             checkState(!downloadBlockBodies, toString());
+            // Scrypt the headers we are going to link in parallel, up front, so the chain only has to compare the
+            // cached hashes against the targets.
+            int numBeforeCatchupTime = 0;
+            while (numBeforeCatchupTime < m.getBlockHeaders().size() &&
+                    m.getBlockHeaders().get(numBeforeCatchupTime).getTimeSeconds() < fastCatchupTimeSecs)
+                numBeforeCatchupTime++;
+            HeaderBatchVerifier.get().precomputeHashes(m.getBlockHeaders().subList(0, numBeforeCatchupTime));
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
@@ -498,6 +528,18 @@ public class Peer extends PeerSocketHandler {
                         // headers that are part of the best chain.
                         throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
                     }
+                } else if (scheduler != null) {
+                    // The scheduler fetches the blocks for the rest of the headers, no need to ask for them again.
+                    log.info("Passed the fast catchup time, requesting blocks for the remaining {} headers",
+                            headers.size() - i);
+                    lock.lock();
+                    try {
+                        this.downloadBlockBodies = true;
+                    } finally {
+                        lock.unlock();
+                    }
+                    processHeadersForScheduler(scheduler, headers.subList(i, headers.size()), pipelined);
+                    return;
                 } else {
                     lock.lock();
                     try {
@@ -515,7 +557,7 @@ public class Peer extends PeerSocketHandler {
             }
             // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
             // we are at the end of the chain.
-            if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS) {
+            if (m.getBlockHeaders().size() >= HeadersMessage.MAX_HEADERS && !pipelined) {
                 lock.lock();
                 try {
                     blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
@@ -531,6 +573,28 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    private void processHeadersForScheduler(BlockDownloadScheduler scheduler, List<Block> headers,
+                                            boolean pipelined) throws ProtocolException {
+        boolean more;
+        try {
+            more = scheduler.receiveHeaders(this, headers, headers.size() >= HeadersMessage.MAX_HEADERS && !pipelined);
+        } catch (VerificationException e) {
+            log.warn("Block header verification failed", e);
+            return;
+        }
+        if (pipelined)
+            return;  // The next batch is already on its way.
+        lock.lock();
+        try {
+            // The request was answered, so asking again from the same place (after a new block inv) isn't a duplicate.
+            lastGetBlocksBegin = null;
+            if (more)
+                blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void processGetData(GetDataMessage getdata) {
         log.info("{}: Received getdata message: {}", getAddress(), getdata.toString());
         ArrayList<Message> items = new ArrayList<Message>();
@@ -793,6 +857,9 @@ public class Peer extends PeerSocketHandler {
             log.warn("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Or by the scheduler as part of a headers first download? That can be from any peer.
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        if (scheduler != null && scheduler.receiveBlock(this, m)) return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
@@ -849,6 +916,8 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
         }
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        if (scheduler != null && scheduler.receiveBlock(this, m)) return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -929,7 +998,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block m) {
+    void invokeOnBlocksDownloaded(final Block m) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1019,8 +1088,13 @@ public class Peer extends PeerSocketHandler {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
+                BlockDownloadScheduler scheduler = vDownloadScheduler;
                 for (InventoryItem item : blocks) {
-                    if (blockChain.isOrphan(item.hash) && downloadBlockBodies) {
+                    if (scheduler != null && downloadBlockBodies) {
+                        // New blocks are found via their headers, the scheduler then fetches the bodies.
+                        blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                        break;
+                    } else if (blockChain.isOrphan(item.hash) && downloadBlockBodies) {
                         // If an orphan was re-advertised, ask for more blocks unless we are not currently downloading
                         // full block data because we have a getheaders outstanding.
                         final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(item.hash));
@@ -1192,8 +1266,53 @@ public class Peer extends PeerSocketHandler {
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
 
+        StoredBlock chainHead = checkNotNull(blockChain).getChainHead();
+        Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
+        // When downloading headers first, the headers already waiting for their blocks extend the chain we have.
+        BlockDownloadScheduler scheduler = vDownloadScheduler;
+        boolean headersFirst = downloadBlockBodies && scheduler != null;
+        Sha256Hash headerTip = headersFirst ? scheduler.getHeaderTip() : null;
+        Sha256Hash beginHash = headerTip != null ? headerTip : chainHeadHash;
+        // Did we already make this request? If so, don't do it again.
+        if (Objects.equal(lastGetBlocksBegin, beginHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
+            log.info("blockChainDownloadLocked({}): ignoring duplicated request", toHash.toString());
+            return;
+        }
+        log.debug("{}: blockChainDownloadLocked({}) current head = {}",
+                toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
+
+        if (downloadBlockBodies && !headersFirst) {
+            // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
+            // block being solved during chain download.
+            lastGetBlocksBegin = beginHash;
+            lastGetBlocksEnd = toHash;
+            GetBlocksMessage message = new GetBlocksMessage(params, buildBlockLocatorLocked(null), toHash);
+            sendMessage(message);
+        } else {
+            // Downloading headers for a while instead of full blocks.
+            requestHeadersLocked(headerTip, toHash);
+        }
+    }
+
+    /**
+     * Sends a getheaders for the headers following the given one, which doesn't have to be in the chain yet, or
+     * following the chain head if it's null.
+     */
+    @GuardedBy("lock")
+    private void requestHeadersLocked(@Nullable Sha256Hash after, Sha256Hash toHash) {
+        checkState(lock.isHeldByCurrentThread());
+        lastGetBlocksBegin = after != null ? after : checkNotNull(blockChain).getChainHead().getHeader().getHash();
+        lastGetBlocksEnd = toHash;
+        GetHeadersMessage message = new GetHeadersMessage(params, buildBlockLocatorLocked(after), toHash);
+        sendMessage(message);
+    }
+
+    @GuardedBy("lock")
+    private List<Sha256Hash> buildBlockLocatorLocked(@Nullable Sha256Hash first) {
         // TODO: Block locators should be abstracted out rather than special cased here.
-        List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
+        List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(52);
+        if (first != null)
+            blockLocator.add(first);
         // For now we don't do the exponential thinning as suggested here:
         //
         //   https://en.fastcoin.it/wiki/Protocol_specification#getblocks
@@ -1202,16 +1321,7 @@ public class Peer extends PeerSocketHandler {
         // 50 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
         // must always put the genesis block as the first entry.
         BlockStore store = checkNotNull(blockChain).getBlockStore();
-        StoredBlock chainHead = blockChain.getChainHead();
-        Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
-        // Did we already make this request? If so, don't do it again.
-        if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
-            log.info("blockChainDownloadLocked({}): ignoring duplicated request", toHash.toString());
-            return;
-        }
-        log.debug("{}: blockChainDownloadLocked({}) current head = {}",
-                toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
-        StoredBlock cursor = chainHead;
+        StoredBlock cursor = blockChain.getChainHead();
         for (int i = 100; cursor != null && i > 0; i--) {
             blockLocator.add(cursor.getHeader().getHash());
             try {
@@ -1225,20 +1335,7 @@ public class Peer extends PeerSocketHandler {
         if (cursor != null) {
             blockLocator.add(params.getGenesisBlock().getHash());
         }
-
-        // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
-        // block being solved during chain download.
-        lastGetBlocksBegin = chainHeadHash;
-        lastGetBlocksEnd = toHash;
-
-        if (downloadBlockBodies) {
-            GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
-            sendMessage(message);
-        } else {
-            // Downloading headers for a while instead of full blocks.
-            GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
-            sendMessage(message);
-        }
+        return blockLocator;
     }
 
     /**
@@ -1269,6 +1366,16 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /** Asks for the next batch of headers of a headers first download, see {@link BlockDownloadScheduler}. */
+    void requestMoreHeaders() {
+        lock.lock();
+        try {
+            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
@@ -1414,6 +1521,14 @@ public class Peer extends PeerSocketHandler {
         this.vDownloadData = downloadData;
     }
 
+    /**
+     * Sets the scheduler that blocks are downloaded through once headers are being fetched rather than getblocks
+     * sent. Used by {@link PeerGroup}, which shares one scheduler between all its peers.
+     */
+    void setBlockDownloadScheduler(@Nullable BlockDownloadScheduler scheduler) {
+        this.vDownloadScheduler = scheduler;
+    }
+
     /** Returns version data announced by the remote peer. */
     public VersionMessage getPeerVersionMessage() {
       return vPeerVersionMessage;
@@ -1473,6 +1588,24 @@ public class Peer extends PeerSocketHandler {
         sendMessage(new MemoryPoolMessage());
     }
 
+    /**
+     * <p>Replaces the Bloom filter on this connection with one that only differs by the given elements having been
+     * inserted, by sending the elements in filteradd messages rather than sending the whole filter again. The given
+     * filter is resent periodically as usual.</p>
+     *
+     * <p>If no filter was set yet, this call is ignored. Like {@link #setBloomFilter(BloomFilter)}, you should not
+     * use this if your app uses a {@link PeerGroup}.</p>
+     */
+    public void addToBloomFilter(BloomFilter filter, List<byte[]> elements) {
+        checkNotNull(filter);
+        if (vBloomFilter == null)
+            return;
+        vBloomFilter = filter;
+        log.info("{}: Adding {} elements to Bloom filter", this, elements.size());
+        for (byte[] element : elements)
+            sendMessage(new FilterAddMessage(element));
+    }
+
     /**
      * Returns the last {@link BloomFilter} set by {@link Peer#setBloomFilter(BloomFilter)}. Bloom filters tell
      * the remote node what transactions to send us, in a compact manner.
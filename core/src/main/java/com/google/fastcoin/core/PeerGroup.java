@@ -88,6 +88,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
 
     // The peer that has been selected for the purposes of downloading announced data.
     @GuardedBy("lock") private Peer downloadPeer;
+    // Spreads block downloads over all peers once the download peer has provided the headers. Null without a chain.
+    @Nullable private final BlockDownloadScheduler blockDownloadScheduler;
+    @GuardedBy("lock") private boolean parallelBlockDownload = false;
+    // Checks the scheduler for stalled downloads every second, only while parallel block download is on.
+    @Nullable @GuardedBy("lock") private TimerTask stallCheckTask;
     // Callback for events related to chain download
     @Nullable @GuardedBy("lock") private PeerEventListener downloadListener;
     // Callbacks for events related to peer connection/disconnection
@@ -151,8 +156,12 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             queueRecalc();
         }
 
-        @Override public void onKeysAdded(Wallet wallet, List<ECKey> keys) {
-            queueRecalc();
+        @Override public void onKeysAdded(Wallet wallet, final List<ECKey> keys) {
+            Uninterruptibles.putUninterruptibly(jobQueue, new Runnable() {
+                @Override public void run() {
+                    addKeysToFilter(keys);
+                }
+            });
         }
 
         @Override
@@ -224,6 +233,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
     private final long bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
     private int lastBloomFilterElementCount;
+    // How many elements bloomFilter holds, counted when it was last built and including keys added to it since.
+    private int bloomFilterElementCount;
 
     /** The default timeout between when a connection attempt begins and version message exchange completes */
     public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
@@ -256,6 +267,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     public PeerGroup(NetworkParameters params, @Nullable AbstractBlockChain chain, ClientConnectionManager connectionManager) {
         this.params = checkNotNull(params);
         this.chain = chain;
+        this.blockDownloadScheduler = chain == null ? null : new BlockDownloadScheduler(chain);
         this.fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
         this.wallets = new CopyOnWriteArrayList<Wallet>();
         this.peerFilterProviders = new CopyOnWriteArrayList<PeerFilterProvider>();
@@ -654,10 +666,39 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void startUp() throws Exception {
         // This is run in a background thread by the Service implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        lock.lock();
+        try {
+            updateStallChecksLocked();
+        } finally {
+            lock.unlock();
+        }
         channels.startAndWait();
         triggerConnections();
     }
 
+    // Starts or stops checking for stalled block downloads, depending on whether parallel block download is on.
+    private void updateStallChecksLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        boolean wanted = blockDownloadScheduler != null && parallelBlockDownload;
+        if (wanted && stallCheckTask == null) {
+            stallCheckTask = new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        blockDownloadScheduler.checkForStalls();
+                    } catch (Exception e) {
+                        // Must not escape, that would kill the timer and with it the pings.
+                        log.warn("Exception whilst checking for stalled block downloads", e);
+                    }
+                }
+            };
+            vPingTimer.schedule(stallCheckTask, 1000, 1000);
+        } else if (!wanted && stallCheckTask != null) {
+            stallCheckTask.cancel();
+            stallCheckTask = null;
+        }
+    }
+
     @Override
     protected void shutDown() throws Exception {
         // This is run on a separate thread by the Service implementation.
@@ -776,6 +817,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 BloomFilter filter = new BloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak, bloomFlags);
                 for (PeerFilterProvider p : peerFilterProviders)
                     filter.merge(p.getBloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak));
+                bloomFilterElementCount = elements;
                 if (forceFilterUpdate || !filter.equals(bloomFilter)) {
                     bloomFilter = filter;
                     for (Peer peer : peers)
@@ -798,6 +840,40 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
     
+    /**
+     * Adds new keys to the bloom filter given to peers by sending them in filteradd messages, instead of rebuilding
+     * the filter from all wallets and sending the whole of it to every peer. That isn't possible if the keys move the
+     * fast catchup time back or if the filter would need to grow to keep its false positive rate, so those cases
+     * fall back to {@link #recalculateFastCatchupAndFilter(boolean)}.
+     */
+    private void addKeysToFilter(List<ECKey> keys) {
+        lock.lock();
+        try {
+            int added = keys.size() * 2;
+            boolean canAdd = bloomFilter != null && bloomFilterElementCount + added <= lastBloomFilterElementCount;
+            for (ECKey key : keys)
+                canAdd = canAdd && key.getCreationTimeSeconds() - 86400 * 7 >= fastCatchupTimeSecs;
+            if (!canAdd) {
+                recalculateFastCatchupAndFilter(false);
+                return;
+            }
+            List<byte[]> elements = new ArrayList<byte[]>(added);
+            for (ECKey key : keys) {
+                elements.add(key.getPubKey());
+                elements.add(key.getPubKeyHash());
+            }
+            // Peers may be serializing the current filter, so insert into a copy of it.
+            BloomFilter filter = new BloomFilter(bloomFilter);
+            filter.insertAll(elements);
+            bloomFilter = filter;
+            bloomFilterElementCount += added;
+            for (Peer peer : peers)
+                peer.addToBloomFilter(filter, elements);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -944,6 +1020,10 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             if (bloomFilter != null) peer.setBloomFilter(bloomFilter);
             // Link the peer to the memory pool so broadcast transactions have their confidence levels updated.
             peer.setDownloadData(false);
+            if (blockDownloadScheduler != null && parallelBlockDownload) {
+                peer.setBlockDownloadScheduler(blockDownloadScheduler);
+                blockDownloadScheduler.addPeer(peer);
+            }
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
@@ -1049,6 +1129,10 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 downloadPeer.setDownloadData(false);
             }
             downloadPeer = peer;
+            if (blockDownloadScheduler != null) {
+                blockDownloadScheduler.setHeaderPeer(peer);
+                blockDownloadScheduler.setUseFilteredBlocks(bloomFilter != null);
+            }
             if (downloadPeer != null) {
                 log.info("Setting download peer: {}", downloadPeer);
                 if (downloadListener != null)
@@ -1084,11 +1168,40 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             if (downloadPeer != null) {
                 downloadPeer.setDownloadParameters(secondsSinceEpoch, bloomFilter != null);
             }
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.setUseFilteredBlocks(bloomFilter != null);
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * <p>Sets whether the block chain is downloaded headers first, with the blocks themselves fetched from all
+     * connected peers in parallel by a {@link BlockDownloadScheduler}. This is off by default, in which case the whole
+     * chain is pulled through the download peer with getblocks, as in older versions. Only affects peers that connect
+     * after the call, so set it before starting the group. Stalled downloads are only checked for while it's on.</p>
+     */
+    public void setParallelBlockDownload(boolean parallelBlockDownload) {
+        lock.lock();
+        try {
+            this.parallelBlockDownload = parallelBlockDownload;
+            // Otherwise startUp sets the checks up, and after shutting down the timer is gone.
+            if (isRunning())
+                updateStallChecksLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the scheduler that spreads block downloads over the connected peers, for tuning and statistics, or null
+     * if this group has no chain.
+     */
+    @Nullable
+    public BlockDownloadScheduler getBlockDownloadScheduler() {
+        return blockDownloadScheduler;
+    }
+
     /**
      * Returns the current fast catchup time. The contents of blocks before this time won't be downloaded as they
      * cannot contain any interesting transactions. If you use {@link PeerGroup#addWallet(Wallet)} this just returns
@@ -1115,6 +1228,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         try {
             pendingPeers.remove(peer);
             peers.remove(peer);
+            if (blockDownloadScheduler != null)
+                blockDownloadScheduler.removePeer(peer);
 
             PeerAddress address = peer.getAddress();
 
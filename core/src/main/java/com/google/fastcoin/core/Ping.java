@@ -65,11 +65,11 @@ public class Ping extends Message {
         
     }
     
-    boolean hasNonce() {
+    public boolean hasNonce() {
         return hasNonce;
     }
     
-    long getNonce() {
+    public long getNonce() {
         return nonce;
     }
 }
@@ -24,8 +24,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -59,12 +57,7 @@ public class Sha256Hash implements Serializable, Comparable {
      * Calculates the (one-time) hash of contents and returns it as a new wrapped hash.
      */
     public static Sha256Hash create(byte[] contents) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            return new Sha256Hash(digest.digest(contents));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        return new Sha256Hash(Utils.singleDigest(contents, 0, contents.length));
     }
 
     /**
@@ -74,6 +67,16 @@ public class Sha256Hash implements Serializable, Comparable {
         return new Sha256Hash(Utils.doubleDigest(contents));
     }
 
+    /**
+     * Calculates the hash of the hash of the given byte range and returns it byte reversed, which is the form block
+     * and transaction hashes are displayed and looked up in. Only the 32 byte result array is allocated.
+     */
+    public static Sha256Hash createDoubleReversed(byte[] contents, int offset, int length) {
+        byte[] hash = new byte[32];
+        Utils.doubleDigest(contents, offset, length, hash, 0);
+        return new Sha256Hash(Utils.reverseBytesInPlace(hash));
+    }
+
     /**
      * Returns a hash of the given files contents. Reads the file fully into memory before hashing so only use with
      * small files.
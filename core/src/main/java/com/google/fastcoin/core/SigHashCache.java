@@ -0,0 +1,257 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.core;
+
+import com.google.fastcoin.crypto.TransactionSignature;
+import com.google.fastcoin.script.Script;
+import com.google.fastcoin.script.ScriptOpCodes;
+import com.google.fastcoin.utils.Threading;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>Calculates the signature hashes of a transaction's inputs, giving the same results as
+ * {@link Transaction#hashForSignature(int, byte[], byte)} but without modifying the transaction. The parts of the
+ * transaction that are the same for every input (the version, the outpoints and sequence numbers of the inputs, the
+ * outputs and the lock time) are serialized once when the cache is created, and the SHA-256 state after the inputs
+ * before each one is kept, so signing or verifying every input of a big transaction doesn't serialize the whole
+ * transaction again for each of them. The inputs after the one being hashed still have to be hashed each time, that
+ * is how the signature hash is defined.</p>
+ *
+ * <p>The cache is a snapshot of the transaction when it was created: changing the transaction afterwards doesn't
+ * change the hashes. It is thread safe, so one instance can be shared by threads verifying different inputs.</p>
+ */
+public class SigHashCache {
+    // Each input with an empty script: a 36 byte outpoint, a zero script length and a 4 byte sequence number.
+    private static final int EMPTY_INPUT_LENGTH = 36 + 1 + 4;
+    private static final byte[] NULL_OUTPUT = { -1, -1, -1, -1, -1, -1, -1, -1, 0 };
+
+    private final ReentrantLock lock = Threading.lock("sighashcache");
+
+    private final byte[] versionAndInputCount;
+    private final byte[][] outpoints;
+    private final long[] sequenceNumbers;
+    private final byte[][] outputs;
+    private final byte[] allOutputs;
+    private final byte[] lockTime;
+    // The inputs with empty scripts, as they are signed by SIGHASH_ALL and with the sequence numbers zeroed.
+    private final byte[] emptyInputs;
+    private byte[] emptyInputsNoSequence;
+    // The digest state after the version and the first i empty inputs, for the inputs asked about so far.
+    private final MessageDigest[] midstates, midstatesNoSequence;
+    private boolean canCloneDigests = true;
+
+    /** Snapshots the given transaction. */
+    public SigHashCache(Transaction tx) {
+        try {
+            List<TransactionInput> inputs = tx.getInputs();
+            int numInputs = inputs.size();
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(4 + VarInt.sizeOf(numInputs));
+            Utils.uint32ToByteStreamLE(tx.getVersion(), bos);
+            bos.write(new VarInt(numInputs).encode());
+            versionAndInputCount = bos.toByteArray();
+
+            outpoints = new byte[numInputs][];
+            sequenceNumbers = new long[numInputs];
+            emptyInputs = new byte[numInputs * EMPTY_INPUT_LENGTH];
+            for (int i = 0; i < numInputs; i++) {
+                TransactionInput input = inputs.get(i);
+                outpoints[i] = input.getOutpoint().fastcoinSerialize();
+                sequenceNumbers[i] = input.getSequenceNumber();
+                int offset = i * EMPTY_INPUT_LENGTH;
+                System.arraycopy(outpoints[i], 0, emptyInputs, offset, outpoints[i].length);
+                Utils.uint32ToByteArrayLE(sequenceNumbers[i], emptyInputs, offset + 37);
+            }
+
+            List<TransactionOutput> txOutputs = tx.getOutputs();
+            outputs = new byte[txOutputs.size()][];
+            bos = new UnsafeByteArrayOutputStream();
+            bos.write(new VarInt(outputs.length).encode());
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = txOutputs.get(i).fastcoinSerialize();
+                bos.write(outputs[i]);
+            }
+            allOutputs = bos.toByteArray();
+
+            lockTime = new byte[4];
+            Utils.uint32ToByteArrayLE(tx.getLockTime(), lockTime, 0);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        midstates = new MessageDigest[outpoints.length];
+        midstatesNoSequence = new MessageDigest[outpoints.length];
+    }
+
+    /** Returns the number of inputs of the transaction. */
+    public int getInputCount() {
+        return outpoints.length;
+    }
+
+    /**
+     * Calculates the signature hash of the given input, see
+     * {@link Transaction#hashForSignature(int, byte[], Transaction.SigHash, boolean)}.
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, Transaction.SigHash type,
+                                       boolean anyoneCanPay) {
+        return hashForSignature(inputIndex, connectedScript, (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay));
+    }
+
+    /**
+     * Calculates the signature hash of the given input for any sigHashType, including ones that can't be
+     * represented using SigHash and anyoneCanPay, see {@link Transaction#hashForSignature(int, byte[], byte)}.
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        checkElementIndex(inputIndex, outpoints.length);
+        // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        int mode = sigHashType & 0x1f;
+        boolean none = mode == Transaction.SigHash.NONE.ordinal() + 1;
+        boolean single = mode == Transaction.SigHash.SINGLE.ordinal() + 1;
+        boolean anyoneCanPay = (sigHashType & Transaction.SIGHASH_ANYONECANPAY_VALUE) == Transaction.SIGHASH_ANYONECANPAY_VALUE;
+        if (single && inputIndex >= outputs.length) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. The reference client also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+            //
+            // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            //
+            // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
+            return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+        }
+        // With SIGHASH_NONE and SIGHASH_SINGLE the other inputs are signed with their sequence numbers set to zero,
+        // so the signature isn't broken by new versions of the transaction issued by other parties.
+        boolean zeroSequences = none || single;
+
+        MessageDigest digest;
+        if (anyoneCanPay) {
+            // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+            // of other inputs. For example, this is useful for building assurance contracts. Only the input being
+            // signed is included.
+            digest = Utils.newSha256Digest();
+            digest.update(versionAndInputCount, 0, 4);
+            digest.update((byte) 1);
+        } else {
+            digest = midstate(inputIndex, zeroSequences);
+        }
+        // The input being signed has the script of the output it spends. Satoshi does this but the step has no
+        // obvious purpose as the signature covers the hash of the prevout transaction which obviously includes the
+        // output script already. The other inputs have empty scripts.
+        digest.update(outpoints[inputIndex]);
+        digest.update(new VarInt(connectedScript.length).encode());
+        digest.update(connectedScript);
+        byte[] buf = new byte[4];
+        Utils.uint32ToByteArrayLE(sequenceNumbers[inputIndex], buf, 0);
+        digest.update(buf);
+        if (!anyoneCanPay) {
+            byte[] rest = zeroSequences ? emptyInputsNoSequence() : emptyInputs;
+            int offset = (inputIndex + 1) * EMPTY_INPUT_LENGTH;
+            digest.update(rest, offset, rest.length - offset);
+        }
+
+        if (none) {
+            // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+            digest.update((byte) 0);
+        } else if (single) {
+            // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output). The outputs
+            // after it are deleted, and the outputs before that position are "nulled out". Unintuitively, the value
+            // in a "null" transaction is set to -1.
+            digest.update(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(NULL_OUTPUT);
+            digest.update(outputs[inputIndex]);
+        } else {
+            digest.update(allOutputs);
+        }
+        digest.update(lockTime);
+        // We also have to write a hash type (sigHashType is actually an unsigned char). Note that the resulting
+        // hash is NOT reversed to ensure it will be signed correctly.
+        Utils.uint32ToByteArrayLE(0x000000ff & sigHashType, buf, 0);
+        digest.update(buf);
+        byte[] first = digest.digest();
+        digest.reset();
+        return new Sha256Hash(digest.digest(first));
+    }
+
+    // Returns a digest that has had the version and the inputs before the given one hashed into it.
+    private MessageDigest midstate(int inputIndex, boolean zeroSequences) {
+        byte[] empty = zeroSequences ? emptyInputsNoSequence() : emptyInputs;
+        lock.lock();
+        try {
+            if (canCloneDigests) {
+                MessageDigest[] states = zeroSequences ? midstatesNoSequence : midstates;
+                try {
+                    // Carry on from the closest state worked out already, and keep this one for next time.
+                    int i = inputIndex;
+                    while (i > 0 && states[i] == null)
+                        i--;
+                    MessageDigest digest;
+                    if (states[i] == null) {
+                        digest = Utils.newSha256Digest();
+                        digest.update(versionAndInputCount);
+                    } else {
+                        digest = (MessageDigest) states[i].clone();
+                    }
+                    if (i < inputIndex) {
+                        digest.update(empty, i * EMPTY_INPUT_LENGTH, (inputIndex - i) * EMPTY_INPUT_LENGTH);
+                        states[inputIndex] = (MessageDigest) digest.clone();
+                    } else if (states[i] == null) {
+                        states[i] = (MessageDigest) digest.clone();
+                    }
+                    return digest;
+                } catch (CloneNotSupportedException e) {
+                    // Some providers can't copy their state, hash the inputs from the start every time then.
+                    canCloneDigests = false;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        MessageDigest digest = Utils.newSha256Digest();
+        digest.update(versionAndInputCount);
+        digest.update(empty, 0, inputIndex * EMPTY_INPUT_LENGTH);
+        return digest;
+    }
+
+    private byte[] emptyInputsNoSequence() {
+        lock.lock();
+        try {
+            if (emptyInputsNoSequence == null) {
+                byte[] empty = emptyInputs.clone();
+                for (int offset = 37; offset < empty.length; offset += EMPTY_INPUT_LENGTH)
+                    Utils.uint32ToByteArrayLE(0, empty, offset);
+                emptyInputsNoSequence = empty;
+            }
+            return emptyInputsNoSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -20,8 +20,10 @@ import com.google.fastcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.fastcoin.crypto.TransactionSignature;
 import com.google.fastcoin.script.Script;
 import com.google.fastcoin.script.ScriptBuilder;
-import com.google.fastcoin.script.ScriptOpCodes;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFutureTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
@@ -32,6 +34,10 @@ import java.math.BigInteger;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 import static com.google.fastcoin.core.Utils.*;
 import static com.google.common.base.Preconditions.*;
@@ -192,7 +198,7 @@ public class Transaction extends ChildMessage implements Serializable {
     public Sha256Hash getHash() {
         if (hash == null) {
             byte[] bits = fastcoinSerialize();
-            hash = new Sha256Hash(reverseBytes(doubleDigest(bits)));
+            hash = Sha256Hash.createDoubleReversed(bits, 0, bits.length);
         }
         return hash;
     }
@@ -773,6 +779,24 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
      */
     public synchronized void signInputs(SigHash hashType, Wallet wallet, @Nullable KeyParameter aesKey) throws ScriptException {
+        signInputs(hashType, wallet, aesKey, null);
+    }
+
+    /**
+     * <p>Same as {@link #signInputs(Transaction.SigHash, Wallet, org.spongycastle.crypto.params.KeyParameter)} but
+     * the signature hashes and the signatures (and decrypting the private keys, for an encrypted wallet) are worked
+     * out on the given executor, one task per input, so a transaction with many inputs can be signed on several
+     * threads. The keys are looked up in the wallet on the calling thread beforehand, so this can be called with
+     * the wallet locked. The input scripts are built in exactly the same way as when signing on the calling
+     * thread.</p>
+     *
+     * @param hashType This should always be set to SigHash.ALL currently. Other types are unused.
+     * @param wallet  A wallet is required to fetch the keys needed for signing.
+     * @param aesKey The AES key to use to decrypt the key before signing. Null if no decryption is required.
+     * @param executor Where to sign the inputs, or null to sign them one by one on the calling thread.
+     */
+    public synchronized void signInputs(SigHash hashType, Wallet wallet, @Nullable KeyParameter aesKey,
+                                        @Nullable Executor executor) throws ScriptException {
         checkState(inputs.size() > 0);
         checkState(outputs.size() > 0);
 
@@ -788,42 +812,75 @@ public class Transaction extends ChildMessage implements Serializable {
 
         TransactionSignature[] signatures = new TransactionSignature[inputs.size()];
         ECKey[] signingKeys = new ECKey[inputs.size()];
-        for (int i = 0; i < inputs.size(); i++) {
-            TransactionInput input = inputs.get(i);
-            // We don't have the connected output, we assume it was signed already and move on
-            if (input.getOutpoint().getConnectedOutput() == null) {
-                log.warn("Missing connected output, assuming input {} is already signed.", i);
-                continue;
-            }
-            try {
-                // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
-                // we sign missing pieces (to check this would require either assuming any signatures are signing
-                // standard output types or a way to get processed signatures out of script execution)
-                input.getScriptSig().correctlySpends(this, i, input.getOutpoint().getConnectedOutput().getScriptPubKey(), true);
-                log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
-                continue;
-            } catch (ScriptException e) {
-                // Expected.
-            }
-            if (input.getScriptBytes().length != 0)
-                log.warn("Re-signing an already signed transaction! Be sure this is what you want.");
-            // Find the signing key we'll need to use.
-            ECKey key = input.getOutpoint().getConnectedKey(wallet);
-            // This assert should never fire. If it does, it means the wallet is inconsistent.
-            checkNotNull(key, "Transaction exists in wallet that we cannot redeem: %s", input.getOutpoint().getHash());
-            // Keep the key around for the script creation step below.
-            signingKeys[i] = key;
-            // The anyoneCanPay feature isn't used at the moment.
-            boolean anyoneCanPay = false;
-            byte[] connectedPubKeyScript = input.getOutpoint().getConnectedPubKeyScript();
-            if (key.hasPrivKey() || key.isEncrypted()) {
-                signatures[i] = calculateSignature(i, key, aesKey, connectedPubKeyScript, hashType, anyoneCanPay);
-            } else {
-                // Create a dummy signature to ensure the transaction is of the correct size when we try to ensure
-                // the right fee-per-kb is attached. If the wallet doesn't have the privkey, the user is assumed to
-                // be doing something special and that they will replace the dummy signature with a real one later.
-                signatures[i] = TransactionSignature.dummy();
+        // Nothing that goes into the signature hashes changes until the scripts are set below, so work out the parts
+        // shared by all the inputs just once.
+        SigHashCache sigHashes = new SigHashCache(this);
+        List<ListenableFutureTask<Void>> signingTasks = new ArrayList<ListenableFutureTask<Void>>();
+        // If anything goes wrong before all the tasks are handed over, for instance the executor rejects one, the
+        // ones already running are no use.
+        boolean submitted = false;
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionInput input = inputs.get(i);
+                // We don't have the connected output, we assume it was signed already and move on
+                if (input.getOutpoint().getConnectedOutput() == null) {
+                    log.warn("Missing connected output, assuming input {} is already signed.", i);
+                    continue;
+                }
+                try {
+                    // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
+                    // we sign missing pieces (to check this would require either assuming any signatures are signing
+                    // standard output types or a way to get processed signatures out of script execution)
+                    input.getScriptSig().correctlySpends(sigHashes, i, input.getOutpoint().getConnectedOutput().getScriptPubKey(), true);
+                    log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
+                    continue;
+                } catch (ScriptException e) {
+                    // Expected.
+                }
+                if (input.getScriptBytes().length != 0)
+                    log.warn("Re-signing an already signed transaction! Be sure this is what you want.");
+                // Find the signing key we'll need to use.
+                ECKey key = input.getOutpoint().getConnectedKey(wallet);
+                // This assert should never fire. If it does, it means the wallet is inconsistent.
+                checkNotNull(key, "Transaction exists in wallet that we cannot redeem: %s", input.getOutpoint().getHash());
+                // Keep the key around for the script creation step below.
+                signingKeys[i] = key;
+                // The anyoneCanPay feature isn't used at the moment.
+                boolean anyoneCanPay = false;
+                byte[] connectedPubKeyScript = input.getOutpoint().getConnectedPubKeyScript();
+                if (key.hasPrivKey() || key.isEncrypted()) {
+                    SignInputTask task = new SignInputTask(sigHashes, i, key, aesKey, connectedPubKeyScript, hashType,
+                            anyoneCanPay, signatures);
+                    if (executor == null) {
+                        task.call();
+                    } else {
+                        ListenableFutureTask<Void> future = ListenableFutureTask.create(task);
+                        signingTasks.add(future);
+                        executor.execute(future);
+                    }
+                } else {
+                    // Create a dummy signature to ensure the transaction is of the correct size when we try to ensure
+                    // the right fee-per-kb is attached. If the wallet doesn't have the privkey, the user is assumed to
+                    // be doing something special and that they will replace the dummy signature with a real one later.
+                    signatures[i] = TransactionSignature.dummy();
+                }
             }
+            submitted = true;
+        } finally {
+            if (!submitted)
+                cancelAll(signingTasks);
+        }
+        // Wait for the signatures being calculated on the executor. If we're interrupted or one of them fails, the
+        // others are no use, so don't leave them running.
+        try {
+            Futures.allAsList(signingTasks).get();
+        } catch (InterruptedException e) {
+            cancelAll(signingTasks);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            cancelAll(signingTasks);
+            throw Throwables.propagate(e.getCause());
         }
 
         // Now we have calculated each signature, go through and create the scripts. Reminder: the script consists:
@@ -852,6 +909,43 @@ public class Transaction extends ChildMessage implements Serializable {
         // Every input is now complete.
     }
 
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures)
+            future.cancel(true);
+    }
+
+    /** Calculates the signature of one input for {@link #signInputs}, storing it in the given array. */
+    private static class SignInputTask implements Callable<Void> {
+        private final SigHashCache sigHashes;
+        private final int inputIndex;
+        private final ECKey key;
+        @Nullable private final KeyParameter aesKey;
+        private final byte[] connectedPubKeyScript;
+        private final SigHash hashType;
+        private final boolean anyoneCanPay;
+        private final TransactionSignature[] signatures;
+
+        SignInputTask(SigHashCache sigHashes, int inputIndex, ECKey key, @Nullable KeyParameter aesKey,
+                      byte[] connectedPubKeyScript, SigHash hashType, boolean anyoneCanPay,
+                      TransactionSignature[] signatures) {
+            this.sigHashes = sigHashes;
+            this.inputIndex = inputIndex;
+            this.key = key;
+            this.aesKey = aesKey;
+            this.connectedPubKeyScript = connectedPubKeyScript;
+            this.hashType = hashType;
+            this.anyoneCanPay = anyoneCanPay;
+            this.signatures = signatures;
+        }
+
+        @Override
+        public Void call() {
+            Sha256Hash hash = sigHashes.hashForSignature(inputIndex, connectedPubKeyScript, hashType, anyoneCanPay);
+            signatures[inputIndex] = new TransactionSignature(key.sign(hash, aesKey), hashType, anyoneCanPay);
+            return null;
+        }
+    }
+
     /**
      * Calculates a signature that is valid for being inserted into the input at the given position. This is simply
      * a wrapper around calling {@link Transaction#hashForSignature(int, byte[], com.google.fastcoin.core.Transaction.SigHash, boolean)}
@@ -936,103 +1030,9 @@ public class Transaction extends ChildMessage implements Serializable {
         // the purposes of the code in this method:
         //
         //   https://en.fastcoin.it/wiki/Contracts
-
-        try {
-            // Store all the input scripts and clear them in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            //
-            // Also store the input sequence numbers in case we are clearing them with SigHash.NONE/SINGLE
-            byte[][] inputScripts = new byte[inputs.size()][];
-            long[] inputSequenceNumbers = new long[inputs.size()];
-            for (int i = 0; i < inputs.size(); i++) {
-                inputScripts[i] = inputs.get(i).getScriptBytes();
-                inputSequenceNumbers[i] = inputs.get(i).getSequenceNumber();
-                inputs.get(i).setScriptBytes(TransactionInput.EMPTY_ARRAY);
-            }
-
-            // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the main chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Satoshi does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            ArrayList<TransactionOutput> outputs = this.outputs;
-            if ((sigHashType & 0x1f) == (SigHash.NONE.ordinal() + 1)) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                this.outputs = new ArrayList<TransactionOutput>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == (SigHash.SINGLE.ordinal() + 1)) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= this.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. The reference client also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-                    // Put the transaction back to how we found it.
-                    //
-                    // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
-                    for (int i = 0; i < inputs.size(); i++) {
-                        inputs.get(i).setScriptBytes(inputScripts[i]);
-                        inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
-                    }
-                    this.outputs = outputs;
-                    // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
-                }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                this.outputs = new ArrayList<TransactionOutput>(this.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    this.outputs.set(i, new TransactionOutput(params, this, NEGATIVE_ONE, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            }
-
-            ArrayList<TransactionInput> inputs = this.inputs;
-            if ((sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                this.inputs = new ArrayList<TransactionInput>();
-                this.inputs.add(input);
-            }
-
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
-            fastcoinSerialize(bos);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            Sha256Hash hash = new Sha256Hash(doubleDigest(bos.toByteArray()));
-            bos.close();
-
-            // Put the transaction back to how we found it.
-            this.inputs = inputs;
-            for (int i = 0; i < inputs.size(); i++) {
-                inputs.get(i).setScriptBytes(inputScripts[i]);
-                inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
-            }
-            this.outputs = outputs;
-            return hash;
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        //
+        // When hashing several inputs of the same transaction, keep a SigHashCache around instead.
+        return new SigHashCache(this).hashForSignature(inputIndex, connectedScript, sigHashType);
     }
 
     @Override
@@ -25,7 +25,9 @@ import com.google.common.util.concurrent.SettableFuture;
 import javax.annotation.Nullable;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 
@@ -54,7 +56,9 @@ import java.util.concurrent.Executor;
  * been double spent and will never confirm unless there is another re-org.</p>
  *
  * <p>TransactionConfidence is updated via the {@link com.google.fastcoin.core.TransactionConfidence#notifyWorkDone(Block)}
- * method to ensure the block depth and work done are up to date.</p>
+ * method to ensure the block depth and work done are up to date. Alternatively, it can be attached to a
+ * {@link ChainDepthTracker} with {@link #setDepthTracker(ChainDepthTracker)}, in which case depth and work done are
+ * worked out from the height it appeared at whenever they are asked for.</p>
  * To make a copy that won't be changed, use {@link com.google.fastcoin.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable {
@@ -78,6 +82,13 @@ public class TransactionConfidence implements Serializable {
 
     private int broadcastByCount;
 
+    // If set and the type is BUILDING, depth and workDone are as of trackerWorkAnchor and are brought up to date
+    // from the tracker when asked for.
+    @Nullable private transient ChainDepthTracker depthTracker;
+    private transient BigInteger trackerWorkAnchor;
+    // Depths that futures from getDepthFuture are waiting for, registered with the depth tracker if there is one.
+    private transient TreeSet<Integer> watchedDepths;
+
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
         /** If BUILDING, then the transaction is included in the best chain and your confidence in it is increasing. */
@@ -233,6 +244,11 @@ public class TransactionConfidence implements Serializable {
         this.appearedAtChainHeight = appearedAtChainHeight;
         this.depth = 1;
         setConfidenceType(ConfidenceType.BUILDING);
+        if (depthTracker != null) {
+            anchorToTracker();
+            if (watchDepthsWithTracker())
+                queueListeners(Listener.ChangeReason.DEPTH);
+        }
     }
 
     /**
@@ -250,6 +266,11 @@ public class TransactionConfidence implements Serializable {
         // Don't inform the event listeners if the confidence didn't really change.
         if (confidenceType == this.confidenceType)
             return;
+        if (this.confidenceType == ConfidenceType.BUILDING && depthTracker != null) {
+            // Keep the depth and work done as they were when the transaction left the best chain.
+            depth = getDepthInBlocks();
+            workDone = getWorkDone();
+        }
         this.confidenceType = confidenceType;
         if (confidenceType == ConfidenceType.PENDING) {
             depth = 0;
@@ -334,6 +355,8 @@ public class TransactionConfidence implements Serializable {
     public synchronized boolean notifyWorkDone(Block block) throws VerificationException {
         if (getConfidenceType() != ConfidenceType.BUILDING)
             return false;   // Should this be an assert?
+        if (depthTracker != null)
+            return true;    // The tracker has counted the block already.
 
         this.depth++;
         this.workDone = this.workDone.add(block.getWork());
@@ -351,7 +374,11 @@ public class TransactionConfidence implements Serializable {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
-        return depth;
+        if (depthTracker == null || confidenceType != ConfidenceType.BUILDING || appearedAtChainHeight < 0)
+            return depth;
+        int height = depthTracker.getHeight();
+        // Until the tracker reaches the block the transaction appeared in, it's at depth one.
+        return height < appearedAtChainHeight ? depth : height - appearedAtChainHeight + 1;
     }
 
     /*
@@ -359,6 +386,8 @@ public class TransactionConfidence implements Serializable {
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
+        if (depthTracker != null && confidenceType == ConfidenceType.BUILDING)
+            appearedAtChainHeight = depthTracker.getHeight() - depth + 1;
     }
 
     /**
@@ -369,11 +398,96 @@ public class TransactionConfidence implements Serializable {
      * @return estimated number of hashes needed to reverse the transaction.
      */
     public synchronized BigInteger getWorkDone() {
-        return workDone;
+        if (depthTracker == null || confidenceType != ConfidenceType.BUILDING || trackerWorkAnchor == null ||
+                depthTracker.getHeight() < appearedAtChainHeight)
+            return workDone;
+        return workDone.add(depthTracker.getWork().subtract(trackerWorkAnchor));
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
         this.workDone = workDone;
+        if (depthTracker != null)
+            anchorToTracker();
+    }
+
+    /**
+     * <p>Attaches this confidence to the given tracker, or detaches it if null. While attached and BUILDING, the depth
+     * and work done are worked out from the tracker when asked for and {@link #notifyWorkDone(Block)} does nothing.
+     * Listeners are then only run for a new block if it takes the transaction to a depth that a future from
+     * {@link #getDepthFuture(int)} is waiting for.</p>
+     *
+     * <p>The transaction is assumed to be in the best chain the tracker follows. If its appeared at height isn't
+     * known, it is derived from the current depth.</p>
+     */
+    public synchronized void setDepthTracker(@Nullable ChainDepthTracker tracker) {
+        if (tracker == depthTracker)
+            return;
+        if (depthTracker != null && confidenceType == ConfidenceType.BUILDING) {
+            depth = getDepthInBlocks();
+            workDone = getWorkDone();
+        }
+        depthTracker = tracker;
+        trackerWorkAnchor = null;
+        if (tracker != null && confidenceType == ConfidenceType.BUILDING) {
+            if (appearedAtChainHeight < 0)
+                appearedAtChainHeight = tracker.getHeight() - depth + 1;
+            anchorToTracker();
+            if (watchDepthsWithTracker())
+                queueListeners(Listener.ChangeReason.DEPTH);
+        }
+    }
+
+    /** Returns the tracker set by {@link #setDepthTracker(ChainDepthTracker)}, or null. */
+    @Nullable
+    public synchronized ChainDepthTracker getDepthTracker() {
+        return depthTracker;
+    }
+
+    // Makes workDone the work done as of now, or as of the tracker reaching the block the transaction appeared in.
+    private void anchorToTracker() {
+        trackerWorkAnchor = depthTracker.getWork();
+        if (depthTracker.getHeight() < appearedAtChainHeight)
+            trackerWorkAnchor = trackerWorkAnchor.add(workDone);
+    }
+
+    /**
+     * Registers the watched depths not reached yet with the tracker. Returns true if the tracker moved past one of
+     * them while doing so, in which case nobody has been told about it yet.
+     */
+    private boolean watchDepthsWithTracker() {
+        if (watchedDepths == null || confidenceType != ConfidenceType.BUILDING)
+            return false;
+        // Depths reached already were announced by the change to BUILDING.
+        watchedDepths.headSet(getDepthInBlocks() + 1).clear();
+        boolean reached = false;
+        for (Iterator<Integer> it = watchedDepths.iterator(); it.hasNext(); ) {
+            if (!watchDepth(it.next())) {
+                it.remove();
+                reached = true;
+            }
+        }
+        return reached;
+    }
+
+    // Asks the tracker to say when the given depth is reached. Returns false, leaving it to the caller, if the
+    // tracker got there already, which can happen as the tracker is moved on under the wallet lock, not ours.
+    private boolean watchDepth(int watched) {
+        return depthTracker.watch(this, appearedAtChainHeight + watched - 1, watched);
+    }
+
+    /** Called by the depth tracker when the transaction may have reached a depth that was being waited for. */
+    void depthReached(int watched) {
+        synchronized (this) {
+            if (watchedDepths == null || !watchedDepths.contains(watched))
+                return;
+            if (confidenceType != ConfidenceType.BUILDING || depthTracker == null)
+                return;  // Registered again if it comes back into the best chain.
+            // The transaction may have been re-organized into a later block since this was registered.
+            if (getDepthInBlocks() < watched && watchDepth(watched))
+                return;
+            watchedDepths.headSet(getDepthInBlocks() + 1).clear();
+        }
+        queueListeners(Listener.ChangeReason.DEPTH);
     }
 
     /**
@@ -462,14 +576,26 @@ public class TransactionConfidence implements Serializable {
         if (getDepthInBlocks() >= depth) {
             result.set(transaction);
         }
-        addEventListener(new Listener() {
+        Listener listener = new Listener() {
             @Override public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
                 if (getDepthInBlocks() >= depth) {
                     removeEventListener(this);
                     result.set(transaction);
                 }
             }
-        }, executor);
+        };
+        addEventListener(listener, executor);
+        if (!result.isDone()) {
+            if (watchedDepths == null)
+                watchedDepths = new TreeSet<Integer>();
+            if (watchedDepths.add(depth) && depthTracker != null && confidenceType == ConfidenceType.BUILDING &&
+                    !watchDepth(depth)) {
+                // The tracker reached the depth since it was checked above.
+                watchedDepths.remove(depth);
+                removeEventListener(listener);
+                result.set(transaction);
+            }
+        }
         return result;
     }
 
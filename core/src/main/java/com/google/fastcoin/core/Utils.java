@@ -16,6 +16,7 @@
 
 package com.google.fastcoin.core;
 
+import com.google.fastcoin.crypto.HeaderScrypt;
 import com.google.common.base.Charsets;
 import com.google.common.primitives.UnsignedLongs;
 import com.lambdaworks.crypto.SCrypt;
@@ -27,6 +28,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -44,10 +47,24 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
  */
 public class Utils {
     public static final BigInteger NEGATIVE_ONE = BigInteger.valueOf(-1);
-    private static final MessageDigest digest;
-    static {
+
+    // Each thread gets its own SHA-256 engine so hashing blocks, transactions and message checksums from different
+    // threads (eg, the script verifiers in FullPrunedBlockChain and the network thread) never contend on a lock.
+    // The digests are only ever used inside the methods below and always reset before use, so re-entrancy on one
+    // thread is not a concern.
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newSha256Digest();
+        }
+    };
+
+    /**
+     * Returns a new SHA-256 {@link MessageDigest}. The returned object is not thread safe and should not be shared.
+     */
+    public static MessageDigest newSha256Digest() {
         try {
-            digest = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);  // Can't happen.
         }
@@ -196,15 +213,54 @@ public class Utils {
      * standard procedure in Fastcoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
+        byte[] out = new byte[32];
+        doubleDigest(input, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates the double SHA-256 hash of the given byte range and writes the 32 byte result into out starting at
+     * outOffset, without allocating any intermediate arrays.
+     */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input, offset, length);
+        finishDoubleDigest(digest, out, outOffset);
+    }
+
+    /**
+     * Calculates the double SHA-256 hash of the remaining bytes of the given buffer and writes the 32 byte result
+     * into out starting at outOffset. The buffer position is advanced to its limit.
+     */
+    public static void doubleDigest(ByteBuffer input, byte[] out, int outOffset) {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input);
+        finishDoubleDigest(digest, out, outOffset);
+    }
+
+    /**
+     * Finishes a double SHA-256 hash whose input has already been fed to the given digest, for instance piece by piece
+     * as it arrived, and writes the 32 byte result into out starting at outOffset. The digest is reset afterwards.
+     */
+    public static void finishDoubleDigest(MessageDigest digest, byte[] out, int outOffset) {
+        try {
+            digest.digest(out, outOffset, 32);
+            digest.update(out, outOffset, 32);
+            digest.digest(out, outOffset, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen, the output always has room for 32 bytes.
         }
     }
 
+    /**
+     * Calculates scrypt(input, input, 1024, 1, 1, 32), the proof of work function. Block headers go through the
+     * allocation free {@link HeaderScrypt}, anything else through the generic implementation.
+     */
     public static byte[] scryptDigest(byte[] input) {
+        if (input.length == HeaderScrypt.HEADER_LENGTH)
+            return HeaderScrypt.hash(input, 0);
     try {
         return SCrypt.scrypt(input, input, 1024, 1, 1, 32);
         } catch (Exception e) {
@@ -213,11 +269,10 @@ public class Utils {
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input, offset, length);
+        return digest.digest();
     }
 
     /**
@@ -225,13 +280,13 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        byte[] out = new byte[32];
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        finishDoubleDigest(digest, out, 0);
+        return out;
     }
 
     /**
@@ -268,6 +323,18 @@ public class Utils {
         return buf;
     }
     
+    /**
+     * Reverses the order of the given byte array in place and returns it.
+     */
+    public static byte[] reverseBytesInPlace(byte[] bytes) {
+        for (int i = 0, j = bytes.length - 1; i < j; i++, j--) {
+            byte tmp = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = tmp;
+        }
+        return bytes;
+    }
+
     /**
      * Returns a copy of the given byte array with the bytes of each double-word (4 bytes) reversed.
      * 
@@ -322,16 +389,14 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        MessageDigest sha = Utils.digest.get();
+        sha.reset();
+        byte[] sha256 = sha.digest(input);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
@@ -47,6 +47,7 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
@@ -133,11 +134,31 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     final Map<Sha256Hash, Transaction> transactions;
 
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
-    public ArrayList<ECKey> keychain;
+    // Always a KeyChainList, once readObject has wrapped one deserialized from the older format.
+    private ArrayList<ECKey> keychain;
+
+    // Indexes over the keychain by public key hash and by public key, so checking whether an output is ours doesn't
+    // scan every key. They're derived from the keychain: addKeys/removeKey keep them up to date, and they are rebuilt
+    // if the keychain was replaced or changed some other way.
+    @GuardedBy("lock") private transient HashMap<ByteBuffer, ECKey> keysByPubKeyHash;
+    @GuardedBy("lock") private transient HashMap<ByteBuffer, ECKey> keysByPubKey;
+    @GuardedBy("lock") private transient List<ECKey> indexedKeychain;
+    @GuardedBy("lock") private transient int indexedKeychainVersion;
 
     // A list of scripts watched by this wallet.
     private Set<Script> watchedScripts;
 
+    // Indexes over the unspent and pending pools of the outputs that pay to our keys and of those that pay to watched
+    // scripts, by transaction hash, so spend candidates and balances don't need every output of every transaction
+    // checked against the keychain. Transactions are added and removed as they move between pools. The indexes are
+    // rebuilt from the pools if they are null or the keychain or watched scripts changed since they were built.
+    @GuardedBy("lock") private transient Map<Sha256Hash, List<TransactionOutput>> myOutputs;
+    @GuardedBy("lock") private transient Map<Sha256Hash, List<TransactionOutput>> watchedOutputs;
+    @GuardedBy("lock") private transient List<ECKey> outputIndexKeychain;
+    @GuardedBy("lock") private transient int outputIndexKeychainVersion, outputIndexWatchedScriptsSize;
+    // Balances calculated since spent flags, confidences or pools last changed, or null if not asked for since.
+    @GuardedBy("lock") private transient BigInteger estimatedBalance, availableBalance, watchedBalance;
+
     private NetworkParameters params;
 
     @Nullable private Sha256Hash lastBlockSeenHash;
@@ -154,6 +175,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private transient HashSet<Sha256Hash> ignoreNextNewBlock;
+
+    // If set, the confidences of all transactions are attached to it, see setDepthOnDemand.
+    @GuardedBy("lock") @Nullable private transient ChainDepthTracker depthTracker;
+    // Whether depths are worked out on demand. The tracker can only start once the height of the chain is known.
+    @GuardedBy("lock") private transient boolean depthOnDemand;
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptRiskyTransactions;
 
@@ -194,7 +220,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     public Wallet(NetworkParameters params) {
         this.params = checkNotNull(params);
-        keychain = new ArrayList<ECKey>();
+        keychain = new KeyChainList();
         watchedScripts = Sets.newHashSet();
         unspent = new HashMap<Sha256Hash, Transaction>();
         spent = new HashMap<Sha256Hash, Transaction>();
@@ -229,6 +255,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        // Pending transactions we created become spendable once enough peers announce them.
+                        balancesChangedLocked();
                         checkBalanceFuturesLocked(null);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
@@ -281,7 +309,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            maybeRebuildKeyIndexesLocked();
+            if (!keychain.remove(key))
+                return false;
+            keysByPubKey.remove(ByteBuffer.wrap(key.getPubKey()));
+            keysByPubKeyHash.remove(ByteBuffer.wrap(key.getPubKeyHash()));
+            indexedKeychainVersion = keychainVersionLocked();
+            myOutputs = null;
+            return true;
         } finally {
             lock.unlock();
         }
@@ -300,12 +335,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Returns a snapshot of the keychain. This view is live.
+     * Returns a read only view of the keychain. This view is live. Use addKey[s] and removeKey to change it.
      */
     public List<ECKey> getKeychain() {
         lock.lock();
         try {
-            return keychain;
+            return Collections.unmodifiableList(keychain);
         } finally {
             lock.unlock();
         }
@@ -568,6 +603,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
+        // Wallets serialized before the keychain counted its changes hold a plain list.
+        if (!(keychain instanceof KeyChainList))
+            keychain = new KeyChainList(keychain);
         createTransientState();
     }
     
@@ -852,9 +890,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 tx = tmp;
         }
 
+        balancesChangedLocked();
         boolean wasPending = pending.remove(txHash) != null;
-        if (wasPending)
+        if (wasPending) {
+            unindexOutputsLocked(txHash);
             log.info("  <-pending");
+        }
 
         if (bestChain) {
             if (wasPending) {
@@ -917,7 +958,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
         //    listeners.
         if (!insideReorg && bestChain) {
-            BigInteger newBalance = getBalance();  // This is slow.
+            // The block appearance set above changed confidences.
+            balancesChangedLocked();
+            BigInteger newBalance = getBalance();
             log.info("Balance is now: " + fastcoinValueToFriendlyString(newBalance));
             if (!wasPending) {
                 int diff = valueDifference.compareTo(BigInteger.ZERO);
@@ -964,23 +1007,22 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             return;
         lock.lock();
         try {
+            // Confidence depths change, and with them which coinbases are mature.
+            balancesChangedLocked();
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their work done and depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // notify the tx confidence of work done twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                    tx.getConfidence().notifyWorkDone(block.getHeader());
-                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                }
+            if (depthTracker != null) {
+                // The confidences work out their new depth from the tracker, and those that reached a depth somebody
+                // is waiting for run their listeners.
+                depthTracker.notifyNewBestBlock(block);
+                ignoreNextNewBlock.clear();
+            } else {
+                notifyWorkDoneLocked(block);
+                // The depths are up to date with a block of known height now, so the tracker can take over.
+                if (depthOnDemand)
+                    startDepthTrackerLocked();
             }
 
             informConfidenceListenersIfNotReorganizing();
@@ -992,6 +1034,21 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    // Notify all the BUILDING transactions of the new block, so that they can update their work done and depth.
+    private void notifyWorkDoneLocked(StoredBlock block) throws VerificationException {
+        Set<Transaction> transactions = getTransactions(true);
+        for (Transaction tx : transactions) {
+            if (ignoreNextNewBlock.contains(tx.getHash())) {
+                // tx was already processed in receive() due to it appearing in this block, so we don't want to
+                // notify the tx confidence of work done twice, it'd result in miscounting.
+                ignoreNextNewBlock.remove(tx.getHash());
+            } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
+                tx.getConfidence().notifyWorkDone(block.getHeader());
+                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            }
+        }
+    }
+
     /**
      * Handle when a transaction becomes newly active on the best chain, either due to receiving a new block or a
      * re-org. Places the tx into the right pool, handles coinbase transactions, handles double-spends and so on.
@@ -1062,6 +1119,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     private void updateForSpends(Transaction tx, boolean fromChain) throws VerificationException {
         checkState(lock.isHeldByCurrentThread());
+        // Connecting inputs marks outputs as spent.
+        balancesChangedLocked();
         if (fromChain)
             checkState(!pending.containsKey(tx.getHash()));
         for (TransactionInput input : tx.getInputs()) {
@@ -1130,6 +1189,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         pending.remove(hash);
         unspent.remove(hash);
         spent.remove(hash);
+        unindexOutputsLocked(hash);
         addWalletTransaction(Pool.DEAD, coinbase);
         // TODO: Properly handle the recursive nature of killing transactions here.
     }
@@ -1141,6 +1201,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             log.warn("  <-pending ->dead   killed by {}", overridingTx.getHashAsString());
             log.warn("Disconnecting each input and moving connected transactions.");
             pending.remove(tx.getHash());
+            unindexOutputsLocked(tx.getHash());
             addWalletTransaction(Pool.DEAD, tx);
             for (TransactionInput deadInput : tx.getInputs()) {
                 Transaction connected = deadInput.getOutpoint().fromTx;
@@ -1163,6 +1224,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 }
             }
         }
+        balancesChangedLocked();
         // TODO: Recursively kill other transactions that were double spent.
     }
 
@@ -1178,6 +1240,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (log.isInfoEnabled()) {
                     log.info("  {} {} <-unspent ->spent", tx.getHashAsString(), context);
                 }
+                unindexOutputsLocked(tx.getHash());
                 spent.put(tx.getHash(), tx);
             }
         } else {
@@ -1186,6 +1249,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     log.info("  {} {} <-spent ->unspent", tx.getHashAsString(), context);
                 }
                 unspent.put(tx.getHash(), tx);
+                indexOutputsLocked(tx);
             }
         }
     }
@@ -1346,12 +1410,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
+            indexOutputsLocked(tx);
             break;
         case SPENT:
             checkState(spent.put(tx.getHash(), tx) == null);
             break;
         case PENDING:
             checkState(pending.put(tx.getHash(), tx) == null);
+            indexOutputsLocked(tx);
             break;
         case DEAD:
             checkState(dead.put(tx.getHash(), tx) == null);
@@ -1362,6 +1428,58 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
+        if (depthTracker != null)
+            tx.getConfidence().setDepthTracker(depthTracker);
+    }
+
+    /**
+     * <p>Sets whether the depth and work done of transactions in the best chain are worked out when asked for, from
+     * the height they appeared at and the current best block, instead of each confidence being updated for every
+     * new block. This makes handling a new block take the same time however many transactions the wallet has.</p>
+     *
+     * <p>While enabled, {@link TransactionConfidence} listeners and
+     * {@link WalletEventListener#onTransactionConfidenceChanged(Wallet, Transaction)} are no longer run with
+     * {@link TransactionConfidence.Listener.ChangeReason#DEPTH} for every block. Confidence listeners are only run
+     * when a transaction reaches a depth that a future from {@link TransactionConfidence#getDepthFuture(int)} is
+     * waiting for. The setting is not saved with the wallet.</p>
+     *
+     * <p>An old wallet that doesn't know the height of its last seen block, see {@link #getLastBlockSeenHeight()},
+     * has no height to count depths from. It keeps updating every confidence until the next block arrives, and works
+     * depths out on demand from then on.</p>
+     */
+    public void setDepthOnDemand(boolean enabled) {
+        lock.lock();
+        try {
+            if (enabled == depthOnDemand)
+                return;
+            depthOnDemand = enabled;
+            if (!enabled) {
+                depthTracker = null;
+                for (Transaction tx : transactions.values())
+                    tx.getConfidence().setDepthTracker(null);
+            } else if (getLastBlockSeenHeight() >= 0) {
+                startDepthTrackerLocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startDepthTrackerLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        depthTracker = new ChainDepthTracker(getLastBlockSeenHeight());
+        for (Transaction tx : transactions.values())
+            tx.getConfidence().setDepthTracker(depthTracker);
+    }
+
+    /** Returns whether depths are worked out when asked for, see {@link #setDepthOnDemand(boolean)}. */
+    public boolean isDepthOnDemand() {
+        lock.lock();
+        try {
+            return depthOnDemand;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -1435,6 +1553,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                myOutputs = null;
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -1461,6 +1580,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 removeEntriesAfterDate(pending, fromDate);
                 removeEntriesAfterDate(dead, fromDate);
             }
+            myOutputs = null;
         } finally {
             lock.unlock();
         }
@@ -1651,6 +1771,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
          */
         public CoinSelector coinSelector = null;
 
+        /**
+         * If not null, the inputs are signed on this executor, one task per input, instead of one by one on the
+         * thread completing the request. This is worth it for transactions with many inputs, especially for an
+         * encrypted wallet where every key has to be decrypted. Tasks must not wait on the wallet, which stays locked
+         * while they run. See {@link Transaction#signInputs(Transaction.SigHash, Wallet, KeyParameter, Executor)}.
+         */
+        public Executor signingExecutor = null;
+
         // Tracks if this has been passed to wallet.completeTx already: just a safety check.
         private boolean completed;
 
@@ -1905,8 +2033,6 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             //
             // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
             // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -1957,7 +2083,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             }
 
             // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs.
-            req.tx.signInputs(Transaction.SigHash.ALL, this, req.aesKey);
+            req.tx.signInputs(Transaction.SigHash.ALL, this, req.aesKey, req.signingExecutor);
 
             // Check size.
             int size = req.tx.fastcoinSerialize().length;
@@ -2037,8 +2163,6 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             //
             // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
             // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -2125,7 +2249,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public void sign(SendRequest sendRequest) {
         // Now sign the inputs, thus proving that we are entitled to redeem the connected outputs.
         try {
-            sendRequest.tx.signInputs(Transaction.SigHash.ALL, this, sendRequest.aesKey);
+            sendRequest.tx.signInputs(Transaction.SigHash.ALL, this, sendRequest.aesKey, sendRequest.signingExecutor);
         } catch (ScriptException e) {
             // If this happens it means an output script in a wallet tx could not be understood. That should never
             // happen, if it does it means the wallet has got into an inconsistent state.
@@ -2155,17 +2279,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public LinkedList<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
-            LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
-                // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    if (!output.isMine(this)) continue;
-                    candidates.add(output);
-                }
-            }
-            return candidates;
+            maybeRebuildOutputIndexesLocked();
+            return availableOutputsLocked(myOutputs, excludeImmatureCoinbases);
         } finally {
             lock.unlock();
         }
@@ -2179,26 +2294,80 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public LinkedList<TransactionOutput> getWatchedOutputs(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
-            LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    try {
-                        Script scriptPubKey = output.getScriptPubKey();
-                        if (!watchedScripts.contains(scriptPubKey)) continue;
-                        candidates.add(output);
-                    } catch (ScriptException e) {
-                        // Ignore
-                    }
-                }
-            }
-            return candidates;
+            maybeRebuildOutputIndexesLocked();
+            return availableOutputsLocked(watchedOutputs, excludeImmatureCoinbases);
         } finally {
             lock.unlock();
         }
     }
 
+    private static LinkedList<TransactionOutput> availableOutputsLocked(Map<Sha256Hash, List<TransactionOutput>> index,
+                                                                      boolean excludeImmatureCoinbases) {
+        LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
+        for (List<TransactionOutput> outputs : index.values()) {
+            // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
+            if (excludeImmatureCoinbases && !outputs.get(0).getParentTransaction().isMature()) continue;
+            for (TransactionOutput output : outputs) {
+                if (output.isAvailableForSpending())
+                    candidates.add(output);
+            }
+        }
+        return candidates;
+    }
+
+    private void maybeRebuildOutputIndexesLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        int keychainVersion = keychainVersionLocked();
+        if (myOutputs != null && outputIndexKeychain == keychain && outputIndexKeychainVersion == keychainVersion &&
+                outputIndexWatchedScriptsSize == watchedScripts.size())
+            return;
+        myOutputs = new LinkedHashMap<Sha256Hash, List<TransactionOutput>>();
+        watchedOutputs = new LinkedHashMap<Sha256Hash, List<TransactionOutput>>();
+        outputIndexKeychain = keychain;
+        outputIndexKeychainVersion = keychainVersion;
+        outputIndexWatchedScriptsSize = watchedScripts.size();
+        for (Transaction tx : Iterables.concat(unspent.values(), pending.values()))
+            indexOutputsLocked(tx);
+        balancesChangedLocked();
+    }
+
+    /** Called when tx has gone into the unspent or pending pool. */
+    private void indexOutputsLocked(Transaction tx) {
+        balancesChangedLocked();
+        if (myOutputs == null)
+            return;  // Will be rebuilt from the pools.
+        List<TransactionOutput> mine = null, watched = null;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (output.isMine(this)) {
+                if (mine == null) mine = new ArrayList<TransactionOutput>(2);
+                mine.add(output);
+            }
+            if (!watchedScripts.isEmpty() && output.isWatched(this)) {
+                if (watched == null) watched = new ArrayList<TransactionOutput>(2);
+                watched.add(output);
+            }
+        }
+        if (mine != null)
+            myOutputs.put(tx.getHash(), mine);
+        if (watched != null)
+            watchedOutputs.put(tx.getHash(), watched);
+    }
+
+    /** Called when the transaction with the given hash has left the unspent or pending pool. */
+    private void unindexOutputsLocked(Sha256Hash hash) {
+        balancesChangedLocked();
+        if (myOutputs == null)
+            return;
+        myOutputs.remove(hash);
+        watchedOutputs.remove(hash);
+    }
+
+    private void balancesChangedLocked() {
+        estimatedBalance = null;
+        availableBalance = null;
+        watchedBalance = null;
+    }
+
     /** Returns the address used for change outputs. Note: this will probably go away in future. */
     public Address getChangeAddress() {
         lock.lock();
@@ -2234,9 +2403,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             int added = 0;
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
+            maybeRebuildKeyIndexesLocked();
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()))) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2246,8 +2415,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     }
                 }
                 keychain.add(key);
+                indexKeyLocked(key);
+                indexedKeychainVersion = keychainVersionLocked();
                 added++;
             }
+            if (added > 0)
+                myOutputs = null;
             queueOnKeysAdded(keys);
             // Force an auto-save immediately rather than queueing one, as keys are too important to risk losing.
             saveNow();
@@ -2333,23 +2506,24 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * @return ECKey object or null if no such key was found.
      */
     @Nullable
-    public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
+    public ECKey findKeyFromPubHash(@Nullable byte[] pubkeyHash) {
+        if (pubkeyHash == null)
+            return null;
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
+            maybeRebuildKeyIndexesLocked();
+            return keysByPubKeyHash.get(ByteBuffer.wrap(pubkeyHash));
         } finally {
             lock.unlock();
         }
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.contains(key);
+            maybeRebuildKeyIndexesLocked();
+            return keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()));
         } finally {
             lock.unlock();
         }
@@ -2377,13 +2551,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * @return ECKey or null if no such key was found.
      */
     @Nullable
-    public ECKey findKeyFromPubKey(byte[] pubkey) {
+    public ECKey findKeyFromPubKey(@Nullable byte[] pubkey) {
+        if (pubkey == null)
+            return null;
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
+            maybeRebuildKeyIndexesLocked();
+            return keysByPubKey.get(ByteBuffer.wrap(pubkey));
         } finally {
             lock.unlock();
         }
@@ -2396,6 +2570,54 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return findKeyFromPubKey(pubkey) != null;
     }
 
+    private void maybeRebuildKeyIndexesLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        int keychainVersion = keychainVersionLocked();
+        if (indexedKeychain == keychain && indexedKeychainVersion == keychainVersion)
+            return;
+        keysByPubKeyHash = new HashMap<ByteBuffer, ECKey>(keychain.size() * 2);
+        keysByPubKey = new HashMap<ByteBuffer, ECKey>(keychain.size() * 2);
+        for (ECKey key : keychain)
+            indexKeyLocked(key);
+        indexedKeychain = keychain;
+        indexedKeychainVersion = keychainVersion;
+    }
+
+    // Returns a number that changes whenever the keychain is changed.
+    private int keychainVersionLocked() {
+        checkState(lock.isHeldByCurrentThread());
+        return ((KeyChainList) keychain).getVersion();
+    }
+
+    /**
+     * The list of keys in the keychain. It counts the changes made to it, so the key and output indexes notice
+     * whichever way the list was changed.
+     */
+    private static class KeyChainList extends ArrayList<ECKey> {
+        private static final long serialVersionUID = 1L;
+
+        KeyChainList() {
+        }
+
+        KeyChainList(Collection<? extends ECKey> keys) {
+            super(keys);
+        }
+
+        int getVersion() {
+            return modCount;
+        }
+    }
+
+    private void indexKeyLocked(ECKey key) {
+        // Keep the first of any duplicates, which is what a front to back scan of the keychain would find.
+        ByteBuffer pubKeyHash = ByteBuffer.wrap(key.getPubKeyHash());
+        if (!keysByPubKeyHash.containsKey(pubKeyHash))
+            keysByPubKeyHash.put(pubKeyHash, key);
+        ByteBuffer pubKey = ByteBuffer.wrap(key.getPubKey());
+        if (!keysByPubKey.containsKey(pubKey))
+            keysByPubKey.put(pubKey, key);
+    }
+
     /**
      * <p>It's possible to calculate a wallets balance from multiple points of view. This enum selects which
      * getBalance() should use.</p>
@@ -2434,13 +2656,23 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public BigInteger getBalance(BalanceType balanceType) {
         lock.lock();
         try {
+            // Rebuilding the output indexes forgets the balances, so do it before looking at them.
+            maybeRebuildOutputIndexesLocked();
             if (balanceType == BalanceType.AVAILABLE) {
-                return getBalance(coinSelector);
+                // Other selectors may look at more than the wallet, so their answers aren't kept.
+                if (coinSelector.getClass() != DefaultCoinSelector.class)
+                    return getBalance(coinSelector);
+                if (availableBalance == null)
+                    availableBalance = getBalance(coinSelector);
+                return availableBalance;
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                if (estimatedBalance == null) {
+                    LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
+                    BigInteger value = BigInteger.ZERO;
+                    for (TransactionOutput out : all) value = value.add(out.getValue());
+                    estimatedBalance = value;
+                }
+                return estimatedBalance;
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -2467,7 +2699,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     /** Returns the available balance, including any unspent balance at watched addresses */
     public BigInteger getWatchedBalance() {
-        return getWatchedBalance(coinSelector);
+        lock.lock();
+        try {
+            maybeRebuildOutputIndexesLocked();
+            if (coinSelector.getClass() != DefaultCoinSelector.class)
+                return getWatchedBalance(coinSelector);
+            if (watchedBalance == null)
+                watchedBalance = getWatchedBalance(coinSelector);
+            return watchedBalance;
+        } finally {
+            lock.unlock();
+        }
     }
 
      /**
@@ -2687,6 +2929,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                         oldChainTxns.add(tx);
                         unspent.remove(txHash);
                         spent.remove(txHash);
+                        unindexOutputsLocked(txHash);
                         checkState(!pending.containsKey(txHash));
                         checkState(!dead.containsKey(txHash));
                     }
@@ -2719,10 +2962,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 workDoneToSubtract = workDoneToSubtract.add(b.getHeader().getWork());
             }
             log.info("depthToSubtract = " + depthToSubtract + ", workDoneToSubtract = " + workDoneToSubtract);
-            // Remove depthToSubtract and workDoneToSubtract from all transactions in the wallet except for pending.
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, spent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, unspent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, dead.values());
+            if (depthTracker != null) {
+                // Confidences attached to the tracker lose the depth and work done along with it.
+                depthTracker.rewind(splitPoint.getHeight(), workDoneToSubtract);
+            } else {
+                // Remove depthToSubtract and workDoneToSubtract from all transactions in the wallet except for pending.
+                subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, spent.values());
+                subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, unspent.values());
+                subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, dead.values());
+            }
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
@@ -2744,6 +2992,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 notifyNewBestBlock(block);
             }
             checkState(isConsistent());
+            balancesChangedLocked();
             final BigInteger balance = getBalance();
             log.info("post-reorg balance is {}", Utils.fastcoinValueToFriendlyString(balance));
             // Inform event listeners that a re-org took place.
@@ -2925,7 +3174,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkNotNull(keyCrypter);
             checkState(getEncryptionType() == EncryptionType.UNENCRYPTED, "Wallet is already encrypted");
             // Create a new arraylist that will contain the encrypted keys
-            ArrayList<ECKey> encryptedKeyChain = new ArrayList<ECKey>();
+            ArrayList<ECKey> encryptedKeyChain = new KeyChainList();
             for (ECKey key : keychain) {
                 if (key.isEncrypted()) {
                     // Key is already encrypted - add as is.
@@ -2957,6 +3206,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            maybeRebuildKeyIndexesLocked();
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
@@ -2983,7 +3233,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkNotNull(keyCrypter);
 
             // Create a new arraylist that will contain the decrypted keys
-            ArrayList<ECKey> decryptedKeyChain = new ArrayList<ECKey>();
+            ArrayList<ECKey> decryptedKeyChain = new KeyChainList();
 
             for (ECKey key : keychain) {
                 // Decrypt the key.
@@ -2998,6 +3248,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            maybeRebuildKeyIndexesLocked();
 
             // The wallet is now unencrypted.
             keyCrypter = null;
@@ -3234,10 +3485,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
         lock.lock();
         try {
+            List<byte[]> elements = new ArrayList<byte[]>(keychain.size() * 2);
             for (ECKey key : keychain) {
-                filter.insert(key.getPubKey());
-                filter.insert(key.getPubKeyHash());
+                elements.add(key.getPubKey());
+                elements.add(key.getPubKeyHash());
             }
+            filter.insertAll(elements);
 
             for (Script script : watchedScripts) {
                 for (ScriptChunk chunk : script.getChunks()) {
@@ -3252,19 +3505,21 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         } finally {
             lock.unlock();
         }
+        List<byte[]> outPoints = new ArrayList<byte[]>();
         for (Transaction tx : getTransactions(false)) {
             for (int i = 0; i < tx.getOutputs().size(); i++) {
                 TransactionOutput out = tx.getOutputs().get(i);
                 try {
                     if (isTxOutputBloomFilterable(out)) {
                         TransactionOutPoint outPoint = new TransactionOutPoint(params, i, tx);
-                        filter.insert(outPoint.fastcoinSerialize());
+                        outPoints.add(outPoint.fastcoinSerialize());
                     }
                 } catch (ScriptException e) {
                     throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
                 }
             }
         }
+        filter.insertAll(outPoints);
 
         return filter;
     }
@@ -3294,6 +3549,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            balancesChangedLocked();
         } finally {
             lock.unlock();
         }
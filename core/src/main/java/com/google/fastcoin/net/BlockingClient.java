@@ -16,6 +16,7 @@
 
 package com.google.fastcoin.net;
 
+import com.google.fastcoin.utils.Threading;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
@@ -27,6 +28,8 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -46,6 +49,18 @@ public class BlockingClient implements MessageWriteTarget {
     private final ByteBuffer dbuf;
     private Socket socket;
     private volatile boolean vCloseRequested = false;
+    // A lock rather than synchronized, as a virtual thread blocked in a synchronized block holds on to its carrier.
+    private final ReentrantLock writeLock = Threading.lock("BlockingClient");
+
+    // Used when no ThreadFactory is given: a daemon platform thread per connection.
+    private static final ThreadFactory DEFAULT_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread t = new Thread(runnable);
+            t.setDaemon(true);
+            return t;
+        }
+    };
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamParser} to decode the data.
@@ -61,12 +76,24 @@ public class BlockingClient implements MessageWriteTarget {
      */
     public BlockingClient(final SocketAddress serverAddress, final StreamParser parser,
                           final int connectTimeoutMillis, final SocketFactory socketFactory, @Nullable final Set<BlockingClient> clientSet) throws IOException {
+        this(serverAddress, parser, connectTimeoutMillis, socketFactory, clientSet, null);
+    }
+
+    /**
+     * <p>Creates a new client like {@link #BlockingClient(SocketAddress, StreamParser, int, SocketFactory, Set)}, whose
+     * network event processing thread is created by the given factory, for instance to run it on a virtual thread. If
+     * threadFactory is null a daemon thread is created.</p>
+     */
+    public BlockingClient(final SocketAddress serverAddress, final StreamParser parser,
+                          final int connectTimeoutMillis, final SocketFactory socketFactory, @Nullable final Set<BlockingClient> clientSet,
+                          @Nullable ThreadFactory threadFactory) throws IOException {
         // Try to fit at least one message in the network buffer, but place an upper and lower limit on its size to make
-        // sure it doesnt get too large or have to call read too often.
-        dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        // sure it doesnt get too large or have to call read too often. The socket is read straight into its backing
+        // array, so no second buffer is needed.
+        dbuf = ByteBuffer.allocate(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         parser.setWriteTarget(this);
         socket = socketFactory.createSocket();
-        Thread t = new Thread() {
+        Runnable runnable = new Runnable() {
             @Override
             public void run() {
                 if (clientSet != null)
@@ -75,15 +102,14 @@ public class BlockingClient implements MessageWriteTarget {
                     socket.connect(serverAddress, connectTimeoutMillis);
                     parser.connectionOpened();
                     InputStream stream = socket.getInputStream();
-                    byte[] readBuff = new byte[dbuf.capacity()];
 
                     while (true) {
-                        // TODO Kill the message duplication here
-                        checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
-                        int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
+                        checkState(dbuf.remaining() > 0);
+                        int read = stream.read(dbuf.array(), dbuf.arrayOffset() + dbuf.position(),
+                                Math.max(1, Math.min(dbuf.remaining(), stream.available())));
                         if (read == -1)
                             return;
-                        dbuf.put(readBuff, 0, read);
+                        dbuf.position(dbuf.position() + read);
                         // "flip" the buffer - setting the limit to the current position and setting position to 0
                         dbuf.flip();
                         // Use parser.receiveBytes's return value as a double-check that it stopped reading at the right
@@ -109,8 +135,8 @@ public class BlockingClient implements MessageWriteTarget {
                 }
             }
         };
+        Thread t = (threadFactory != null ? threadFactory : DEFAULT_THREAD_FACTORY).newThread(runnable);
         t.setName("BlockingClient network thread for " + serverAddress);
-        t.setDaemon(true);
         t.start();
     }
 
@@ -129,7 +155,8 @@ public class BlockingClient implements MessageWriteTarget {
     }
 
     @Override
-    public synchronized void writeBytes(byte[] message) throws IOException {
+    public void writeBytes(byte[] message) throws IOException {
+        writeLock.lock();
         try {
             OutputStream stream = socket.getOutputStream();
             stream.write(message);
@@ -138,6 +165,8 @@ public class BlockingClient implements MessageWriteTarget {
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
+        } finally {
+            writeLock.unlock();
         }
     }
 }
@@ -18,6 +18,7 @@ package com.google.fastcoin.net;
 
 import com.google.common.util.concurrent.AbstractIdleService;
 
+import javax.annotation.Nullable;
 import javax.net.SocketFactory;
 import java.io.IOException;
 import java.net.SocketAddress;
@@ -25,6 +26,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -40,6 +42,7 @@ public class BlockingClientManager extends AbstractIdleService implements Client
     private final Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
 
     private int connectTimeoutMillis = 1000;
+    @Nullable private volatile ThreadFactory threadFactory;
 
     public BlockingClientManager() {
         socketFactory = SocketFactory.getDefault();
@@ -58,7 +61,7 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         if (!isRunning())
             throw new IllegalStateException();
         try {
-            new BlockingClient(serverAddress, parser, connectTimeoutMillis, socketFactory, clients);
+            new BlockingClient(serverAddress, parser, connectTimeoutMillis, socketFactory, clients, threadFactory);
         } catch (IOException e) {
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
         }
@@ -69,6 +72,14 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         this.connectTimeoutMillis = connectTimeoutMillis;
     }
 
+    /**
+     * Sets the factory used to create the thread of each new connection, or null for a daemon thread per connection.
+     * See {@link VirtualThreadClientManager} for running connections on virtual threads.
+     */
+    public void setThreadFactory(@Nullable ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
     @Override
     protected void startUp() throws Exception { }
 
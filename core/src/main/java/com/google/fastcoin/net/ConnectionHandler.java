@@ -28,9 +28,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -49,6 +48,13 @@ class ConnectionHandler implements MessageWriteTarget {
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
 
+    // Messages up to this size that have to wait are copied into a shared buffer of COALESCE_BUFFER_SIZE bytes rather
+    // than queued one by one, so a backlog of invs, pings and the like goes out in a few large writes.
+    private static final int COALESCE_MESSAGE_SIZE = 1024;
+    private static final int COALESCE_BUFFER_SIZE = 16 * 1024;
+    // The most buffers handed to a single gathering write.
+    private static final int MAX_GATHER_BUFFERS = 64;
+
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
@@ -59,7 +65,12 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private final ArrayDeque<ByteBuffer> bytesToWrite = new ArrayDeque<ByteBuffer>();
+    // The last buffer in bytesToWrite if small messages may still be appended to it, otherwise null.
+    @GuardedBy("lock") private ByteBuffer coalesceBuff;
+    @GuardedBy("lock") private final ByteBuffer[] gatherBuffs = new ByteBuffer[MAX_GATHER_BUFFERS];
+    // Whether OP_WRITE is in our interest set, so we only touch the key and wake the selector when that changes.
+    @GuardedBy("lock") private boolean writeOpsSet = false;
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -101,53 +112,104 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @GuardedBy("lock")
     private void setWriteOps() {
+        if (writeOpsSet)
+            return;
         // Make sure we are registered to get updated when writing is available again
         key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        writeOpsSet = true;
         // Refresh the selector to make sure it gets the new interestOps
         key.selector().wakeup();
     }
 
+    @GuardedBy("lock")
+    private void clearWriteOps() {
+        if (!writeOpsSet)
+            return;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        writeOpsSet = false;
+        // Don't bother waking up the selector here, since we're just removing an op, not adding
+    }
+
     // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
-                    break;
-                }
-            }
-            // If we are done writing, clear the OP_WRITE interestOps
-            if (bytesToWrite.isEmpty())
-                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-            // Don't bother waking up the selector here, since we're just removing an op, not adding
+            writeQueuedBytes();
         } finally {
             lock.unlock();
         }
     }
 
+    // Pushes as much of the outbound queue as possible into the OS' network buffer, several buffers per system call.
+    @GuardedBy("lock")
+    private void writeQueuedBytes() throws IOException {
+        while (!bytesToWrite.isEmpty()) {
+            int count = 0;
+            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
+            while (count < MAX_GATHER_BUFFERS && bytesIterator.hasNext())
+                gatherBuffs[count++] = bytesIterator.next();
+            long written = channel.write(gatherBuffs, 0, count);
+            bytesToWriteRemaining -= written;
+            while (!bytesToWrite.isEmpty() && !bytesToWrite.peekFirst().hasRemaining()) {
+                if (bytesToWrite.pollFirst() == coalesceBuff)
+                    coalesceBuff = null;
+            }
+            if (written == 0 || !bytesToWrite.isEmpty() && count < MAX_GATHER_BUFFERS)
+                break;  // The OS buffer is full.
+        }
+        for (int i = 0; i < MAX_GATHER_BUFFERS; i++)
+            gatherBuffs[i] = null;
+        if (bytesToWrite.isEmpty())
+            clearWriteOps();  // We are done writing
+        else
+            setWriteOps();  // Make sure we hear about it when there is room again
+    }
+
+    @GuardedBy("lock")
+    private void queueBytes(byte[] message) {
+        if (message.length <= COALESCE_MESSAGE_SIZE) {
+            if (coalesceBuff != null && coalesceBuff.capacity() - coalesceBuff.limit() >= message.length) {
+                // The buffer is in read mode, so append past its limit and then move the limit up.
+                int limit = coalesceBuff.limit();
+                System.arraycopy(message, 0, coalesceBuff.array(), coalesceBuff.arrayOffset() + limit, message.length);
+                coalesceBuff.limit(limit + message.length);
+                return;
+            }
+            coalesceBuff = ByteBuffer.allocate(COALESCE_BUFFER_SIZE);
+            coalesceBuff.put(message).flip();
+            bytesToWrite.offer(coalesceBuff);
+        } else {
+            // We own the array now, so there's no need to copy it.
+            coalesceBuff = null;
+            bytesToWrite.offer(ByteBuffer.wrap(message));
+        }
+    }
+
     @Override
     public void writeBytes(byte[] message) throws IOException {
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
-            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
+            // thus we have to buffer outbound messages sometimes. If nothing is queued we write straight away from
+            // the calling thread, which usually sends the whole message without involving the selector at all.
+            // Whatever doesn't fit goes on a queue of ByteBuffers, and we register our SelectionKey to wakeup when we
+            // have free outbound buffer space available.
 
             if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
-            setWriteOps();
+            if (bytesToWrite.isEmpty() && channel.isConnected()) {
+                ByteBuffer buff = ByteBuffer.wrap(message);
+                channel.write(buff);
+                if (buff.hasRemaining()) {
+                    bytesToWrite.offer(buff);
+                    bytesToWriteRemaining += buff.remaining();
+                    setWriteOps();
+                }
+            } else {
+                queueBytes(message);
+                bytesToWriteRemaining += message.length;
+                setWriteOps();
+            }
         } catch (IOException e) {
             lock.unlock();
             log.error("Error writing message to connection, closing connection", e);
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.net;
+
+import com.google.fastcoin.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link StreamParser} that hands the bytes it receives to another parser on an {@link Executor}, so that decoding
+ * and processing messages doesn't hold up the network thread that read them. Many of these can share one executor:
+ * the bytes and events of each connection are handed over strictly in order and never to two threads at once.</p>
+ *
+ * <p>If the executor falls too far behind on a connection, the network thread waits for it to catch up rather than
+ * buffering without limit, so a slow connection can still stall others on the same network thread at worst as much
+ * as it would without this class.</p>
+ */
+class ExecutorStreamParser implements StreamParser, Runnable {
+    private static final Logger log = LoggerFactory.getLogger(ExecutorStreamParser.class);
+
+    // Same bounds as ConnectionHandler uses for its read buffer.
+    private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
+    private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
+
+    // How many received bytes may wait for the executor before the network thread has to wait too.
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    private static final Object CONNECTION_OPENED = new Object();
+    private static final Object CONNECTION_CLOSED = new Object();
+
+    private final StreamParser parser;
+    private final Executor executor;
+
+    private final ReentrantLock lock = Threading.lock("ExecutorStreamParser");
+    private final Condition drained = lock.newCondition();
+    // Chunks of received bytes and the CONNECTION_ markers, in the order they happened.
+    @GuardedBy("lock") private final ArrayDeque<Object> pending = new ArrayDeque<Object>();
+    @GuardedBy("lock") private long pendingBytes;
+    @GuardedBy("lock") private boolean scheduled;
+    @GuardedBy("lock") private boolean closed;
+    // The thread draining the queue, if any. It can't wait for itself to catch up.
+    @GuardedBy("lock") private Thread drainingThread;
+
+    private volatile MessageWriteTarget writeTarget;
+
+    // Only touched by the single task draining the queue at any time.
+    private final ByteBuffer buff;
+    private boolean failed;
+
+    ExecutorStreamParser(StreamParser parser, Executor executor) {
+        this.parser = checkNotNull(parser);
+        this.executor = checkNotNull(executor);
+        buff = ByteBuffer.allocate(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+    }
+
+    @Override
+    public void connectionOpened() {
+        enqueue(CONNECTION_OPENED, 0);
+    }
+
+    @Override
+    public void connectionClosed() {
+        enqueue(CONNECTION_CLOSED, 0);
+    }
+
+    @Override
+    public int receiveBytes(ByteBuffer in) {
+        byte[] chunk = new byte[in.remaining()];
+        in.get(chunk);
+        enqueue(chunk, chunk.length);
+        return in.position();
+    }
+
+    @Override
+    public void setWriteTarget(MessageWriteTarget writeTarget) {
+        this.writeTarget = writeTarget;
+        parser.setWriteTarget(writeTarget);
+    }
+
+    @Override
+    public int getMaxMessageSize() {
+        return parser.getMaxMessageSize();
+    }
+
+    private void enqueue(Object item, int bytes) {
+        boolean schedule;
+        lock.lock();
+        try {
+            if (item == CONNECTION_CLOSED)
+                closed = true;
+            // Wait for the executor to catch up, unless it is our own thread or the connection is going away anyway.
+            while (pendingBytes > MAX_PENDING_BYTES && !closed && drainingThread != Thread.currentThread()) {
+                try {
+                    drained.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            pending.offer(item);
+            pendingBytes += bytes;
+            schedule = !scheduled;
+            scheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        if (schedule)
+            executor.execute(this);
+    }
+
+    // Drains the queue on the executor. Only one instance of this runs at a time, as it is only scheduled when the
+    // previous one has found the queue empty.
+    @Override
+    public void run() {
+        boolean emptied = false;
+        try {
+            while (true) {
+                Object item;
+                lock.lock();
+                try {
+                    item = pending.poll();
+                    if (item == null) {
+                        scheduled = false;
+                        drainingThread = null;
+                        emptied = true;
+                        return;
+                    }
+                    drainingThread = Thread.currentThread();
+                    if (item instanceof byte[]) {
+                        pendingBytes -= ((byte[]) item).length;
+                        drained.signalAll();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                dispatch(item);
+            }
+        } finally {
+            if (!emptied)
+                abandon();
+        }
+    }
+
+    private void dispatch(Object item) {
+        try {
+            if (item == CONNECTION_OPENED)
+                parser.connectionOpened();
+            else if (item == CONNECTION_CLOSED)
+                parser.connectionClosed();
+            else if (!failed)
+                feed((byte[]) item);
+        } catch (Exception e) {
+            log.error("Error handling connection event, closing connection", e);
+            fail();
+        }
+    }
+
+    // Called when something other than an Exception escaped the parser. The connection is closed and the bytes still
+    // queued are dropped, so that neither the next event nor a network thread waiting for the queue to drain is left
+    // waiting for a task that has gone.
+    private void abandon() {
+        failed = true;
+        boolean reschedule;
+        lock.lock();
+        try {
+            for (Iterator<Object> it = pending.iterator(); it.hasNext(); )
+                if (it.next() instanceof byte[])
+                    it.remove();
+            pendingBytes = 0;
+            drained.signalAll();
+            drainingThread = null;
+            reschedule = !pending.isEmpty();
+            scheduled = reschedule;
+        } finally {
+            lock.unlock();
+        }
+        closeConnection();
+        if (reschedule)
+            executor.execute(this);
+    }
+
+    private void fail() {
+        failed = true;
+        closeConnection();
+    }
+
+    private void closeConnection() {
+        MessageWriteTarget target = writeTarget;
+        if (target != null)
+            target.closeConnection();
+    }
+
+    // Hands the chunk to the parser with the same buffer conventions ConnectionHandler uses for its read buffer.
+    private void feed(byte[] chunk) {
+        try {
+            int offset = 0;
+            while (offset < chunk.length) {
+                int count = Math.min(buff.remaining(), chunk.length - offset);
+                buff.put(chunk, offset, count);
+                offset += count;
+                buff.flip();
+                int bytesConsumed = parser.receiveBytes(buff);
+                if (bytesConsumed < 0 || buff.position() != bytesConsumed)
+                    throw new IllegalStateException("Parser consumed " + bytesConsumed + " bytes, buffer is at " + buff.position());
+                buff.compact();
+            }
+        } catch (Exception e) {
+            log.error("Error processing received bytes, closing connection", e);
+            fail();
+        }
+    }
+}
@@ -23,7 +23,8 @@ import java.io.IOException;
  */
 public interface MessageWriteTarget {
     /**
-     * Writes the given bytes to the remote server.
+     * Writes the given bytes to the remote server. The array may be queued as is until it has been sent, so the caller
+     * must not modify it afterwards.
      */
     void writeBytes(byte[] message) throws IOException;
     /**
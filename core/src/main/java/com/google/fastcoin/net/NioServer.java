@@ -20,7 +20,9 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -28,6 +30,7 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
+import java.util.concurrent.Executor;
 
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamParser} to
@@ -63,7 +66,30 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress) throws IOException {
-        this.parserFactory = parserFactory;
+        this(parserFactory, bindAddress, null);
+    }
+
+    /**
+     * Creates a new server like {@link #NioServer(StreamParserFactory, InetSocketAddress)}, which hands received bytes
+     * to the given executor for decoding and processing instead of doing that on its selector thread. Each client's
+     * bytes are still processed one at a time and in order.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress,
+                     @Nullable final Executor processingExecutor) throws IOException {
+        if (processingExecutor == null) {
+            this.parserFactory = parserFactory;
+        } else {
+            this.parserFactory = new StreamParserFactory() {
+                @Nullable
+                @Override
+                public StreamParser getNewParser(InetAddress inetAddress, int port) {
+                    StreamParser parser = parserFactory.getNewParser(inetAddress, port);
+                    return parser == null ? null : new ExecutorStreamParser(parser, processingExecutor);
+                }
+            };
+        }
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
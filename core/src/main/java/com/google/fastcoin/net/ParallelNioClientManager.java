@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.net;
+
+import com.google.fastcoin.utils.Threading;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.Nullable;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link ClientConnectionManager} that spreads its connections over several {@link NioClientManager}s, each with
+ * its own selector thread, so that network I/O for many peers can use more than one core.</p>
+ *
+ * <p>Optionally, decoding and processing of received messages can be moved off the selector threads onto a separate
+ * pool of processing threads. Messages from any one connection are still processed one at a time and in the order
+ * they were received, but a connection that is busy parsing a large block no longer holds up reading from the
+ * others.</p>
+ *
+ * <p>Use it anywhere a {@link NioClientManager} would be used, for instance by passing it to
+ * {@link com.google.fastcoin.core.PeerGroup#PeerGroup(com.google.fastcoin.core.NetworkParameters,
+ * com.google.fastcoin.core.AbstractBlockChain, ClientConnectionManager)}.</p>
+ */
+public class ParallelNioClientManager extends AbstractIdleService implements ClientConnectionManager {
+    private final NioClientManager[] managers;
+    private final AtomicInteger nextManager = new AtomicInteger();
+    @Nullable private final ExecutorService processingExecutor;
+
+    /**
+     * Creates a manager with the given number of selector threads that processes messages on the selector threads,
+     * like {@link NioClientManager}.
+     */
+    public ParallelNioClientManager(int selectorThreads) {
+        this(selectorThreads, 0);
+    }
+
+    /**
+     * Creates a manager with the given number of selector threads, which hand received bytes to a pool of the given
+     * number of threads for decoding and processing. If processingThreads is 0, messages are processed on the
+     * selector threads.
+     */
+    public ParallelNioClientManager(int selectorThreads, int processingThreads) {
+        checkArgument(selectorThreads > 0);
+        checkArgument(processingThreads >= 0);
+        managers = new NioClientManager[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++)
+            managers[i] = new NioClientManager();
+        processingExecutor = processingThreads == 0 ? null : createProcessingExecutor(processingThreads);
+    }
+
+    private static ExecutorService createProcessingExecutor(int threads) {
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Message processor %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), builder.build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public void openConnection(SocketAddress serverAddress, StreamParser parser) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        if (processingExecutor != null)
+            parser = new ExecutorStreamParser(parser, processingExecutor);
+        // Connections are long lived and come and go slowly, so handing them out in turn keeps the load even enough.
+        int index = (nextManager.getAndIncrement() & Integer.MAX_VALUE) % managers.length;
+        managers[index].openConnection(serverAddress, parser);
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        for (NioClientManager manager : managers)
+            manager.startAndWait();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        for (NioClientManager manager : managers)
+            manager.stopAndWait();
+        // Let the connectionClosed() calls queued by the managers run before the threads go away.
+        if (processingExecutor != null) {
+            processingExecutor.shutdown();
+            processingExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public int getConnectedClientCount() {
+        int count = 0;
+        for (NioClientManager manager : managers)
+            count += manager.getConnectedClientCount();
+        return count;
+    }
+
+    @Override
+    public void closeConnections(int n) {
+        while (n-- > 0) {
+            // Close from whichever selector thread is busiest.
+            NioClientManager busiest = null;
+            int busiestCount = 0;
+            for (NioClientManager manager : managers) {
+                int count = manager.getConnectedClientCount();
+                if (count > busiestCount) {
+                    busiest = manager;
+                    busiestCount = count;
+                }
+            }
+            if (busiest == null)
+                return;
+            busiest.closeConnections(1);
+        }
+    }
+}
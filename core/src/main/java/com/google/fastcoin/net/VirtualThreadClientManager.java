@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.net;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.net.SocketFactory;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>A {@link BlockingClientManager} that runs each connection on a virtual thread, when the JVM supports them (Java 21
+ * and later, or earlier versions with preview features enabled). A virtual thread blocked reading its socket costs a
+ * few kilobytes rather than a whole platform thread stack, so this can hold many thousands of connections open, while
+ * keeping the simple blocking model and its support for proxies and custom socket factories.</p>
+ *
+ * <p>On older JVMs it behaves exactly like a {@link BlockingClientManager}, with a platform thread per connection. Use
+ * {@link #isUsingVirtualThreads()} to find out which.</p>
+ */
+public class VirtualThreadClientManager extends BlockingClientManager {
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadClientManager.class);
+
+    @Nullable private static final ThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+
+    private final boolean usingVirtualThreads;
+
+    public VirtualThreadClientManager() {
+        this(SocketFactory.getDefault());
+    }
+
+    /**
+     * Creates a client manager that will obtain sockets from the given factory, like
+     * {@link BlockingClientManager#BlockingClientManager(SocketFactory)}.
+     */
+    public VirtualThreadClientManager(SocketFactory socketFactory) {
+        super(socketFactory);
+        usingVirtualThreads = VIRTUAL_THREAD_FACTORY != null;
+        if (usingVirtualThreads)
+            setThreadFactory(VIRTUAL_THREAD_FACTORY);
+        else
+            log.info("Virtual threads are not available, using a platform thread per connection");
+    }
+
+    /** Returns true if connections run on virtual threads, false if this JVM doesn't support them. */
+    public boolean isUsingVirtualThreads() {
+        return usingVirtualThreads;
+    }
+
+    // Equivalent to Thread.ofVirtual().factory(), looked up reflectively so we still build and run on older JVMs.
+    @Nullable
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            // Call through the public interface, the builder's own class isn't accessible to us.
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (NoSuchMethodException e) {
+            return null;  // Before Java 19.
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            // Java 19 and 20 throw UnsupportedOperationException unless preview features are enabled.
+            log.debug("Could not create virtual thread factory", e);
+            return null;
+        }
+    }
+}
@@ -30,6 +30,7 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.concurrent.Executor;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -49,6 +50,8 @@ public class PaymentChannelServerListener {
 
     private NioServer server;
     private final int timeoutSeconds;
+    // Where client messages are processed, or null to process them on the server's network thread.
+    @Nullable private final Executor processingExecutor;
 
     /**
      * A factory which generates connection-specific event handlers.
@@ -141,7 +144,7 @@ public class PaymentChannelServerListener {
             public ProtobufParser getNewParser(InetAddress inetAddress, int port) {
                 return new ServerHandler(new InetSocketAddress(inetAddress, port), timeoutSeconds).socketProtobufHandler;
             }
-        }, new InetSocketAddress(port));
+        }, new InetSocketAddress(port), processingExecutor);
         server.startAndWait();
     }
 
@@ -161,11 +164,28 @@ public class PaymentChannelServerListener {
     public PaymentChannelServerListener(TransactionBroadcaster broadcaster, Wallet wallet,
                                         final int timeoutSeconds, BigInteger minAcceptedChannelSize,
                                         HandlerFactory eventHandlerFactory) throws IOException {
+        this(broadcaster, wallet, timeoutSeconds, minAcceptedChannelSize, eventHandlerFactory, null);
+    }
+
+    /**
+     * Sets up a new payment channel server like
+     * {@link #PaymentChannelServerListener(TransactionBroadcaster, Wallet, int, BigInteger, HandlerFactory)}, which
+     * processes the messages of its clients on the given executor instead of on its network thread, see
+     * {@link NioServer#NioServer(StreamParserFactory, InetSocketAddress, Executor)}. Each client's messages are still
+     * processed one at a time and in order.
+     *
+     * @param processingExecutor The executor to process client messages on, or null to use the network thread.
+     */
+    public PaymentChannelServerListener(TransactionBroadcaster broadcaster, Wallet wallet,
+                                        final int timeoutSeconds, BigInteger minAcceptedChannelSize,
+                                        HandlerFactory eventHandlerFactory, @Nullable Executor processingExecutor)
+            throws IOException {
         this.wallet = checkNotNull(wallet);
         this.broadcaster = checkNotNull(broadcaster);
         this.eventHandlerFactory = checkNotNull(eventHandlerFactory);
         this.minAcceptedChannelSize = checkNotNull(minAcceptedChannelSize);
         this.timeoutSeconds = timeoutSeconds;
+        this.processingExecutor = processingExecutor;
     }
 
     /**
@@ -589,7 +589,7 @@ public class Script {
         return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
     }
     
-    private static void executeScript(Transaction txContainingThis, long index,
+    private static void executeScript(SigHashCache txSigHashes, long index,
                                       Script script, LinkedList<byte[]> stack) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
@@ -1067,11 +1067,11 @@ public class Script {
                     break;
                 case OP_CHECKSIG:
                 case OP_CHECKSIGVERIFY:
-                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode);
+                    executeCheckSig(txSigHashes, (int) index, script, stack, lastCodeSepLocation, opcode);
                     break;
                 case OP_CHECKMULTISIG:
                 case OP_CHECKMULTISIGVERIFY:
-                    opCount = executeMultiSig(txContainingThis, (int) index, script, stack, opCount, lastCodeSepLocation, opcode);
+                    opCount = executeMultiSig(txSigHashes, (int) index, script, stack, opCount, lastCodeSepLocation, opcode);
                     break;
                 case OP_NOP1:
                 case OP_NOP2:
@@ -1098,7 +1098,7 @@ public class Script {
             throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckSig(SigHashCache txSigHashes, int index, Script script, LinkedList<byte[]> stack,
                                         int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
@@ -1127,7 +1127,7 @@ public class Script {
         boolean sigValid = false;
         try {
             TransactionSignature sig  = TransactionSignature.decodeFromBitcoin(sigBytes, false);
-            Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+            Sha256Hash hash = txSigHashes.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
             sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -1142,7 +1142,7 @@ public class Script {
                 throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(SigHashCache txSigHashes, int index, Script script, LinkedList<byte[]> stack,
                                        int opCount, int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
@@ -1197,7 +1197,7 @@ public class Script {
             // more expensive than hashing, its not a big deal.
             try {
                 TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), false);
-                Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+                Sha256Hash hash = txSigHashes.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
                 if (ECKey.verify(hash.getBytes(), sig, pubKey))
                     sigs.pollFirst();
             } catch (Exception e) {
@@ -1233,23 +1233,32 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 boolean enforceP2SH) throws ScriptException {
-        // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
-        // the tx half broken (also it's not so thread safe to work on it directly.
-        try {
-            txContainingThis = new Transaction(txContainingThis.getParams(), txContainingThis.fastcoinSerialize());
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
-        }
+        // Work on a snapshot of the transaction, it's not so thread safe to work on it directly.
+        correctlySpends(new SigHashCache(txContainingThis), scriptSigIndex, scriptPubKey, enforceP2SH);
+    }
+
+    /**
+     * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey, like
+     * {@link #correctlySpends(Transaction, long, Script, boolean)} but with the signature hashes of the transaction
+     * coming from the given cache. Use this when verifying several inputs of the same transaction, the cache can be
+     * shared between them.
+     * @param txSigHashes The signature hashes of the transaction in which this input scriptSig resides.
+     * @param scriptSigIndex The index in the transaction of the scriptSig (note: NOT the index of the scriptPubKey).
+     * @param scriptPubKey The connected scriptPubKey containing the conditions needed to claim the value.
+     * @param enforceP2SH Whether "pay to script hash" rules should be enforced. If in doubt, set to true.
+     */
+    public void correctlySpends(SigHashCache txSigHashes, long scriptSigIndex, Script scriptPubKey,
+                                boolean enforceP2SH) throws ScriptException {
         if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
         
         LinkedList<byte[]> stack = new LinkedList<byte[]>();
         LinkedList<byte[]> p2shStack = null;
         
-        executeScript(txContainingThis, scriptSigIndex, this, stack);
+        executeScript(txSigHashes, scriptSigIndex, this, stack);
         if (enforceP2SH)
             p2shStack = new LinkedList<byte[]>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack);
+        executeScript(txSigHashes, scriptSigIndex, scriptPubKey, stack);
         
         if (stack.size() == 0)
             throw new ScriptException("Stack empty at end of script execution.");
@@ -1278,7 +1287,7 @@ public class Script {
             byte[] scriptPubKeyBytes = p2shStack.pollLast();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack);
+            executeScript(txSigHashes, scriptSigIndex, scriptPubKeyP2SH, p2shStack);
             
             if (p2shStack.size() == 0)
                 throw new ScriptException("P2SH stack empty at end of script execution.");
@@ -0,0 +1,363 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.store;
+
+import com.google.fastcoin.core.Sha256Hash;
+import com.google.fastcoin.core.StoredBlock;
+import com.google.fastcoin.core.StoredTransactionOutput;
+import com.google.fastcoin.core.StoredUndoableBlock;
+import com.google.fastcoin.utils.Threading;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that sits in front of another one and keeps recently used unspent outputs in
+ * memory, so that verifying a block mostly doesn't need to ask the backing store about the outputs it spends.</p>
+ *
+ * <p>Changes to the unspent output set made between {@link #beginDatabaseBatchWrite()} and
+ * {@link #commitDatabaseBatchWrite()} are held back and handed to the backing store in one go just before it commits.
+ * An output that is created and spent within the same batch never reaches the backing store at all. On
+ * {@link #abortDatabaseBatchWrite()} the held back changes are simply dropped. The cache itself only ever holds
+ * outputs as they are in the backing store after its last commit, so it is consistent again as soon as the backing
+ * store has rolled back.</p>
+ *
+ * <p>All other calls, including block and undo data, go straight to the backing store. This store assumes it is the
+ * only writer of the backing store's unspent outputs.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+
+    private final FullPrunedBlockStore backing;
+    private final ReentrantLock lock = Threading.lock("CachingFullPrunedBlockStore");
+
+    // Outputs known to be unspent in the backing store, least recently used first.
+    private final LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> cache;
+
+    // Changes made since the batch began, in the order they were made.
+    private final LinkedHashMap<StoredTransactionOutPoint, Change> dirty =
+            new LinkedHashMap<StoredTransactionOutPoint, Change>();
+    // Hashes of the transactions with entries in dirty, so hasUnspentOutputs knows when it can't trust the backing store.
+    private final Multiset<Sha256Hash> dirtyHashes = HashMultiset.create();
+    private boolean inBatch;
+
+    private long hits, misses;
+    private long flushes, totalFlushNanos, lastFlushNanos;
+
+    private static class Change {
+        // The output now unspent, or null if it was spent.
+        final StoredTransactionOutput out;
+        // The copy the backing store holds and that has to be removed first, or null if it has none.
+        final StoredTransactionOutput backed;
+
+        Change(StoredTransactionOutput out, StoredTransactionOutput backed) {
+            this.out = out;
+            this.backed = backed;
+        }
+    }
+
+    /** Creates a cache of up to {@link #DEFAULT_CACHE_SIZE} outputs in front of the given store. */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore backing) {
+        this(backing, DEFAULT_CACHE_SIZE);
+    }
+
+    /** Creates a cache of up to cacheSize outputs in front of the given store. */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore backing, final int cacheSize) {
+        checkArgument(cacheSize > 0);
+        this.backing = checkNotNull(backing);
+        this.cache = new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /** Returns the store this one is caching for. */
+    public FullPrunedBlockStore getBackingStore() {
+        return backing;
+    }
+
+    @Override
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        lock.lock();
+        try {
+            Change change = dirty.get(key);
+            if (change != null)
+                return change.out;
+            StoredTransactionOutput out = cache.get(key);
+            if (out != null) {
+                hits++;
+                return out;
+            }
+            misses++;
+            out = backing.getTransactionOutput(hash, index);
+            if (out != null)
+                cache.put(key, out);
+            return out;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        lock.lock();
+        try {
+            if (!inBatch) {
+                backing.addUnspentTransactionOutput(out);
+                cache.put(key, out);
+                return;
+            }
+            Change change = dirty.get(key);
+            // Re-adding an output spent earlier in this batch means the backing store still has the old copy.
+            putDirty(key, new Change(out, change != null ? change.backed : null));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        lock.lock();
+        try {
+            if (!inBatch) {
+                cache.remove(key);
+                backing.removeUnspentTransactionOutput(out);
+                return;
+            }
+            Change change = dirty.get(key);
+            if (change != null && change.out == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+            if (change == null) {
+                // Fail now rather than when the batch is flushed, like the backing store would.
+                StoredTransactionOutput backed = getTransactionOutput(out.getHash(), out.getIndex());
+                if (backed == null)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+                putDirty(key, new Change(null, backed));
+            } else if (change.backed == null) {
+                // Added in this batch, which doesn't look at the backing store, so it may have had the output all
+                // along. If not, the output was created and spent within the batch and it never needs to hear of it.
+                StoredTransactionOutput backed = cache.get(key);
+                if (backed == null)
+                    backed = backing.getTransactionOutput(out.getHash(), out.getIndex());
+                if (backed == null)
+                    removeDirty(key);
+                else
+                    putDirty(key, new Change(null, backed));
+            } else {
+                putDirty(key, new Change(null, change.backed));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        lock.lock();
+        try {
+            if (dirtyHashes.contains(hash)) {
+                // The backing store's answer may be out of date, so look at each output individually.
+                for (int i = 0; i < numOutputs; i++)
+                    if (getTransactionOutput(hash, i) != null)
+                        return true;
+                return false;
+            }
+            for (int i = 0; i < numOutputs; i++)
+                if (cache.containsKey(new StoredTransactionOutPoint(hash, i)))
+                    return true;
+            return backing.hasUnspentOutputs(hash, numOutputs);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void putDirty(StoredTransactionOutPoint key, Change change) {
+        if (dirty.put(key, change) == null)
+            dirtyHashes.add(key.getHash());
+    }
+
+    private void removeDirty(StoredTransactionOutPoint key) {
+        if (dirty.remove(key) != null)
+            dirtyHashes.remove(key.getHash());
+    }
+
+    @Override
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            backing.beginDatabaseBatchWrite();
+            inBatch = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (!dirty.isEmpty()) {
+                long start = System.nanoTime();
+                // Spends go first, so an output that was spent and re-created ends up in the backing store once.
+                for (Change change : dirty.values())
+                    if (change.backed != null)
+                        backing.removeUnspentTransactionOutput(change.backed);
+                for (Change change : dirty.values())
+                    if (change.out != null)
+                        backing.addUnspentTransactionOutput(change.out);
+                lastFlushNanos = System.nanoTime() - start;
+                totalFlushNanos += lastFlushNanos;
+                flushes++;
+                log.debug("Flushed {} unspent output changes in {} ms", dirty.size(), lastFlushNanos / 1000000);
+            }
+            backing.commitDatabaseBatchWrite();
+            for (Map.Entry<StoredTransactionOutPoint, Change> entry : dirty.entrySet()) {
+                if (entry.getValue().out == null)
+                    cache.remove(entry.getKey());
+                else
+                    cache.put(entry.getKey(), entry.getValue().out);
+            }
+            clearBatch();
+        } catch (BlockStoreException e) {
+            // The backing store is expected to be aborted by the caller, so forget what it was never given.
+            clearBatch();
+            cache.clear();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            clearBatch();
+            backing.abortDatabaseBatchWrite();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void clearBatch() {
+        dirty.clear();
+        dirtyHashes.clear();
+        inBatch = false;
+    }
+
+    /** Returns the fraction of output lookups since the store was created that didn't need the backing store. */
+    public double getHitRate() {
+        lock.lock();
+        try {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how long it took to hand the last batch of changes to the backing store, in milliseconds. */
+    public double getLastFlushMillis() {
+        lock.lock();
+        try {
+            return lastFlushNanos / 1000000.0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the average time it took to hand a batch of changes to the backing store, in milliseconds. */
+    public double getAverageFlushMillis() {
+        lock.lock();
+        try {
+            return flushes == 0 ? 0 : totalFlushNanos / 1000000.0 / flushes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        backing.put(storedBlock, undoableBlock);
+    }
+
+    @Override
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return backing.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return backing.getUndoBlock(hash);
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return backing.getVerifiedChainHead();
+    }
+
+    @Override
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        backing.setVerifiedChainHead(chainHead);
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        backing.put(block);
+    }
+
+    @Override
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return backing.get(hash);
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return backing.getChainHead();
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        backing.setChainHead(chainHead);
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            cache.clear();
+            backing.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
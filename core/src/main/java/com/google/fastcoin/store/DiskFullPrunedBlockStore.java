@@ -0,0 +1,1334 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.store;
+
+import com.google.fastcoin.core.*;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps everything in two plain files in a directory, with no database
+ * underneath:</p>
+ *
+ * <ul>
+ *     <li><b>blocks.log</b> is an append-only log of headers, undo data, unspent output changes and chain head
+ *     updates. Each {@link #commitDatabaseBatchWrite()} appends the whole batch followed by a commit record in a
+ *     single write, so a crash can only ever leave a partial batch at the tail, which is cut off the next time the
+ *     store is opened.</li>
+ *     <li><b>outputs.table</b> is a memory mapped open addressing hash table from (hash, index) to the log record of
+ *     every unspent output. It remembers how far into the log it is up to date and is brought up to date, or rebuilt
+ *     from the log if a crash caught it half written, when the store is opened.</li>
+ * </ul>
+ *
+ * <p>The header and undo block indexes are kept in memory. They are saved to <b>index.checkpoint</b> when the store is
+ * closed and every {@link #CHECKPOINT_INTERVAL_BYTES} of log, so opening the store only replays the log written since
+ * the last checkpoint. Without a usable checkpoint, or when the output table has to be rebuilt, the whole log is
+ * replayed. Undo data is pruned from the index with the same fullStoreDepth semantics as
+ * {@link H2FullPrunedBlockStore}. The space taken by pruned undo data and spent outputs is given back by
+ * {@link #compact()}, which runs by itself once more than half the log is dead, see
+ * {@link #setAutoCompaction(double, long)}.</p>
+ *
+ * <p>Writes made between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are visible to
+ * reads straight away but only reach the disk on commit. Calls outside of a batch are committed one by one.</p>
+ */
+public class DiskFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(DiskFullPrunedBlockStore.class);
+
+    private static final int LOG_MAGIC = 0x46504c47;  // "FPLG"
+    private static final int LOG_VERSION = 1;
+    private static final int LOG_PROLOGUE_BYTES = 8;
+
+    // Each record is: 4 byte payload length, 1 byte type, payload, 4 byte CRC32 of type and payload.
+    private static final int RECORD_HEADER_BYTES = 5;
+    private static final int RECORD_OVERHEAD_BYTES = RECORD_HEADER_BYTES + 4;
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+    private static final byte TYPE_HEADER = 1;
+    private static final byte TYPE_UNDO = 2;
+    private static final byte TYPE_OUTPUT_ADD = 3;
+    private static final byte TYPE_OUTPUT_REMOVE = 4;
+    private static final byte TYPE_CHAIN_HEAD = 5;
+    private static final byte TYPE_VERIFIED_CHAIN_HEAD = 6;
+    private static final byte TYPE_COMMIT = 7;
+
+    private static final byte UNDO_TX_OUT_CHANGES = 0;
+    private static final byte UNDO_TRANSACTIONS = 1;
+
+    // The size of a header record in the log.
+    private static final int HEADER_RECORD_BYTES = RECORD_OVERHEAD_BYTES + 32 + 1 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+    private static final int CHECKPOINT_MAGIC = 0x4650434b;  // "FPCK"
+    private static final int CHECKPOINT_VERSION = 1;
+    /** How much log is written between checkpoints of the in memory indexes, besides the one made on close. */
+    public static final long CHECKPOINT_INTERVAL_BYTES = 256 * 1024 * 1024;
+
+    /** The share of the log that has to be dead before it is compacted by default. */
+    public static final double DEFAULT_COMPACT_DEAD_FRACTION = 0.5;
+    /** The size the log has to reach before it is compacted by default. */
+    public static final long DEFAULT_COMPACT_MIN_LOG_BYTES = 64 * 1024 * 1024;
+
+    private final NetworkParameters params;
+    private final int fullStoreDepth;
+    private final File logFile, tableFile, checkpointFile;
+
+    private RandomAccessFile logRandomAccessFile;
+    private FileChannel logChannel;
+    // Where the next batch will be written. Everything before is committed.
+    private long logEnd;
+    private OutputTable outputs;
+
+    // Where the payload of the latest header record of each block starts.
+    private Map<Sha256Hash, Long> headerOffsets;
+    // Where the payload of the undo record of each block that hasn't been pruned yet starts, and its height.
+    private Map<Sha256Hash, UndoLocation> undoLocations;
+    private TreeMap<Integer, Set<Sha256Hash>> undoByHeight;
+    private StoredBlock chainHead, verifiedChainHead;
+    // The bytes of log taken by the undo records in undoLocations and by the records of the unspent outputs. Together
+    // with the headers that is everything compact() keeps, the rest of the log is dead.
+    private long undoBytes, outputBytes;
+    // The log position of the last checkpoint written or read.
+    private long checkpointPosition;
+    private double compactDeadFraction = DEFAULT_COMPACT_DEAD_FRACTION;
+    private long compactMinLogBytes = DEFAULT_COMPACT_MIN_LOG_BYTES;
+
+    // The batch in progress, if any.
+    private boolean inBatch;
+    private ByteArrayOutputStream pendingLog;
+    private Batch pendingBatch;
+    private Map<Sha256Hash, BlockEntry> pendingBlocks;
+    private Map<Sha256Hash, StoredUndoableBlock> pendingUndoBlocks;
+    // A null value means the output is spent.
+    private LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> pendingOutputs;
+    // The size of the log record of each output spent in this batch, for working out how much of the log is dead.
+    private Map<StoredTransactionOutPoint, Integer> pendingRemovedBytes;
+    private StoredBlock pendingChainHead, pendingVerifiedChainHead;
+
+    private static class BlockEntry {
+        final StoredBlock block;
+        final boolean wasUndoable;
+
+        BlockEntry(StoredBlock block, boolean wasUndoable) {
+            this.block = block;
+            this.wasUndoable = wasUndoable;
+        }
+    }
+
+    private static class UndoLocation {
+        final long offset;
+        final int height;
+        // The size of the whole record.
+        final int size;
+
+        UndoLocation(long offset, int height, int size) {
+            this.offset = offset;
+            this.height = height;
+            this.size = size;
+        }
+    }
+
+    /** The index updates of one committed batch. Offsets are relative to the start of the batch until it's written. */
+    private static class Batch {
+        final Map<Sha256Hash, Long> headers = new HashMap<Sha256Hash, Long>();
+        final Map<Sha256Hash, UndoLocation> undoBlocks = new HashMap<Sha256Hash, UndoLocation>();
+        final List<StoredTransactionOutPoint> outputKeys = new ArrayList<StoredTransactionOutPoint>();
+        // Record offset of each added output, or -1 where the output was removed.
+        final List<Long> outputOffsets = new ArrayList<Long>();
+        // The size of the record of each added output, or of the one that added a removed output.
+        final List<Integer> outputSizes = new ArrayList<Integer>();
+        Sha256Hash chainHead, verifiedChainHead;
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if needed.
+     * @param params A copy of the NetworkParameters used
+     * @param directory Where to keep the files, created if it doesn't exist
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the files can't be opened or are corrupt
+     */
+    public DiskFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new BlockStoreException("Could not create directory " + directory);
+        this.logFile = new File(directory, "blocks.log");
+        this.tableFile = new File(directory, "outputs.table");
+        this.checkpointFile = new File(directory, "index.checkpoint");
+        open();
+    }
+
+    /**
+     * Sets when the log is compacted after a commit: once it is at least minLogBytes long and more than deadFraction
+     * of it is taken by spent outputs, pruned undo data and replaced records. Compacting rewrites the live part of the
+     * log, so the commit that sets it off takes that much longer. A deadFraction of 1 or more turns it off.
+     */
+    public synchronized void setAutoCompaction(double deadFraction, long minLogBytes) {
+        this.compactDeadFraction = deadFraction;
+        this.compactMinLogBytes = minLogBytes;
+    }
+
+    /** Returns how many bytes of the log are no longer needed and would be given back by {@link #compact()}. */
+    public synchronized long getDeadLogBytes() {
+        return logEnd - getLiveLogBytes();
+    }
+
+    private long getLiveLogBytes() {
+        return LOG_PROLOGUE_BYTES + (long) headerOffsets.size() * HEADER_RECORD_BYTES + undoBytes + outputBytes;
+    }
+
+    private void open() throws BlockStoreException {
+        headerOffsets = new HashMap<Sha256Hash, Long>();
+        undoLocations = new HashMap<Sha256Hash, UndoLocation>();
+        undoByHeight = new TreeMap<Integer, Set<Sha256Hash>>();
+        chainHead = verifiedChainHead = null;
+        undoBytes = outputBytes = 0;
+        checkpointPosition = 0;
+        try {
+            boolean exists = logFile.exists();
+            logRandomAccessFile = new RandomAccessFile(logFile, "rw");
+            logChannel = logRandomAccessFile.getChannel();
+            if (!exists) {
+                ByteBuffer prologue = ByteBuffer.allocate(LOG_PROLOGUE_BYTES);
+                prologue.putInt(LOG_MAGIC).putInt(LOG_VERSION).flip();
+                writeFully(prologue, 0);
+                logChannel.force(true);
+                tableFile.delete();
+                checkpointFile.delete();
+            }
+            outputs = OutputTable.open(tableFile);
+            long start = LOG_PROLOGUE_BYTES;
+            // The output table can only be rebuilt by replaying the whole log.
+            if (outputs.getAppliedPosition() != 0 && readCheckpoint(outputs.getAppliedPosition()))
+                start = checkpointPosition;
+            replay(start);
+            if (!exists)
+                createNewStore();
+            else if (logEnd - start >= CHECKPOINT_INTERVAL_BYTES)
+                writeCheckpoint();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        // Set up the genesis block. When we start out fresh, it is by definition the top of the chain. The coinbase in
+        // the genesis block is not spendable.
+        StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                params.getGenesisBlock().getWork(), 0);
+        List<Transaction> genesisTransactions = Lists.newLinkedList();
+        StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+        beginDatabaseBatchWrite();
+        put(storedGenesisHeader, storedGenesis);
+        setChainHead(storedGenesisHeader);
+        setVerifiedChainHead(storedGenesisHeader);
+        commitDatabaseBatchWrite();
+    }
+
+    /**
+     * Reads the log from the given committed position, rebuilding the in memory indexes and bringing the output table
+     * up to date. Anything after the last commit record is the remains of a batch that was being written when we
+     * crashed and is cut off.
+     */
+    private void replay(long start) throws IOException, BlockStoreException {
+        ByteBuffer prologue = ByteBuffer.allocate(LOG_PROLOGUE_BYTES);
+        try {
+            readFully(prologue, 0);
+        } catch (EOFException e) {
+            throw new BlockStoreException("Not a block log: " + logFile);
+        }
+        if (prologue.getInt(0) != LOG_MAGIC || prologue.getInt(4) != LOG_VERSION)
+            throw new BlockStoreException("Not a block log, or one written by an incompatible version: " + logFile);
+        FileInputStream fileIn = new FileInputStream(logFile);
+        fileIn.getChannel().position(start);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn, 1 << 16));
+        try {
+            boolean rebuildOutputs = outputs.getAppliedPosition() == 0;
+            long position = start;
+            long committed = position;
+            Batch batch = new Batch();
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                byte type;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_BYTES)
+                        break;
+                    type = in.readByte();
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(type);
+                    crc.update(payload);
+                    if (in.readInt() != (int) crc.getValue())
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+                long payloadOffset = position + RECORD_HEADER_BYTES;
+                position += RECORD_OVERHEAD_BYTES + length;
+                if (type == TYPE_COMMIT) {
+                    boolean applyOutputs = rebuildOutputs || position > outputs.getAppliedPosition();
+                    applyBatch(batch, applyOutputs ? position : -1, false);
+                    committed = position;
+                    batch = new Batch();
+                } else {
+                    readIntoBatch(batch, type, payload, payloadOffset, RECORD_OVERHEAD_BYTES + length);
+                }
+            }
+            if (committed < logChannel.size()) {
+                log.warn("Discarding {} bytes of uncommitted data at the end of {}", logChannel.size() - committed, logFile);
+                logChannel.truncate(committed);
+                logChannel.force(true);
+            }
+            logEnd = committed;
+            if (outputs.getAppliedPosition() > logEnd)
+                throw new BlockStoreException("Output table is ahead of the block log, was the log replaced?");
+            // Replayed batches were applied without syncing each one, so sync them all now.
+            outputs.finishUpdate(outputs.getAppliedPosition(), true);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readIntoBatch(Batch batch, byte type, byte[] payload, long payloadOffset, int recordSize)
+            throws BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        byte[] hashBytes = new byte[32];
+        buffer.get(hashBytes);
+        Sha256Hash hash = new Sha256Hash(hashBytes);
+        switch (type) {
+            case TYPE_HEADER:
+                batch.headers.put(hash, payloadOffset);
+                break;
+            case TYPE_UNDO:
+                batch.undoBlocks.put(hash, new UndoLocation(payloadOffset, buffer.getInt(), recordSize));
+                break;
+            case TYPE_OUTPUT_ADD:
+                batch.outputKeys.add(new StoredTransactionOutPoint(hash, buffer.getInt() & 0xFFFFFFFFL));
+                batch.outputOffsets.add(payloadOffset);
+                batch.outputSizes.add(recordSize);
+                break;
+            case TYPE_OUTPUT_REMOVE:
+                batch.outputKeys.add(new StoredTransactionOutPoint(hash, buffer.getInt() & 0xFFFFFFFFL));
+                batch.outputOffsets.add(-1L);
+                batch.outputSizes.add(buffer.getInt());
+                break;
+            case TYPE_CHAIN_HEAD:
+                batch.chainHead = hash;
+                break;
+            case TYPE_VERIFIED_CHAIN_HEAD:
+                batch.verifiedChainHead = hash;
+                break;
+            default:
+                throw new BlockStoreException("Unknown record type " + type + " in " + logFile);
+        }
+    }
+
+    /**
+     * Applies a committed batch to the in memory indexes and, if outputsPosition isn't -1, to the output table, which
+     * is then marked as up to date with the log up to that position. Unless sync is set, the table is left marked as
+     * being updated, so it gets rebuilt if we crash before it's synced.
+     */
+    private void applyBatch(Batch batch, long outputsPosition, boolean sync) throws BlockStoreException {
+        headerOffsets.putAll(batch.headers);
+        for (Map.Entry<Sha256Hash, UndoLocation> entry : batch.undoBlocks.entrySet()) {
+            UndoLocation old = undoLocations.put(entry.getKey(), entry.getValue());
+            undoBytes += entry.getValue().size;
+            if (old != null) {
+                undoBytes -= old.size;
+                removeFromHeightIndex(entry.getKey(), old.height);
+            }
+            Set<Sha256Hash> atHeight = undoByHeight.get(entry.getValue().height);
+            if (atHeight == null) {
+                atHeight = new HashSet<Sha256Hash>();
+                undoByHeight.put(entry.getValue().height, atHeight);
+            }
+            atHeight.add(entry.getKey());
+        }
+        for (int i = 0; i < batch.outputKeys.size(); i++) {
+            if (batch.outputOffsets.get(i) == -1)
+                outputBytes -= batch.outputSizes.get(i);
+            else
+                outputBytes += batch.outputSizes.get(i);
+        }
+        if (outputsPosition != -1 && (!batch.outputKeys.isEmpty() || outputs.getAppliedPosition() < outputsPosition)) {
+            try {
+                outputs.beginUpdate();
+                for (int i = 0; i < batch.outputKeys.size(); i++) {
+                    StoredTransactionOutPoint key = batch.outputKeys.get(i);
+                    long offset = batch.outputOffsets.get(i);
+                    if (offset == -1)
+                        outputs.remove(key.getHash(), key.getIndex());
+                    else
+                        outputs = outputs.put(key.getHash(), key.getIndex(), offset);
+                }
+                outputs.finishUpdate(outputsPosition, sync);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+        if (batch.chainHead != null)
+            chainHead = getCommittedBlock(batch.chainHead);
+        if (batch.verifiedChainHead != null) {
+            verifiedChainHead = getCommittedBlock(batch.verifiedChainHead);
+            pruneUndoBlocksAtOrBelow(verifiedChainHead.getHeight() - fullStoreDepth);
+        }
+    }
+
+    private StoredBlock getCommittedBlock(Sha256Hash hash) throws BlockStoreException {
+        BlockEntry entry = readBlock(hash);
+        if (entry == null)
+            throw new BlockStoreException("Corrupted block log: could not find chain head " + hash);
+        return entry.block;
+    }
+
+    private void pruneUndoBlocksAtOrBelow(int height) {
+        SortedMap<Integer, Set<Sha256Hash>> pruned = undoByHeight.headMap(height, true);
+        for (Set<Sha256Hash> hashes : pruned.values()) {
+            for (Sha256Hash hash : hashes) {
+                UndoLocation location = undoLocations.remove(hash);
+                if (location != null)
+                    undoBytes -= location.size;
+            }
+        }
+        pruned.clear();
+    }
+
+    private void removeFromHeightIndex(Sha256Hash hash, int height) {
+        Set<Sha256Hash> atHeight = undoByHeight.get(height);
+        if (atHeight != null) {
+            atHeight.remove(hash);
+            if (atHeight.isEmpty())
+                undoByHeight.remove(height);
+        }
+    }
+
+    // Reading the log.
+
+    private byte[] readPayload(long payloadOffset) throws BlockStoreException {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            readFully(header, payloadOffset - RECORD_HEADER_BYTES);
+            ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+            readFully(payload, payloadOffset);
+            return payload.array();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = logChannel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("Unexpected end of " + logFile);
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += logChannel.write(buffer, position);
+    }
+
+    @Nullable
+    private BlockEntry readBlock(Sha256Hash hash) throws BlockStoreException {
+        Long offset = headerOffsets.get(hash);
+        if (offset == null)
+            return null;
+        ByteBuffer buffer = ByteBuffer.wrap(readPayload(offset));
+        buffer.position(32);
+        boolean wasUndoable = buffer.get() != 0;
+        try {
+            return new BlockEntry(StoredBlock.deserializeCompact(params, buffer), wasUndoable);
+        } catch (ProtocolException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // Writing the log. Records are collected in pendingLog until the batch is committed.
+
+    private long appendRecord(byte type, byte[] payload) {
+        long relativeOffset = pendingLog.size() + RECORD_HEADER_BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        header.putInt(payload.length).put(type);
+        pendingLog.write(header.array(), 0, RECORD_HEADER_BYTES);
+        pendingLog.write(payload, 0, payload.length);
+        ByteBuffer trailer = ByteBuffer.allocate(4);
+        trailer.putInt((int) crc.getValue());
+        pendingLog.write(trailer.array(), 0, 4);
+        return relativeOffset;
+    }
+
+    private void checkOpen() {
+        checkState(logChannel != null, "DiskFullPrunedBlockStore is closed");
+    }
+
+    private boolean beginIfNeeded() throws BlockStoreException {
+        if (inBatch)
+            return false;
+        beginDatabaseBatchWrite();
+        return true;
+    }
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        boolean autoCommit = beginIfNeeded();
+        BlockEntry existing = getEntry(block.getHeader().getHash());
+        putHeader(block, existing != null && existing.wasUndoable);
+        if (autoCommit)
+            commitDatabaseBatchWrite();
+    }
+
+    private void putHeader(StoredBlock block, boolean wasUndoable) {
+        Sha256Hash hash = block.getHeader().getHash();
+        ByteBuffer payload = ByteBuffer.allocate(32 + 1 + StoredBlock.COMPACT_SERIALIZED_SIZE);
+        payload.put(hash.getBytes());
+        payload.put((byte) (wasUndoable ? 1 : 0));
+        block.serializeCompact(payload);
+        pendingBatch.headers.put(hash, appendRecord(TYPE_HEADER, payload.array()));
+        pendingBlocks.put(hash, new BlockEntry(block, wasUndoable));
+    }
+
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        checkOpen();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        int height = storedBlock.getHeight();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bos);
+            out.write(hash.getBytes());
+            out.writeInt(height);
+            if (undoableBlock.getTxOutChanges() != null) {
+                out.writeByte(UNDO_TX_OUT_CHANGES);
+                undoableBlock.getTxOutChanges().serializeToStream(out);
+            } else {
+                out.writeByte(UNDO_TRANSACTIONS);
+                out.writeInt(undoableBlock.getTransactions().size());
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.fastcoinSerialize(out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        boolean autoCommit = beginIfNeeded();
+        byte[] payload = bos.toByteArray();
+        pendingBatch.undoBlocks.put(hash, new UndoLocation(appendRecord(TYPE_UNDO, payload), height,
+                RECORD_OVERHEAD_BYTES + payload.length));
+        pendingUndoBlocks.put(hash, undoableBlock);
+        putHeader(storedBlock, true);
+        if (autoCommit)
+            commitDatabaseBatchWrite();
+    }
+
+    @Nullable
+    private BlockEntry getEntry(Sha256Hash hash) throws BlockStoreException {
+        if (inBatch) {
+            BlockEntry entry = pendingBlocks.get(hash);
+            if (entry != null)
+                return entry;
+        }
+        return readBlock(hash);
+    }
+
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        BlockEntry entry = getEntry(hash);
+        return entry == null ? null : entry.block;
+    }
+
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        BlockEntry entry = getEntry(hash);
+        return (entry != null && entry.wasUndoable) ? entry.block : null;
+    }
+
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        if (inBatch) {
+            StoredUndoableBlock block = pendingUndoBlocks.get(hash);
+            if (block != null)
+                return block;
+        }
+        UndoLocation location = undoLocations.get(hash);
+        if (location == null)
+            return null;
+        byte[] payload = readPayload(location.offset);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 32 + 4, payload.length - 32 - 4));
+            if (in.readByte() == UNDO_TX_OUT_CHANGES)
+                return new StoredUndoableBlock(hash, new TransactionOutputChanges(in));
+            int numTxn = in.readInt();
+            int offset = 32 + 4 + 1 + 4;
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, payload, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (IOException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return inBatch && pendingChainHead != null ? pendingChainHead : chainHead;
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        boolean autoCommit = beginIfNeeded();
+        pendingBatch.chainHead = chainHead.getHeader().getHash();
+        appendRecord(TYPE_CHAIN_HEAD, pendingBatch.chainHead.getBytes());
+        pendingChainHead = chainHead;
+        if (autoCommit)
+            commitDatabaseBatchWrite();
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        return inBatch && pendingVerifiedChainHead != null ? pendingVerifiedChainHead : verifiedChainHead;
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        boolean autoCommit = beginIfNeeded();
+        pendingBatch.verifiedChainHead = chainHead.getHeader().getHash();
+        appendRecord(TYPE_VERIFIED_CHAIN_HEAD, pendingBatch.verifiedChainHead.getBytes());
+        pendingVerifiedChainHead = chainHead;
+        StoredBlock head = getChainHead();
+        if (head == null || head.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        if (autoCommit)
+            commitDatabaseBatchWrite();
+    }
+
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        if (inBatch) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            if (pendingOutputs.containsKey(key))
+                return pendingOutputs.get(key);
+        }
+        long offset = outputs.find(hash, index);
+        if (offset == -1)
+            return null;
+        byte[] payload = readPayload(offset);
+        try {
+            return new StoredTransactionOutput(new ByteArrayInputStream(payload, 32 + 4, payload.length - 32 - 4));
+        } catch (IOException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private boolean hasTransactionOutput(Sha256Hash hash, long index) {
+        if (inBatch) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            if (pendingOutputs.containsKey(key))
+                return pendingOutputs.get(key) != null;
+        }
+        return outputs.find(hash, index) != -1;
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkOpen();
+        boolean autoCommit = beginIfNeeded();
+        pendingOutputs.put(new StoredTransactionOutPoint(out), out);
+        if (autoCommit)
+            commitDatabaseBatchWrite();
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkOpen();
+        if (!hasTransactionOutput(out.getHash(), out.getIndex()))
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from DiskFullPrunedBlockStore that it didn't have!");
+        boolean autoCommit = beginIfNeeded();
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        if (outputs.find(out.getHash(), out.getIndex()) == -1) {
+            pendingOutputs.remove(key);  // Created in this batch, so the log never needs to hear of it.
+        } else {
+            pendingOutputs.put(key, null);
+            pendingRemovedBytes.put(key, outputRecordBytes(out));
+        }
+        if (autoCommit)
+            commitDatabaseBatchWrite();
+    }
+
+    // The size of the log record that adds the given output, see commitDatabaseBatchWrite.
+    private static int outputRecordBytes(StoredTransactionOutput out) {
+        // Hash and index, then StoredTransactionOutput.serializeToStream: value, script length, script, hash, index
+        // and height.
+        return RECORD_OVERHEAD_BYTES + 32 + 4 + 8 + 4 + out.getScriptBytes().length + 32 + 4 + 4;
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        checkOpen();
+        for (int i = 0; i < numOutputs; i++)
+            if (hasTransactionOutput(hash, i))
+                return true;
+        return false;
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (inBatch)
+            return;
+        inBatch = true;
+        pendingLog = new ByteArrayOutputStream();
+        pendingBatch = new Batch();
+        pendingBlocks = new HashMap<Sha256Hash, BlockEntry>();
+        pendingUndoBlocks = new HashMap<Sha256Hash, StoredUndoableBlock>();
+        pendingOutputs = new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        pendingRemovedBytes = new HashMap<StoredTransactionOutPoint, Integer>();
+        pendingChainHead = pendingVerifiedChainHead = null;
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (!inBatch)
+            return;
+        try {
+            for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : pendingOutputs.entrySet()) {
+                StoredTransactionOutPoint key = entry.getKey();
+                StoredTransactionOutput out = entry.getValue();
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(bos);
+                dos.write(key.getHash().getBytes());
+                dos.writeInt((int) key.getIndex());
+                // A removal records the size of the record it makes dead, so it can be accounted for on replay.
+                int size = out != null ? 0 : pendingRemovedBytes.get(key);
+                if (out != null)
+                    out.serializeToStream(dos);
+                else
+                    dos.writeInt(size);
+                dos.flush();
+                byte[] payload = bos.toByteArray();
+                long offset = appendRecord(out != null ? TYPE_OUTPUT_ADD : TYPE_OUTPUT_REMOVE, payload);
+                pendingBatch.outputKeys.add(key);
+                pendingBatch.outputOffsets.add(out != null ? offset : -1L);
+                pendingBatch.outputSizes.add(out != null ? RECORD_OVERHEAD_BYTES + payload.length : size);
+            }
+            appendRecord(TYPE_COMMIT, new byte[32]);
+            writeFully(ByteBuffer.wrap(pendingLog.toByteArray()), logEnd);
+            logChannel.force(false);
+        } catch (IOException e) {
+            abortDatabaseBatchWrite();
+            throw new BlockStoreException(e);
+        }
+        long base = logEnd;
+        logEnd += pendingLog.size();
+        Batch batch = new Batch();
+        for (Map.Entry<Sha256Hash, Long> entry : pendingBatch.headers.entrySet())
+            batch.headers.put(entry.getKey(), base + entry.getValue());
+        for (Map.Entry<Sha256Hash, UndoLocation> entry : pendingBatch.undoBlocks.entrySet())
+            batch.undoBlocks.put(entry.getKey(), new UndoLocation(base + entry.getValue().offset,
+                    entry.getValue().height, entry.getValue().size));
+        batch.outputKeys.addAll(pendingBatch.outputKeys);
+        for (long offset : pendingBatch.outputOffsets)
+            batch.outputOffsets.add(offset == -1 ? -1 : base + offset);
+        batch.outputSizes.addAll(pendingBatch.outputSizes);
+        batch.chainHead = pendingBatch.chainHead;
+        batch.verifiedChainHead = pendingBatch.verifiedChainHead;
+        clearBatch();
+        applyBatch(batch, logEnd, true);
+        // The batch is on disk by now, so nothing below may fail the commit.
+        if (logEnd >= compactMinLogBytes && getDeadLogBytes() > logEnd * compactDeadFraction) {
+            try {
+                compact();
+            } catch (BlockStoreException e) {
+                // The log is just bigger than it needs to be, it is tried again after the next commit.
+                log.warn("Failed to compact " + logFile, e);
+            }
+        } else if (logEnd - checkpointPosition >= CHECKPOINT_INTERVAL_BYTES) {
+            try {
+                writeCheckpoint();
+            } catch (IOException e) {
+                // The log has the data, so the store still works, it just takes longer to open.
+                log.warn("Failed to write checkpoint of " + logFile, e);
+            }
+        }
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        clearBatch();
+    }
+
+    private void clearBatch() {
+        inBatch = false;
+        pendingLog = null;
+        pendingBatch = null;
+        pendingBlocks = null;
+        pendingUndoBlocks = null;
+        pendingOutputs = null;
+        pendingRemovedBytes = null;
+        pendingChainHead = pendingVerifiedChainHead = null;
+    }
+
+    /**
+     * Saves the header and undo indexes as of the end of the log, so that the next open only has to replay the log
+     * written after now. The checkpoint is written to a separate file first and renamed into place, so there is
+     * always either a complete old one or a complete new one.
+     */
+    private void writeCheckpoint() throws IOException {
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut, 1 << 16),
+                    new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeLong(logEnd);
+            out.writeLong(outputBytes);
+            out.write(chainHead.getHeader().getHash().getBytes());
+            out.write(verifiedChainHead.getHeader().getHash().getBytes());
+            out.writeInt(headerOffsets.size());
+            for (Map.Entry<Sha256Hash, Long> entry : headerOffsets.entrySet()) {
+                out.write(entry.getKey().getBytes());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(undoLocations.size());
+            for (Map.Entry<Sha256Hash, UndoLocation> entry : undoLocations.entrySet()) {
+                out.write(entry.getKey().getBytes());
+                out.writeLong(entry.getValue().offset);
+                out.writeInt(entry.getValue().height);
+                out.writeInt(entry.getValue().size);
+            }
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        // File.renameTo won't replace an existing file on every platform.
+        if (!tmp.renameTo(checkpointFile) && !(checkpointFile.delete() && tmp.renameTo(checkpointFile)))
+            throw new IOException("Failed to replace " + checkpointFile + " with " + tmp);
+        checkpointPosition = logEnd;
+    }
+
+    /**
+     * Loads the header and undo indexes from the checkpoint if there is one that belongs to this log and is no further
+     * into it than the output table. Returns false, having loaded nothing, if there isn't.
+     */
+    private boolean readCheckpoint(long outputsPosition) throws IOException, BlockStoreException {
+        if (!checkpointFile.exists())
+            return false;
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(
+                new FileInputStream(checkpointFile), 1 << 16), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        try {
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION)
+                return checkpointUnusable("it was written by an incompatible version");
+            long position = in.readLong();
+            if (position > outputsPosition || !isCommitEndingAt(position))
+                return checkpointUnusable("it doesn't match the log");
+            long checkpointOutputBytes = in.readLong();
+            Sha256Hash head = readHash(in), verifiedHead = readHash(in);
+            int numHeaders = in.readInt();
+            Map<Sha256Hash, Long> headers = new HashMap<Sha256Hash, Long>(numHeaders * 2);
+            for (int i = 0; i < numHeaders; i++)
+                headers.put(readHash(in), in.readLong());
+            int numUndo = in.readInt();
+            List<Sha256Hash> undoHashes = new ArrayList<Sha256Hash>(numUndo);
+            List<UndoLocation> locations = new ArrayList<UndoLocation>(numUndo);
+            for (int i = 0; i < numUndo; i++) {
+                undoHashes.add(readHash(in));
+                locations.add(new UndoLocation(in.readLong(), in.readInt(), in.readInt()));
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected)
+                return checkpointUnusable("it is corrupt");
+            headerOffsets = headers;
+            Batch batch = new Batch();
+            for (int i = 0; i < numUndo; i++)
+                batch.undoBlocks.put(undoHashes.get(i), locations.get(i));
+            batch.chainHead = head;
+            batch.verifiedChainHead = verifiedHead;
+            applyBatch(batch, -1, false);
+            outputBytes = checkpointOutputBytes;
+            checkpointPosition = position;
+            return true;
+        } catch (EOFException e) {
+            return checkpointUnusable("it is truncated");
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean checkpointUnusable(String reason) {
+        log.warn("Not using checkpoint {} because {}, replaying the whole log", checkpointFile, reason);
+        return false;
+    }
+
+    private static Sha256Hash readHash(DataInputStream in) throws IOException {
+        byte[] hash = new byte[32];
+        in.readFully(hash);
+        return new Sha256Hash(hash);
+    }
+
+    // Returns whether a valid commit record ends exactly at the given log position.
+    private boolean isCommitEndingAt(long position) throws IOException {
+        int size = RECORD_OVERHEAD_BYTES + 32;
+        if (position - size < LOG_PROLOGUE_BYTES || position > logChannel.size())
+            return false;
+        ByteBuffer record = ByteBuffer.allocate(size);
+        readFully(record, position - size);
+        if (record.getInt(0) != 32 || record.get(4) != TYPE_COMMIT)
+            return false;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, 1 + 32);
+        return record.getInt(RECORD_HEADER_BYTES + 32) == (int) crc.getValue();
+    }
+
+    /**
+     * Rewrites the log so it only holds what is still needed: every header, the undo data that hasn't been pruned yet,
+     * the unspent outputs and the chain heads. The old log is replaced once the new one is safely on disk, so a crash
+     * part way through leaves the store as it was. A failure leaves the store open on the old log. Must not be called
+     * during a batch.
+     */
+    public synchronized void compact() throws BlockStoreException {
+        checkOpen();
+        checkState(!inBatch, "Can't compact during a batch");
+        File tmp = new File(logFile.getPath() + ".tmp");
+        long before = logEnd;
+        try {
+            RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+            try {
+                out.setLength(0);
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(out.getFD()), 1 << 16));
+                dos.writeInt(LOG_MAGIC);
+                dos.writeInt(LOG_VERSION);
+                for (long offset : headerOffsets.values())
+                    copyRecord(dos, TYPE_HEADER, offset);
+                for (UndoLocation location : undoLocations.values())
+                    copyRecord(dos, TYPE_UNDO, location.offset);
+                for (int slot = 0; slot < outputs.getCapacity(); slot++) {
+                    long offset = outputs.offsetAt(slot);
+                    if (offset != -1)
+                        copyRecord(dos, TYPE_OUTPUT_ADD, offset);
+                }
+                writeRecord(dos, TYPE_CHAIN_HEAD, chainHead.getHeader().getHash().getBytes());
+                writeRecord(dos, TYPE_VERIFIED_CHAIN_HEAD, verifiedChainHead.getHeader().getHash().getBytes());
+                writeRecord(dos, TYPE_COMMIT, new byte[32]);
+                dos.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // Nothing has been touched yet, the store carries on with the old log.
+            tmp.delete();
+            throw new BlockStoreException(e);
+        }
+        closeFiles();
+        try {
+            // The table and the checkpoint point into the old log, so they have to go before the new log takes its
+            // place.
+            if (!tableFile.delete() && tableFile.exists())
+                throw new BlockStoreException("Failed to delete " + tableFile);
+            if (!checkpointFile.delete() && checkpointFile.exists())
+                throw new BlockStoreException("Failed to delete " + checkpointFile);
+            // File.renameTo won't replace an existing file on every platform.
+            if (!tmp.renameTo(logFile) && !(logFile.delete() && tmp.renameTo(logFile)))
+                throw new BlockStoreException("Failed to replace " + logFile + " with compacted copy " + tmp);
+        } catch (BlockStoreException e) {
+            // Reopen whichever log is in place, rebuilding the table from it, so the store stays usable. If the old
+            // log was deleted but the new one couldn't be renamed, there is nothing safe to open and the compacted
+            // copy is left in tmp.
+            if (logFile.exists()) {
+                tmp.delete();
+                open();
+            }
+            throw e;
+        }
+        open();
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            log.warn("Failed to write checkpoint of " + logFile, e);
+        }
+        log.info("Compacted {} from {} to {} bytes", logFile, before, logEnd);
+    }
+
+    private void copyRecord(DataOutputStream out, byte type, long payloadOffset) throws BlockStoreException, IOException {
+        writeRecord(out, type, readPayload(payloadOffset));
+    }
+
+    private void writeRecord(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeByte(type);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+    }
+
+    public synchronized void close() throws BlockStoreException {
+        if (logChannel == null)
+            return;
+        clearBatch();
+        if (logEnd != checkpointPosition) {
+            try {
+                writeCheckpoint();
+            } catch (IOException e) {
+                log.warn("Failed to write checkpoint of " + logFile, e);
+            }
+        }
+        closeFiles();
+    }
+
+    private void closeFiles() throws BlockStoreException {
+        if (logChannel == null)
+            return;
+        clearBatch();
+        try {
+            outputs.close();
+            logRandomAccessFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            outputs = null;
+            logChannel = null;
+            logRandomAccessFile = null;
+        }
+    }
+
+    /**
+     * <p>A memory mapped hash table from (hash, index) to the log offset of the record describing an unspent output,
+     * using open addressing with linear probing.</p>
+     *
+     * <p>A single mapping can't be bigger than 2GB, so the slots are mapped in segments of {@link #SEGMENT_SLOTS}. The
+     * table holds at most {@link #MAX_CAPACITY} slots, about 800 million unspent outputs.</p>
+     *
+     * <p>File format:</p>
+     * <pre>
+     *   4 bytes magic, 4 bytes version
+     *   4 bytes capacity (a power of two), 4 bytes number of entries
+     *   8 bytes log position the table is up to date with, 0 if it must be rebuilt
+     *   4 bytes set while an update is being applied
+     *   capacity slots of: 32 bytes hash, 4 bytes index, 8 bytes log offset (0 if the slot is free)
+     * </pre>
+     */
+    static class OutputTable {
+        private static final int MAGIC = 0x46505554;  // "FPUT"
+        private static final int VERSION = 1;
+        private static final int HEADER_BYTES = 32;
+        private static final int SLOT_BYTES = 44;
+        private static final int INITIAL_CAPACITY = 1 << 16;
+        private static final int SEGMENT_SHIFT = 24;
+        static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+        static final int MAX_CAPACITY = 1 << 30;
+
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final MappedByteBuffer header;
+        private final MappedByteBuffer[] segments;
+        private final int capacity, mask;
+        // How the slots are split into mappings, which doesn't change what's in the file.
+        private final int segmentShift, segmentMask;
+        private int count;
+
+        private OutputTable(File file, int capacity, int segmentShift, boolean create) throws IOException {
+            this.file = file;
+            this.segmentShift = segmentShift;
+            this.segmentMask = (1 << segmentShift) - 1;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            if (create)
+                randomAccessFile.setLength(0);
+            FileChannel channel = randomAccessFile.getChannel();
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            int segmentSlots = Math.min(capacity, 1 << segmentShift);
+            this.segments = new MappedByteBuffer[capacity / segmentSlots];
+            for (int i = 0; i < segments.length; i++) {
+                long position = HEADER_BYTES + (long) i * segmentSlots * SLOT_BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) segmentSlots * SLOT_BYTES);
+            }
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            if (create) {
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.putInt(8, capacity);
+                header.putInt(12, 0);
+                header.putLong(16, 0);
+                header.putInt(24, 0);
+            } else {
+                count = header.getInt(12);
+            }
+        }
+
+        /** Opens the table in the given file, or starts an empty one that needs rebuilding if it's missing or unusable. */
+        static OutputTable open(File file) throws IOException {
+            return open(file, SEGMENT_SHIFT);
+        }
+
+        static OutputTable open(File file, int segmentShift) throws IOException {
+            if (file.exists() && file.length() >= HEADER_BYTES) {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                int magic, version, capacity, dirty;
+                try {
+                    magic = raf.readInt();
+                    version = raf.readInt();
+                    capacity = raf.readInt();
+                    raf.seek(24);
+                    dirty = raf.readInt();
+                } finally {
+                    raf.close();
+                }
+                boolean sane = magic == MAGIC && version == VERSION && capacity > 0 && capacity <= MAX_CAPACITY &&
+                        (capacity & (capacity - 1)) == 0 && file.length() == HEADER_BYTES + (long) capacity * SLOT_BYTES;
+                if (sane && dirty == 0)
+                    return new OutputTable(file, capacity, segmentShift, false);
+                log.warn("Output table {} is {}, rebuilding it from the log", file, sane ? "incomplete" : "unreadable");
+            }
+            return new OutputTable(file, INITIAL_CAPACITY, segmentShift, true);
+        }
+
+        long getAppliedPosition() {
+            return header.getLong(16);
+        }
+
+        int getCapacity() {
+            return capacity;
+        }
+
+        private MappedByteBuffer segmentOf(int slot) {
+            return segments[slot >>> segmentShift];
+        }
+
+        // The position of the given slot within its segment.
+        private int positionOf(int slot) {
+            return (slot & segmentMask) * SLOT_BYTES;
+        }
+
+        private long offsetIn(int slot) {
+            return segmentOf(slot).getLong(positionOf(slot) + 36);
+        }
+
+        /** Returns the log offset stored in the given slot, or -1 if it's free. */
+        long offsetAt(int slot) {
+            long offset = offsetIn(slot);
+            return offset == 0 ? -1 : offset;
+        }
+
+        void beginUpdate() {
+            header.putInt(24, 1);
+        }
+
+        void finishUpdate(long appliedPosition, boolean sync) {
+            header.putInt(12, count);
+            header.putLong(16, appliedPosition);
+            if (sync) {
+                for (MappedByteBuffer segment : segments)
+                    segment.force();
+                header.putInt(24, 0);
+                header.force();
+            }
+        }
+
+        private int home(byte[] hash, long index) {
+            long h = ((long) (hash[0] & 0xFF) << 56) | ((long) (hash[1] & 0xFF) << 48) |
+                     ((long) (hash[2] & 0xFF) << 40) | ((long) (hash[3] & 0xFF) << 32) |
+                     ((long) (hash[4] & 0xFF) << 24) | ((hash[5] & 0xFF) << 16) |
+                     ((hash[6] & 0xFF) << 8) | (hash[7] & 0xFF);
+            h ^= index * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 29;
+            h *= 0xBF58476D1CE4E5B9L;
+            h ^= h >>> 32;
+            return (int) h & mask;
+        }
+
+        private byte[] hashAt(int slot) {
+            MappedByteBuffer segment = segmentOf(slot);
+            int pos = positionOf(slot);
+            byte[] hash = new byte[32];
+            for (int i = 0; i < 32; i++)
+                hash[i] = segment.get(pos + i);
+            return hash;
+        }
+
+        private long indexAt(int slot) {
+            return segmentOf(slot).getInt(positionOf(slot) + 32) & 0xFFFFFFFFL;
+        }
+
+        private int homeOfSlot(int slot) {
+            return home(hashAt(slot), indexAt(slot));
+        }
+
+        private boolean slotMatches(int slot, byte[] hash, long index) {
+            if (indexAt(slot) != index)
+                return false;
+            MappedByteBuffer segment = segmentOf(slot);
+            int pos = positionOf(slot);
+            for (int i = 0; i < 32; i++)
+                if (segment.get(pos + i) != hash[i])
+                    return false;
+            return true;
+        }
+
+        /** Returns the slot holding the given output, or the free slot it would go in as -(slot + 1). */
+        private int probe(byte[] hash, long index) {
+            int slot = home(hash, index);
+            while (true) {
+                if (offsetIn(slot) == 0)
+                    return -(slot + 1);
+                if (slotMatches(slot, hash, index))
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /** Returns the log offset of the given output, or -1 if it isn't in the table. */
+        long find(Sha256Hash hash, long index) {
+            int slot = probe(hash.getBytes(), index);
+            return slot < 0 ? -1 : offsetIn(slot);
+        }
+
+        /**
+         * Adds or replaces an entry. Returns the table to use from now on, which is a new, bigger one if this one got
+         * too full.
+         */
+        OutputTable put(Sha256Hash hash, long index, long offset) throws IOException {
+            byte[] hashBytes = hash.getBytes();
+            int slot = probe(hashBytes, index);
+            if (slot >= 0) {
+                segmentOf(slot).putLong(positionOf(slot) + 36, offset);
+                return this;
+            }
+            if ((count + 1) > capacity / 4 * 3) {
+                if (capacity == MAX_CAPACITY)
+                    throw new IOException("Output table " + file + " can't hold more than " + count + " unspent outputs");
+                return grow().put(hash, index, offset);
+            }
+            slot = -slot - 1;
+            MappedByteBuffer segment = segmentOf(slot);
+            int pos = positionOf(slot);
+            for (int i = 0; i < 32; i++)
+                segment.put(pos + i, hashBytes[i]);
+            segment.putInt(pos + 32, (int) index);
+            segment.putLong(pos + 36, offset);
+            count++;
+            return this;
+        }
+
+        /** Removes an entry if present, shifting later entries of the same run back so lookups still find them. */
+        void remove(Sha256Hash hash, long index) {
+            int slot = probe(hash.getBytes(), index);
+            if (slot < 0)
+                return;
+            int free = slot;
+            int next = free;
+            while (true) {
+                next = (next + 1) & mask;
+                if (offsetIn(next) == 0)
+                    break;
+                int home = homeOfSlot(next);
+                // Move the entry back if its home isn't cyclically within (free, next].
+                boolean stays = free <= next ? (free < home && home <= next) : (free < home || home <= next);
+                if (!stays) {
+                    copySlot(next, free);
+                    free = next;
+                }
+            }
+            segmentOf(free).putLong(positionOf(free) + 36, 0);
+            count--;
+        }
+
+        private void copySlot(int from, int to) {
+            MappedByteBuffer src = segmentOf(from), dst = segmentOf(to);
+            int srcPos = positionOf(from), dstPos = positionOf(to);
+            for (int i = 0; i < SLOT_BYTES; i++)
+                dst.put(dstPos + i, src.get(srcPos + i));
+        }
+
+        /** Moves every entry into a table of twice the size, which then replaces this one on disk. */
+        private OutputTable grow() throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            OutputTable bigger = new OutputTable(tmp, capacity * 2, segmentShift, true);
+            // If we crash before the caller finishes its update, the new table must be rebuilt like the old one.
+            bigger.beginUpdate();
+            for (int slot = 0; slot < capacity; slot++) {
+                long offset = offsetIn(slot);
+                if (offset == 0)
+                    continue;
+                bigger.put(new Sha256Hash(hashAt(slot)), indexAt(slot), offset);
+            }
+            bigger.header.putLong(16, getAppliedPosition());
+            close();
+            // File.renameTo won't replace an existing file on every platform.
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+                throw new IOException("Failed to replace " + file + " with " + tmp);
+            log.info("Grew output table to {} slots", bigger.capacity);
+            return new OutputTable(file, bigger.capacity, bigger);
+        }
+
+        // Takes over an open table that has been renamed to the given file.
+        private OutputTable(File file, int capacity, OutputTable renamed) {
+            this.file = file;
+            this.segmentShift = renamed.segmentShift;
+            this.segmentMask = renamed.segmentMask;
+            this.randomAccessFile = renamed.randomAccessFile;
+            this.header = renamed.header;
+            this.segments = renamed.segments;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.count = renamed.count;
+        }
+
+        void close() throws IOException {
+            header.putInt(12, count);
+            for (MappedByteBuffer segment : segments)
+                segment.force();
+            header.force();
+            randomAccessFile.close();
+        }
+    }
+}
@@ -17,7 +17,9 @@
 package com.google.fastcoin.store;
 
 import com.google.fastcoin.core.*;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,8 +29,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -48,10 +54,20 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private StoredBlock verifiedChainHeadBlock;
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
+    // Statements are prepared once per connection and reused, see prepare().
+    private ThreadLocal<Map<String, PreparedStatement>> preparedStatements;
+    // Unspent output changes made during a batch, held back until it's committed. See flushOutputChanges().
+    private ThreadLocal<OutputChanges> pendingOutputChanges;
     private List<Connection> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
 
+    static final String SELECT_OPEN_OUTPUT = "SELECT height, value, scriptBytes FROM openOutputs WHERE hash = ? AND index = ?";
+    static final String INSERT_OPEN_OUTPUT = "INSERT INTO openOutputs (hash, index, height, value, scriptBytes) VALUES (?, ?, ?, ?, ?)";
+    static final String DELETE_OPEN_OUTPUT = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+    static final String COUNT_OPEN_OUTPUTS = "SELECT COUNT(*) FROM openOutputs WHERE hash = ?";
+    static final String UPDATE_SETTING = "UPDATE settings SET value = ? WHERE name = ?";
+
     static final String driver = "org.h2.Driver";
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
         + "name VARCHAR(32) NOT NULL CONSTRAINT settings_pk PRIMARY KEY,"
@@ -101,6 +117,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         connectionURL = "jdbc:h2:" + dbName + ";create=true;LOCK_TIMEOUT=60000";
         
         conn = new ThreadLocal<Connection>();
+        preparedStatements = new ThreadLocal<Map<String, PreparedStatement>>();
+        pendingOutputChanges = new ThreadLocal<OutputChanges>();
         allConnections = new LinkedList<Connection>();
 
         try {
@@ -157,6 +175,21 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
     
+    /** Returns a prepared statement for the given SQL on this thread's connection, which must not be closed. */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        Map<String, PreparedStatement> statements = preparedStatements.get();
+        if (statements == null) {
+            statements = new HashMap<String, PreparedStatement>();
+            preparedStatements.set(statements);
+        }
+        PreparedStatement s = statements.get(sql);
+        if (s == null) {
+            s = conn.get().prepareStatement(sql);
+            statements.put(sql, s);
+        }
+        return s;
+    }
+
     public synchronized void close() {
         for (Connection conn : allConnections) {
             try {
@@ -177,6 +210,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.executeUpdate("DROP TABLE undoableBlocks");
             s.executeUpdate("DROP TABLE openOutputs");
             s.close();
+            preparedStatements.remove();
+            pendingOutputChanges.remove();
             createTables();
             initFromDatabase();
         } catch (SQLException ex) {
@@ -347,9 +382,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
-                            + " VALUES(?, ?, ?, ?, ?)");
+            PreparedStatement s = prepare("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+                    + " VALUES(?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
@@ -359,7 +393,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().unsafeFastcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
@@ -416,9 +449,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         try {
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
+                PreparedStatement s = prepare("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+                        + " VALUES(?, ?, ?, ?)");
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
                 if (transactions == null) {
@@ -429,7 +461,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
@@ -467,25 +498,28 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
+            try {
+                if (!results.next()) {
+                    return null;
+                }
+                // Parse it.
+                if (wasUndoableOnly && !results.getBoolean(4))
+                    return null;
+                BigInteger chainWork = new BigInteger(results.getBytes(1));
+                int height = results.getInt(2);
+                Block b = new Block(params, results.getBytes(3));
+                b.verifyHeader();
+                return new StoredBlock(b, chainWork, height);
+            } finally {
+                results.close();
             }
-            // Parse it.
-            if (wasUndoableOnly && !results.getBoolean(4))
-                return null;
-            BigInteger chainWork = new BigInteger(results.getBytes(1));
-            int height = results.getInt(2);
-            Block b = new Block(params, results.getBytes(3));
-            b.verifyHeader();
-            return new StoredBlock(b, chainWork, height);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } catch (ProtocolException e) {
@@ -495,14 +529,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // Should not be able to happen unless the database contains bad
             // blocks.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
         }
     }
     
@@ -519,21 +545,24 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     @Nullable
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
+            byte[] txOutChanges, transactions;
+            try {
+                if (!results.next()) {
+                    return null;
+                }
+                txOutChanges = results.getBytes(1);
+                transactions = results.getBytes(2);
+            } finally {
+                results.close();
             }
             // Parse it.
-            byte[] txOutChanges = results.getBytes(1);
-            byte[] transactions = results.getBytes(2);
             StoredUndoableBlock block;
             if (txOutChanges == null) {
                 int offset = 0;
@@ -568,11 +597,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             // Corrupted database.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -586,12 +610,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING);
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -607,12 +629,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING);
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -623,28 +643,80 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
+            PreparedStatement s = prepare("DELETE FROM undoableBlocks WHERE height <= ?");
             s.setInt(1, height);
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
 
+    /**
+     * Unspent output changes made during a batch. Inserts and deletes are held back and sent to the database as two
+     * JDBC batches when the batch is committed, and an output that is created and spent within the same batch is
+     * only sent as a delete that's allowed to find nothing, in case the database already had it.
+     */
+    private static class OutputChanges {
+        // Keyed by outpoint, in the order the changes were made.
+        final LinkedHashMap<StoredTransactionOutPoint, Change> changes = new LinkedHashMap<StoredTransactionOutPoint, Change>();
+        // Hashes of the transactions with an entry in changes, so hasUnspentOutputs knows when to look closer.
+        final Multiset<Sha256Hash> hashes = HashMultiset.create();
+
+        void put(StoredTransactionOutPoint key, Change change) {
+            if (changes.put(key, change) == null)
+                hashes.add(key.getHash());
+        }
+
+        void remove(StoredTransactionOutPoint key) {
+            if (changes.remove(key) != null)
+                hashes.remove(key.getHash());
+        }
+    }
+
+    private static class Change {
+        // The output to insert, or null if it has been spent.
+        final StoredTransactionOutput out;
+        // The output to delete from the database first, if the database has a row for this outpoint.
+        final StoredTransactionOutput existing;
+        // Whether existing was added during the batch, so the database may not have it and the delete may find nothing.
+        final boolean existingMayBeMissing;
+
+        Change(@Nullable StoredTransactionOutput out, @Nullable StoredTransactionOutput existing) {
+            this(out, existing, false);
+        }
+
+        Change(@Nullable StoredTransactionOutput out, @Nullable StoredTransactionOutput existing, boolean existingMayBeMissing) {
+            this.out = out;
+            this.existing = existing;
+            this.existingMayBeMissing = existingMayBeMissing;
+        }
+    }
+
     @Nullable
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OutputChanges pending = pendingOutputChanges.get();
+        if (pending != null) {
+            Change change = pending.changes.get(new StoredTransactionOutPoint(hash, index));
+            if (change != null)
+                return change.out;
+        }
+        try {
+            return getTransactionOutputFromDatabase(hash, index);
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+    }
+
+    // Looks the output up in the database only, ignoring any changes held back by a batch.
+    @Nullable
+    private StoredTransactionOutput getTransactionOutputFromDatabase(Sha256Hash hash, long index) throws SQLException {
+        PreparedStatement s = prepare(SELECT_OPEN_OUTPUT);
+        s.setBytes(1, hash.getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)index);
+        ResultSet results = s.executeQuery();
         try {
-            s = conn.get()
-                .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
-                        "WHERE hash = ? AND index = ?");
-            s.setBytes(1, hash.getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)index);
-            ResultSet results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -653,59 +725,134 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             BigInteger value = new BigInteger(results.getBytes(2));
             // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
             return new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            results.close();
         }
     }
 
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OutputChanges pending = pendingOutputChanges.get();
+        if (pending != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            Change change = pending.changes.get(key);
+            if (change == null)
+                pending.put(key, new Change(out, null));
+            else
+                pending.put(key, new Change(out, change.existing, change.existingMayBeMissing));
+            return;
+        }
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes) " +
-                    "VALUES (?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, out.getValue().toByteArray());
-            s.setBytes(5, out.getScriptBytes());
+            PreparedStatement s = prepare(INSERT_OPEN_OUTPUT);
+            setInsertParameters(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (e.getErrorCode() != 23505)
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
         }
     }
 
+    private static void setInsertParameters(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setBytes(4, out.getValue().toByteArray());
+        s.setBytes(5, out.getScriptBytes());
+    }
+
+    private static void setDeleteParameters(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+    }
+
+    /**
+     * Removes an output. During a batch the delete is held back until the batch is committed, so if the output isn't
+     * in the database the exception is thrown by {@link #commitDatabaseBatchWrite()} instead.
+     */
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
+        OutputChanges pending = pendingOutputChanges.get();
+        if (pending != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            Change change = pending.changes.get(key);
+            if (change == null)
+                pending.put(key, new Change(null, out));
+            else if (change.out == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+            else if (change.existing != null)
+                pending.put(key, new Change(null, change.existing, change.existingMayBeMissing));
+            else
+                // Added in this batch, but adding doesn't look at the database, which may have had the output all
+                // along. Rather than asking it now, delete the row on commit if there is one.
+                pending.put(key, new Change(null, change.out, true));
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            int updateCount = s.getUpdateCount();
-            s.close();
-            if (updateCount == 0)
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT);
+            setDeleteParameters(s, out);
+            if (s.executeUpdate() == 0)
                 throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    /** Sends the held back output changes of this thread's batch to the database. */
+    private void flushOutputChanges(OutputChanges pending) throws SQLException, BlockStoreException {
+        if (pending.changes.isEmpty())
+            return;
+        int deletes = 0, inserts = 0;
+        PreparedStatement delete = prepare(DELETE_OPEN_OUTPUT);
+        BitSet mayBeMissing = new BitSet();
+        for (Change change : pending.changes.values()) {
+            if (change.existing != null) {
+                setDeleteParameters(delete, change.existing);
+                delete.addBatch();
+                if (change.existingMayBeMissing)
+                    mayBeMissing.set(deletes);
+                deletes++;
+            }
+        }
+        if (deletes > 0) {
+            int[] updateCounts = delete.executeBatch();
+            for (int i = 0; i < updateCounts.length; i++)
+                if (updateCounts[i] == 0 && !mayBeMissing.get(i))
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+        }
+        PreparedStatement insert = prepare(INSERT_OPEN_OUTPUT);
+        for (Change change : pending.changes.values()) {
+            if (change.out != null) {
+                setInsertParameters(insert, change.out);
+                insert.addBatch();
+                inserts++;
+            }
+        }
+        if (inserts > 0) {
+            try {
+                insert.executeBatch();
+            } catch (BatchUpdateException e) {
+                if (e.getErrorCode() != 23505)
+                    throw e;
+                // Outputs that are already there are ignored, as when they're added one by one, so go through the
+                // batch again one row at a time.
+                for (Change change : pending.changes.values()) {
+                    if (change.out == null)
+                        continue;
+                    try {
+                        setInsertParameters(insert, change.out);
+                        insert.executeUpdate();
+                    } catch (SQLException e2) {
+                        if (e2.getErrorCode() != 23505)
+                            throw e2;
+                    }
+                }
+            }
+        }
+        log.debug("Flushed {} output deletes and {} inserts", deletes, inserts);
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
@@ -713,20 +860,39 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (pendingOutputChanges.get() == null)
+            pendingOutputChanges.set(new OutputChanges());
     }
 
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        boolean committed = false;
         try {
+            OutputChanges pending = pendingOutputChanges.get();
+            if (pending != null)
+                flushOutputChanges(pending);
             conn.get().commit();
+            committed = true;
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            pendingOutputChanges.remove();
+            // Don't leave the part of the batch that was written to be committed with whatever comes next.
+            if (!committed) {
+                try {
+                    conn.get().rollback();
+                    conn.get().setAutoCommit(true);
+                } catch (SQLException e) {
+                    log.error("Failed to roll back batch write", e);
+                }
+            }
         }
     }
 
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        pendingOutputChanges.remove();
         try {
             conn.get().rollback();
             conn.get().setAutoCommit(true);
@@ -737,24 +903,29 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OutputChanges pending = pendingOutputChanges.get();
+        if (pending != null && pending.hashes.contains(hash)) {
+            // The database doesn't know about all changes yet, so check each output.
+            for (int i = 0; i < numOutputs; i++)
+                if (getTransactionOutput(hash, i) != null)
+                    return true;
+            return false;
+        }
         try {
-            s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+            PreparedStatement s = prepare(COUNT_OPEN_OUTPUTS);
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                throw new BlockStoreException("Got no results from a COUNT(*) query");
+            try {
+                if (!results.next()) {
+                    throw new BlockStoreException("Got no results from a COUNT(*) query");
+                }
+                int count = results.getInt(1);
+                return count != 0;
+            } finally {
+                results.close();
             }
-            int count = results.getInt(1);
-            return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 }
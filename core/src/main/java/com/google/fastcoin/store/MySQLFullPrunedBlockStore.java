@@ -1,7 +1,10 @@
 package com.google.fastcoin.store;
 
 import com.google.fastcoin.core.*;
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,8 +13,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -31,6 +40,10 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
     private StoredBlock verifiedChainHeadBlock;
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
+    // Statements are prepared once per connection and reused, see prepare().
+    private ThreadLocal<Map<String, PreparedStatement>> preparedStatements;
+    // Unspent output changes made during a batch, held back until it's committed. See flushOutputChanges().
+    private ThreadLocal<OutputChanges> pendingOutputChanges;
     private List<Connection> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
@@ -39,18 +52,23 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
             + "name VARCHAR(32) NOT NULL,"
             + "value BLOB,"
-            + "INDEX settings_pk(`name`)"
+            + "PRIMARY KEY (name)"
             + ")";
     static final String CHAIN_HEAD_SETTING = "chainhead";
     static final String VERIFIED_CHAIN_HEAD_SETTING = "verifiedchainhead";
+    static final String VERSION_SETTING = "version";
+    // Version 2 replaced openOutputsIndex with a single openOutputs table and gave every table a primary key.
+    static final String SCHEMA_VERSION = "02";
 
+    // Every table has a primary key on the block or transaction hash, which InnoDB clusters the rows on, so lookups
+    // by hash go straight to the row.
     static final String CREATE_HEADERS_TABLE = "CREATE TABLE headers ( "
             + "hash BINARY(28) NOT NULL,"
             + "chainWork BLOB NOT NULL,"
             + "height INT NOT NULL,"
             + "header BLOB NOT NULL,"
             + "wasUndoable BOOL NOT NULL,"
-            + "INDEX headers_pk(`hash`)"
+            + "PRIMARY KEY (hash)"
             + ")";
 
     static final String CREATE_UNDOABLE_TABLE = "CREATE TABLE undoableBlocks ( "
@@ -58,25 +76,33 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
             + "height INT NOT NULL,"
             + "txOutChanges BLOB,"
             + "transactions BLOB,"
-            + "INDEX undoableBlocks_pk(`hash`)"
+            + "PRIMARY KEY (hash)"
             + ")";
     static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
 
-    static final String CREATE_OPEN_OUTPUT_INDEX_TABLE = "CREATE TABLE openOutputsIndex ("
-            + "hash BINARY(32) NOT NULL,"
-            + "height INT NOT NULL,"
-            + "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY,"
-            + "INDEX openOutputsIndex_pk(`hash`)"
-            + ")";
+    // Outputs are keyed on the full transaction hash and the output index. The primary key covers hasUnspentOutputs,
+    // which only needs to know whether any row with a given hash exists. Values are stored as plain 64 bit integers.
     static final String CREATE_OPEN_OUTPUT_TABLE = "CREATE TABLE openOutputs ("
-            + "id BIGINT NOT NULL,"
+            + "hash BINARY(32) NOT NULL,"
             + "idx INT NOT NULL,"
-            + "value BLOB NOT NULL,"
+            + "height INT NOT NULL,"
+            + "value BIGINT NOT NULL,"
             + "scriptBytes BLOB NOT NULL,"
-            + "PRIMARY KEY (id, idx),"
-            + "CONSTRAINT openOutputs_fk FOREIGN KEY (id) REFERENCES openOutputsIndex(id)"
+            + "PRIMARY KEY (hash, idx)"
             + ")";
 
+    static final String SELECT_OPEN_OUTPUT = "SELECT height, value, scriptBytes FROM openOutputs WHERE hash = ? AND idx = ?";
+    static final String INSERT_OPEN_OUTPUT_ROW = "(?, ?, ?, ?, ?)";
+    // Not WHERE (hash, idx) IN ((?, ?), ...), which MySQL before 5.7.3 can't use the primary key for.
+    static final String DELETE_OPEN_OUTPUTS = "DELETE FROM openOutputs WHERE ";
+    static final String DELETE_OPEN_OUTPUT_ROW = "(hash = ? AND idx = ?)";
+    static final String ANY_OPEN_OUTPUT = "SELECT 1 FROM openOutputs WHERE hash = ? LIMIT 1";
+    static final String UPDATE_SETTING = "UPDATE settings SET value = ? WHERE name = ?";
+
+    // How many rows go into one multi-row INSERT or DELETE, largest first. Rows are sent in the biggest of these that
+    // fit, so each thread only ever prepares one statement per size for each of them.
+    static final int[] ROWS_PER_STATEMENT = { 128, 16, 4, 1 };
+
     /**
      * Creates a new MySQLFullPrunedBlockStore
      * @param params A copy of the NetworkParameters used
@@ -94,6 +120,8 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
         connectionURL = "jdbc:mysql://" + dbName;// + ";create=true";
 
         conn = new ThreadLocal<Connection>();
+        preparedStatements = new ThreadLocal<Map<String, PreparedStatement>>();
+        pendingOutputChanges = new ThreadLocal<OutputChanges>();
         allConnections = new LinkedList<Connection>();
 
         try {
@@ -118,9 +146,14 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
         maybeConnect();
 
         try {
+            // Finish an interrupted migration before anything looks at the tables
+            if (tableExists("openOutputsIndex_old"))
+                swapMigratedTables();
             // Create tables if needed
             if (!tableExists("settings"))
                 createTables();
+            else
+                maybeMigrate();
             initFromDatabase();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
@@ -162,6 +195,40 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    /** Returns a prepared statement for the given SQL on this thread's connection, which must not be closed. */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        Map<String, PreparedStatement> statements = preparedStatements.get();
+        if (statements == null) {
+            statements = new HashMap<String, PreparedStatement>();
+            preparedStatements.set(statements);
+        }
+        PreparedStatement s = statements.get(sql);
+        if (s == null) {
+            s = conn.get().prepareStatement(sql);
+            statements.put(sql, s);
+        }
+        return s;
+    }
+
+    /** Closes and forgets this thread's prepared statements that use the given table. */
+    private void closeStatements(String table) throws SQLException {
+        Map<String, PreparedStatement> statements = preparedStatements.get();
+        if (statements == null)
+            return;
+        for (Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, PreparedStatement> entry = it.next();
+            if (entry.getKey().contains(" " + table + " ")) {
+                entry.getValue().close();
+                it.remove();
+            }
+        }
+    }
+
+    // MySQL reports duplicate keys as error 1062, H2 (including in MySQL mode) as 23505.
+    private static boolean isDuplicateKey(SQLException e) {
+        return e.getErrorCode() == 1062 || e.getErrorCode() == 23505;
+    }
+
     public synchronized void close() {
         for (Connection conn : allConnections) {
             try {
@@ -181,8 +248,9 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
             s.executeUpdate("DROP TABLE headers");
             s.executeUpdate("DROP TABLE undoableBlocks");
             s.executeUpdate("DROP TABLE openOutputs");
-            s.executeUpdate("DROP TABLE openOutputsIndex");
             s.close();
+            preparedStatements.remove();
+            pendingOutputChanges.remove();
             createTables();
             initFromDatabase();
         } catch (SQLException ex) {
@@ -204,18 +272,120 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
         log.debug("MySQLFullPrunedBlockStore : CREATE undoable block index");
         s.executeUpdate(CREATE_UNDOABLE_TABLE_INDEX);
 
-        log.debug("MySQLFullPrunedBlockStore : CREATE open output index table");
-        s.executeUpdate(CREATE_OPEN_OUTPUT_INDEX_TABLE);
-
         log.debug("MySQLFullPrunedBlockStore : CREATE open output table");
         s.executeUpdate(CREATE_OPEN_OUTPUT_TABLE);
 
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + CHAIN_HEAD_SETTING + "', NULL)");
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERIFIED_CHAIN_HEAD_SETTING + "', NULL)");
         s.close();
+        insertVersionSetting("settings");
         createNewStore(params);
     }
 
+    /**
+     * Brings a database created with the original schema up to date. That schema split unspent outputs over an
+     * openOutputsIndex table with an auto-increment id and an openOutputs table referring to it, stored values as
+     * serialized BigIntegers and had no primary keys on the other tables. Each table is copied into a new one with
+     * the current schema. Only once all copies are done are the old tables swapped out, and renaming openOutputsIndex
+     * marks the start of the swap, so if we're interrupted either the migration runs again from the start or the swap
+     * is finished next time.
+     */
+    private void maybeMigrate() throws SQLException, BlockStoreException {
+        if (!tableExists("openOutputsIndex"))
+            return;
+        log.info("Migrating MySQLFullPrunedBlockStore to schema version {}, this may take a while", SCHEMA_VERSION);
+        Statement s = conn.get().createStatement();
+        try {
+            for (String table : new String[] { "settings", "headers", "undoableBlocks", "openOutputs" })
+                s.executeUpdate("DROP TABLE IF EXISTS " + table + "_new");
+            s.executeUpdate(CREATE_SETTINGS_TABLE.replace("TABLE settings", "TABLE settings_new"));
+            s.executeUpdate(CREATE_HEADERS_TABLE.replace("TABLE headers", "TABLE headers_new"));
+            s.executeUpdate(CREATE_UNDOABLE_TABLE.replace("TABLE undoableBlocks", "TABLE undoableBlocks_new"));
+            s.executeUpdate(CREATE_OPEN_OUTPUT_TABLE.replace("TABLE openOutputs", "TABLE openOutputs_new"));
+            // The old tables had no unique keys, so collapse any duplicates on the way over.
+            s.executeUpdate("INSERT INTO settings_new (name, value) SELECT name, MAX(value) FROM settings GROUP BY name");
+            insertVersionSetting("settings_new");
+            s.executeUpdate("INSERT INTO headers_new (hash, chainWork, height, header, wasUndoable) " +
+                    "SELECT hash, MAX(chainWork), MAX(height), MAX(header), MAX(wasUndoable) FROM headers GROUP BY hash");
+            s.executeUpdate("INSERT INTO undoableBlocks_new (hash, height, txOutChanges, transactions) " +
+                    "SELECT hash, MAX(height), MAX(txOutChanges), MAX(transactions) FROM undoableBlocks GROUP BY hash");
+            migrateOpenOutputs(s);
+            s.executeUpdate(CREATE_UNDOABLE_TABLE_INDEX.replace("heightIndex ON undoableBlocks", "heightIndex_new ON undoableBlocks_new"));
+        } finally {
+            s.close();
+        }
+        renameTable("openOutputsIndex", "openOutputsIndex_old");
+        swapMigratedTables();
+    }
+
+    // Replaces the old tables with the migrated ones. Every step checks whether it was already done, so this can be
+    // run again after being interrupted.
+    private void swapMigratedTables() throws SQLException {
+        String[] tables = { "settings", "headers", "undoableBlocks", "openOutputs" };
+        for (String table : tables)
+            if (tableExists(table + "_new") && !tableExists(table + "_old"))
+                renameTable(table, table + "_old");
+        for (String table : tables)
+            if (tableExists(table + "_new"))
+                renameTable(table + "_new", table);
+        Statement s = conn.get().createStatement();
+        try {
+            for (String table : tables)
+                s.executeUpdate("DROP TABLE IF EXISTS " + table + "_old");
+            s.executeUpdate("DROP TABLE openOutputsIndex_old");
+        } finally {
+            s.close();
+        }
+        log.info("Migration finished");
+    }
+
+    // Values were serialized BigIntegers, which SQL can't turn into numbers, so the outputs are copied through here.
+    private void migrateOpenOutputs(Statement s) throws SQLException {
+        ResultSet rs = s.executeQuery("SELECT openOutputsIndex.hash, openOutputs.idx, openOutputsIndex.height, " +
+                "openOutputs.value, openOutputs.scriptBytes FROM openOutputsIndex NATURAL JOIN openOutputs");
+        List<StoredTransactionOutput> rows = new ArrayList<StoredTransactionOutput>(ROWS_PER_STATEMENT[0]);
+        long count = 0;
+        try {
+            while (rs.next()) {
+                // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                rows.add(new StoredTransactionOutput(new Sha256Hash(rs.getBytes(1)), rs.getInt(2) & 0xFFFFFFFFL,
+                        new BigInteger(rs.getBytes(4)), rs.getInt(3), true, rs.getBytes(5)));
+                if (rows.size() == ROWS_PER_STATEMENT[0]) {
+                    insertOutputs("openOutputs_new", rows);
+                    count += rows.size();
+                    rows.clear();
+                }
+            }
+            insertOutputs("openOutputs_new", rows);
+            count += rows.size();
+        } finally {
+            rs.close();
+            // The table is about to be renamed and they are never used again.
+            closeStatements("openOutputs_new");
+        }
+        log.info("Migrated {} unspent outputs", count);
+    }
+
+    private void insertVersionSetting(String table) throws SQLException {
+        PreparedStatement s = conn.get().prepareStatement("INSERT INTO " + table + "(name, value) VALUES(?, ?)");
+        try {
+            s.setString(1, VERSION_SETTING);
+            s.setBytes(2, SCHEMA_VERSION.getBytes(Charsets.US_ASCII));
+            s.executeUpdate();
+        } finally {
+            s.close();
+        }
+    }
+
+    private void renameTable(String from, String to) throws SQLException {
+        Statement s = conn.get().createStatement();
+        try {
+            s.executeUpdate("ALTER TABLE " + from + " RENAME TO " + to);
+        } finally {
+            s.close();
+        }
+    }
+
     private void initFromDatabase() throws SQLException, BlockStoreException {
         Statement s = conn.get().createStatement();
         ResultSet rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + CHAIN_HEAD_SETTING + "'");
@@ -224,6 +394,10 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
         }
         Sha256Hash hash = new Sha256Hash(rs.getBytes(1));
         rs.close();
+        rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + VERSION_SETTING + "'");
+        if (!rs.next() || !SCHEMA_VERSION.equals(new String(rs.getBytes(1), Charsets.US_ASCII)))
+            throw new BlockStoreException("MySQL block store has an unknown schema version");
+        rs.close();
         this.chainHeadBlock = get(hash);
         this.chainHeadHash = hash;
         if (this.chainHeadBlock == null)
@@ -325,31 +499,21 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
         rs.close();
         System.out.printf("Undoable Blocks size: %d, count: %d, average size: %f%n", size, count, (double)size/count);
 
-        totalSize += size; size = 0; count = 0;
-        rs = s.executeQuery("SELECT id FROM openOutputsIndex");
-        while (rs.next()) {
-            size += 32; // hash
-            size += 4; // height
-            size += 8; // id
-            count++;
-        }
-        rs.close();
-        System.out.printf("Open Outputs Index size: %d, count: %d, size in id indexes: %d%n", size, count, count * 8);
-
         totalSize += size; size = 0; count = 0;
         long scriptSize = 0;
-        rs = s.executeQuery("SELECT value, scriptBytes FROM openOutputs");
+        rs = s.executeQuery("SELECT scriptBytes FROM openOutputs");
         while (rs.next()) {
-            size += 8; // id
+            size += 32; // hash
             size += 4; // index
+            size += 4; // height
+            size += 8; // value
             size += rs.getBytes(1).length;
-            size += rs.getBytes(2).length;
-            scriptSize += rs.getBytes(2).length;
+            scriptSize += rs.getBytes(1).length;
             count++;
         }
         rs.close();
-        System.out.printf("Open Outputs size: %d, count: %d, average size: %f, average script size: %f (%d in id indexes)%n",
-                size, count, (double)size/count, (double)scriptSize/count, count * 8);
+        System.out.printf("Open Outputs size: %d, count: %d, average size: %f, average script size: %f%n",
+                size, count, (double)size/count, (double)scriptSize/count);
 
         totalSize += size;
         System.out.println("Total Size: " + totalSize);
@@ -360,9 +524,8 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
 
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
-                            + " VALUES(?, ?, ?, ?, ?)");
+            PreparedStatement s = prepare("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+                    + " VALUES(?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
@@ -372,11 +535,10 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().fastcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
-            if (e.getErrorCode() != 23505 || !wasUndoable)
+            if (!isDuplicateKey(e) || !wasUndoable)
                 throw e;
 
             PreparedStatement s = conn.get().prepareStatement("UPDATE headers SET wasUndoable=? WHERE hash=?");
@@ -429,9 +591,8 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
 
         try {
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
+                PreparedStatement s = prepare("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+                        + " VALUES(?, ?, ?, ?)");
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
                 if (transactions == null) {
@@ -442,14 +603,13 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
                     throw new BlockStoreException(e);
                 }
             } catch (SQLException e) {
-                if (e.getErrorCode() != 23505)
+                if (!isDuplicateKey(e))
                     throw new BlockStoreException(e);
 
                 // There is probably an update-or-insert statement, but it wasn't obvious from the docs
@@ -479,29 +639,31 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
-            }
-            // Parse it.
+            try {
+                if (!results.next()) {
+                    return null;
+                }
+                // Parse it.
 
-            if (wasUndoableOnly && !results.getBoolean(4))
-                return null;
+                if (wasUndoableOnly && !results.getBoolean(4))
+                    return null;
 
-            BigInteger chainWork = new BigInteger(results.getBytes(1));
-            int height = results.getInt(2);
-            Block b = new Block(params, results.getBytes(3));
-            //b.verifyHeader();
-            StoredBlock stored = new StoredBlock(b, chainWork, height);
-            return stored;
+                BigInteger chainWork = new BigInteger(results.getBytes(1));
+                int height = results.getInt(2);
+                Block b = new Block(params, results.getBytes(3));
+                //b.verifyHeader();
+                StoredBlock stored = new StoredBlock(b, chainWork, height);
+                return stored;
+            } finally {
+                results.close();
+            }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } catch (ProtocolException e) {
@@ -511,11 +673,6 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
             // Should not be able to happen unless the database contains bad
             // blocks.
             //  throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -529,21 +686,24 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
+            byte[] txOutChanges, transactions;
+            try {
+                if (!results.next()) {
+                    return null;
+                }
+                txOutChanges = results.getBytes(1);
+                transactions = results.getBytes(2);
+            } finally {
+                results.close();
             }
             // Parse it.
-            byte[] txOutChanges = results.getBytes(1);
-            byte[] transactions = results.getBytes(2);
             StoredUndoableBlock block;
             if (txOutChanges == null) {
                 int offset = 0;
@@ -578,11 +738,6 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             // Corrupted database.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -596,12 +751,10 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING);
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -617,12 +770,10 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING);
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -633,112 +784,228 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
+            PreparedStatement s = prepare("DELETE FROM undoableBlocks WHERE height <= ?");
             s.setInt(1, height);
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
 
+    /**
+     * Unspent output changes made during a batch. They are held back and sent to the database as multi-row DELETEs
+     * and INSERTs when the batch is committed, and an output that is created and spent within the same batch is only
+     * sent as a delete that's allowed to find nothing, in case the database already had it.
+     */
+    private static class OutputChanges {
+        // Keyed by outpoint, in the order the changes were made.
+        final LinkedHashMap<StoredTransactionOutPoint, Change> changes = new LinkedHashMap<StoredTransactionOutPoint, Change>();
+        // Hashes of the transactions with an entry in changes, so hasUnspentOutputs knows when to look closer.
+        final Multiset<Sha256Hash> hashes = HashMultiset.create();
+
+        void put(StoredTransactionOutPoint key, Change change) {
+            if (changes.put(key, change) == null)
+                hashes.add(key.getHash());
+        }
+
+        void remove(StoredTransactionOutPoint key) {
+            if (changes.remove(key) != null)
+                hashes.remove(key.getHash());
+        }
+    }
+
+    private static class Change {
+        // The output to insert, or null if it has been spent.
+        final StoredTransactionOutput out;
+        // The output to delete from the database first, if the database has a row for this outpoint.
+        final StoredTransactionOutput existing;
+        // Whether existing was added during the batch, so the database may not have it and the delete may find nothing.
+        final boolean existingMayBeMissing;
+
+        Change(StoredTransactionOutput out, StoredTransactionOutput existing) {
+            this(out, existing, false);
+        }
+
+        Change(StoredTransactionOutput out, StoredTransactionOutput existing, boolean existingMayBeMissing) {
+            this.out = out;
+            this.existing = existing;
+            this.existingMayBeMissing = existingMayBeMissing;
+        }
+    }
+
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OutputChanges pending = pendingOutputChanges.get();
+        if (pending != null) {
+            Change change = pending.changes.get(new StoredTransactionOutPoint(hash, index));
+            if (change != null)
+                return change.out;
+        }
+        try {
+            return getTransactionOutputFromDatabase(hash, index);
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+    }
+
+    // Looks the output up in the database only, ignoring any changes held back by a batch.
+    private StoredTransactionOutput getTransactionOutputFromDatabase(Sha256Hash hash, long index) throws SQLException {
+        PreparedStatement s = prepare(SELECT_OPEN_OUTPUT);
+        s.setBytes(1, hash.getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)index);
+        ResultSet results = s.executeQuery();
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT openOutputsIndex.height, openOutputs.value, openOutputs.scriptBytes " +
-                            "FROM openOutputsIndex NATURAL JOIN openOutputs " +
-                            "WHERE openOutputsIndex.hash = ? AND openOutputs.idx = ?");
-            s.setBytes(1, hash.getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)index);
-            ResultSet results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
             // Parse it.
             int height = results.getInt(1);
-            BigInteger value = new BigInteger(results.getBytes(2));
+            BigInteger value = BigInteger.valueOf(results.getLong(2));
             // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            StoredTransactionOutput txout = new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
-            return txout;
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
+            return new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            results.close();
         }
     }
 
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OutputChanges pending = pendingOutputChanges.get();
+        if (pending != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            Change change = pending.changes.get(key);
+            if (change == null)
+                pending.put(key, new Change(out, null));
+            else
+                pending.put(key, new Change(out, change.existing, change.existingMayBeMissing));
+            return;
+        }
+        try {
+            insertOutputs("openOutputs", Collections.singletonList(out));
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Removes an output. During a batch the delete is held back until the batch is committed, so if the output isn't
+     * in the database the exception is thrown by {@link #commitDatabaseBatchWrite()} instead.
+     */
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        maybeConnect();
+        OutputChanges pending = pendingOutputChanges.get();
+        if (pending != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            Change change = pending.changes.get(key);
+            if (change == null)
+                pending.put(key, new Change(null, out));
+            else if (change.out == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MySQLFullPrunedBlockStore that it didn't have!");
+            else if (change.existing != null)
+                pending.put(key, new Change(null, change.existing, change.existingMayBeMissing));
+            else
+                // Added in this batch, but adding doesn't look at the database, which may have had the output all
+                // along. Rather than asking it now, delete the row on commit if there is one.
+                pending.put(key, new Change(null, change.out, true));
+            return;
+        }
         try {
+            deleteOutputs(Collections.singletonList(out), true);
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Inserts the given outputs into the given table, in statements of the sizes in {@link #ROWS_PER_STATEMENT}.
+     * Outputs that are already there are ignored.
+     */
+    private void insertOutputs(String table, List<StoredTransactionOutput> outs) throws SQLException {
+        for (int start = 0; start < outs.size(); ) {
+            List<StoredTransactionOutput> rows = outs.subList(start, start + rowsForNextStatement(outs.size() - start));
+            start += rows.size();
+            PreparedStatement s = prepare(multiRowSql("INSERT INTO " + table + " (hash, idx, height, value, scriptBytes) VALUES ",
+                    INSERT_OPEN_OUTPUT_ROW, ", ", rows.size(), ""));
+            int i = 1;
+            for (StoredTransactionOutput out : rows) {
+                s.setBytes(i++, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(i++, (int)out.getIndex());
+                s.setInt(i++, out.getHeight());
+                s.setLong(i++, out.getValue().longValue());
+                s.setBytes(i++, out.getScriptBytes());
+            }
             try {
-                s = conn.get().prepareStatement("INSERT INTO openOutputsIndex(hash, height)"
-                        + " VALUES(?, ?)");
-                s.setBytes(1, out.getHash().getBytes());
-                s.setInt(2, out.getHeight());
                 s.executeUpdate();
             } catch (SQLException e) {
-                if (e.getErrorCode() != 23505)
+                if (!isDuplicateKey(e))
                     throw e;
-            } finally {
-                if (s != null)
-                    s.close();
+                if (rows.size() == 1)
+                    continue;
+                // One of the rows was already there and the statement did nothing, so go through them one by one.
+                for (StoredTransactionOutput out : rows)
+                    insertOutputs(table, Collections.singletonList(out));
             }
+        }
+    }
 
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (id, idx, value, scriptBytes) " +
-                    "VALUES ((SELECT id FROM openOutputsIndex WHERE hash = ?), " +
-                    "?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setBytes(3, out.getValue().toByteArray());
-            s.setBytes(4, out.getScriptBytes());
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            if (e.getErrorCode() != 23505)
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
+    /**
+     * Deletes the given outputs, in statements of the sizes in {@link #ROWS_PER_STATEMENT}. If mustExist is set, all of
+     * them must be there.
+     */
+    private void deleteOutputs(List<StoredTransactionOutput> outs, boolean mustExist) throws SQLException, BlockStoreException {
+        for (int start = 0; start < outs.size(); ) {
+            List<StoredTransactionOutput> rows = outs.subList(start, start + rowsForNextStatement(outs.size() - start));
+            start += rows.size();
+            PreparedStatement s = prepare(multiRowSql(DELETE_OPEN_OUTPUTS, DELETE_OPEN_OUTPUT_ROW, " OR ", rows.size(), ""));
+            int i = 1;
+            for (StoredTransactionOutput out : rows) {
+                s.setBytes(i++, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(i++, (int)out.getIndex());
+            }
+            if (s.executeUpdate() != rows.size() && mustExist)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MySQLFullPrunedBlockStore that it didn't have!");
         }
     }
 
-    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
-        maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
-            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MySQLFullPrunedBlockStore that it didn't have!");
-        try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("DELETE FROM openOutputs " +
-                            "WHERE id = (SELECT id FROM openOutputsIndex WHERE hash = ?) AND idx = ?");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
+    // Returns the biggest statement size that doesn't go over the number of rows left.
+    private static int rowsForNextStatement(int remaining) {
+        for (int rows : ROWS_PER_STATEMENT)
+            if (rows <= remaining)
+                return rows;
+        throw new IllegalArgumentException("No rows left: " + remaining);
+    }
 
-            // This is quite an ugly query, is there no better way?
-            s = conn.get().prepareStatement("DELETE FROM openOutputsIndex " +
-                    "WHERE hash = ? AND 1 = (CASE WHEN ((SELECT COUNT(*) FROM openOutputs WHERE id =" +
-                    "(SELECT id FROM openOutputsIndex WHERE hash = ?)) = 0) THEN 1 ELSE 0 END)");
-            s.setBytes(1, out.getHash().getBytes());
-            s.setBytes(2, out.getHash().getBytes());
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            throw new BlockStoreException(e);
+    private static String multiRowSql(String prefix, String row, String separator, int rows, String suffix) {
+        StringBuilder sql = new StringBuilder(prefix.length() + rows * (row.length() + separator.length()) + suffix.length());
+        sql.append(prefix);
+        for (int i = 0; i < rows; i++) {
+            if (i > 0)
+                sql.append(separator);
+            sql.append(row);
         }
+        return sql.append(suffix).toString();
+    }
+
+    /** Sends the held back output changes of this thread's batch to the database. */
+    private void flushOutputChanges(OutputChanges pending) throws SQLException, BlockStoreException {
+        if (pending.changes.isEmpty())
+            return;
+        List<StoredTransactionOutput> deletes = new ArrayList<StoredTransactionOutput>();
+        List<StoredTransactionOutput> deletesIfPresent = new ArrayList<StoredTransactionOutput>();
+        List<StoredTransactionOutput> inserts = new ArrayList<StoredTransactionOutput>();
+        for (Change change : pending.changes.values()) {
+            if (change.existing != null)
+                (change.existingMayBeMissing ? deletesIfPresent : deletes).add(change.existing);
+            if (change.out != null)
+                inserts.add(change.out);
+        }
+        deleteOutputs(deletes, true);
+        deleteOutputs(deletesIfPresent, false);
+        insertOutputs("openOutputs", inserts);
+        log.debug("Flushed {} output deletes and {} inserts", deletes.size() + deletesIfPresent.size(), inserts.size());
     }
 
     public void beginDatabaseBatchWrite() throws BlockStoreException {
@@ -748,20 +1015,39 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (pendingOutputChanges.get() == null)
+            pendingOutputChanges.set(new OutputChanges());
     }
 
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        boolean committed = false;
         try {
+            OutputChanges pending = pendingOutputChanges.get();
+            if (pending != null)
+                flushOutputChanges(pending);
             conn.get().commit();
+            committed = true;
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            pendingOutputChanges.remove();
+            // Don't leave the part of the batch that was written to be committed with whatever comes next.
+            if (!committed) {
+                try {
+                    conn.get().rollback();
+                    conn.get().setAutoCommit(true);
+                } catch (SQLException e) {
+                    log.error("Failed to roll back batch write", e);
+                }
+            }
         }
     }
 
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        pendingOutputChanges.remove();
         try {
             conn.get().rollback();
             conn.get().setAutoCommit(true);
@@ -772,25 +1058,25 @@ public class MySQLFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OutputChanges pending = pendingOutputChanges.get();
+        if (pending != null && pending.hashes.contains(hash)) {
+            // The database doesn't know about all changes yet, so check each output.
+            for (int i = 0; i < numOutputs; i++)
+                if (getTransactionOutput(hash, i) != null)
+                    return true;
+            return false;
+        }
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT COUNT(*) FROM openOutputsIndex " +
-                            "WHERE hash = ?");
+            PreparedStatement s = prepare(ANY_OPEN_OUTPUT);
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                throw new BlockStoreException("Got no results from a COUNT(*) query");
+            try {
+                return results.next();
+            } finally {
+                results.close();
             }
-            int count = results.getInt(1);
-            return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
-}
\ No newline at end of file
+}
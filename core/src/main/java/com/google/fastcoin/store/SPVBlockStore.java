@@ -29,9 +29,14 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -48,13 +53,24 @@ public class SPVBlockStore implements BlockStore {
 
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_NUM_HEADERS = 5000;
+    /** The default number of headers kept deserialized in memory. Slightly more than the difficulty transition period. */
+    public static final int DEFAULT_CACHE_SIZE = 2050;
     public static final String HEADER_MAGIC = "SPVB";
 
     protected volatile MappedByteBuffer buffer;
     protected int numHeaders;
+    protected int cacheSize;
     protected NetworkParameters params;
 
+    // Statistics for getCacheHitRate().
+    private final StripedCounter cacheHits = new StripedCounter(), cacheMisses = new StripedCounter();
+
+    // Only writers (put, setChainHead) take the lock. Readers never do: they read the ring with absolute positions,
+    // or through their own duplicate of the buffer, so the position of the shared buffer belongs to the writers. A
+    // writer makes writeCount odd while it changes the ring, the head hash or the index, and even again when done. A
+    // reader that finds it changed across its read may have seen a half written record, so it reads again.
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
+    private final AtomicInteger writeCount = new AtomicInteger();
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -63,41 +79,90 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    //
+    // Both caches are safe for concurrent use and drop their oldest entries first once full.
+    protected final ConcurrentMap<Sha256Hash, StoredBlock> blockCache;
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    protected final ConcurrentMap<Sha256Hash, Object> notFoundCache =
+            new FifoCache<Sha256Hash, Object>(100);  // This was chosen arbitrarily.
+    // Maps block hashes to their slot in the ring, so that a miss in blockCache costs one probe instead of a scan of
+    // the whole ring. Null if the store was opened without an index.
+    @Nullable protected SlotIndex index;
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
 
+    /**
+     * Creates and initializes an SPV block store with a hash index over the ring. Will create the given file with
+     * room for {@link #DEFAULT_NUM_HEADERS} headers if it's missing, an existing file is opened at whatever size it
+     * has. This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, 0, DEFAULT_CACHE_SIZE, true, false);
+    }
+
+    /**
+     * Creates and initializes an SPV block store. Will create the given file with room for
+     * {@link #DEFAULT_NUM_HEADERS} headers if it's missing, an existing file is opened at whatever size it has. This
+     * operation will block on disk.
+     *
+     * @param indexed whether to keep an in-memory hash index of the ring, see
+     *                {@link #SPVBlockStore(NetworkParameters, File, int, int, boolean)}.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, boolean indexed) throws BlockStoreException {
+        this(params, file, 0, DEFAULT_CACHE_SIZE, indexed, false);
+    }
+
     /**
      * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
      * will block on disk.
+     *
+     * <p>If the file exists but holds fewer headers than asked for, it is migrated to the larger size first: the
+     * headers it holds are copied, newest last, into a ring of the new size so nothing has to be downloaded again.
+     * The migration happens with the file locked, and the new ring is written out to a separate file before the
+     * store is rewritten from it, so a crash part way through is finished off the next time the store is opened. A
+     * file that holds more headers than asked for is opened at its own size, as shrinking it would throw headers
+     * away for good. Use {@link Builder#allowShrink(boolean)} to shrink a store.</p>
+     *
+     * @param numHeaders how many headers the ring holds at least, which is how deep a re-org the store can handle
+     *                   and how far back headers can be read without going to the network.
+     * @param cacheSize how many headers are kept deserialized in memory. This should be larger than the difficulty
+     *                  transition interval, as that many blocks are read back at every transition.
+     * @param indexed whether to keep an in-memory hash index of the ring. The index is rebuilt by reading every
+     *                record when the store is opened and costs 8 bytes per slot (at most 4x the number of headers),
+     *                but means lookups of blocks that aren't in the cache never have to scan the ring.
      */
-    public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+    public SPVBlockStore(NetworkParameters params, File file, int numHeaders, int cacheSize, boolean indexed)
+            throws BlockStoreException {
+        this(params, file, checkPositive(numHeaders), cacheSize, indexed, false);
+    }
+
+    // A requestedHeaders of zero means the size of the existing file, or the default for a new one.
+    private SPVBlockStore(NetworkParameters params, File file, int requestedHeaders, int cacheSize, boolean indexed,
+                          boolean allowShrink) throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(requestedHeaders >= 0, "numHeaders must not be negative");
+        checkArgument(cacheSize > 0, "cacheSize must be positive");
         this.params = checkNotNull(params);
+        this.cacheSize = cacheSize;
+        this.blockCache = new FifoCache<Sha256Hash, StoredBlock>(cacheSize);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
             boolean exists = file.exists();
-            // Set up the backing file.
+            // Set up the backing file, and lock it before touching its contents.
             randomAccessFile = new RandomAccessFile(file, "rw");
+            FileChannel channel = randomAccessFile.getChannel();
+            fileLock = channel.tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store file is already locked by another process");
+            if (exists)
+                this.numHeaders = migrateIfNeeded(file, randomAccessFile, requestedHeaders, allowShrink);
+            else
+                this.numHeaders = requestedHeaders == 0 ? DEFAULT_NUM_HEADERS : requestedHeaders;
             long fileSize = getFileSize();
             if (!exists) {
                 log.info("Creating new SPV block chain file " + file);
@@ -107,11 +172,6 @@ public class SPVBlockStore implements BlockStore {
                         randomAccessFile.length() + " vs " + fileSize);
             }
 
-            FileChannel channel = randomAccessFile.getChannel();
-            fileLock = channel.tryLock();
-            if (fileLock == null)
-                throw new BlockStoreException("Store file is already locked by another process");
-
             // Map it into memory read/write. The kernel will take care of flushing writes to disk at the most
             // efficient times, which may mean that until the map is deallocated the data on disk is randomly
             // inconsistent. However the only process accessing it is us, via this mapping, so our own view will
@@ -119,6 +179,9 @@ public class SPVBlockStore implements BlockStore {
             // the details of mmapping vary between platforms.
             buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
 
+            if (indexed)
+                index = new SlotIndex(numHeaders);
+
             // Check or initialize the header bytes to ensure we don't try to open some random file.
             byte[] header;
             if (exists) {
@@ -126,6 +189,8 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                if (index != null)
+                    rebuildIndex();
             } else {
                 initNewStore(params);
             }
@@ -139,6 +204,72 @@ public class SPVBlockStore implements BlockStore {
         }
     }
 
+    private static int checkPositive(int numHeaders) {
+        checkArgument(numHeaders > 0, "numHeaders must be positive");
+        return numHeaders;
+    }
+
+    /**
+     * Opens SPV block stores with settings other than the defaults, including ones that the constructors don't
+     * offer. For example, to open a store holding a day of headers and shrink it if it is bigger:
+     *
+     * <pre>
+     * SPVBlockStore store = new SPVBlockStore.Builder(params, file).numHeaders(1500).allowShrink(true).build();
+     * </pre>
+     */
+    public static class Builder {
+        private final NetworkParameters params;
+        private final File file;
+        private int numHeaders;
+        private int cacheSize = DEFAULT_CACHE_SIZE;
+        private boolean indexed = true;
+        private boolean allowShrink;
+
+        public Builder(NetworkParameters params, File file) {
+            this.params = checkNotNull(params);
+            this.file = checkNotNull(file);
+        }
+
+        /**
+         * Sets how many headers the ring holds, see {@link SPVBlockStore#SPVBlockStore(NetworkParameters, File, int,
+         * int, boolean)}. If not set, a new store holds {@link SPVBlockStore#DEFAULT_NUM_HEADERS} and an existing
+         * one keeps its size.
+         */
+        public Builder numHeaders(int numHeaders) {
+            this.numHeaders = checkPositive(numHeaders);
+            return this;
+        }
+
+        /**
+         * Sets how many headers are kept deserialized in memory, {@link SPVBlockStore#DEFAULT_CACHE_SIZE} by default.
+         */
+        public Builder cacheSize(int cacheSize) {
+            checkArgument(cacheSize > 0, "cacheSize must be positive");
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        /** Sets whether to keep an in-memory hash index of the ring, true by default. */
+        public Builder indexed(boolean indexed) {
+            this.indexed = indexed;
+            return this;
+        }
+
+        /**
+         * Sets whether an existing store holding more headers than {@link #numHeaders(int)} is shrunk to that size,
+         * dropping its oldest headers for good. False by default, in which case it is opened at its own size.
+         */
+        public Builder allowShrink(boolean allowShrink) {
+            this.allowShrink = allowShrink;
+            return this;
+        }
+
+        /** Opens the store, creating or migrating the file as needed. This operation will block on disk. */
+        public SPVBlockStore build() throws BlockStoreException {
+            return new SPVBlockStore(params, file, numHeaders, cacheSize, indexed, allowShrink);
+        }
+    }
+
     private void initNewStore(NetworkParameters params) throws Exception {
         byte[] header;
         header = HEADER_MAGIC.getBytes("US-ASCII");
@@ -156,6 +287,119 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    /**
+     * Rewrites the store file to hold the given number of headers if it currently holds fewer, or more if shrinking
+     * is allowed, and returns the number of headers the file holds afterwards. The records are written out oldest
+     * first from the start of the ring, so the usual wrap-around logic carries on. The caller must hold the lock on
+     * the file, which is rewritten in place: the new ring goes to a file next to it first, so if the rewrite is
+     * interrupted it can be started again from there.
+     */
+    private static int migrateIfNeeded(File file, RandomAccessFile store, int numHeaders, boolean allowShrink)
+            throws IOException, BlockStoreException {
+        File migrated = new File(file.getPath() + ".migrated");
+        if (migrated.exists()) {
+            log.info("Finishing interrupted migration of SPV block chain file {}", file);
+            copyInto(migrated, store);
+        }
+        long length = store.length();
+        if (length < FILE_PROLOGUE_BYTES + RECORD_SIZE || (length - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0)
+            throw new BlockStoreException("File size on disk is not a valid store size: " + length);
+        final int oldNumHeaders = (int) ((length - FILE_PROLOGUE_BYTES) / RECORD_SIZE);
+        if (numHeaders == 0 || oldNumHeaders == numHeaders)
+            return oldNumHeaders;
+        if (oldNumHeaders > numHeaders && !allowShrink) {
+            log.info("SPV block chain file {} holds {} headers, more than the {} asked for, keeping them all",
+                    file, oldNumHeaders, numHeaders);
+            return oldNumHeaders;
+        }
+        log.info("Migrating SPV block chain file {} from {} to {} headers", file, oldNumHeaders, numHeaders);
+        byte[] prologue = new byte[FILE_PROLOGUE_BYTES];
+        store.seek(0);
+        store.readFully(prologue);
+        if (!new String(prologue, 0, 4, "US-ASCII").equals(HEADER_MAGIC))
+            throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+        final int cursor = ByteBuffer.wrap(prologue).getInt(4);
+        final int firstSlot = cursor == length ? 0 : slotOf(cursor);
+        // Read every used record, oldest first, keeping only as many of the newest as will fit.
+        LinkedList<byte[]> records = new LinkedList<byte[]>();
+        byte[] hashBytes = new byte[32];
+        for (int i = 0; i < oldNumHeaders; i++) {
+            store.seek(offsetOf((firstSlot + i) % oldNumHeaders));
+            byte[] record = new byte[RECORD_SIZE];
+            store.readFully(record);
+            System.arraycopy(record, 0, hashBytes, 0, 32);
+            if (isEmptyHash(hashBytes))
+                continue;
+            records.add(record);
+            if (records.size() > numHeaders)
+                records.removeFirst();
+        }
+        ByteBuffer.wrap(prologue).putInt(4, offsetOf(records.size()));
+        // Only a complete copy is renamed into place, so a leftover .migrated file is always safe to copy from.
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            out.write(prologue);
+            for (byte[] record : records)
+                out.write(record);
+            out.setLength(FILE_PROLOGUE_BYTES + (long) RECORD_SIZE * numHeaders);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        // File.renameTo won't replace an existing file on every platform.
+        if (!tmp.renameTo(migrated) && !(migrated.delete() && tmp.renameTo(migrated)))
+            throw new BlockStoreException("Failed to rename migrated copy " + tmp + " to " + migrated);
+        copyInto(migrated, store);
+        return numHeaders;
+    }
+
+    /** Overwrites the locked store file with the contents of the given file, then deletes it. */
+    private static void copyInto(File from, RandomAccessFile store) throws IOException, BlockStoreException {
+        RandomAccessFile in = new RandomAccessFile(from, "r");
+        try {
+            store.seek(0);
+            byte[] chunk = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(chunk)) > 0)
+                store.write(chunk, 0, read);
+            store.setLength(in.length());
+            store.getFD().sync();
+        } finally {
+            in.close();
+        }
+        if (!from.delete())
+            throw new BlockStoreException("Failed to delete migrated copy " + from);
+    }
+
+    /** Fills the index from the hashes in the ring, oldest record first so later copies of a block win. */
+    private void rebuildIndex() {
+        lock.lock();
+        try {
+            final int cursor = getRingCursor(buffer);
+            final int firstSlot = cursor == getFileSize() ? 0 : slotOf(cursor);
+            byte[] hashBytes = new byte[32];
+            for (int i = 0; i < numHeaders; i++) {
+                int slot = (firstSlot + i) % numHeaders;
+                buffer.position(offsetOf(slot));
+                buffer.get(hashBytes);
+                if (!isEmptyHash(hashBytes))
+                    index.put(buffer, hashBytes, slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many headers the ring holds. This can be more than was asked for when opening the store, see
+     * {@link #SPVBlockStore(NetworkParameters, File, int, int, boolean)}.
+     */
+    public int getNumHeaders() {
+        return numHeaders;
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public int getFileSize() {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
@@ -166,20 +410,34 @@ public class SPVBlockStore implements BlockStore {
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        writeCount.incrementAndGet();
         try {
             int cursor = getRingCursor(buffer);
             if (cursor == getFileSize()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
-            buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
+            if (index != null) {
+                // The record being overwritten falls out of the ring, so it must leave the index too.
+                int slot = slotOf(cursor);
+                byte[] oldHashBytes = new byte[32];
+                buffer.position(cursor);
+                buffer.get(oldHashBytes);
+                if (!isEmptyHash(oldHashBytes))
+                    index.remove(oldHashBytes, slot);
+                index.put(buffer, hash.getBytes(), slot);
+            }
+            buffer.position(cursor);
             notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
             blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+        } finally {
+            writeCount.incrementAndGet();
+            lock.unlock();
+        }
     }
 
     @Nullable
@@ -187,65 +445,120 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
-        try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
+        StoredBlock cacheHit = blockCache.get(hash);
+        if (cacheHit != null) {
+            cacheHits.increment();
+            return cacheHit;
+        }
+        cacheMisses.increment();
+        if (index == null && notFoundCache.containsKey(hash))
             return null;
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        final byte[] hashBytes = hash.getBytes();
+        while (true) {
+            final int writes = writeCount.get();
+            if ((writes & 1) != 0) {
+                Thread.yield();  // A writer is halfway through.
+                continue;
+            }
+            try {
+                StoredBlock storedBlock = readRecord(buffer, hashBytes);
+                // A write we raced may have left us a half written record or index. The compare-and-set, rather than
+                // a plain read, makes sure none of our reads of the ring happen after this check.
+                if (writeCount.compareAndSet(writes, writes))
+                    return cacheResult(hash, storedBlock, writes);
+            } catch (ProtocolException e) {
+                if (writeCount.compareAndSet(writes, writes))
+                    throw new RuntimeException(e);  // Cannot happen.
+            } catch (RuntimeException e) {
+                if (writeCount.compareAndSet(writes, writes))
+                    throw e;
+            }
+            // Let the writer we raced finish before reading again.
+            Thread.yield();
+        }
     }
 
-    protected StoredBlock lastChainHead = null;
+    @Nullable
+    private StoredBlock cacheResult(Sha256Hash hash, @Nullable StoredBlock storedBlock, int writes) {
+        if (storedBlock != null) {
+            blockCache.put(hash, storedBlock);
+        } else if (index == null) {
+            notFoundCache.put(hash, notFoundMarker);
+            // If a writer got in since the ring was read it may have just added the block, after removing it from
+            // notFoundCache, so don't leave it there.
+            if (!writeCount.compareAndSet(writes, writes))
+                notFoundCache.remove(hash);
+        }
+        return storedBlock;
+    }
+
+    // Reads the record for the given hash from the ring, or returns null if it isn't there.
+    @Nullable
+    private StoredBlock readRecord(MappedByteBuffer buffer, byte[] hashBytes) throws ProtocolException {
+        if (index != null) {
+            int slot = index.find(buffer, hashBytes);
+            return slot < 0 ? null : deserializeRecord(buffer, offsetOf(slot));
+        }
+
+        // Starting from the current tip of the ring work backwards until we have either found the block or
+        // wrapped around.
+        int cursor = getRingCursor(buffer);
+        final int startingPoint = cursor;
+        final int fileSize = getFileSize();
+        do {
+            cursor -= RECORD_SIZE;
+            if (cursor < FILE_PROLOGUE_BYTES) {
+                // We hit the start, so wrap around.
+                cursor = fileSize - RECORD_SIZE;
+            }
+            // Cursor is now at the start of the next record to check, so compare its hash.
+            if (hashAtOffsetEquals(buffer, cursor, hashBytes)) {
+                // Found the target.
+                return deserializeRecord(buffer, cursor);
+            }
+        } while (cursor != startingPoint);
+        // Not found.
+        return null;
+    }
+
+    private StoredBlock deserializeRecord(MappedByteBuffer buffer, int offset) throws ProtocolException {
+        // Our own view of the mapping, so we don't disturb the position of the shared buffer.
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset + 32);
+        return StoredBlock.deserializeCompact(params, view);
+    }
+
+    protected volatile StoredBlock lastChainHead = null;
+    private static final AtomicReferenceFieldUpdater<SPVBlockStore, StoredBlock> lastChainHeadUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(SPVBlockStore.class, StoredBlock.class, "lastChainHead");
 
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
-        try {
-            if (lastChainHead == null) {
-                byte[] headHash = new byte[32];
-                buffer.position(8);
-                buffer.get(headHash);
-                Sha256Hash hash = new Sha256Hash(headHash);
-                StoredBlock block = get(hash);
-                if (block == null)
-                    throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
-                lastChainHead = block;
+        // Once loaded, the head is only ever replaced by setChainHead, so reading it needs no lock.
+        StoredBlock head = lastChainHead;
+        if (head != null)
+            return head;
+        byte[] headHash = new byte[32];
+        while (true) {
+            final int writes = writeCount.get();
+            if ((writes & 1) != 0) {
+                Thread.yield();
+                continue;
             }
-            return lastChainHead;
-        } finally { lock.unlock(); }
+            for (int i = 0; i < 32; i++)
+                headHash[i] = buffer.get(8 + i);
+            if (writeCount.compareAndSet(writes, writes))
+                break;
+        }
+        Sha256Hash hash = new Sha256Hash(headHash);
+        head = get(hash);
+        if (head == null)
+            throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+        // If setChainHead got in first, let its head stand.
+        lastChainHeadUpdater.compareAndSet(this, null, head);
+        return lastChainHead;
     }
 
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
@@ -253,14 +566,50 @@ public class SPVBlockStore implements BlockStore {
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        writeCount.incrementAndGet();
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
+        } finally {
+            writeCount.incrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many slots of the ring hold a header. Once the ring has wrapped around this equals
+     * {@link #getNumHeaders()}.
+     */
+    public int getRingOccupancy() throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            // Records are always written in order from the start of the ring, so if the next slot to be written is
+            // still empty the ring hasn't wrapped yet and everything before it is in use.
+            int cursor = getRingCursor(buffer);
+            if (cursor == getFileSize())
+                return numHeaders;
+            byte[] hashBytes = new byte[32];
+            buffer.position(cursor);
+            buffer.get(hashBytes);
+            return isEmptyHash(hashBytes) ? slotOf(cursor) : numHeaders;
         } finally { lock.unlock(); }
     }
 
+    /**
+     * Returns the fraction of {@link #get(Sha256Hash)} calls since the store was opened that were answered from the
+     * in-memory cache, or zero if there were none.
+     */
+    public double getCacheHitRate() {
+        long hits = cacheHits.get();
+        long total = hits + cacheMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
     public void close() throws BlockStoreException {
         try {
             buffer.force();
@@ -296,4 +645,211 @@ public class SPVBlockStore implements BlockStore {
         checkArgument(newCursor >= 0);
         buffer.putInt(4, newCursor);
     }
+
+    /** Returns the ring slot of the record starting at the given file offset. */
+    private static int slotOf(int offset) {
+        return (offset - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+    }
+
+    /** Returns the file offset at which the record in the given ring slot starts. */
+    private static int offsetOf(int slot) {
+        return FILE_PROLOGUE_BYTES + slot * RECORD_SIZE;
+    }
+
+    private static boolean hashAtOffsetEquals(ByteBuffer buffer, int offset, byte[] hashBytes) {
+        for (int i = 0; i < 32; i++)
+            if (buffer.get(offset + i) != hashBytes[i]) return false;
+        return true;
+    }
+
+    private static boolean isEmptyHash(byte[] hashBytes) {
+        for (byte b : hashBytes)
+            if (b != 0) return false;
+        return true;
+    }
+
+    /**
+     * An open addressing hash table from block hash to ring slot. It uses linear probing, is kept at most half full
+     * and removes entries by shifting the rest of the probe run back, so no tombstones build up as the ring wraps.
+     * Only the slot and 32 bits of the hash are held in memory, a candidate is always confirmed by comparing the full
+     * hash stored at the start of its record.
+     */
+    protected static class SlotIndex {
+        // Slot number plus one, so zero can mean empty.
+        private final int[] slots;
+        private final int[] fingerprints;
+        private final int mask;
+
+        SlotIndex(int numHeaders) {
+            // Smallest power of two that is at least twice the number of slots.
+            int size = Integer.highestOneBit(Math.max(numHeaders, 8) * 2 - 1) << 1;
+            slots = new int[size];
+            fingerprints = new int[size];
+            mask = size - 1;
+        }
+
+        /**
+         * Returns the slot whose record holds the given hash, or -1 if there's none. May be called while a writer
+         * changes the index, in which case the answer is meaningless but the call still returns.
+         */
+        int find(ByteBuffer buffer, byte[] hashBytes) {
+            final int fingerprint = fingerprint(hashBytes);
+            int i = fingerprint & mask;
+            for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+                final int slot = slots[i] - 1;
+                if (slot < 0)
+                    break;
+                if (fingerprints[i] == fingerprint && hashAtSlotEquals(buffer, slot, hashBytes))
+                    return slot;
+            }
+            return -1;
+        }
+
+        /** Points the given hash at the given slot, replacing any existing entry for the same hash. */
+        void put(ByteBuffer buffer, byte[] hashBytes, int slot) {
+            final int fingerprint = fingerprint(hashBytes);
+            int i = fingerprint & mask;
+            for (; slots[i] != 0; i = (i + 1) & mask) {
+                if (fingerprints[i] == fingerprint && hashAtSlotEquals(buffer, slots[i] - 1, hashBytes))
+                    break;
+            }
+            slots[i] = slot + 1;
+            fingerprints[i] = fingerprint;
+        }
+
+        /** Removes the entry for the given hash if it points at the given slot. */
+        void remove(byte[] hashBytes, int slot) {
+            final int fingerprint = fingerprint(hashBytes);
+            int i = fingerprint & mask;
+            while (slots[i] != slot + 1) {
+                if (slots[i] == 0)
+                    return;  // A newer copy of the block lives elsewhere, or it was never indexed.
+                i = (i + 1) & mask;
+            }
+            // Close the gap by moving back any later entries of the run that can't be found from their home position
+            // otherwise.
+            int j = i;
+            while (true) {
+                slots[i] = 0;
+                do {
+                    j = (j + 1) & mask;
+                    if (slots[j] == 0)
+                        return;
+                } while (isCyclicallyBetween(i, fingerprints[j] & mask, j));
+                slots[i] = slots[j];
+                fingerprints[i] = fingerprints[j];
+                i = j;
+            }
+        }
+
+        // True if home lies in the cyclic range (from, to].
+        private static boolean isCyclicallyBetween(int from, int home, int to) {
+            return from <= to ? (from < home && home <= to) : (from < home || home <= to);
+        }
+
+        private static boolean hashAtSlotEquals(ByteBuffer buffer, int slot, byte[] hashBytes) {
+            return hashAtOffsetEquals(buffer, offsetOf(slot), hashBytes);
+        }
+
+        private static int fingerprint(byte[] hashBytes) {
+            // Same bytes as Sha256Hash.hashCode(): the trailing ones, as the leading ones are mostly zero.
+            return (hashBytes[31] & 0xFF) | ((hashBytes[30] & 0xFF) << 8) | ((hashBytes[29] & 0xFF) << 16) |
+                    ((hashBytes[28] & 0xFF) << 24);
+        }
+    }
+
+    /**
+     * A map for caching that drops its oldest entries once it holds more than a given number, as a LinkedHashMap in
+     * insertion order would, but is safe for concurrent use. The bound is approximate while threads race to fill it.
+     */
+    private static class FifoCache<K, V> extends ConcurrentHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+        // Keys in the order they were added. A key that was removed stays here until it reaches the front, so queued
+        // counts those too, to keep the queue from growing when keys are added and removed without filling the map.
+        private final ConcurrentLinkedQueue<K> order = new ConcurrentLinkedQueue<K>();
+        private final AtomicInteger size = new AtomicInteger(), queued = new AtomicInteger();
+
+        FifoCache(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public V put(K key, V value) {
+            V old = super.put(key, value);
+            if (old == null)
+                added(key);
+            return old;
+        }
+
+        @Override
+        public V putIfAbsent(K key, V value) {
+            V old = super.putIfAbsent(key, value);
+            if (old == null)
+                added(key);
+            return old;
+        }
+
+        @Override
+        public V remove(Object key) {
+            V old = super.remove(key);
+            if (old != null)
+                size.decrementAndGet();
+            return old;
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            if (!super.remove(key, value))
+                return false;
+            size.decrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void putAll(Map<? extends K, ? extends V> map) {
+            for (Map.Entry<? extends K, ? extends V> entry : map.entrySet())
+                put(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public void clear() {
+            for (K key : keySet())
+                remove(key);
+        }
+
+        private void added(K key) {
+            order.add(key);
+            queued.incrementAndGet();
+            size.incrementAndGet();
+            while (size.get() > maxSize || queued.get() > 2 * maxSize) {
+                K eldest = order.poll();
+                if (eldest == null)
+                    return;
+                queued.decrementAndGet();
+                remove(eldest);
+            }
+        }
+    }
+
+    /** A count that threads on different cores can add to without all writing the same cache line. */
+    private static class StripedCounter {
+        private static final int CELLS = 16;
+        // Cells are this many longs apart, so no two share a cache line.
+        private static final int SPACING = 16;
+
+        private final AtomicLongArray cells = new AtomicLongArray(CELLS * SPACING);
+
+        void increment() {
+            cells.incrementAndGet((int) (Thread.currentThread().getId() & (CELLS - 1)) * SPACING);
+        }
+
+        long get() {
+            long sum = 0;
+            for (int i = 0; i < CELLS; i++)
+                sum += cells.get(i * SPACING);
+            return sum;
+        }
+    }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.store;
+
+import com.google.fastcoin.core.Sha256Hash;
+import com.google.fastcoin.core.StoredTransactionOutput;
+import com.google.fastcoin.core.TransactionOutPoint;
+import com.google.common.base.Objects;
+
+import java.io.Serializable;
+
+/**
+ * Used as a key for memory map (to avoid having to think about NetworkParameters,
+ * which is required for {@link TransactionOutPoint}). Unlike TransactionOutPoint its hash code covers the index too,
+ * so the outputs of one transaction don't all end up in the same bucket.
+ */
+public class StoredTransactionOutPoint implements Serializable {
+    private static final long serialVersionUID = -4064230006297064377L;
+
+    /** Hash of the transaction to which we refer. */
+    Sha256Hash hash;
+    /** Which output of that transaction we are talking about. */
+    long index;
+    
+    public StoredTransactionOutPoint(Sha256Hash hash, long index) {
+        this.hash = hash;
+        this.index = index;
+    }
+    
+    public StoredTransactionOutPoint(StoredTransactionOutput out) {
+        this.hash = out.getHash();
+        this.index = out.getIndex();
+    }
+    
+    /**
+     * The hash of the transaction to which we refer
+     */
+    public Sha256Hash getHash() {
+        return hash;
+    }
+    
+    /**
+     * The index of the output in transaction to which we refer
+     */
+    public long getIndex() {
+        return index;
+    }
+    
+    public int hashCode() {
+        return this.hash.hashCode() + (int)index;
+    }
+    
+    public String toString() {
+        return "Stored transaction out point: " + hash.toString() + ":" + index;
+    }
+    
+    public boolean equals(Object o) {
+        if (!(o instanceof StoredTransactionOutPoint)) return false;
+        return ((StoredTransactionOutPoint)o).getIndex() == this.index &&
+                Objects.equal(this.getHash(), ((StoredTransactionOutPoint)o).getHash());
+    }
+}
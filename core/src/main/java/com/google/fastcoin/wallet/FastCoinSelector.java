@@ -0,0 +1,332 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.wallet;
+
+import com.google.fastcoin.core.NetworkParameters;
+import com.google.fastcoin.core.Transaction;
+import com.google.fastcoin.core.TransactionConfidence;
+import com.google.fastcoin.core.TransactionOutput;
+import com.google.fastcoin.utils.Threading;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A {@link CoinSelector} for wallets with a very large number of outputs. It picks coins in the same order as
+ * {@link DefaultCoinSelector}, highest value times depth first, but it works on primitive longs and remembers the
+ * sorted outputs between calls, so asking it again (as {@link com.google.fastcoin.core.Wallet#completeTx} does
+ * while it adjusts the fee) doesn't sort everything again. When outputs come and go, or the chain moves on, the
+ * remembered order is patched up rather than rebuilt, which is cheap as it's nearly right already.</p>
+ *
+ * <p>Before falling back to that order it spends a bounded amount of time looking for a set of outputs that adds
+ * up to exactly the target, so that no change output is needed. This search ignores the coin depth priority.</p>
+ *
+ * <p>A selector instance remembers the candidates it was last given, so it should be used with one wallet only.</p>
+ */
+public class FastCoinSelector implements CoinSelector {
+    /** How long to search for a selection that needs no change, by default. */
+    public static final long DEFAULT_SEARCH_MILLIS = 10;
+    /** The most outputs a selection that needs no change may use, so the transaction stays a standard size. */
+    public static final int MAX_SEARCH_INPUTS = KeyTimeCoinSelector.MAX_SIMULTANEOUS_INPUTS;
+
+    private final ReentrantLock lock = Threading.lock("fastcoinselector");
+    private final long searchNanos;
+
+    private static class Entry {
+        final TransactionOutput output;
+        final long sequence;
+        final byte[] hash;
+        long value;
+        int depth;
+        // Value times depth as a 128 bit number.
+        long coinDepthHigh, coinDepthLow;
+        boolean selectable;
+        long seen;
+
+        Entry(TransactionOutput output, long sequence) {
+            this.output = output;
+            this.sequence = sequence;
+            this.hash = output.getParentTransaction().getHash().getBytes();
+        }
+
+        void setValueAndDepth(long value, int depth) {
+            this.value = value;
+            this.depth = depth;
+            coinDepthHigh = multiplyHigh(value, depth);
+            coinDepthLow = value * depth;
+        }
+    }
+
+    // All the candidates we were given last time, in the order we prefer to spend them.
+    private final IdentityHashMap<TransactionOutput, Entry> entries = new IdentityHashMap<TransactionOutput, Entry>();
+    private final ArrayList<Entry> byPriority = new ArrayList<Entry>();
+    private final ArrayList<Entry> byValue = new ArrayList<Entry>();
+    private long nextSequence, generation;
+    // The selectable outputs by descending value, and the sum of each suffix of them, for the search. Null when
+    // they need working out again.
+    private Entry[] searchEntries;
+    private long[] searchValues, searchRemaining;
+
+    public FastCoinSelector() {
+        this(DEFAULT_SEARCH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a selector that spends at most the given time per call looking for a selection that needs no change.
+     * Zero turns the search off.
+     */
+    public FastCoinSelector(long searchTime, TimeUnit unit) {
+        checkArgument(searchTime >= 0);
+        this.searchNanos = unit.toNanos(searchTime);
+    }
+
+    @Override
+    public CoinSelection select(BigInteger biTarget, LinkedList<TransactionOutput> candidates) {
+        lock.lock();
+        try {
+            update(candidates);
+            ArrayList<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+            // When calculating the wallet balance we may be asked to select everything, no need for ordering then.
+            if (biTarget.equals(NetworkParameters.MAX_MONEY) || biTarget.compareTo(NetworkParameters.MAX_MONEY) > 0) {
+                long total = 0;
+                for (Entry entry : byPriority) {
+                    if (!entry.selectable) continue;
+                    selected.add(entry.output);
+                    total += entry.value;
+                }
+                return new CoinSelection(BigInteger.valueOf(total), selected);
+            }
+            long target = biTarget.longValue();
+            if (target > 0 && searchNanos > 0 && searchWithoutChange(target, selected))
+                return new CoinSelection(biTarget, selected);
+            selected.clear();
+            long total = 0;
+            for (Entry entry : byPriority) {
+                if (total >= target) break;
+                if (!entry.selectable) continue;
+                selected.add(entry.output);
+                total += entry.value;
+            }
+            // Total may be lower than target here, if the given candidates were insufficient to create to requested
+            // transaction.
+            return new CoinSelection(BigInteger.valueOf(total), selected);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
+    protected boolean shouldSelect(Transaction tx) {
+        return DefaultCoinSelector.isSelectable(tx);
+    }
+
+    // Brings the remembered outputs in line with the given candidates.
+    private void update(LinkedList<TransactionOutput> candidates) {
+        long gen = ++generation;
+        boolean priorityChanged = false, valueChanged = false, selectableChanged = false;
+        int seen = 0;
+        for (TransactionOutput output : candidates) {
+            Transaction tx = output.getParentTransaction();
+            TransactionConfidence confidence = tx.getConfidence();
+            int depth = 0;
+            if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+                depth = confidence.getDepthInBlocks();
+            long value = output.getValue().longValue();
+            boolean selectable = shouldSelect(tx);
+            Entry entry = entries.get(output);
+            if (entry == null) {
+                entry = new Entry(output, nextSequence++);
+                entry.setValueAndDepth(value, depth);
+                entries.put(output, entry);
+                byPriority.add(entry);
+                byValue.add(entry);
+                priorityChanged = valueChanged = selectableChanged = true;
+            } else if (entry.seen == gen) {
+                continue;  // Listed twice.
+            } else if (entry.value != value || entry.depth != depth) {
+                if (entry.value != value)
+                    valueChanged = selectableChanged = true;
+                entry.setValueAndDepth(value, depth);
+                priorityChanged = true;
+            }
+            if (entry.selectable != selectable) {
+                entry.selectable = selectable;
+                selectableChanged = true;
+            }
+            entry.seen = gen;
+            seen++;
+        }
+        if (seen < entries.size()) {
+            // Some outputs were spent or went away, drop them.
+            removeUnseen(byPriority, gen);
+            removeUnseen(byValue, gen);
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); )
+                if (it.next().seen != gen) it.remove();
+            selectableChanged = true;
+        }
+        // New outputs are at the end and the rest are mostly in order still (depths all go up by one each block),
+        // which the merge sort behind Collections.sort takes advantage of.
+        if (priorityChanged)
+            Collections.sort(byPriority, PRIORITY_ORDER);
+        if (valueChanged)
+            Collections.sort(byValue, VALUE_ORDER);
+        if (selectableChanged)
+            searchEntries = null;
+    }
+
+    private static void removeUnseen(ArrayList<Entry> list, long gen) {
+        int kept = 0;
+        for (int i = 0; i < list.size(); i++) {
+            Entry entry = list.get(i);
+            if (entry.seen == gen)
+                list.set(kept++, entry);
+        }
+        list.subList(kept, list.size()).clear();
+    }
+
+    /**
+     * Looks for selectable outputs adding up to exactly the target with a depth first search over them in descending
+     * value order, skipping branches that can't reach the target. Gives up after the time budget.
+     */
+    private boolean searchWithoutChange(long target, List<TransactionOutput> selected) {
+        if (searchEntries == null)
+            prepareSearch();
+        final long[] values = searchValues;
+        final long[] remaining = searchRemaining;
+        final int n = values.length;
+        if (remaining[0] < target)
+            return false;
+        final long deadline = System.nanoTime() + searchNanos;
+        int[] chosen = new int[MAX_SEARCH_INPUTS];
+        int count = 0;
+        long sum = 0, tries = 0;
+        int i = 0;
+        while (true) {
+            if (sum == target) {
+                for (int j = 0; j < count; j++)
+                    selected.add(searchEntries[chosen[j]].output);
+                return true;
+            }
+            if ((++tries & 0x3FF) == 0 && System.nanoTime() > deadline)
+                return false;
+            long room = target - sum;
+            if (remaining[i] >= room && count < MAX_SEARCH_INPUTS) {
+                if (values[i] > room) {
+                    // Skip straight past the outputs that are too big to fit.
+                    i = firstAtMost(values, i, n, room);
+                    continue;
+                }
+                chosen[count++] = i;
+                sum += values[i];
+                i++;
+                continue;
+            }
+            // Can't get there from here, undo the last choice and try without it.
+            if (count == 0)
+                return false;
+            int last = chosen[--count];
+            sum -= values[last];
+            // Taking another output of the same value instead would just repeat the branch we've finished.
+            i = last + 1;
+            while (i < n && values[i] == values[last])
+                i++;
+        }
+    }
+
+    private void prepareSearch() {
+        int n = 0;
+        for (Entry entry : byValue)
+            if (entry.selectable) n++;
+        searchEntries = new Entry[n];
+        searchValues = new long[n];
+        searchRemaining = new long[n + 1];
+        int i = 0;
+        for (Entry entry : byValue) {
+            if (!entry.selectable) continue;
+            searchEntries[i] = entry;
+            searchValues[i] = entry.value;
+            i++;
+        }
+        for (i = n - 1; i >= 0; i--) {
+            long sum = searchRemaining[i + 1] + searchValues[i];
+            searchRemaining[i] = sum < 0 ? Long.MAX_VALUE : sum;
+        }
+    }
+
+    // Returns the first index from start on whose value is at most the given one, values are descending.
+    private static int firstAtMost(long[] values, int start, int end, long value) {
+        int low = start, high = end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] > value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    // The high 64 bits of the product of two non-negative longs.
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >>> 32, x0 = x & 0xFFFFFFFFL;
+        long y1 = y >>> 32, y0 = y & 0xFFFFFFFFL;
+        long t = x1 * y0 + ((x0 * y0) >>> 32);
+        long w1 = (t & 0xFFFFFFFFL) + x0 * y1;
+        return x1 * y1 + (t >>> 32) + (w1 >>> 32);
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static final Comparator<Entry> PRIORITY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c1 = compareLongs(b.coinDepthHigh, a.coinDepthHigh);
+            if (c1 == 0)
+                c1 = compareUnsigned(b.coinDepthLow, a.coinDepthLow);
+            if (c1 != 0) return c1;
+            // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
+            int c2 = compareLongs(b.value, a.value);
+            if (c2 != 0) return c2;
+            // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
+            for (int i = 0; i < a.hash.length; i++) {
+                int c3 = (a.hash[i] & 0xFF) - (b.hash[i] & 0xFF);
+                if (c3 != 0) return c3;
+            }
+            return compareLongs(a.sequence, b.sequence);
+        }
+    };
+
+    private static final Comparator<Entry> VALUE_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = compareLongs(b.value, a.value);
+            return c != 0 ? c : compareLongs(a.sequence, b.sequence);
+        }
+    };
+}
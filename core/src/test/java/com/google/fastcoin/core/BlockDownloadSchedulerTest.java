@@ -0,0 +1,142 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.core;
+
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockDownloadSchedulerTest {
+    private NetworkParameters params;
+    private BlockChain chain;
+    private BlockDownloadScheduler scheduler;
+    private Address coinbaseTo;
+
+    /** A peer that isn't connected to anything and just records the blocks it is asked for. */
+    private static class RecordingPeer extends Peer {
+        final List<Sha256Hash> requested = new ArrayList<Sha256Hash>();
+        private final long bestHeight;
+
+        RecordingPeer(NetworkParameters params, AbstractBlockChain chain, long bestHeight) throws Exception {
+            super(params, new VersionMessage(params, 0), chain, new PeerAddress(InetAddress.getLocalHost()));
+            this.bestHeight = bestHeight;
+        }
+
+        @Override
+        public long getBestHeight() {
+            return bestHeight;
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            if (message instanceof GetDataMessage)
+                for (InventoryItem item : ((GetDataMessage) message).getItems())
+                    requested.add(item.hash);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        chain = new BlockChain(params, new MemoryBlockStore(params));
+        scheduler = new BlockDownloadScheduler(chain);
+        coinbaseTo = new ECKey().toAddress(params);
+    }
+
+    @Test
+    public void reorgBelowChainHead() throws Exception {
+        // genesis -> b1 -> b2 -> b3 is the chain we have, b1 -> f2 -> f3 -> f4 is a longer fork.
+        Block b1 = params.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        for (Block block : Arrays.asList(b1, b2, b3))
+            assertTrue(chain.add(block));
+        Block f2 = b1.createNextBlock(new ECKey().toAddress(params));
+        Block f3 = f2.createNextBlock(coinbaseTo);
+        Block f4 = f3.createNextBlock(coinbaseTo);
+        Map<Sha256Hash, Block> fork = new HashMap<Sha256Hash, Block>();
+        for (Block block : Arrays.asList(f2, f3, f4))
+            fork.put(block.getHash(), block);
+
+        // The peer only claims the height of the fork, so the blocks are only requested if their heights are right.
+        RecordingPeer peer = new RecordingPeer(params, chain, 4);
+        scheduler.setHeaderPeer(peer);
+        scheduler.addPeer(peer);
+        assertFalse(scheduler.receiveHeaders(peer, Arrays.asList(f2.cloneAsHeader(), f3.cloneAsHeader(),
+                f4.cloneAsHeader()), false));
+        assertEquals(3, scheduler.getPendingBlockCount());
+        // The peer isn't really connected, so don't have it report the download progress.
+        scheduler.setHeaderPeer(null);
+
+        // Deliver whatever is asked for until nothing more is.
+        int delivered = 0;
+        while (delivered < peer.requested.size())
+            assertTrue(scheduler.receiveBlock(peer, fork.get(peer.requested.get(delivered++))));
+        assertEquals(Arrays.asList(f2.getHash(), f3.getHash(), f4.getHash()), peer.requested);
+        assertEquals(0, scheduler.getPendingBlockCount());
+        assertEquals(f4.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(4, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void stopsRequestingWhileTooMuchIsBuffered() throws Exception {
+        List<Block> blocks = new ArrayList<Block>();
+        List<Block> headers = new ArrayList<Block>();
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < 6; i++) {
+            block = block.createNextBlock(coinbaseTo);
+            blocks.add(block);
+            headers.add(block.cloneAsHeader());
+        }
+        // Any block waiting for its turn is too much.
+        scheduler.setMaxBufferedBytes(1);
+        RecordingPeer peer = new RecordingPeer(params, chain, blocks.size());
+        scheduler.setHeaderPeer(peer);
+        scheduler.addPeer(peer);
+        scheduler.receiveHeaders(peer, headers, false);
+        scheduler.setHeaderPeer(null);
+        assertEquals(Arrays.asList(blocks.get(0).getHash(), blocks.get(1).getHash()), peer.requested);
+
+        // The second block arrives first and has to wait, so nothing new is asked for.
+        assertTrue(scheduler.receiveBlock(peer, blocks.get(1)));
+        assertEquals(2, peer.requested.size());
+        // Once the first one arrives both are added to the chain and requests carry on.
+        assertTrue(scheduler.receiveBlock(peer, blocks.get(0)));
+        assertEquals(2, chain.getBestChainHeight());
+        assertTrue(peer.requested.size() > 2);
+        int delivered = 2;
+        while (delivered < peer.requested.size()) {
+            Sha256Hash hash = peer.requested.get(delivered++);
+            for (Block b : blocks)
+                if (b.getHash().equals(hash))
+                    assertTrue(scheduler.receiveBlock(peer, b));
+        }
+        assertEquals(blocks.size(), chain.getBestChainHeight());
+    }
+}
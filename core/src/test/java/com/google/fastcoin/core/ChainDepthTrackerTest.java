@@ -0,0 +1,135 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.core;
+
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.utils.Threading;
+import com.google.fastcoin.wallet.WalletTransaction;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class ChainDepthTrackerTest {
+    private NetworkParameters params;
+    private Block last;
+
+    /** A tracker that moves on by one block just before a depth is registered, as the wallet's thread could. */
+    private class RacingTracker extends ChainDepthTracker {
+        boolean racing = true;
+
+        RacingTracker(int height) {
+            super(height);
+        }
+
+        @Override
+        boolean watch(TransactionConfidence confidence, int atHeight, int depth) {
+            if (racing) {
+                racing = false;
+                try {
+                    notifyNewBestBlock(nextBlock(getHeight() + 1));
+                } catch (VerificationException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return super.watch(confidence, atHeight, depth);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        last = params.getGenesisBlock();
+    }
+
+    private StoredBlock nextBlock(int height) {
+        last = last.createNextBlock(new ECKey().toAddress(params));
+        return new StoredBlock(last, BigInteger.ONE, height);
+    }
+
+    @Test
+    public void depthFutureCompletesWhenTheTrackerMovesOnBeforeItIsWatched() throws Exception {
+        RacingTracker tracker = new RacingTracker(10);
+        TransactionConfidence confidence = new Transaction(params).getConfidence();
+        confidence.setDepthTracker(tracker);
+        confidence.setAppearedAtChainHeight(10);
+        assertEquals(1, confidence.getDepthInBlocks());
+
+        ListenableFuture<Transaction> future = confidence.getDepthFuture(2, Threading.SAME_THREAD);
+        assertFalse(tracker.racing);
+        assertEquals(2, confidence.getDepthInBlocks());
+        assertTrue(future.isDone());
+        assertEquals(0, tracker.getWatchCount());
+    }
+
+    @Test
+    public void depthFutureCompletesWhenTheTrackerMovesOnAsTheTransactionAppears() throws Exception {
+        RacingTracker tracker = new RacingTracker(10);
+        TransactionConfidence confidence = new Transaction(params).getConfidence();
+        confidence.setDepthTracker(tracker);
+        ListenableFuture<Transaction> future = confidence.getDepthFuture(2, Threading.SAME_THREAD);
+        assertFalse(future.isDone());
+
+        confidence.setAppearedAtChainHeight(10);
+        assertFalse(tracker.racing);
+        assertTrue(future.isDone());
+        assertEquals(0, tracker.getWatchCount());
+    }
+
+    @Test
+    public void depthFutureCompletesWhenTheTrackerGetsThere() throws Exception {
+        ChainDepthTracker tracker = new ChainDepthTracker(10);
+        TransactionConfidence confidence = new Transaction(params).getConfidence();
+        confidence.setDepthTracker(tracker);
+        confidence.setAppearedAtChainHeight(10);
+        ListenableFuture<Transaction> future = confidence.getDepthFuture(3, Threading.SAME_THREAD);
+        assertEquals(1, tracker.getWatchCount());
+        tracker.notifyNewBestBlock(nextBlock(11));
+        assertFalse(future.isDone());
+        tracker.notifyNewBestBlock(nextBlock(12));
+        assertTrue(future.isDone());
+        assertEquals(0, tracker.getWatchCount());
+    }
+
+    @Test
+    public void walletWithoutAHeightStartsTrackingAtTheNextBlock() throws Exception {
+        Wallet wallet = new Wallet(params);
+        wallet.setLastBlockSeenHeight(-1);
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, new ECKey());
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        confidence.setDepthInBlocks(3);
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+
+        wallet.setDepthOnDemand(true);
+        assertTrue(wallet.isDepthOnDemand());
+        // There is no height to count from yet.
+        assertNull(confidence.getDepthTracker());
+        assertEquals(3, confidence.getDepthInBlocks());
+
+        wallet.notifyNewBestBlock(nextBlock(100));
+        assertNotNull(confidence.getDepthTracker());
+        assertEquals(4, confidence.getDepthInBlocks());
+        assertEquals(97, confidence.getAppearedAtChainHeight());
+        wallet.notifyNewBestBlock(nextBlock(101));
+        assertEquals(5, confidence.getDepthInBlocks());
+    }
+}
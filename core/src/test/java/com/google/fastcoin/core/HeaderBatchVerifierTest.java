@@ -0,0 +1,73 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.core;
+
+import com.google.fastcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeaderBatchVerifierTest {
+    private NetworkParameters params;
+    private HeaderBatchVerifier verifier;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        verifier = new HeaderBatchVerifier(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        verifier.shutdown();
+    }
+
+    private List<Block> headers(int count) {
+        List<Block> headers = new ArrayList<Block>();
+        Block last = params.getGenesisBlock();
+        Address to = new ECKey().toAddress(params);
+        for (int i = 0; i < count; i++) {
+            last = last.createNextBlock(to);
+            headers.add(last.cloneAsHeader());
+        }
+        return headers;
+    }
+
+    @Test
+    public void precomputedHashesMatch() throws Exception {
+        List<Block> headers = headers(40);
+        verifier.precomputeHashes(headers);
+        for (Block header : headers)
+            assertEquals(header.cloneAsHeader().getScryptHash(), header.getScryptHash());
+    }
+
+    @Test
+    public void interruptedCallerReturnsWithTheFlagSet() throws Exception {
+        List<Block> headers = headers(40);
+        Thread.currentThread().interrupt();
+        verifier.precomputeHashes(headers);
+        assertTrue(Thread.interrupted());
+        // Whatever wasn't hashed is still hashed correctly later.
+        for (Block header : headers)
+            assertEquals(header.cloneAsHeader().getScryptHash(), header.getScryptHash());
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.fastcoin.core;
+
+import com.google.fastcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class MemoryPoolTest {
+    private NetworkParameters params;
+    private PeerAddress peer;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        peer = new PeerAddress(InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 }));
+    }
+
+    private Transaction newTransaction() {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, new ECKey());
+        return tx;
+    }
+
+    @Test
+    public void transactionsInUseAreEvictedLast() throws Exception {
+        MemoryPool pool = new MemoryPool(2);
+        Transaction kept = newTransaction();
+        pool.intern(kept);
+        Transaction dropped = newTransaction();
+        pool.intern(dropped);
+        WeakReference<Transaction> droppedRef = new WeakReference<Transaction>(dropped);
+        dropped = null;
+        for (int i = 0; i < 100 && droppedRef.get() != null; i++)
+            System.gc();
+        assertNull(droppedRef.get());
+
+        // Over the limit: the thrown away transaction goes first, then the announced one, but not the one in use.
+        Sha256Hash first = newTransaction().getHash(), second = newTransaction().getHash();
+        pool.seen(first, peer);
+        pool.seen(second, peer);
+        assertEquals(2, pool.size());
+        assertFalse(pool.maybeWasSeen(first));
+        assertTrue(pool.maybeWasSeen(second));
+
+        // It's still the canonical instance, and announcements still count towards its confidence.
+        Transaction copy = new Transaction(params, kept.fastcoinSerialize());
+        assertSame(kept, pool.intern(copy));
+        pool.seen(kept.getHash(), peer);
+        assertEquals(1, pool.numBroadcastPeers(kept.getHash()));
+        assertEquals(1, kept.getConfidence().numBroadcastPeers());
+    }
+
+    @Test
+    public void countsLookups() throws Exception {
+        MemoryPool pool = new MemoryPool(1000);
+        Sha256Hash[] hashes = new Sha256Hash[50];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = newTransaction().getHash();
+            pool.seen(hashes[i], peer);
+        }
+        for (Sha256Hash hash : hashes)
+            assertTrue(pool.maybeWasSeen(hash));
+        assertEquals(50, pool.getHitCount());
+        assertEquals(50, pool.getMissCount());
+        assertEquals(0, pool.getEvictionCount());
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.core;
+
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.script.Script;
+import com.google.fastcoin.script.ScriptBuilder;
+import com.google.fastcoin.script.ScriptOpCodes;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SigHashCacheTest {
+    private NetworkParameters params;
+    private Transaction tx;
+    private byte[] p2pkh, withSeparators, withoutSeparators;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        // More inputs than outputs, so SIGHASH_SINGLE hits the "1" bug for the last ones, with sequence numbers that
+        // SIGHASH_NONE and SIGHASH_SINGLE have to zero.
+        tx = new Transaction(params);
+        for (int i = 0; i < 5; i++) {
+            TransactionOutPoint outpoint = new TransactionOutPoint(params, i * 3,
+                    Sha256Hash.create(new byte[] { (byte) i }));
+            TransactionInput input = new TransactionInput(params, tx, new byte[] { 1, 2, (byte) i }, outpoint);
+            input.setSequenceNumber(0xFFFFFFF0L + i);
+            tx.addInput(input);
+        }
+        tx.addOutput(Utils.toNanoCoins(1, 0), new ECKey());
+        tx.addOutput(Utils.toNanoCoins(0, 5), new ECKey().toAddress(params));
+        tx.addOutput(BigInteger.valueOf(12345), new ECKey());
+        tx.setLockTime(1234567);
+
+        ECKey key = new ECKey();
+        p2pkh = ScriptBuilder.createOutputScript(key.toAddress(params)).getProgram();
+        withSeparators = new ScriptBuilder()
+                .op(ScriptOpCodes.OP_CODESEPARATOR)
+                .data(key.getPubKey())
+                .op(ScriptOpCodes.OP_CODESEPARATOR)
+                .op(ScriptOpCodes.OP_CHECKSIG)
+                .build().getProgram();
+        withoutSeparators = new ScriptBuilder()
+                .data(key.getPubKey())
+                .op(ScriptOpCodes.OP_CHECKSIG)
+                .build().getProgram();
+    }
+
+    /**
+     * The signature hash as Transaction.hashForSignature worked it out before SigHashCache: by emptying the input
+     * scripts, putting the connected script in the signed input, zeroing sequence numbers, replacing the outputs and
+     * inputs as the type asks and serializing what's left. It works on a copy rather than on tx itself.
+     */
+    private Sha256Hash referenceHash(int inputIndex, byte[] connectedScript, byte sigHashType) throws Exception {
+        Transaction copy = new Transaction(params, tx.fastcoinSerialize());
+        for (TransactionInput input : copy.getInputs())
+            input.setScriptBytes(TransactionInput.EMPTY_ARRAY);
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        TransactionInput input = copy.getInputs().get(inputIndex);
+        input.setScriptBytes(connectedScript);
+
+        if ((sigHashType & 0x1f) == (Transaction.SigHash.NONE.ordinal() + 1)) {
+            copy.clearOutputs();
+            for (int i = 0; i < copy.getInputs().size(); i++)
+                if (i != inputIndex)
+                    copy.getInputs().get(i).setSequenceNumber(0);
+        } else if ((sigHashType & 0x1f) == (Transaction.SigHash.SINGLE.ordinal() + 1)) {
+            if (inputIndex >= copy.getOutputs().size())
+                return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+            List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(copy.getOutputs());
+            copy.clearOutputs();
+            for (int i = 0; i < inputIndex; i++)
+                copy.addOutput(new TransactionOutput(params, copy, Utils.NEGATIVE_ONE, new byte[] {}));
+            copy.addOutput(new TransactionOutput(params, copy, outputs.get(inputIndex).getValue(),
+                    outputs.get(inputIndex).getScriptBytes()));
+            for (int i = 0; i < copy.getInputs().size(); i++)
+                if (i != inputIndex)
+                    copy.getInputs().get(i).setSequenceNumber(0);
+        }
+
+        if ((sigHashType & Transaction.SIGHASH_ANYONECANPAY_VALUE) == Transaction.SIGHASH_ANYONECANPAY_VALUE) {
+            copy.clearInputs();
+            copy.addInput(input);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        copy.fastcoinSerialize(bos);
+        Utils.uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
+        return new Sha256Hash(Utils.doubleDigest(bos.toByteArray()));
+    }
+
+    @Test
+    public void matchesTheOldImplementationForEveryType() throws Exception {
+        // Every byte, which covers ALL, NONE, SINGLE, their ANYONECANPAY variants and the undefined types that are
+        // hashed like ALL.
+        for (byte[] script : new byte[][] { p2pkh, withSeparators }) {
+            SigHashCache cache = new SigHashCache(tx);
+            for (int type = 0; type < 256; type++) {
+                for (int i = 0; i < tx.getInputs().size(); i++) {
+                    Sha256Hash expected = referenceHash(i, script, (byte) type);
+                    assertEquals("type " + type + " input " + i, expected, cache.hashForSignature(i, script, (byte) type));
+                    assertEquals(expected, tx.hashForSignature(i, script, (byte) type));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void namedTypes() throws Exception {
+        SigHashCache cache = new SigHashCache(tx);
+        for (Transaction.SigHash type : new Transaction.SigHash[] { Transaction.SigHash.ALL, Transaction.SigHash.NONE,
+                Transaction.SigHash.SINGLE }) {
+            for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                byte value = (byte) (type.ordinal() + 1 | (anyoneCanPay ? Transaction.SIGHASH_ANYONECANPAY_VALUE : 0));
+                for (int i = 0; i < tx.getInputs().size(); i++)
+                    assertEquals(referenceHash(i, p2pkh, value), cache.hashForSignature(i, p2pkh, type, anyoneCanPay));
+            }
+        }
+    }
+
+    @Test
+    public void singleBeyondTheOutputsHashesToOne() throws Exception {
+        Sha256Hash one = new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+        SigHashCache cache = new SigHashCache(tx);
+        assertEquals(3, tx.getOutputs().size());
+        for (int i = 3; i < 5; i++) {
+            assertEquals(one, cache.hashForSignature(i, p2pkh, Transaction.SigHash.SINGLE, false));
+            assertEquals(one, cache.hashForSignature(i, p2pkh, Transaction.SigHash.SINGLE, true));
+        }
+        assertFalse(one.equals(cache.hashForSignature(2, p2pkh, Transaction.SigHash.SINGLE, false)));
+    }
+
+    @Test
+    public void codeSeparatorsAreRemoved() throws Exception {
+        SigHashCache cache = new SigHashCache(tx);
+        for (int type = 1; type <= 3; type++) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(cache.hashForSignature(i, withoutSeparators, (byte) type),
+                        cache.hashForSignature(i, withSeparators, (byte) type));
+                assertEquals(cache.hashForSignature(i, withoutSeparators, (byte) (type | 0x80)),
+                        cache.hashForSignature(i, withSeparators, (byte) (type | 0x80)));
+            }
+        }
+    }
+
+    @Test
+    public void inputsHashedOutOfOrder() throws Exception {
+        // The midstates are kept as they're worked out, so going backwards or skipping about must not pick up a
+        // state from the wrong place.
+        int[] order = { 4, 0, 2, 1, 3, 2, 0, 4 };
+        for (byte type : new byte[] { 1, 2, 3, (byte) 0x81 }) {
+            SigHashCache cache = new SigHashCache(tx);
+            for (int i : order)
+                assertEquals(referenceHash(i, p2pkh, type), cache.hashForSignature(i, p2pkh, type));
+        }
+    }
+
+    @Test
+    public void sharedByThreads() throws Exception {
+        final int numInputs = tx.getInputs().size();
+        final byte[] types = { 1, 2, 3, (byte) 0x81, (byte) 0x82, (byte) 0x83 };
+        final Sha256Hash[][] expected = new Sha256Hash[types.length][numInputs];
+        for (int t = 0; t < types.length; t++)
+            for (int i = 0; i < numInputs; i++)
+                expected[t][i] = referenceHash(i, p2pkh, types[t]);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 20; round++) {
+                final SigHashCache cache = new SigHashCache(tx);
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (int thread = 0; thread < 8; thread++) {
+                    final Random random = new Random(round * 8 + thread);
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            for (int n = 0; n < 200; n++) {
+                                int t = random.nextInt(types.length), i = random.nextInt(numInputs);
+                                assertEquals(expected[t][i], cache.hashForSignature(i, p2pkh, types[t]));
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures)
+                    future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void snapshotIgnoresLaterChanges() throws Exception {
+        SigHashCache cache = new SigHashCache(tx);
+        Sha256Hash before = cache.hashForSignature(0, p2pkh, (byte) 1);
+        tx.getInputs().get(1).setSequenceNumber(7);
+        assertEquals(before, cache.hashForSignature(0, p2pkh, (byte) 1));
+        assertFalse(before.equals(new SigHashCache(tx).hashForSignature(0, p2pkh, (byte) 1)));
+        assertEquals(referenceHash(0, p2pkh, (byte) 1), new SigHashCache(tx).hashForSignature(0, p2pkh, (byte) 1));
+    }
+}
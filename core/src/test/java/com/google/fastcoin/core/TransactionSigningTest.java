@@ -0,0 +1,145 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.core;
+
+import com.google.fastcoin.crypto.TransactionSignature;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.script.Script;
+import com.google.fastcoin.script.ScriptChunk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class TransactionSigningTest {
+    private static final int NUM_INPUTS = 12;
+
+    private NetworkParameters params;
+    private Wallet wallet;
+    private Transaction funding;
+    private Address destination;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        wallet = new Wallet(params);
+        // Outputs to both addresses and raw keys, which get differently shaped input scripts.
+        funding = new Transaction(params);
+        for (int i = 0; i < NUM_INPUTS; i++) {
+            ECKey key = new ECKey();
+            wallet.addKey(key);
+            if (i % 2 == 0)
+                funding.addOutput(Utils.COIN, key.toAddress(params));
+            else
+                funding.addOutput(Utils.COIN, key);
+        }
+        destination = new ECKey().toAddress(params);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private Transaction spend() {
+        Transaction tx = new Transaction(params);
+        for (TransactionOutput output : funding.getOutputs())
+            tx.addInput(output);
+        tx.addOutput(Utils.toNanoCoins(NUM_INPUTS - 1, 0), destination);
+        return tx;
+    }
+
+    private void assertSignedAlike(Transaction sequential, Transaction parallel) throws Exception {
+        assertEquals(NUM_INPUTS, parallel.getInputs().size());
+        for (int i = 0; i < NUM_INPUTS; i++) {
+            Script scriptPubKey = funding.getOutput(i).getScriptPubKey();
+            Script expected = sequential.getInput(i).getScriptSig();
+            Script actual = parallel.getInput(i).getScriptSig();
+            expected.correctlySpends(sequential, i, scriptPubKey, true);
+            actual.correctlySpends(parallel, i, scriptPubKey, true);
+
+            // Signatures aren't deterministic, so compare what they're made of rather than the bytes.
+            List<ScriptChunk> expectedChunks = expected.getChunks(), actualChunks = actual.getChunks();
+            assertEquals(scriptPubKey.isSentToAddress() ? 2 : 1, actualChunks.size());
+            assertEquals(expectedChunks.size(), actualChunks.size());
+            TransactionSignature expectedSig = TransactionSignature.decodeFromBitcoin(expectedChunks.get(0).data, true);
+            TransactionSignature actualSig = TransactionSignature.decodeFromBitcoin(actualChunks.get(0).data, true);
+            assertEquals(expectedSig.sighashFlags, actualSig.sighashFlags);
+            assertEquals(Transaction.SigHash.ALL, actualSig.sigHashMode());
+            assertFalse(actualSig.anyoneCanPay());
+            if (actualChunks.size() == 2)
+                assertArrayEquals(expectedChunks.get(1).data, actualChunks.get(1).data);
+        }
+    }
+
+    private void signBothWays(@Nullable KeyParameter aesKey) throws Exception {
+        Transaction sequential = spend(), parallel = spend();
+        sequential.signInputs(Transaction.SigHash.ALL, wallet, aesKey, null);
+        parallel.signInputs(Transaction.SigHash.ALL, wallet, aesKey, executor);
+        assertSignedAlike(sequential, parallel);
+        // Everything but the input scripts is signed over, and is the same.
+        for (int i = 0; i < NUM_INPUTS; i++)
+            assertEquals(sequential.hashForSignature(i, funding.getOutput(i).getScriptBytes(), Transaction.SigHash.ALL, false),
+                    parallel.hashForSignature(i, funding.getOutput(i).getScriptBytes(), Transaction.SigHash.ALL, false));
+    }
+
+    @Test
+    public void parallelSigningMatchesSequential() throws Exception {
+        signBothWays(null);
+    }
+
+    @Test
+    public void parallelSigningMatchesSequentialWithAnEncryptedWallet() throws Exception {
+        KeyParameter aesKey = wallet.encrypt("password");
+        for (ECKey key : wallet.getKeys())
+            assertTrue(key.isEncrypted());
+        signBothWays(aesKey);
+    }
+
+    @Test
+    public void rejectedTaskCancelsTheOthers() throws Exception {
+        // Takes the first two tasks without running them, then turns the rest away.
+        final List<Runnable> taken = new ArrayList<Runnable>();
+        Executor rejecting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (taken.size() == 2)
+                    throw new RejectedExecutionException();
+                taken.add(command);
+            }
+        };
+        Transaction tx = spend();
+        try {
+            tx.signInputs(Transaction.SigHash.ALL, wallet, null, rejecting);
+            fail();
+        } catch (RejectedExecutionException e) {
+            // Expected.
+        }
+        assertEquals(2, taken.size());
+        for (Runnable task : taken)
+            assertTrue(((Future<?>) task).isCancelled());
+    }
+}
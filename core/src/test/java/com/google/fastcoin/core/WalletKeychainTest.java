@@ -0,0 +1,68 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.core;
+
+import com.google.fastcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WalletKeychainTest {
+    private NetworkParameters params;
+    private Wallet wallet;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        wallet = new Wallet(params);
+    }
+
+    @Test
+    public void keychainViewIsLiveAndReadOnly() throws Exception {
+        List<ECKey> view = wallet.getKeychain();
+        ECKey first = new ECKey(), second = new ECKey();
+        wallet.addKey(first);
+        wallet.addKey(second);
+        assertEquals(2, view.size());
+        assertSame(second, view.get(1));
+        try {
+            view.add(new ECKey());
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+        assertTrue(wallet.removeKey(first));
+        assertEquals(1, view.size());
+        assertNull(wallet.findKeyFromPubHash(first.getPubKeyHash()));
+        assertSame(second, wallet.findKeyFromPubKey(second.getPubKey()));
+    }
+
+    @Test
+    public void outputsToAddedKeysAreFound() throws Exception {
+        ECKey key = new ECKey();
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, key);
+        assertFalse(tx.getOutput(0).isMine(wallet));
+        wallet.addKey(key);
+        assertTrue(tx.getOutput(0).isMine(wallet));
+        wallet.removeKey(key);
+        assertFalse(tx.getOutput(0).isMine(wallet));
+    }
+}
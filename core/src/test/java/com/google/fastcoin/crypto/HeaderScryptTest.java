@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.crypto;
+
+import com.google.fastcoin.core.Utils;
+import com.lambdaworks.crypto.SCrypt;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HeaderScryptTest {
+    // The Litecoin genesis block header, whose scrypt proof of work was checked by that whole network.
+    private static final String LITECOIN_GENESIS_HEADER =
+            "01000000" +
+            "0000000000000000000000000000000000000000000000000000000000000000" +
+            "d9ced4ed1130f7b7faad9be25323ffafa33232a17c3edf6cfd97bee6bafbdd97" +
+            "b9aa8e4e" + "f0ff0f1e" + "cd513f7c";
+    private static final String LITECOIN_GENESIS_SCRYPT =
+            "001e67b013726fd7382e9acb69165b4b6316227fb3156b5b414ba6340c050000";
+
+    @Test
+    public void litecoinGenesisHeader() throws Exception {
+        byte[] header = Hex.decode(LITECOIN_GENESIS_HEADER);
+        byte[] hash = HeaderScrypt.hash(header, 0);
+        assertEquals(LITECOIN_GENESIS_SCRYPT, Utils.bytesToHexString(hash));
+        assertArrayEquals(SCrypt.scryptJ(header, header, 1024, 1, 1, 32), hash);
+        byte[] inJava = new byte[32];
+        HeaderScrypt.hashInJava(header, 0, inJava, 0);
+        assertArrayEquals(hash, inJava);
+        // Read as a little endian number it meets the header's target, 0x1e0ffff0.
+        BigInteger value = new BigInteger(1, Utils.reverseBytes(hash));
+        assertTrue(value.compareTo(Utils.decodeCompactBits(0x1e0ffff0L)) <= 0);
+    }
+
+    @Test
+    public void matchesReferenceScrypt() throws Exception {
+        Random random = new Random(1);
+        byte[] header = new byte[HeaderScrypt.HEADER_LENGTH];
+        for (int i = 0; i < 50; i++) {
+            random.nextBytes(header);
+            byte[] expected = SCrypt.scryptJ(header, header, 1024, 1, 1, 32);
+            byte[] inJava = new byte[32];
+            HeaderScrypt.hashInJava(header, 0, inJava, 0);
+            assertArrayEquals(expected, inJava);
+            assertArrayEquals(expected, HeaderScrypt.hash(header, 0));
+            assertArrayEquals(expected, Utils.scryptDigest(header));
+        }
+    }
+
+    @Test
+    public void offsets() throws Exception {
+        byte[] header = Hex.decode(LITECOIN_GENESIS_HEADER);
+        byte[] input = new byte[header.length + 7];
+        System.arraycopy(header, 0, input, 5, header.length);
+        byte[] out = new byte[40];
+        HeaderScrypt.hash(input, 5, out, 3);
+        assertEquals(LITECOIN_GENESIS_SCRYPT, Utils.bytesToHexString(Arrays.copyOfRange(out, 3, 35)));
+        assertEquals(0, out[0]);
+        assertEquals(0, out[39]);
+        out = new byte[40];
+        HeaderScrypt.hashInJava(input, 5, out, 3);
+        assertEquals(LITECOIN_GENESIS_SCRYPT, Utils.bytesToHexString(Arrays.copyOfRange(out, 3, 35)));
+        assertEquals(0, out[0]);
+        assertEquals(0, out[39]);
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.store;
+
+import com.google.fastcoin.core.StoredTransactionOutput;
+import com.google.fastcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static com.google.fastcoin.store.H2FullPrunedBlockStoreTest.output;
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private H2FullPrunedBlockStore backing;
+    private CachingFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        File db = new File(folder.newFolder("store"), "test");
+        backing = new H2FullPrunedBlockStore(UnitTestParams.get(), db.getAbsolutePath(), 10);
+        store = new CachingFullPrunedBlockStore(backing);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void addedAgainAndRemovedInOneBatch() throws Exception {
+        StoredTransactionOutput out = output(1);
+        backing.addUnspentTransactionOutput(out);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertNull(backing.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void createdAndSpentInOneBatchNeverReachesTheBackingStore() throws Exception {
+        StoredTransactionOutput kept = output(1), spent = output(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(kept);
+        store.addUnspentTransactionOutput(spent);
+        store.removeUnspentTransactionOutput(spent);
+        store.commitDatabaseBatchWrite();
+        assertNotNull(backing.getTransactionOutput(kept.getHash(), kept.getIndex()));
+        assertNull(backing.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.store;
+
+import com.google.fastcoin.core.*;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DiskFullPrunedBlockStoreTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private NetworkParameters params;
+    private File dir;
+    private DiskFullPrunedBlockStore store;
+    private StoredBlock head;
+    private Address coinbaseTo;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        dir = folder.newFolder("store");
+        store = new DiskFullPrunedBlockStore(params, dir, 10);
+        head = store.getChainHead();
+        coinbaseTo = new ECKey().toAddress(params);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null)
+            store.close();
+    }
+
+    /** Writes the next block with the given output changes in one batch and makes it the chain head. */
+    private StoredBlock connect(List<StoredTransactionOutput> add, List<StoredTransactionOutput> remove)
+            throws Exception {
+        Block block = head.getHeader().createNextBlock(coinbaseTo);
+        StoredBlock stored = head.build(block);
+        store.beginDatabaseBatchWrite();
+        store.put(stored, new StoredUndoableBlock(block.getHash(), block.getTransactions()));
+        for (StoredTransactionOutput out : add)
+            store.addUnspentTransactionOutput(out);
+        for (StoredTransactionOutput out : remove)
+            store.removeUnspentTransactionOutput(out);
+        store.setChainHead(stored);
+        store.setVerifiedChainHead(stored);
+        store.commitDatabaseBatchWrite();
+        head = stored;
+        return stored;
+    }
+
+    private StoredTransactionOutput output(int n) {
+        byte[] script = new byte[25 + n % 7];
+        Arrays.fill(script, (byte) n);
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] { (byte) n, (byte) (n >> 8) }), n % 3,
+                BigInteger.valueOf(n + 1), 0, false, script);
+    }
+
+    private static List<StoredTransactionOutput> list(StoredTransactionOutput... outputs) {
+        return Arrays.asList(outputs);
+    }
+
+    private static final List<StoredTransactionOutput> NONE = new ArrayList<StoredTransactionOutput>();
+
+    private File logFile() {
+        return new File(dir, "blocks.log");
+    }
+
+    private File tableFile() {
+        return new File(dir, "outputs.table");
+    }
+
+    private File checkpointFile() {
+        return new File(dir, "index.checkpoint");
+    }
+
+    private boolean hasOutput(StoredTransactionOutput out) throws Exception {
+        StoredTransactionOutput found = store.getTransactionOutput(out.getHash(), out.getIndex());
+        if (found == null)
+            return false;
+        assertEquals(out.getValue(), found.getValue());
+        assertArrayEquals(out.getScriptBytes(), found.getScriptBytes());
+        return true;
+    }
+
+    // Stops using the store without closing it, as if the process died. Everything committed has been synced.
+    private void crash() {
+        store = null;
+    }
+
+    private void reopen() throws Exception {
+        store = new DiskFullPrunedBlockStore(params, dir, 10);
+    }
+
+    @Test
+    public void crashDuringBatchWriteWithoutCheckpoint() throws Exception {
+        StoredTransactionOutput a = output(1), b = output(2), c = output(3);
+        StoredBlock first = connect(list(a, b), NONE);
+        assertFalse(checkpointFile().exists());
+        byte[] table = Files.toByteArray(tableFile());
+        long committed = logFile().length();
+        StoredBlock second = connect(list(c), list(a));
+        long written = logFile().length();
+        crash();
+
+        // The second batch only got half way to the disk, so neither the output table nor anything else saw it.
+        cutLog(committed + (written - committed) / 2);
+        Files.write(table, tableFile());
+        reopen();
+        assertEquals(committed, logFile().length());
+        assertEquals(first, store.getChainHead());
+        assertEquals(first, store.getVerifiedChainHead());
+        assertNull(store.get(second.getHeader().getHash()));
+        assertNull(store.getUndoBlock(second.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(first.getHeader().getHash()));
+        assertTrue(hasOutput(a));
+        assertTrue(hasOutput(b));
+        assertFalse(hasOutput(c));
+
+        // And the store carries on from there.
+        head = first;
+        StoredBlock again = connect(list(c), list(a));
+        store.close();
+        reopen();
+        assertEquals(again, store.getChainHead());
+        assertFalse(hasOutput(a));
+        assertTrue(hasOutput(b));
+        assertTrue(hasOutput(c));
+    }
+
+    @Test
+    public void crashDuringBatchWriteAfterCheckpoint() throws Exception {
+        StoredTransactionOutput a = output(1), b = output(2), c = output(3), d = output(4);
+        StoredBlock first = connect(list(a, b), NONE);
+        store.close();
+        assertTrue(checkpointFile().exists());
+        reopen();
+        StoredBlock second = connect(list(c), list(a));
+        byte[] table = Files.toByteArray(tableFile());
+        long committed = logFile().length();
+        StoredBlock third = connect(list(d), list(b));
+        long written = logFile().length();
+        crash();
+
+        // The checkpoint is from the first block, the second has to be replayed and the third cut off.
+        cutLog(written - 3);
+        Files.write(table, tableFile());
+        reopen();
+        assertEquals(committed, logFile().length());
+        assertEquals(second, store.getChainHead());
+        assertEquals(first, store.get(first.getHeader().getHash()));
+        assertNull(store.get(third.getHeader().getHash()));
+        assertFalse(hasOutput(a));
+        assertTrue(hasOutput(b));
+        assertTrue(hasOutput(c));
+        assertFalse(hasOutput(d));
+    }
+
+    @Test
+    public void garbageAtTheEndIsCutOff() throws Exception {
+        StoredTransactionOutput a = output(1);
+        StoredBlock first = connect(list(a), NONE);
+        long committed = logFile().length();
+        crash();
+        RandomAccessFile log = new RandomAccessFile(logFile(), "rw");
+        try {
+            log.seek(committed);
+            log.write(new byte[] { 0, 0, 0, 40, 3, 1, 2, 3 });
+        } finally {
+            log.close();
+        }
+        reopen();
+        assertEquals(committed, logFile().length());
+        assertEquals(first, store.getChainHead());
+        assertTrue(hasOutput(a));
+    }
+
+    @Test
+    public void unusableCheckpointOrTableIsRebuiltFromTheLog() throws Exception {
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        StoredBlock last = null;
+        for (int i = 0; i < 20; i++) {
+            StoredTransactionOutput out = output(i);
+            outputs.add(out);
+            last = connect(list(out), i % 2 == 1 ? list(outputs.get(i - 1)) : NONE);
+        }
+        long dead = store.getDeadLogBytes();
+        store.close();
+
+        // A checkpoint that doesn't check out is ignored.
+        byte[] checkpoint = Files.toByteArray(checkpointFile());
+        checkpoint[checkpoint.length / 2] ^= 1;
+        Files.write(checkpoint, checkpointFile());
+        reopen();
+        assertEquals(last, store.getChainHead());
+        assertEquals(dead, store.getDeadLogBytes());
+        store.close();
+
+        // So is a missing output table, which means replaying the whole log.
+        assertTrue(tableFile().delete());
+        reopen();
+        assertEquals(last, store.getChainHead());
+        assertEquals(dead, store.getDeadLogBytes());
+        for (int i = 0; i < outputs.size(); i++)
+            assertEquals(i % 2 == 1, hasOutput(outputs.get(i)));
+    }
+
+    @Test
+    public void compactsOnceEnoughOfTheLogIsDead() throws Exception {
+        store.setAutoCompaction(0.5, 0);
+        List<StoredTransactionOutput> kept = new ArrayList<StoredTransactionOutput>();
+        int compactions = 0;
+        long previous = logFile().length();
+        for (int i = 0; i < 40; i++) {
+            StoredTransactionOutput spent = output(1000 + i);
+            connect(list(spent), NONE);
+            StoredTransactionOutput out = output(i);
+            kept.add(out);
+            connect(list(out), list(spent));
+            // Headers are never dead, so the log still grows with the chain, but it shrinks whenever it's compacted.
+            if (logFile().length() < previous)
+                compactions++;
+            previous = logFile().length();
+            assertTrue(store.getDeadLogBytes() <= logFile().length() / 2);
+        }
+        assertTrue(compactions > 0);
+        store.close();
+        reopen();
+        assertEquals(head, store.getChainHead());
+        for (StoredTransactionOutput out : kept)
+            assertTrue(hasOutput(out));
+        assertFalse(hasOutput(output(1000)));
+    }
+
+    @Test
+    public void failedCompactionDoesNotFailTheCommit() throws Exception {
+        store.setAutoCompaction(0, 0);
+        // Something in the way of the compacted copy makes every compaction fail.
+        File blocker = new File(dir, "blocks.log.tmp");
+        assertTrue(blocker.mkdir());
+        assertTrue(new File(blocker, "file").createNewFile());
+        StoredTransactionOutput a = output(1), b = output(2);
+        connect(list(a), NONE);
+        StoredBlock second = connect(list(b), list(a));
+        long dead = store.getDeadLogBytes();
+        assertTrue(dead > 0);
+        assertEquals(second, store.getChainHead());
+        assertFalse(hasOutput(a));
+        assertTrue(hasOutput(b));
+
+        // Once it's out of the way the next commit compacts.
+        assertTrue(new File(blocker, "file").delete());
+        assertTrue(blocker.delete());
+        StoredTransactionOutput c = output(3);
+        connect(list(c), NONE);
+        assertTrue(store.getDeadLogBytes() < dead);
+        assertFalse(blocker.exists());
+        store.close();
+        reopen();
+        assertEquals(head, store.getChainHead());
+        assertTrue(hasOutput(b));
+        assertTrue(hasOutput(c));
+    }
+
+    @Test
+    public void outputTableSpansSegments() throws Exception {
+        // Segments of 1024 slots stand in for the 2^24 slot segments of a real table.
+        File file = new File(dir, "segmented.table");
+        DiskFullPrunedBlockStore.OutputTable table = DiskFullPrunedBlockStore.OutputTable.open(file, 10);
+        int n = 60000;  // Enough to make the table grow.
+        table.beginUpdate();
+        for (int i = 0; i < n; i++)
+            table = table.put(Sha256Hash.create(new byte[] { (byte) i, (byte) (i >> 8), (byte) (i >> 16) }), i % 5, 8 + i);
+        for (int i = 0; i < n; i += 2)
+            table.remove(Sha256Hash.create(new byte[] { (byte) i, (byte) (i >> 8), (byte) (i >> 16) }), i % 5);
+        table.finishUpdate(100, true);
+        int capacity = table.getCapacity();
+        assertTrue(capacity > 1 << 16);
+        table.close();
+
+        // The segments are only a view of the file, which reads the same mapped in one piece.
+        table = DiskFullPrunedBlockStore.OutputTable.open(file);
+        assertEquals(capacity, table.getCapacity());
+        assertEquals(100, table.getAppliedPosition());
+        for (int i = 0; i < n; i++) {
+            long offset = table.find(Sha256Hash.create(new byte[] { (byte) i, (byte) (i >> 8), (byte) (i >> 16) }), i % 5);
+            assertEquals(i % 2 == 0 ? -1 : 8 + i, offset);
+        }
+        table.close();
+    }
+
+    private void cutLog(long length) throws Exception {
+        RandomAccessFile log = new RandomAccessFile(logFile(), "rw");
+        try {
+            log.setLength(length);
+        } finally {
+            log.close();
+        }
+    }
+}
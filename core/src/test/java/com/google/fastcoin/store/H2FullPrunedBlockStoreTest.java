@@ -0,0 +1,117 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.store;
+
+import com.google.fastcoin.core.*;
+import com.google.fastcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private H2FullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        File db = new File(folder.newFolder("store"), "test");
+        store = new H2FullPrunedBlockStore(UnitTestParams.get(), db.getAbsolutePath(), 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    static StoredTransactionOutput output(int n) {
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] { (byte) n }), n % 3,
+                BigInteger.valueOf(1000L * n + 1), n, false, new byte[] { 1, 2, (byte) n });
+    }
+
+    @Test
+    public void addedAgainAndRemovedInOneBatch() throws Exception {
+        // Adding an output that's already in the database doesn't add a second row, so removing it in the same batch
+        // must still delete the one that's there.
+        StoredTransactionOutput out = output(1);
+        store.addUnspentTransactionOutput(out);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 3));
+    }
+
+    @Test
+    public void removedReaddedAndRemovedAgainInOneBatch() throws Exception {
+        StoredTransactionOutput out = output(1);
+        store.addUnspentTransactionOutput(out);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void createdAndSpentInOneBatch() throws Exception {
+        StoredTransactionOutput kept = output(1), spent = output(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(kept);
+        store.addUnspentTransactionOutput(spent);
+        store.removeUnspentTransactionOutput(spent);
+        store.commitDatabaseBatchWrite();
+        assertNotNull(store.getTransactionOutput(kept.getHash(), kept.getIndex()));
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+    }
+
+    @Test
+    public void createdSpentAndCreatedAgainInOneBatch() throws Exception {
+        StoredTransactionOutput out = output(1);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertNotNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void removingMissingOutputFailsOnCommit() throws Exception {
+        // Outputs created and spent in the batch may be missing from the database, but nothing else may.
+        StoredTransactionOutput spent = output(1), missing = output(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(spent);
+        store.removeUnspentTransactionOutput(spent);
+        store.removeUnspentTransactionOutput(missing);
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+}
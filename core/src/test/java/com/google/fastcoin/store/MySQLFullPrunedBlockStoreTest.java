@@ -0,0 +1,374 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.fastcoin.store;
+
+import com.google.fastcoin.core.*;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the store against H2 in MySQL mode, through a driver that takes the store's jdbc:mysql:// URLs and opens an
+ * in-memory H2 database of the same name instead.
+ */
+public class MySQLFullPrunedBlockStoreTest {
+    private static int databases;
+
+    private NetworkParameters params;
+    private String dbName;
+    private Connection db;
+    private MySQLFullPrunedBlockStore store;
+
+    private static class H2MySQLModeDriver implements Driver {
+        static final String PREFIX = "jdbc:mysql://";
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url))
+                return null;
+            return DriverManager.getConnection(h2Url(url.substring(PREFIX.length())));
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith(PREFIX);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    static {
+        try {
+            Class.forName("org.h2.Driver");
+            DriverManager.registerDriver(new H2MySQLModeDriver());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String h2Url(String dbName) {
+        return "jdbc:h2:mem:" + dbName + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        dbName = "mysqlstoretest" + databases++;
+        db = DriverManager.getConnection(h2Url(dbName));
+        store = new MySQLFullPrunedBlockStore(params, dbName, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        Statement s = db.createStatement();
+        s.execute("DROP ALL OBJECTS");
+        s.close();
+        db.close();
+    }
+
+    private StoredTransactionOutput output(int n) {
+        byte[] script = new byte[25 + n % 7];
+        script[0] = (byte) n;
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] { (byte) n, (byte) (n >> 8) }), n % 3,
+                BigInteger.valueOf(1000L * n + 1), n, n % 5 == 0, script);
+    }
+
+    private List<StoredTransactionOutput> outputs(int from, int count) {
+        List<StoredTransactionOutput> outs = new ArrayList<StoredTransactionOutput>();
+        for (int i = from; i < from + count; i++)
+            outs.add(output(i));
+        return outs;
+    }
+
+    private int countRows(String table) throws SQLException {
+        Statement s = db.createStatement();
+        try {
+            ResultSet rs = s.executeQuery("SELECT COUNT(*) FROM " + table);
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            s.close();
+        }
+    }
+
+    private String settingValue(String name) throws SQLException {
+        PreparedStatement s = db.prepareStatement("SELECT value FROM settings WHERE name = ?");
+        try {
+            s.setString(1, name);
+            ResultSet rs = s.executeQuery();
+            return rs.next() ? new String(rs.getBytes(1), Charsets.US_ASCII) : null;
+        } finally {
+            s.close();
+        }
+    }
+
+    private void assertStored(StoredTransactionOutput out) throws Exception {
+        StoredTransactionOutput stored = store.getTransactionOutput(out.getHash(), out.getIndex());
+        assertNotNull(stored);
+        assertEquals(out.getValue(), stored.getValue());
+        assertEquals(out.getHeight(), stored.getHeight());
+        assertArrayEquals(out.getScriptBytes(), stored.getScriptBytes());
+    }
+
+    @Test
+    public void newStoreHasTheCurrentSchema() throws Exception {
+        assertEquals(MySQLFullPrunedBlockStore.SCHEMA_VERSION, settingValue(MySQLFullPrunedBlockStore.VERSION_SETTING));
+        assertEquals("02", MySQLFullPrunedBlockStore.SCHEMA_VERSION);
+        assertEquals(0, countRows("openOutputs"));
+        assertEquals(1, countRows("headers"));
+        assertEquals(params.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void batchesOfEverySizeAreWrittenInMultiRowStatements() throws Exception {
+        // Sizes that take every combination of the statement sizes, including all of them at once.
+        assertArrayEquals(new int[] { 128, 16, 4, 1 }, MySQLFullPrunedBlockStore.ROWS_PER_STATEMENT);
+        int[] sizes = { 1, 3, 4, 5, 16, 21, 128, 149, 300 };
+        int from = 0;
+        for (int size : sizes) {
+            List<StoredTransactionOutput> outs = outputs(from, size);
+            from += size;
+            store.beginDatabaseBatchWrite();
+            for (StoredTransactionOutput out : outs)
+                store.addUnspentTransactionOutput(out);
+            store.commitDatabaseBatchWrite();
+            assertEquals(size, countRows("openOutputs"));
+            for (StoredTransactionOutput out : outs)
+                assertStored(out);
+            assertTrue(store.hasUnspentOutputs(outs.get(0).getHash(), 3));
+
+            store.beginDatabaseBatchWrite();
+            for (StoredTransactionOutput out : outs)
+                store.removeUnspentTransactionOutput(out);
+            store.commitDatabaseBatchWrite();
+            assertEquals(0, countRows("openOutputs"));
+            for (StoredTransactionOutput out : outs)
+                assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        }
+    }
+
+    @Test
+    public void outputsOutsideABatchAreWrittenStraightAway() throws Exception {
+        StoredTransactionOutput out = output(1);
+        store.addUnspentTransactionOutput(out);
+        assertEquals(1, countRows("openOutputs"));
+        assertStored(out);
+        store.removeUnspentTransactionOutput(out);
+        assertEquals(0, countRows("openOutputs"));
+        try {
+            store.removeUnspentTransactionOutput(out);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void removedReaddedAndRemovedAgainInOneBatch() throws Exception {
+        StoredTransactionOutput out = output(1);
+        store.addUnspentTransactionOutput(out);
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        store.addUnspentTransactionOutput(out);
+        assertStored(out);
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 3));
+        store.commitDatabaseBatchWrite();
+
+        assertEquals(0, countRows("openOutputs"));
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void addedAgainAndRemovedInOneBatch() throws Exception {
+        // Adding an output that's already in the database doesn't add a second row, so removing it in the same batch
+        // must still delete the one that's there.
+        StoredTransactionOutput out = output(1);
+        store.addUnspentTransactionOutput(out);
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+
+        assertEquals(0, countRows("openOutputs"));
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void createdAndSpentInOneBatchIsNeverInserted() throws Exception {
+        StoredTransactionOutput kept = output(1), spent = output(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(kept);
+        store.addUnspentTransactionOutput(spent);
+        store.removeUnspentTransactionOutput(spent);
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, countRows("openOutputs"));
+        assertStored(kept);
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+    }
+
+    @Test
+    public void removingMissingOutputFailsOnCommit() throws Exception {
+        // Outputs created and spent in the batch may be missing from the database, but nothing else may.
+        store.beginDatabaseBatchWrite();
+        for (StoredTransactionOutput out : outputs(0, 21)) {
+            store.addUnspentTransactionOutput(out);
+            store.removeUnspentTransactionOutput(out);
+        }
+        store.commitDatabaseBatchWrite();
+        assertEquals(0, countRows("openOutputs"));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(output(1));
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void failedBatchIsRolledBack() throws Exception {
+        StoredTransactionOutput existing = output(0);
+        store.addUnspentTransactionOutput(existing);
+
+        store.beginDatabaseBatchWrite();
+        for (StoredTransactionOutput out : outputs(1, 150))
+            store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(existing);
+        // Not in the database, so the delete fails when the batch is committed.
+        store.removeUnspentTransactionOutput(output(1000));
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        assertEquals(1, countRows("openOutputs"));
+        assertStored(existing);
+        assertNull(store.getTransactionOutput(output(1).getHash(), output(1).getIndex()));
+
+        // Writes after the failure aren't part of a batch any more.
+        StoredTransactionOutput after = output(2000);
+        store.addUnspentTransactionOutput(after);
+        assertEquals(2, countRows("openOutputs"));
+    }
+
+    @Test
+    public void abortedBatchIsRolledBack() throws Exception {
+        store.beginDatabaseBatchWrite();
+        for (StoredTransactionOutput out : outputs(0, 20))
+            store.addUnspentTransactionOutput(out);
+        store.abortDatabaseBatchWrite();
+        assertEquals(0, countRows("openOutputs"));
+        assertNull(store.getTransactionOutput(output(0).getHash(), output(0).getIndex()));
+    }
+
+    @Test
+    public void unknownSchemaVersionIsRejected() throws Exception {
+        store.close();
+        PreparedStatement s = db.prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+        s.setBytes(1, "01".getBytes(Charsets.US_ASCII));
+        s.setString(2, MySQLFullPrunedBlockStore.VERSION_SETTING);
+        s.executeUpdate();
+        s.close();
+        try {
+            new MySQLFullPrunedBlockStore(params, dbName, 10);
+            fail();
+        } catch (BlockStoreException e) {
+            assertTrue(e.getMessage().contains("schema version"));
+        }
+    }
+
+    @Test
+    public void originalSchemaIsMigrated() throws Exception {
+        // Put the outputs back into the original two tables, with values as serialized BigIntegers and no version.
+        store.close();
+        List<StoredTransactionOutput> outs = outputs(1, 40);
+        Statement s = db.createStatement();
+        s.executeUpdate("DROP TABLE openOutputs");
+        s.executeUpdate("DELETE FROM settings WHERE name = '" + MySQLFullPrunedBlockStore.VERSION_SETTING + "'");
+        s.executeUpdate("CREATE TABLE openOutputsIndex (hash BINARY(32) NOT NULL, height INT NOT NULL, " +
+                "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY)");
+        s.executeUpdate("CREATE TABLE openOutputs (id BIGINT NOT NULL, idx INT NOT NULL, value BLOB NOT NULL, " +
+                "scriptBytes BLOB NOT NULL, PRIMARY KEY (id, idx), " +
+                "CONSTRAINT openOutputs_fk FOREIGN KEY (id) REFERENCES openOutputsIndex(id))");
+        s.close();
+        PreparedStatement index = db.prepareStatement("INSERT INTO openOutputsIndex (hash, height, id) VALUES (?, ?, ?)");
+        PreparedStatement output = db.prepareStatement("INSERT INTO openOutputs (id, idx, value, scriptBytes) VALUES (?, ?, ?, ?)");
+        long id = 0;
+        for (StoredTransactionOutput out : outs) {
+            index.setBytes(1, out.getHash().getBytes());
+            index.setInt(2, out.getHeight());
+            index.setLong(3, ++id);
+            index.executeUpdate();
+            output.setLong(1, id);
+            output.setInt(2, (int) out.getIndex());
+            output.setBytes(3, out.getValue().toByteArray());
+            output.setBytes(4, out.getScriptBytes());
+            output.executeUpdate();
+        }
+        index.close();
+        output.close();
+
+        store = new MySQLFullPrunedBlockStore(params, dbName, 10);
+        assertEquals(MySQLFullPrunedBlockStore.SCHEMA_VERSION, settingValue(MySQLFullPrunedBlockStore.VERSION_SETTING));
+        assertEquals(outs.size(), countRows("openOutputs"));
+        for (StoredTransactionOutput out : outs)
+            assertStored(out);
+        assertEquals(params.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.fastcoin.store;
+
+import com.google.fastcoin.core.*;
+import com.google.fastcoin.params.UnitTestParams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.*;
+
+public class SPVBlockStoreTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int NUM_HEADERS = 100;
+
+    @Test
+    public void readersSeeWholeRecordsWhileWriting() throws Exception {
+        readWhileWriting(true);
+    }
+
+    @Test
+    public void readersSeeWholeRecordsWhileWritingWithoutIndex() throws Exception {
+        readWhileWriting(false);
+    }
+
+    private void readWhileWriting(boolean indexed) throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        // A small cache, so most reads go to the ring.
+        final SPVBlockStore store = new SPVBlockStore(params, new File(folder.getRoot(), "test.spvchain"), NUM_HEADERS,
+                4, indexed);
+        final AtomicReferenceArray<StoredBlock> blocks = new AtomicReferenceArray<StoredBlock>(NUM_HEADERS);
+        final AtomicInteger written = new AtomicInteger();
+        StoredBlock stored = store.getChainHead();
+        blocks.set(written.getAndIncrement(), stored);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[3];
+        for (int i = 0; i < readers.length; i++) {
+            final Random random = new Random(i);
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (running.get()) {
+                            // Only ask for headers the writer can't have pushed out of the ring yet.
+                            int count = written.get();
+                            int n = count - 1 - random.nextInt(Math.min(count, NUM_HEADERS / 2));
+                            StoredBlock expected = blocks.get(n % NUM_HEADERS);
+                            StoredBlock found = store.get(expected.getHeader().getHash());
+                            assertEquals(expected, found);
+                            assertEquals(expected.getHeight(), found.getHeight());
+                            assertEquals(expected.getChainWork(), found.getChainWork());
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (int i = 0; i < NUM_HEADERS * 5 && failure.get() == null; i++) {
+            stored = stored.build(stored.getHeader().createNextBlock(null).cloneAsHeader());
+            store.put(stored);
+            store.setChainHead(stored);
+            blocks.set(written.get() % NUM_HEADERS, stored);
+            written.incrementAndGet();
+            if (i % 16 == 0)
+                Thread.yield();
+        }
+        running.set(false);
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertEquals(stored, store.getChainHead());
+        // Long since pushed out of the ring.
+        assertNull(store.get(params.getGenesisBlock().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void chainHeadIsLoadedFromTheFile() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File file = new File(folder.getRoot(), "test.spvchain");
+        SPVBlockStore store = new SPVBlockStore(params, file, NUM_HEADERS, 4, true);
+        StoredBlock stored = store.getChainHead();
+        for (int i = 0; i < 10; i++) {
+            stored = stored.build(stored.getHeader().createNextBlock(null).cloneAsHeader());
+            store.put(stored);
+        }
+        store.setChainHead(stored);
+        store.close();
+
+        store = new SPVBlockStore(params, file, NUM_HEADERS, 4, true);
+        assertEquals(stored, store.getChainHead());
+        assertEquals(10, store.getChainHead().getHeight());
+        store.close();
+    }
+}
@@ -20,6 +20,7 @@ import com.google.fastcoin.core.AbstractPeerEventListener;
 import com.google.fastcoin.core.NetworkParameters;
 import com.google.fastcoin.core.Peer;
 import com.google.fastcoin.core.PeerGroup;
+import com.google.fastcoin.net.ParallelNioClientManager;
 import com.google.fastcoin.net.discovery.DnsDiscovery;
 import com.google.fastcoin.params.MainNetParams;
 import com.google.fastcoin.utils.BriefLogFormatter;
@@ -62,7 +63,9 @@ public class PeerMonitor {
 
     private void setupNetwork() {
         params = MainNetParams.get();
-        peerGroup = new PeerGroup(params, null /* no chain */);
+        // Spread the peers over two network threads and decode their messages on a pool of one thread per core.
+        peerGroup = new PeerGroup(params, null /* no chain */,
+                new ParallelNioClientManager(2, Runtime.getRuntime().availableProcessors()));
         peerGroup.setUserAgent("PeerMonitor", "1.0");
         peerGroup.setMaxConnections(15);
         peerGroup.addPeerDiscovery(new DnsDiscovery(params));
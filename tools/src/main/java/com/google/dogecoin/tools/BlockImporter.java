@@ -8,9 +8,13 @@ import com.google.fastcoin.utils.BlockFileLoader;
 import com.google.common.base.Preconditions;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /** Very thin wrapper around {@link com.google.fastcoin.utils.BlockFileLoader} */
 public class BlockImporter {
+    private static final int BATCH_SIZE = 256;
+
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
         System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
@@ -28,6 +32,9 @@ public class BlockImporter {
         if (args[1].equals("H2")) {
             Preconditions.checkArgument(args.length == 3);
             store = new H2FullPrunedBlockStore(params, args[2], 100);
+        } else if (args[1].equals("Disk")) {
+            Preconditions.checkArgument(args.length == 3);
+            store = new DiskFullPrunedBlockStore(params, new File(args[2]), 100);
         } else if (args[1].equals("MemFull")) {
             Preconditions.checkArgument(args.length == 2);
             store = new MemoryFullPrunedBlockStore(params, 100);
@@ -50,7 +57,31 @@ public class BlockImporter {
         
         BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
         
-        for (Block block : loader)
+        // Read blocks in runs so their proof of work hashes can be calculated in parallel before they're connected.
+        HeaderBatchVerifier verifier = HeaderBatchVerifier.get();
+        List<Block> run = new ArrayList<Block>(BATCH_SIZE);
+        long start = System.currentTimeMillis();
+        long count = 0;
+        for (Block block : loader) {
+            run.add(block);
+            if (run.size() == BATCH_SIZE) {
+                addAll(verifier, chain, run);
+                count += run.size();
+                run.clear();
+            }
+        }
+        addAll(verifier, chain, run);
+        count += run.size();
+        // Replaying the same block files against a fresh store makes this a repeatable measure of verification speed.
+        double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+        System.out.println(String.format("Imported %d blocks in %.1f seconds, %.1f blocks/sec", count, seconds,
+                count / seconds));
+    }
+
+    private static void addAll(HeaderBatchVerifier verifier, AbstractBlockChain chain, List<Block> blocks)
+            throws VerificationException, PrunedException {
+        verifier.precomputeHashes(blocks);
+        for (Block block : blocks)
             chain.add(block);
     }
 }
@@ -0,0 +1,101 @@
+package com.google.fastcoin.tools;
+
+import com.google.fastcoin.core.*;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.wallet.CoinSelection;
+import com.google.fastcoin.wallet.CoinSelector;
+import com.google.fastcoin.wallet.DefaultCoinSelector;
+import com.google.fastcoin.wallet.FastCoinSelector;
+import com.google.common.base.Preconditions;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures coin selection over a synthetic wallet of many small outputs, the way
+ * {@link Wallet#completeTx(Wallet.SendRequest)} uses it: a few selections per send as the fee is adjusted, with a
+ * block and some new outputs arriving between sends. Compares {@link DefaultCoinSelector} against
+ * {@link FastCoinSelector} with and without its search for selections that need no change.
+ */
+public class CoinSelectorBenchmark {
+    private static final int NEW_OUTPUTS_PER_SEND = 10;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: CoinSelectorBenchmark (default|fast|nosearch) [outputs] [sends] [search millis]");
+        System.out.println("       eg CoinSelectorBenchmark fast 100000 50");
+        Preconditions.checkArgument(args.length >= 1 && args.length <= 4);
+        CoinSelector selector;
+        if (args[0].equals("default")) {
+            selector = new DefaultCoinSelector();
+        } else if (args[0].equals("fast")) {
+            long searchMillis = args.length > 3 ? Long.parseLong(args[3]) : FastCoinSelector.DEFAULT_SEARCH_MILLIS;
+            selector = new FastCoinSelector(searchMillis, TimeUnit.MILLISECONDS);
+        } else if (args[0].equals("nosearch")) {
+            selector = new FastCoinSelector(0, TimeUnit.MILLISECONDS);
+        } else {
+            System.err.println("Unknown mode " + args[0]);
+            return;
+        }
+        int numOutputs = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int numSends = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        NetworkParameters params = UnitTestParams.get();
+        Random random = new Random(1);
+        ECKey key = new ECKey();
+        int height = 1000;
+        LinkedList<TransactionOutput> candidates = new LinkedList<TransactionOutput>();
+        for (int i = 0; i < numOutputs; i++)
+            candidates.add(makeOutput(params, key, random, height, random.nextInt(height)));
+        System.out.printf("Created %d outputs%n", numOutputs);
+
+        long nanos = 0, worst = 0;
+        int withoutChange = 0, inputs = 0;
+        for (int send = 0; send < numSends; send++) {
+            BigInteger target = BigInteger.valueOf(Utils.CENT.longValue() * (1 + random.nextInt(500)));
+            BigInteger fee = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+            // As the fee calculation does: the base fee, a bigger fee for size, then enough to avoid small change.
+            BigInteger[] targets = {
+                    target.add(fee), target.add(fee.shiftLeft(1)), target.add(fee.shiftLeft(1)).add(Utils.CENT)
+            };
+            CoinSelection selection = null;
+            long sendStart = System.nanoTime();
+            for (BigInteger t : targets) {
+                selection = selector.select(t, candidates);
+                if (selection.valueGathered.equals(t))
+                    withoutChange++;
+            }
+            long took = System.nanoTime() - sendStart;
+            nanos += took;
+            worst = Math.max(worst, took);
+            inputs += selection.gathered.size();
+
+            // The selected outputs are spent, a block comes in and some new outputs with it.
+            candidates.removeAll(new HashSet<TransactionOutput>(selection.gathered));
+            height++;
+            for (TransactionOutput output : candidates) {
+                TransactionConfidence confidence = output.getParentTransaction().getConfidence();
+                confidence.setDepthInBlocks(height - confidence.getAppearedAtChainHeight() + 1);
+            }
+            for (int i = 0; i < NEW_OUTPUTS_PER_SEND; i++)
+                candidates.add(makeOutput(params, key, random, height, 0));
+        }
+        System.out.printf("%s: %d sends over %d outputs took %.3f ms per send on average, %.3f ms at worst%n",
+                args[0], numSends, numOutputs, nanos / 1e6 / numSends, worst / 1e6);
+        System.out.printf("%d of %d selections needed no change, %.1f inputs per send on average%n",
+                withoutChange, numSends * 3, (double) inputs / numSends);
+    }
+
+    private static TransactionOutput makeOutput(NetworkParameters params, ECKey key, Random random, int height, int age) {
+        Transaction tx = new Transaction(params);
+        // Payouts of between 0.001 and 0.1 coins, in whole 0.0001s so that exact matches are possible.
+        tx.addOutput(BigInteger.valueOf(10000L * (10 + random.nextInt(990))), key);
+        byte[] unique = new byte[8];
+        random.nextBytes(unique);
+        tx.addInput(new TransactionInput(params, tx, unique));
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.setAppearedAtChainHeight(height - age);
+        confidence.setDepthInBlocks(age + 1);
+        return tx.getOutput(0);
+    }
+}
@@ -0,0 +1,95 @@
+package com.google.fastcoin.tools;
+
+import com.google.fastcoin.core.*;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.utils.Threading;
+import com.google.fastcoin.wallet.WalletTransaction;
+import com.google.common.base.Preconditions;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how long {@link Wallet#notifyNewBestBlock(StoredBlock)} takes for a wallet holding the given number of
+ * transactions in the best chain, with every confidence updated per block (eager) or with depths worked out when
+ * asked for (ondemand), see {@link Wallet#setDepthOnDemand(boolean)}. All transactions appeared in the same block, so
+ * one block takes them all to the depth that is waited for and completes every depth future at once: that block is
+ * the worst case reported in both modes.
+ */
+public class ConfidenceDepthBenchmark {
+    // One in this many transactions has somebody waiting for it to reach a depth.
+    private static final int FUTURE_EVERY = 100;
+    private static final int FUTURE_DEPTH = 6;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: ConfidenceDepthBenchmark (eager|ondemand) [transactions] [blocks]");
+        System.out.println("       eg ConfidenceDepthBenchmark ondemand 200000 100");
+        Preconditions.checkArgument(args.length >= 1 && args.length <= 3);
+        boolean onDemand;
+        if (args[0].equals("eager")) {
+            onDemand = false;
+        } else if (args[0].equals("ondemand")) {
+            onDemand = true;
+        } else {
+            System.err.println("Unknown mode " + args[0]);
+            return;
+        }
+        int numTransactions = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int numBlocks = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        NetworkParameters params = UnitTestParams.get();
+        Block genesis = params.getGenesisBlock();
+        StoredBlock head = new StoredBlock(genesis, genesis.getWork(), 0);
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        wallet.notifyNewBestBlock(head);
+        wallet.setDepthOnDemand(onDemand);
+
+        // All transactions appeared in the genesis block, which is as good as any other for this.
+        long start = System.currentTimeMillis();
+        final List<Transaction> reached = new ArrayList<Transaction>();
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params);
+            tx.addOutput(BigInteger.valueOf(i + 1), key);
+            tx.getConfidence().setWorkDone(genesis.getWork());
+            tx.getConfidence().setAppearedAtChainHeight(0);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+            if (i % FUTURE_EVERY == 0) {
+                tx.getConfidence().getDepthFuture(FUTURE_DEPTH).addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (reached) {
+                            reached.add(null);
+                        }
+                    }
+                }, Threading.SAME_THREAD);
+            }
+        }
+        System.out.printf("Added %d transactions in %d ms%n", numTransactions, System.currentTimeMillis() - start);
+
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>(numBlocks);
+        for (int i = 0; i < numBlocks; i++) {
+            head = head.build(head.getHeader().createNextBlock(null));
+            blocks.add(head);
+        }
+
+        long nanos = 0, worst = 0;
+        for (StoredBlock block : blocks) {
+            long blockStart = System.nanoTime();
+            wallet.notifyNewBestBlock(block);
+            long took = System.nanoTime() - blockStart;
+            nanos += took;
+            worst = Math.max(worst, took);
+        }
+        Transaction sample = wallet.getTransactions(false).iterator().next();
+        System.out.printf("%s: %d blocks over %d transactions took %.3f ms per block on average, %.3f ms at worst%n",
+                args[0], numBlocks, numTransactions, nanos / 1e6 / numBlocks, worst / 1e6);
+        synchronized (reached) {
+            System.out.printf("Depth of a transaction is now %d, %d of %d depth futures completed%n",
+                    sample.getConfidence().getDepthInBlocks(), reached.size(),
+                    (numTransactions + FUTURE_EVERY - 1) / FUTURE_EVERY);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.google.fastcoin.tools;
+
+import com.google.fastcoin.net.*;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens a number of loopback connections to an echo {@link NioServer} using the given kind of
+ * {@link ClientConnectionManager}, and reports the heap used per connection and the round trip latency of small
+ * messages sent over all of them at once.
+ */
+public class ConnectionBenchmark {
+    private static final int MESSAGE_SIZE = 8;
+    private static final int CONNECT_BATCH = 32;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: ConnectionBenchmark (nio|blocking|virtual) [connections] [round trips per connection]");
+        System.out.println("       eg ConnectionBenchmark virtual 5000 20");
+        Preconditions.checkArgument(args.length >= 1 && args.length <= 3);
+        final int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        final int roundTrips = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        ClientConnectionManager manager;
+        if (args[0].equals("nio")) {
+            manager = new NioClientManager();
+        } else if (args[0].equals("blocking")) {
+            BlockingClientManager blockingManager = new BlockingClientManager();
+            // The server accepts on a single thread, so give connections some time to get through its backlog.
+            blockingManager.setConnectTimeoutMillis(60000);
+            manager = blockingManager;
+        } else if (args[0].equals("virtual")) {
+            VirtualThreadClientManager virtualManager = new VirtualThreadClientManager();
+            if (!virtualManager.isUsingVirtualThreads())
+                System.out.println("Virtual threads are not available on this JVM, falling back to platform threads");
+            virtualManager.setConnectTimeoutMillis(60000);
+            manager = virtualManager;
+        } else {
+            System.err.println("Unknown connection manager " + args[0]);
+            return;
+        }
+
+        // Find a free port for the server.
+        ServerSocket probe = new ServerSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public StreamParser getNewParser(InetAddress inetAddress, int port) {
+                return new EchoParser();
+            }
+        }, address);
+        server.startAndWait();
+        manager.startAndWait();
+
+        long heapBefore = usedHeap();
+        int threadsBefore = Thread.activeCount();
+        long start = System.nanoTime();
+        CountDownLatch opened = new CountDownLatch(connections);
+        CountDownLatch finished = new CountDownLatch(connections);
+        long[] latencies = new long[connections * roundTrips];
+        AtomicInteger latencyCount = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        PingParser[] clients = new PingParser[connections];
+        long deadline = System.currentTimeMillis() + 120 * 1000;
+        for (int i = 0; i < connections; i++) {
+            clients[i] = new PingParser(roundTrips, opened, finished, failed, latencies, latencyCount);
+            manager.openConnection(address, clients[i]);
+            // Open connections in batches, so the server's accept backlog doesn't overflow and leave connects waiting
+            // for SYN retransmits.
+            while (i + 1 - (connections - opened.getCount()) >= CONNECT_BATCH && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+        }
+        if (!opened.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+            System.err.println("Only " + (connections - opened.getCount()) + " connections opened in time");
+            System.exit(1);
+        }
+        if (failed.get() > 0) {
+            System.err.println(failed.get() + " connections failed to open");
+            System.exit(1);
+        }
+        long openMillis = (System.nanoTime() - start) / 1000000;
+        long heapPerConnection = (usedHeap() - heapBefore) / connections;
+        int threads = Thread.activeCount() - threadsBefore;
+        System.out.printf("Opened %d connections in %d ms%n", connections, openMillis);
+        System.out.printf("Heap per connection (client and server side): %d bytes, new platform threads: %d%n",
+                heapPerConnection, threads);
+
+        start = System.nanoTime();
+        for (PingParser client : clients)
+            client.ping();
+        if (!finished.await(120, TimeUnit.SECONDS))
+            System.err.println("Not all round trips finished in time");
+        long totalMillis = (System.nanoTime() - start) / 1000000;
+        int count = latencyCount.get();
+        Arrays.sort(latencies, 0, count);
+        long sum = 0;
+        for (int i = 0; i < count; i++)
+            sum += latencies[i];
+        // Every time printed is in milliseconds, so the figures can't be mixed up.
+        System.out.printf("%d round trips in %d ms, latency avg %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                count, totalMillis, sum / 1e6 / Math.max(count, 1), percentile(latencies, count, 0.5),
+                percentile(latencies, count, 0.99), percentile(latencies, count, 1.0));
+
+        manager.stopAndWait();
+        server.stopAndWait();
+    }
+
+    private static double percentile(long[] sorted, int count, double fraction) {
+        if (count == 0)
+            return 0;
+        return sorted[Math.min(count - 1, (int) (count * fraction))] / 1e6;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Server side: sends back whatever it receives. */
+    private static class EchoParser implements StreamParser {
+        private MessageWriteTarget writeTarget;
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws Exception {
+            byte[] bytes = new byte[buff.remaining()];
+            buff.get(bytes);
+            writeTarget.writeBytes(bytes);
+            return buff.position();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override public void connectionOpened() { }
+        @Override public void connectionClosed() { }
+        @Override public int getMaxMessageSize() { return MESSAGE_SIZE; }
+    }
+
+    /** Client side: sends its send time, and when it comes back records the latency and sends the next one. */
+    private static class PingParser implements StreamParser {
+        private final CountDownLatch opened, finished;
+        private final AtomicInteger failed;
+        private final long[] latencies;
+        private final AtomicInteger latencyCount;
+        private int roundTripsLeft;
+        private volatile boolean isOpen;
+        private MessageWriteTarget writeTarget;
+
+        PingParser(int roundTrips, CountDownLatch opened, CountDownLatch finished, AtomicInteger failed,
+                   long[] latencies, AtomicInteger latencyCount) {
+            this.roundTripsLeft = roundTrips;
+            this.opened = opened;
+            this.finished = finished;
+            this.failed = failed;
+            this.latencies = latencies;
+            this.latencyCount = latencyCount;
+        }
+
+        void ping() throws IOException {
+            writeTarget.writeBytes(ByteBuffer.allocate(MESSAGE_SIZE).putLong(System.nanoTime()).array());
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws Exception {
+            while (buff.remaining() >= MESSAGE_SIZE) {
+                latencies[latencyCount.getAndIncrement()] = System.nanoTime() - buff.getLong();
+                if (--roundTripsLeft > 0)
+                    ping();
+                else
+                    finished.countDown();
+            }
+            return buff.position();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public void connectionOpened() {
+            isOpen = true;
+            opened.countDown();
+        }
+
+        @Override
+        public void connectionClosed() {
+            if (!isOpen) {
+                failed.incrementAndGet();
+                opened.countDown();
+            }
+        }
+
+        @Override public int getMaxMessageSize() { return MESSAGE_SIZE; }
+    }
+}
@@ -0,0 +1,82 @@
+package com.google.fastcoin.tools;
+
+import com.google.fastcoin.core.*;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures SHA-256 throughput through {@link Utils#doubleDigest(byte[])}, and of parsing and hashing transactions,
+ * with the given number of threads hashing at once. Every thread works on its own data, so any slowdown as threads
+ * are added comes from what they share inside the hashing code.
+ */
+public class DigestBenchmark {
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: DigestBenchmark (digest|tx) [threads] [seconds] [message bytes]");
+        System.out.println("       eg DigestBenchmark digest 4 10 250");
+        Preconditions.checkArgument(args.length >= 1 && args.length <= 4);
+        final boolean tx;
+        if (args[0].equals("digest")) {
+            tx = false;
+        } else if (args[0].equals("tx")) {
+            tx = true;
+        } else {
+            System.err.println("Unknown mode " + args[0]);
+            return;
+        }
+        int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int size = args.length > 3 ? Integer.parseInt(args[3]) : 250;
+
+        final NetworkParameters params = UnitTestParams.get();
+        final byte[] message = new byte[size];
+        new Random(1).nextBytes(message);
+        Transaction template = new Transaction(params);
+        template.addInput(new TransactionInput(params, template, new byte[] { 1, 2, 3 }));
+        template.addOutput(Utils.COIN, new ECKey());
+        template.addOutput(Utils.CENT, new ECKey().toAddress(params));
+        final byte[] txBytes = template.fastcoinSerialize();
+
+        // A second of warm up, then the measurement.
+        run(params, tx, message, txBytes, numThreads, 1000);
+        long count = run(params, tx, message, txBytes, numThreads, seconds * 1000L);
+        System.out.printf("%s: %d threads, %d %s per second%n", args[0], numThreads, count / seconds,
+                tx ? "transactions (" + txBytes.length + " bytes)" : "digests of " + size + " bytes");
+    }
+
+    private static long run(final NetworkParameters params, final boolean tx, final byte[] message,
+                            final byte[] txBytes, int numThreads, long millis) throws InterruptedException {
+        final AtomicLong count = new AtomicLong();
+        final long end = System.currentTimeMillis() + millis;
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    byte[] data = message.clone();
+                    long n = 0, sink = 0;
+                    while ((n & 0xFF) != 0 || System.currentTimeMillis() < end) {
+                        if (tx)
+                            sink += new Transaction(params, txBytes).getHash().hashCode();
+                        else
+                            sink += Utils.doubleDigest(data)[0];
+                        n++;
+                    }
+                    count.addAndGet(n);
+                    if (sink == 42) System.out.print("");  // Keep the results alive.
+                    done.countDown();
+                }
+            });
+        }
+        for (Thread thread : threads)
+            thread.start();
+        done.await();
+        return count.get();
+    }
+}
@@ -0,0 +1,300 @@
+package com.google.fastcoin.tools;
+
+import com.google.fastcoin.core.*;
+import com.google.fastcoin.net.NioServer;
+import com.google.fastcoin.net.StreamParser;
+import com.google.fastcoin.net.StreamParserFactory;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.store.MemoryBlockStore;
+import com.google.common.base.Preconditions;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how long a {@link PeerGroup} takes to sync from local stand-in peers serving a pre-built chain. The chain
+ * is synced headers first: headers before the wallet's key time go straight into the block store, the blocks after it
+ * are fetched as filtered blocks (or full blocks) from all stand-in peers at once. The stand-in peers can be made
+ * to wait before answering, to see how much of the round trip time the sync hides.
+ */
+public class HeaderSyncBenchmark {
+    // Seconds between the generated blocks.
+    private static final int BLOCK_SPACING = 60;
+    // PeerGroup moves the fast catchup time a week back from the earliest key time, to allow for clock drift.
+    private static final int CATCHUP_MARGIN = 86400 * 7;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: HeaderSyncBenchmark (filtered|full) [headers] [blocks after key time] [peers] [latency ms]");
+        System.out.println("       eg HeaderSyncBenchmark filtered 100000 2000 4 100");
+        Preconditions.checkArgument(args.length >= 1 && args.length <= 5);
+        boolean filtered;
+        if (args[0].equals("filtered")) {
+            filtered = true;
+        } else if (args[0].equals("full")) {
+            filtered = false;
+        } else {
+            System.err.println("Unknown mode " + args[0]);
+            return;
+        }
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int bodies = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int numPeers = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int latency = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        // Peer refuses to talk to nodes with shorter chains than this, see Peer.MIN_PEER_BLOCK_HEIGHT.
+        Preconditions.checkArgument(height >= 50000, "Need at least 50000 headers");
+        Preconditions.checkArgument(bodies > 0 && bodies <= height);
+
+        long start = System.currentTimeMillis();
+        long endTime = Utils.currentTimeMillis() / 1000 - CATCHUP_MARGIN - 86400;
+        BenchmarkParams params = new BenchmarkParams(endTime - (long) height * BLOCK_SPACING);
+        ServedChain chain = new ServedChain(params, height);
+        System.out.printf("Built a chain of %d blocks in %d ms%n", height, System.currentTimeMillis() - start);
+
+        List<NioServer> servers = new ArrayList<NioServer>();
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        final AtomicLong blocksServed = new AtomicLong(), headersServed = new AtomicLong();
+        ScheduledExecutorService delayer = Executors.newSingleThreadScheduledExecutor();
+        for (int i = 0; i < numPeers; i++) {
+            ServerSocket probe = new ServerSocket(0);
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), probe.getLocalPort());
+            probe.close();
+            NioServer server = new NioServer(new StandInPeerFactory(params, chain, blocksServed, headersServed,
+                    delayer, latency), address);
+            server.startAndWait();
+            servers.add(server);
+            addresses.add(address);
+        }
+
+        BlockChain blockChain = new BlockChain(params, new MemoryBlockStore(params));
+        PeerGroup peerGroup = new PeerGroup(params, blockChain);
+        peerGroup.setUserAgent("HeaderSyncBenchmark", "1.0");
+        peerGroup.setParallelBlockDownload(true);
+        // Skip the bodies of all blocks before the one the wallet key was created at.
+        long catchupTime = chain.getBlock(height - bodies + 1).getTimeSeconds();
+        if (filtered) {
+            Wallet wallet = new Wallet(params);
+            ECKey key = new ECKey();
+            key.setCreationTimeSeconds(catchupTime + CATCHUP_MARGIN);
+            wallet.addKey(key);
+            blockChain.addWallet(wallet);
+            peerGroup.addWallet(wallet);
+        } else {
+            peerGroup.setFastCatchupTimeSecs(catchupTime);
+        }
+        peerGroup.setMaxConnections(numPeers);
+        for (InetSocketAddress address : addresses)
+            peerGroup.addAddress(new PeerAddress(address.getAddress(), address.getPort()));
+        peerGroup.startAndWait();
+        peerGroup.waitForPeers(numPeers).get();
+
+        start = System.currentTimeMillis();
+        peerGroup.startBlockChainDownload(new DownloadListener() {
+            @Override
+            protected void progress(double pct, int blocksSoFar, Date date) {
+                // Too noisy.
+            }
+        });
+        while (blockChain.getBestChainHeight() < height)
+            Thread.sleep(10);
+        long millis = System.currentTimeMillis() - start;
+        System.out.printf("Synced %d headers and %d %s blocks from %d peers with %d ms latency in %d ms (%.0f headers/sec)%n",
+                height, bodies, filtered ? "filtered" : "full", numPeers, latency, millis,
+                height * 1000.0 / Math.max(millis, 1));
+        BlockDownloadScheduler scheduler = peerGroup.getBlockDownloadScheduler();
+        System.out.printf("Peers served %d headers and %d blocks, scheduler downloaded %d blocks with %d stalls%n",
+                headersServed.get(), blocksServed.get(), scheduler.getBlocksDownloaded(), scheduler.getStallCount());
+
+        peerGroup.stopAndWait();
+        for (NioServer server : servers)
+            server.stopAndWait();
+        delayer.shutdown();
+    }
+
+    /** Unit test network without difficulty transitions and with a genesis block at the given time. */
+    private static class BenchmarkParams extends UnitTestParams {
+        BenchmarkParams(long genesisTime) {
+            interval = Integer.MAX_VALUE;
+            genesisBlock.setTime(genesisTime);
+            genesisBlock.solve();
+        }
+    }
+
+    /** A chain of blocks containing only their coinbase, as served by the stand-in peers. */
+    private static class ServedChain {
+        private final List<Block> blocks;
+        private final List<Block> headers;
+        private final Map<Sha256Hash, Integer> heights;
+
+        ServedChain(NetworkParameters params, int height) {
+            blocks = new ArrayList<Block>(height + 1);
+            headers = new ArrayList<Block>(height + 1);
+            heights = new HashMap<Sha256Hash, Integer>(height * 2);
+            Block block = params.getGenesisBlock();
+            for (int i = 0; i <= height; i++) {
+                if (i > 0)
+                    block = block.createNextBlock(null, block.getTimeSeconds() + BLOCK_SPACING);
+                blocks.add(block);
+                headers.add(block.cloneAsHeader());
+                heights.put(block.getHash(), i);
+                if (i > 0 && i % 10000 == 0)
+                    System.out.println("  built " + i + " blocks");
+            }
+        }
+
+        int getHeight() {
+            return blocks.size() - 1;
+        }
+
+        Block getBlock(int height) {
+            return blocks.get(height);
+        }
+
+        /** Returns the headers following the first locator entry we know, up to the stop hash. */
+        List<Block> getHeaders(GetHeadersMessage m) {
+            int from = 0;
+            for (Sha256Hash hash : m.getLocator()) {
+                Integer height = heights.get(hash);
+                if (height != null) {
+                    from = height + 1;
+                    break;
+                }
+            }
+            List<Block> result = new ArrayList<Block>();
+            for (int i = from; i < headers.size() && result.size() < HeadersMessage.MAX_HEADERS; i++) {
+                result.add(headers.get(i));
+                if (headers.get(i).getHash().equals(m.getStopHash()))
+                    break;
+            }
+            return result;
+        }
+
+        Block getBlock(Sha256Hash hash) {
+            Integer height = heights.get(hash);
+            return height == null ? null : blocks.get(height);
+        }
+    }
+
+    private static class StandInPeerFactory implements StreamParserFactory {
+        private final NetworkParameters params;
+        private final ServedChain chain;
+        private final AtomicLong blocksServed, headersServed;
+        private final ScheduledExecutorService delayer;
+        private final int latency;
+
+        StandInPeerFactory(NetworkParameters params, ServedChain chain, AtomicLong blocksServed, AtomicLong headersServed,
+                           ScheduledExecutorService delayer, int latency) {
+            this.params = params;
+            this.chain = chain;
+            this.blocksServed = blocksServed;
+            this.headersServed = headersServed;
+            this.delayer = delayer;
+            this.latency = latency;
+        }
+
+        @Override
+        public StreamParser getNewParser(InetAddress inetAddress, int port) {
+            return new StandInPeer(params, new InetSocketAddress(inetAddress, port), chain, blocksServed, headersServed,
+                    delayer, latency);
+        }
+    }
+
+    /** Answers just enough of the protocol to serve the chain: version, getheaders, getdata and ping. */
+    private static class StandInPeer extends PeerSocketHandler {
+        private final NetworkParameters params;
+        private final ServedChain chain;
+        private final AtomicLong blocksServed, headersServed;
+        private final ScheduledExecutorService delayer;
+        private final int latency;
+
+        StandInPeer(NetworkParameters params, InetSocketAddress remoteIp, ServedChain chain, AtomicLong blocksServed,
+                    AtomicLong headersServed, ScheduledExecutorService delayer, int latency) {
+            super(params, remoteIp);
+            this.params = params;
+            this.chain = chain;
+            this.blocksServed = blocksServed;
+            this.headersServed = headersServed;
+            this.delayer = delayer;
+            this.latency = latency;
+        }
+
+        @Override
+        protected void processMessage(final Message m) throws Exception {
+            if (latency == 0) {
+                answer(m);
+                return;
+            }
+            // Answer later without holding up the network thread, so messages in flight overlap as they would.
+            delayer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        answer(m);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, latency, TimeUnit.MILLISECONDS);
+        }
+
+        private void answer(Message m) throws Exception {
+            if (m instanceof VersionMessage) {
+                VersionMessage ver = new VersionMessage(params, chain.getHeight());
+                ver.localServices = VersionMessage.NODE_NETWORK;
+                sendMessage(ver);
+                sendMessage(new VersionAck());
+            } else if (m instanceof GetHeadersMessage) {
+                List<Block> headers = chain.getHeaders((GetHeadersMessage) m);
+                headersServed.addAndGet(headers.size());
+                sendMessage(new HeadersMessage(params, headers.toArray(new Block[headers.size()])));
+            } else if (m instanceof GetDataMessage) {
+                for (InventoryItem item : ((GetDataMessage) m).getItems()) {
+                    Block block = chain.getBlock(item.hash);
+                    if (block == null)
+                        continue;
+                    blocksServed.incrementAndGet();
+                    if (item.type == InventoryItem.Type.FilteredBlock)
+                        sendMessage(toFilteredBlock(block));
+                    else
+                        sendMessage(block);
+                }
+            } else if (m instanceof Ping) {
+                if (((Ping) m).hasNonce())
+                    sendMessage(new Pong(((Ping) m).getNonce()));
+            }
+        }
+
+        // None of the generated transactions match any filter, so the merkle tree is just the coinbase hash.
+        private FilteredBlock toFilteredBlock(Block block) throws ProtocolException {
+            byte[] payload = new byte[Block.HEADER_SIZE + 4 + 1 + 32 + 1 + 1];
+            System.arraycopy(block.fastcoinSerialize(), 0, payload, 0, Block.HEADER_SIZE);
+            int cursor = Block.HEADER_SIZE;
+            Utils.uint32ToByteArrayLE(1, payload, cursor);
+            cursor += 4;
+            payload[cursor++] = 1;
+            byte[] txHash = Utils.reverseBytes(block.getTransactions().get(0).getHash().getBytes());
+            System.arraycopy(txHash, 0, payload, cursor, 32);
+            cursor += 32;
+            payload[cursor++] = 1;
+            payload[cursor] = 0;
+            return new FilteredBlock(params, payload);
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.google.fastcoin.tools;
+
+import com.google.fastcoin.core.*;
+import com.google.fastcoin.params.UnitTestParams;
+import com.google.fastcoin.store.SPVBlockStore;
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Measures how many {@link SPVBlockStore#get(Sha256Hash)} calls per second a number of reader threads get through
+ * together, with a writer adding a header and moving the chain head to it every millisecond, as a syncing chain
+ * would. The readers pick headers at random from those in the ring, so the cache hit rate is roughly the cache size
+ * over the number of headers. Headers the writer has just pushed out of the ring count as reads but aren't found.
+ */
+public class SPVBlockStoreBenchmark {
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: SPVBlockStoreBenchmark [readers] [headers] [cache size] [seconds]");
+        System.out.println("       eg SPVBlockStoreBenchmark 4 5000 2050 10");
+        Preconditions.checkArgument(args.length <= 4);
+        int numReaders = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int numHeaders = args.length > 1 ? Integer.parseInt(args[1]) : SPVBlockStore.DEFAULT_NUM_HEADERS;
+        int cacheSize = args.length > 2 ? Integer.parseInt(args[2]) : SPVBlockStore.DEFAULT_CACHE_SIZE;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        NetworkParameters params = UnitTestParams.get();
+        File file = File.createTempFile("spvbenchmark", ".spvchain");
+        file.delete();
+        file.deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, file, numHeaders, cacheSize, true);
+        // Fill the ring. The hashes are kept in a ring of the same size, written is how many have been stored.
+        final AtomicReferenceArray<Sha256Hash> hashes = new AtomicReferenceArray<Sha256Hash>(numHeaders);
+        final AtomicInteger written = new AtomicInteger();
+        StoredBlock stored = store.getChainHead();
+        hashes.set(written.getAndIncrement(), stored.getHeader().getHash());
+        for (int i = 1; i < numHeaders; i++) {
+            stored = stored.build(stored.getHeader().createNextBlock(null).cloneAsHeader());
+            store.put(stored);
+            hashes.set(written.getAndIncrement(), stored.getHeader().getHash());
+        }
+        store.setChainHead(stored);
+        System.out.printf("Stored %d headers%n", written.get());
+        final int numHeadersFinal = numHeaders;
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong(), notFound = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(numReaders + 1);
+        for (int i = 0; i < numReaders; i++) {
+            final Random random = new Random(i);
+            new Thread("reader " + i) {
+                @Override
+                public void run() {
+                    try {
+                        long count = 0, missing = 0;
+                        while (running.get()) {
+                            int n = written.get() - 1 - random.nextInt(numHeadersFinal);
+                            if (store.get(hashes.get(n % numHeadersFinal)) == null)
+                                missing++;
+                            count++;
+                        }
+                        reads.addAndGet(count);
+                        notFound.addAndGet(missing);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        final StoredBlock head = stored;
+        final AtomicLong puts = new AtomicLong();
+        new Thread("writer") {
+            @Override
+            public void run() {
+                try {
+                    // Add headers and move the chain head to them as block connection does.
+                    StoredBlock next = head;
+                    while (running.get()) {
+                        next = next.build(next.getHeader().createNextBlock(null).cloneAsHeader());
+                        store.put(next);
+                        store.setChainHead(next);
+                        hashes.set(written.get() % numHeadersFinal, next.getHeader().getHash());
+                        written.incrementAndGet();
+                        puts.incrementAndGet();
+                        Thread.sleep(1);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }
+        }.start();
+
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        done.await();
+        System.out.printf("%d readers over %d headers with a cache of %d: %.0f gets/sec, cache hit rate %.2f, " +
+                "%d not found, %d headers added%n", numReaders, numHeaders, cacheSize, reads.get() / (double) seconds,
+                store.getCacheHitRate(), notFound.get(), puts.get());
+        store.close();
+    }
+}
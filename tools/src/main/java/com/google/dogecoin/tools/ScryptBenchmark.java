@@ -0,0 +1,67 @@
+package com.google.fastcoin.tools;
+
+import com.google.fastcoin.crypto.HeaderScrypt;
+import com.google.common.base.Preconditions;
+import com.lambdaworks.crypto.SCrypt;
+
+import java.util.Random;
+
+/**
+ * Measures how many 80 byte block headers a second one thread can scrypt with {@link HeaderScrypt}, against the
+ * general purpose lambdaworks implementation that was used for headers before: {@link SCrypt#scrypt}, which uses the
+ * native library when it can be loaded, and the pure Java {@link SCrypt#scryptJ}. HeaderScrypt itself uses the native
+ * library when it's loaded, the kernel mode measures its Java code regardless.
+ */
+public class ScryptBenchmark {
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: ScryptBenchmark (header|kernel|lambdaworks|java) [seconds]");
+        System.out.println("       eg ScryptBenchmark header 10");
+        Preconditions.checkArgument(args.length >= 1 && args.length <= 2);
+        int mode;
+        if (args[0].equals("header")) {
+            mode = 0;
+        } else if (args[0].equals("kernel")) {
+            mode = 1;
+        } else if (args[0].equals("lambdaworks")) {
+            mode = 2;
+        } else if (args[0].equals("java")) {
+            mode = 3;
+        } else {
+            System.err.println("Unknown mode " + args[0]);
+            return;
+        }
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        byte[] header = new byte[HeaderScrypt.HEADER_LENGTH];
+        new Random(1).nextBytes(header);
+        // A second of warm up, then the measurement.
+        run(mode, header, 1000);
+        long start = System.nanoTime();
+        long count = run(mode, header, seconds * 1000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: %.0f headers per second, %.1f us each%n", args[0], count / elapsed,
+                elapsed * 1e6 / count);
+    }
+
+    private static long run(int mode, byte[] header, long millis) throws Exception {
+        long end = System.currentTimeMillis() + millis;
+        long count = 0;
+        byte[] out = new byte[32];
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < 16; i++) {
+                // Change the nonce, as a miner or a header download would.
+                header[76] = (byte) count;
+                if (mode == 0)
+                    HeaderScrypt.hash(header, 0, out, 0);
+                else if (mode == 1)
+                    HeaderScrypt.hashInJava(header, 0, out, 0);
+                else if (mode == 2)
+                    out = SCrypt.scrypt(header, header, 1024, 1, 1, 32);
+                else
+                    out = SCrypt.scryptJ(header, header, 1024, 1, 1, 32);
+                count++;
+            }
+        }
+        return count;
+    }
+}